@@ -84,6 +84,8 @@ public class ABORTImplementation extends CommandImplementation implements JMSCom
 		LociTCPServerConnectionThread thread = null;
 
 		loci.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":processCommand:Started.");
+	// the CCD Flask API's FITS headers are unknown once an exposure has been aborted
+		status.getFitsHeaderMirror().invalidate();
 		try
 		{
 			sendAbortExposureCommand();
@@ -107,6 +107,9 @@ public class BIASImplementation extends CALIBRATEImplementation implements JMSCo
 	// setup exposure status.
 		status.setExposureCount(1);
 		status.setExposureNumber(0);
+	// the CCD Flask API may have been restarted, or had it's FITS headers changed, since the last command,
+	// so don't trust the FITS header mirror across top-level exposure commands
+		status.getFitsHeaderMirror().invalidate();
 		// get fits headers
 		try
 		{
@@ -61,6 +61,7 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 	/**
 	 * Send a 'takeBiasFrame' command to the loci-ctrl CCD Flask API.
 	 * <ul>
+	 * <li>We call flushFitsHeaders to ensure the CCD Flask API holds the current set of FITS headers.
 	 * <li>We call getCCDFlaskConnectionData to setup ccdFlaskHostname and ccdFlaskPortNumber.
 	 * <li>We setup and configure an instance of TakeBiasFrameCommand, with connection and multrun details.
 	 * <li>We run the instance of TakeBiasFrameCommand.
@@ -73,6 +74,7 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 	 * @param isMultrunStart A boolean, set to true if this frame is start of a multrun, and false if it is not
 	 *        the start of a multrun.
 	 * @return The generated BIAS FITS filename is returned as a String.
+	 * @see #flushFitsHeaders
 	 * @see #getCCDFlaskConnectionData
 	 * @see #ccdFlaskHostname
 	 * @see #ccdFlaskPortNumber
@@ -88,6 +90,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 		String filename = null;
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"sendTakeBiasFrameCommand:started.");
+		// ensure the CCD Flask API holds exactly the current set of FITS headers
+		flushFitsHeaders();
 		// get CCD Flask API connection data
 		getCCDFlaskConnectionData();
 		// setup TakeBiasFrameCommand
@@ -100,6 +104,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 		// check reply
 		if(takeBiasFrameCommand.getRunException() != null)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeBiasFrameCommand:Failed to take bias frame:",
 					    takeBiasFrameCommand.getRunException());
@@ -111,6 +117,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 			 " and message:"+takeBiasFrameCommand.getMessage()+".");
 		if(takeBiasFrameCommand.isReturnStatusSuccess() == false)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeBiasFrameCommand:Take Bias Frame Command failed with status: "+
 					    takeBiasFrameCommand.getReturnStatus()+
@@ -125,6 +133,7 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 	/**
 	 * Send a 'takeDarkFrame' command to the loci-ctrl CCD Flask API.
 	 * <ul>
+	 * <li>We call flushFitsHeaders to ensure the CCD Flask API holds the current set of FITS headers.
 	 * <li>We call getCCDFlaskConnectionData to setup ccdFlaskHostname and ccdFlaskPortNumber.
 	 * <li>We setup and configure an instance of TakeDarkFrameCommand, 
 	 *     with connection details and exposure length.
@@ -139,6 +148,7 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 	 * @param isMultrunStart A boolean, set to true if this frame is start of a multrun, and false if it is not
 	 *        the start of a multrun.
 	 * @return The generated DARK FITS filename is returned as a String.
+	 * @see #flushFitsHeaders
 	 * @see #getCCDFlaskConnectionData
 	 * @see #ccdFlaskHostname
 	 * @see #ccdFlaskPortNumber
@@ -156,6 +166,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"sendTakeDarkFrameCommand:started with exposure length "+
 			 exposureLength+" ms.");
+		// ensure the CCD Flask API holds exactly the current set of FITS headers
+		flushFitsHeaders();
 		// get CCD Flask API connection data
 		getCCDFlaskConnectionData();
 		// convert exposure length from milliseconds to decimal seconds
@@ -173,6 +185,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 		// check reply
 		if(takeDarkFrameCommand.getRunException() != null)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeDarkFrameCommand:Failed to take dark frame:",
 					    takeDarkFrameCommand.getRunException());
@@ -184,6 +198,8 @@ public class CALIBRATEImplementation extends HardwareImplementation implements J
 			 " and message:"+takeDarkFrameCommand.getMessage()+".");
 		if(takeDarkFrameCommand.isReturnStatusSuccess() == false)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeDarkFrameCommand:Take Dark Frame Command failed with status: "+
 					    takeDarkFrameCommand.getReturnStatus()+
@@ -45,11 +45,14 @@ public class CommandImplementation implements JMSCommandImplementation
 	 * This method is called from the TCPServerConnection's init method, after the command to be 
 	 * implemented has been 
 	 * received. This enables us to do any setup required for the implementation before implementation 
-	 * actually starts. It then tries to fill in the loci status references.
+	 * actually starts. It then tries to fill in the loci status references, and pins the current configuration
+	 * snapshot to this thread, so the command reads a consistent configuration even if the property
+	 * files are reloaded whilst it is running.
 	 * @param command The command to be implemented.
 	 * @see #loci
 	 * @see #status
 	 * @see Loci#getStatus
+	 * @see LociStatus#pinConfigSnapshot
 	 */
 	public void init(COMMAND command)
 	{
@@ -57,6 +60,8 @@ public class CommandImplementation implements JMSCommandImplementation
 		{
 			status = loci.getStatus();
 		}
+		if(status != null)
+			status.pinConfigSnapshot();
 		if(command == null)
 			return;
 	}
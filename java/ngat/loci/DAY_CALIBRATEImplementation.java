@@ -67,6 +67,14 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	 * Middle part of a key string, used for saving and restoring the stored calibration state.
 	 */
 	protected final static String LIST_KEY_LAST_TIME_STRING = "last_time.";
+	/**
+	 * The maximum number of time steps the remaining time is divided into, when scheduling the calibrations.
+	 * If the remaining time divided by the scheduleTimeStep is larger than this, a larger time step is used
+	 * to limit the size of the schedule tables.
+	 * @see #scheduleCalibrations
+	 * @see #scheduleTimeStep
+	 */
+	protected final static int SCHEDULE_MAX_TIME_STEP_COUNT = 100000;
 	/**
 	 * The time, in milliseconds since the epoch, that the implementation of this command was started.
 	 */
@@ -90,6 +98,32 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	 * The readout overhead for a full frame, in milliseconds.
 	 */
 	private int readoutOverhead = 0;
+	/**
+	 * Whether to select and order the calibrations to do using scheduleCalibrations (true),
+	 * or to test each calibration in list order (false).
+	 * @see #scheduleCalibrations
+	 */
+	private boolean scheduleEnable = false;
+	/**
+	 * The resolution of the remaining time used when scheduling calibrations, in milliseconds.
+	 * @see #scheduleCalibrations
+	 */
+	private int scheduleTimeStep = 1000;
+	/**
+	 * The maximum overdue factor (the number of frequency periods since the calibration was last done)
+	 * used as the value of a calibration when scheduling. This stops calibrations that have never been done
+	 * from swamping all the others.
+	 * @see #scheduleCalibrations
+	 * @see #getOverdueFactor
+	 */
+	private double scheduleMaxOverdue = 10.0;
+	/**
+	 * The binning the detector was last successfully configured to (full frame, with no sub-window)
+	 * by this command, or -1 if it is not known. This is used by doConfig to avoid re-configuring the
+	 * detector when consecutive calibrations use the same binning.
+	 * @see #doConfig
+	 */
+	private int configuredBin = -1;
 
 	/**
 	 * Constructor.
@@ -148,6 +182,11 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	 * <li>addSavedStateToCalibration is called, which finds the correct last time for each
 	 * 	calibration in the list and sets the relevant field.
 	 * <li>The FITS headers are cleared.
+	 * <li>loadScheduleProperties is called to load the scheduling configuration.
+	 * <li>If scheduleEnable is true, scheduleCalibrations is called to select and order the calibrations that
+	 * 	give the most value in the time available, otherwise the whole calibration list is used.
+	 * <li>groupCalibrationsByBinning is called, so calibrations with the same binning are done together,
+	 * 	and the detector is re-configured as few times as possible.
 	 * <li>For each calibration, we do the following:
 	 *      <ul>
 	 *      <li>testCalibration is called, to see whether the calibration should be done.
@@ -167,6 +206,11 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	 * @see #initialiseState
 	 * @see #addSavedStateToCalibration
 	 * @see ngat.loci.HardwareImplementation#clearFitsHeaders
+	 * @see #loadScheduleProperties
+	 * @see #scheduleCalibrations
+	 * @see #scheduleEnable
+	 * @see #groupCalibrationsByBinning
+	 * @see #configuredBin
 	 * @see #testCalibration
 	 * @see #doCalibration
 	 * @see #readoutOverhead
@@ -176,6 +220,7 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 		DAY_CALIBRATE dayCalibrateCommand = (DAY_CALIBRATE)command;
 		DAY_CALIBRATE_DONE dayCalibrateDone = new DAY_CALIBRATE_DONE(command.getId());
 		DAY_CALIBRATECalibration calibration = null;
+		List scheduleList = null;
 		String directoryString = null;
 		int makeBiasAckTime;
 
@@ -206,6 +251,9 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 		if(addSavedStateToCalibration(dayCalibrateCommand,dayCalibrateDone) == false)
 			return dayCalibrateDone;
 	// initialise status/fits header info, in case any frames are produced.
+	// the CCD Flask API may have been restarted, or had it's FITS headers changed, since the last command,
+	// so don't trust the FITS header mirror across top-level exposure commands
+		status.getFitsHeaderMirror().invalidate();
 	// get fits headers
 		try
 		{
@@ -228,13 +276,23 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 			   ":processCommand:Set Filter Wheel FITS Headers.");
 		if(setFilterWheelFitsHeaders(dayCalibrateCommand,dayCalibrateDone) == false)
 			return dayCalibrateDone;
+	// select and order the calibrations to do
+		loadScheduleProperties();
+		if(scheduleEnable)
+			scheduleList = scheduleCalibrations(dayCalibrateCommand);
+		else
+			scheduleList = calibrationList;
+		scheduleList = groupCalibrationsByBinning(dayCalibrateCommand,scheduleList);
+	// the detector configuration is not known until this command configures it
+		configuredBin = -1;
 	// main loop, do calibrations until we run out of time.
-		for(int i = 0; i < calibrationList.size(); i++)
+		for(int i = 0; i < scheduleList.size(); i++)
 		{
-			calibration = (DAY_CALIBRATECalibration)(calibrationList.get(i));
+			calibration = (DAY_CALIBRATECalibration)(scheduleList.get(i));
 		// see if we are going to do this calibration.
 		// Note if we have run out of time (timeToComplete) then this method
-		// should always return false.
+		// should always return false. A scheduled calibration is still tested, in case earlier
+		// calibrations took longer than predicted.
 			if(testCalibration(dayCalibrateCommand,dayCalibrateDone,calibration))
 			{
 				if(doCalibration(dayCalibrateCommand,dayCalibrateDone,calibration) == false)
@@ -472,6 +530,7 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	 * @param dayCalibrateDone The instance of DAY_CALIBRATE_DONE to fill in with errors we receive.
 	 * @param calibration The calibration we wish to determine whether to do or not.
 	 * @return The method returns true if we should do the calibration, false if we should not.
+	 * @see #getCalibrationCompletionTime
 	 */
 	protected boolean testCalibration(DAY_CALIBRATE dayCalibrateCommand,DAY_CALIBRATE_DONE dayCalibrateDone,
 						DAY_CALIBRATECalibration calibration)
@@ -513,17 +572,7 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 			return false;
 		}
 	// How long will it take us to do this calibration?
-		if(calibration.isBias())
-		{
-			calibrationCompletionTime = calibration.getCount()*readoutOverhead;
-		}
-		else if(calibration.isDark())
-		{
-			calibrationCompletionTime = calibration.getCount()*
-					(calibration.getExposureTime()+readoutOverhead);
-		}
-		else // we should never get here, but if we do make method return false.
-			calibrationCompletionTime = Long.MAX_VALUE;
+		calibrationCompletionTime = getCalibrationCompletionTime(calibration);
 	// if it's going to take us longer than the remaining time to do this, return false
 		if((now+calibrationCompletionTime) > (implementationStartTime+dayCalibrateCommand.getTimeToComplete()))
 		{
@@ -542,6 +591,269 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 		return true;
 	}
 
+	/**
+	 * Work out how long it will take to do the specified calibration, using the <b>count</b>,
+	 * <b>exposureTime</b>, and the <b>readoutOverhead</b> property.
+	 * @param calibration The calibration.
+	 * @return The time the calibration will take, in milliseconds. Long.MAX_VALUE is returned if the
+	 * 	calibration is of an unknown type.
+	 * @see #readoutOverhead
+	 */
+	protected long getCalibrationCompletionTime(DAY_CALIBRATECalibration calibration)
+	{
+		if(calibration.isBias())
+		{
+			return ((long)calibration.getCount())*readoutOverhead;
+		}
+		else if(calibration.isDark())
+		{
+			return ((long)calibration.getCount())*(calibration.getExposureTime()+readoutOverhead);
+		}
+		else // we should never get here
+			return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Work out how overdue the specified calibration is, the number of frequency periods since it was last done.
+	 * The result is limited to scheduleMaxOverdue, so calibrations that have never been done
+	 * (a last time of zero) do not swamp all the others.
+	 * @param calibration The calibration.
+	 * @param now The current time, in milliseconds since the epoch.
+	 * @return The overdue factor. A calibration is due when this is at least 1.0.
+	 * @see #scheduleMaxOverdue
+	 */
+	protected double getOverdueFactor(DAY_CALIBRATECalibration calibration,long now)
+	{
+		double overdueFactor;
+
+		overdueFactor = ((double)(now-calibration.getLastTime()))/((double)(calibration.getFrequency()));
+		return Math.min(overdueFactor,scheduleMaxOverdue);
+	}
+
+	/**
+	 * Load the optional properties used to schedule the calibrations. Missing or illegal properties
+	 * leave the scheduler disabled, or it's defaults in place.
+	 * @see #scheduleEnable
+	 * @see #scheduleTimeStep
+	 * @see #scheduleMaxOverdue
+	 */
+	protected void loadScheduleProperties()
+	{
+		try
+		{
+			scheduleEnable = status.getPropertyBoolean(LIST_KEY_STRING+"schedule.enable");
+		}
+		catch(NullPointerException e)
+		{
+			scheduleEnable = false;
+		}
+		try
+		{
+			scheduleTimeStep = status.getPropertyInteger(LIST_KEY_STRING+"schedule.time_step");
+		}
+		catch(NumberFormatException e)
+		{
+			scheduleTimeStep = 1000;
+		}
+		if(scheduleTimeStep < 1)
+			scheduleTimeStep = 1000;
+		try
+		{
+			scheduleMaxOverdue = status.getPropertyDouble(LIST_KEY_STRING+"schedule.overdue.max");
+		}
+		catch(Exception e)
+		{
+			scheduleMaxOverdue = 10.0;
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadScheduleProperties:enable:"+scheduleEnable+
+				 ":time step:"+scheduleTimeStep+":max overdue:"+scheduleMaxOverdue+".");
+	}
+
+	/**
+	 * Select and order the calibrations to do in the time remaining for this command, rather than
+	 * accepting or rejecting each one greedily in list order (where a long dark early in the list can
+	 * crowd out several overdue bias sets).
+	 * <ul>
+	 * <li>The candidates are the calibrations that are due (at least frequency milliseconds since they were
+	 * 	last done), and that would fit in the remaining time on their own.
+	 * <li>Each candidate's value is it's overdue factor (getOverdueFactor), and it's cost the time it will
+	 * 	take (getCalibrationCompletionTime), rounded up to a whole number of time steps.
+	 * <li>The subset of candidates with the largest total value whose total cost fits in the remaining time
+	 * 	is found by 0/1 knapsack dynamic programming over the remaining time, in units of scheduleTimeStep
+	 * 	(increased if needed so there are no more than SCHEDULE_MAX_TIME_STEP_COUNT steps).
+	 * <li>The selected calibrations are ordered most overdue first (in list order for equal factors),
+	 * 	so the most valuable calibrations are done if the command is aborted or runs late.
+	 * </ul>
+	 * @param dayCalibrateCommand The instance of DAY_CALIBRATE we are currently running.
+	 * @return A list of DAY_CALIBRATECalibration instances to do, in the order they should be done.
+	 * @see #calibrationList
+	 * @see #getOverdueFactor
+	 * @see #getCalibrationCompletionTime
+	 * @see #scheduleTimeStep
+	 * @see #SCHEDULE_MAX_TIME_STEP_COUNT
+	 */
+	protected List scheduleCalibrations(DAY_CALIBRATE dayCalibrateCommand)
+	{
+		DAY_CALIBRATECalibration calibration = null;
+		List candidateList = null;
+		List scheduleList = null;
+		final Map overdueFactorMap = new HashMap();
+		long now,remainingTime,timeStep,calibrationCompletionTime,scheduleTime;
+		double bestValue[] = null;
+		double overdueFactor,value,scheduleValue;
+		boolean selected[][] = null;
+		int cost[] = null;
+		int stepCount,step;
+
+		now = System.currentTimeMillis();
+		remainingTime = (implementationStartTime+dayCalibrateCommand.getTimeToComplete())-now;
+	// find the candidate calibrations
+		candidateList = new Vector();
+		for(int i = 0; i < calibrationList.size(); i++)
+		{
+			calibration = (DAY_CALIBRATECalibration)(calibrationList.get(i));
+			calibrationCompletionTime = getCalibrationCompletionTime(calibration);
+			if(((now-calibration.getLastTime()) >= calibration.getFrequency())&&
+			   (calibrationCompletionTime <= remainingTime))
+			{
+				candidateList.add(calibration);
+				overdueFactorMap.put(calibration,new Double(getOverdueFactor(calibration,now)));
+			}
+		}
+		scheduleList = new Vector();
+		if(candidateList.size() == 0)
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+dayCalibrateCommand.getClass().getName()+
+				 ":scheduleCalibrations:No calibrations are due that fit in the remaining time:"+
+				 remainingTime+".");
+			return scheduleList;
+		}
+	// work out the time resolution and the cost of each candidate in time steps
+		timeStep = scheduleTimeStep;
+		if((remainingTime/timeStep) > SCHEDULE_MAX_TIME_STEP_COUNT)
+			timeStep = (remainingTime+SCHEDULE_MAX_TIME_STEP_COUNT-1)/SCHEDULE_MAX_TIME_STEP_COUNT;
+		stepCount = (int)(remainingTime/timeStep);
+		cost = new int[candidateList.size()];
+		for(int i = 0; i < candidateList.size(); i++)
+		{
+			calibration = (DAY_CALIBRATECalibration)(candidateList.get(i));
+			calibrationCompletionTime = getCalibrationCompletionTime(calibration);
+		// round up, so the schedule never overruns the remaining time
+			cost[i] = (int)((calibrationCompletionTime+timeStep-1)/timeStep);
+		}
+	// 0/1 knapsack over the remaining time steps
+		bestValue = new double[stepCount+1];
+		selected = new boolean[candidateList.size()][stepCount+1];
+		for(int i = 0; i < candidateList.size(); i++)
+		{
+			calibration = (DAY_CALIBRATECalibration)(candidateList.get(i));
+			overdueFactor = ((Double)(overdueFactorMap.get(calibration))).doubleValue();
+			for(step = stepCount; step >= cost[i]; step--)
+			{
+				value = bestValue[step-cost[i]]+overdueFactor;
+				if(value > bestValue[step])
+				{
+					bestValue[step] = value;
+					selected[i][step] = true;
+				}
+			}
+		}
+	// trace back through the table to find the selected calibrations
+		step = stepCount;
+		for(int i = candidateList.size()-1; i >= 0; i--)
+		{
+			if(selected[i][step])
+			{
+				scheduleList.add(candidateList.get(i));
+				step -= cost[i];
+			}
+		}
+	// most overdue first, list order for equal factors
+		Collections.reverse(scheduleList);
+		Collections.sort(scheduleList,new Comparator()
+		{
+			public int compare(Object o1,Object o2)
+			{
+				double factor1 = ((Double)(overdueFactorMap.get(o1))).doubleValue();
+				double factor2 = ((Double)(overdueFactorMap.get(o2))).doubleValue();
+
+				if(factor1 > factor2)
+					return -1;
+				else if(factor1 < factor2)
+					return 1;
+				return 0;
+			}
+		});
+	// log schedule
+		scheduleTime = 0L;
+		scheduleValue = 0.0;
+		for(int i = 0; i < scheduleList.size(); i++)
+		{
+			calibration = (DAY_CALIBRATECalibration)(scheduleList.get(i));
+			overdueFactor = ((Double)(overdueFactorMap.get(calibration))).doubleValue();
+			scheduleTime += getCalibrationCompletionTime(calibration);
+			scheduleValue += overdueFactor;
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+dayCalibrateCommand.getClass().getName()+
+				 ":scheduleCalibrations:Scheduled "+i+":"+
+				 "\n\ttype:"+calibration.getType()+
+				 ":bin:"+calibration.getBin()+
+				 ":count:"+calibration.getCount()+
+				 ":exposure time:"+calibration.getExposureTime()+
+				 ":frequency:"+calibration.getFrequency()+
+				 "\n\tlast time:"+calibration.getLastTime()+
+				 ":overdue factor:"+overdueFactor+".");
+		}
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,
+			 "Command:"+dayCalibrateCommand.getClass().getName()+
+			 ":scheduleCalibrations:Scheduled "+scheduleList.size()+" of "+candidateList.size()+
+			 " due calibrations:value:"+scheduleValue+":time:"+scheduleTime+
+			 " of remaining time:"+remainingTime+":time step:"+timeStep+".");
+		return scheduleList;
+	}
+
+	/**
+	 * Re-order a list of calibrations so that calibrations with the same binning are done consecutively.
+	 * The binning groups are ordered by the position of their first calibration in the list, and the
+	 * calibrations within each group keep their list order. The most overdue calibration (the first in a
+	 * scheduled list) is therefore still done first.
+	 * @param dayCalibrateCommand The instance of DAY_CALIBRATE we are currently running.
+	 * @param list The list of DAY_CALIBRATECalibration instances to re-order.
+	 * @return A new list, containing the same calibrations grouped by binning.
+	 */
+	protected List groupCalibrationsByBinning(DAY_CALIBRATE dayCalibrateCommand,List list)
+	{
+		DAY_CALIBRATECalibration calibration = null;
+		DAY_CALIBRATECalibration groupCalibration = null;
+		List groupedList = null;
+		boolean grouped[] = null;
+
+		groupedList = new Vector();
+		grouped = new boolean[list.size()];
+		for(int i = 0; i < list.size(); i++)
+		{
+			if(grouped[i])
+				continue;
+			calibration = (DAY_CALIBRATECalibration)(list.get(i));
+			for(int j = i; j < list.size(); j++)
+			{
+				groupCalibration = (DAY_CALIBRATECalibration)(list.get(j));
+				if((grouped[j] == false)&&(groupCalibration.getBin() == calibration.getBin()))
+				{
+					groupedList.add(groupCalibration);
+					grouped[j] = true;
+				}
+			}
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,
+			 "Command:"+dayCalibrateCommand.getClass().getName()+
+			 ":groupCalibrationsByBinning:Grouped "+groupedList.size()+" calibrations by binning.");
+		return groupedList;
+	}
+
 	/**
 	 * This method does the specified calibration.
 	 * <ul>
@@ -609,13 +921,25 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 
 	/**
 	 * Method to setup the CCD configuration with the specified binning factor.
+	 * If this command has already configured the detector to this binning (configuredBin), the detector
+	 * is not re-configured, and the configuration ID is not incremented, as the configuration has not changed.
 	 * @param dayCalibrateCommand The instance of DAY_CALIBRATE we are currently running.
 	 * @param dayCalibrateDone The instance of DAY_CALIBRATE_DONE to fill in with errors we receive.
 	 * @param bin The binning factor to use.
 	 * @return The method returns true if the calibration was done successfully, false if an error occured.
+	 * @see #configuredBin
 	 */
 	protected boolean doConfig(DAY_CALIBRATE dayCalibrateCommand,DAY_CALIBRATE_DONE dayCalibrateDone,int bin)
 	{
+		if(bin == configuredBin)
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+dayCalibrateCommand.getClass().getName()+
+				 ":doConfig:Detector already configured to bin "+bin+":Not re-configuring.");
+			return true;
+		}
+	// the detector state is unknown until the new configuration succeeds
+		configuredBin = -1;
 		try
 		{
 			// send configuration to the camera
@@ -655,6 +979,7 @@ public class DAY_CALIBRATEImplementation extends CALIBRATEImplementation impleme
 	// Store name of configuration used in status object.
 	// This is queried when saving FITS headers to get the CONFNAME value.
 		status.setConfigName("DAY_CALIBRATION:"+dayCalibrateCommand.getId()+":"+bin);
+		configuredBin = bin;
 		return true;
 	}
 
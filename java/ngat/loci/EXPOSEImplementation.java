@@ -62,6 +62,7 @@ public class EXPOSEImplementation extends HardwareImplementation implements JMSC
 	/**
 	 * Send a 'takeExposure' command to the loci-ctrl CCD Flask API.
 	 * <ul>
+	 * <li>We call flushFitsHeaders to ensure the CCD Flask API holds the current set of FITS headers.
 	 * <li>We call getCCDFlaskConnectionData to setup ccdFlaskHostname and ccdFlaskPortNumber.
 	 * <li>We setup and configure an instance of TakeExposureCommand, 
 	 *     with connection details, exposure length, is multrun start and exposure type.
@@ -77,6 +78,7 @@ public class EXPOSEImplementation extends HardwareImplementation implements JMSC
 	 * @param exposureType  A string representing the type of exposure, usually "exposure" for an exposure, and
 	 *        "standard" if the exposure is of a standard star.
 	 * @return The generated exposure FITS filename is returned as a String.
+	 * @see #flushFitsHeaders
 	 * @see #getCCDFlaskConnectionData
 	 * @see #ccdFlaskHostname
 	 * @see #ccdFlaskPortNumber
@@ -95,6 +97,8 @@ public class EXPOSEImplementation extends HardwareImplementation implements JMSC
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"sendTakeExposureCommand:started with exposure length "+
 			 exposureLength+" ms.");
+		// ensure the CCD Flask API holds exactly the current set of FITS headers
+		flushFitsHeaders();
 		// get CCD Flask API connection data
 		getCCDFlaskConnectionData();
 		// convert exposure length from milliseconds to decimal seconds
@@ -114,6 +118,8 @@ public class EXPOSEImplementation extends HardwareImplementation implements JMSC
 		// check reply
 		if(takeExposureCommand.getRunException() != null)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeExposureCommand:Failed to take exposure:",
 					    takeExposureCommand.getRunException());
@@ -125,6 +131,8 @@ public class EXPOSEImplementation extends HardwareImplementation implements JMSC
 			 " and message:"+takeExposureCommand.getMessage()+".");
 		if(takeExposureCommand.isReturnStatusSuccess() == false)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeExposureCommand:Take Exposure Command failed with status: "+
 					    takeExposureCommand.getReturnStatus()+
@@ -0,0 +1,168 @@
+// FitsHeaderCard.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+
+/**
+ * This class holds a single, immutable, FITS header card (keyword, typed value, comment and units).
+ * Lists of these are compiled from the fits properties by LociStatus when the configuration is loaded,
+ * so that the FITS headers can be set for each frame without re-parsing the properties.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatus#getFitsHeaderCardList
+ */
+public class FitsHeaderCard
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The FITS header keyword.
+	 */
+	private final String keyword;
+	/**
+	 * The FITS header value, usually an object of class String, Integer, Float, Double, Boolean or Date.
+	 */
+	private final Object value;
+	/**
+	 * A string describing a comment to go in the FITS header card, or null.
+	 */
+	private final String comment;
+	/**
+	 * A string describing the units to go in the FITS header card, or null.
+	 */
+	private final String units;
+
+	/**
+	 * Constructor.
+	 * @param keyword The FITS header keyword.
+	 * @param value The FITS header value, an object of class String, Integer, Float or Boolean.
+	 * @param comment A string describing a comment to go in the FITS header card, or null.
+	 * @param units A string describing the units to go in the FITS header card, or null.
+	 * @see #keyword
+	 * @see #value
+	 * @see #comment
+	 * @see #units
+	 */
+	public FitsHeaderCard(String keyword,Object value,String comment,String units)
+	{
+		super();
+		this.keyword = keyword;
+		this.value = value;
+		this.comment = comment;
+		this.units = units;
+	}
+
+	/**
+	 * Get the FITS header keyword.
+	 * @return A string, the keyword.
+	 * @see #keyword
+	 */
+	public String getKeyword()
+	{
+		return keyword;
+	}
+
+	/**
+	 * Get the FITS header value.
+	 * @return An object of class String, Integer, Float or Boolean.
+	 * @see #value
+	 */
+	public Object getValue()
+	{
+		return value;
+	}
+
+	/**
+	 * Get the FITS header comment.
+	 * @return A string, or null if the card has no comment.
+	 * @see #comment
+	 */
+	public String getComment()
+	{
+		return comment;
+	}
+
+	/**
+	 * Get the FITS header units.
+	 * @return A string, or null if the card has no units.
+	 * @see #units
+	 */
+	public String getUnits()
+	{
+		return units;
+	}
+
+	/**
+	 * Return whether this card is the same as another card, i.e. has an equal keyword, value, comment and units.
+	 * @param o The object to compare with.
+	 * @return A boolean, true if o is a FitsHeaderCard with equal contents, false otherwise.
+	 * @see #keyword
+	 * @see #value
+	 * @see #comment
+	 * @see #units
+	 */
+	public boolean equals(Object o)
+	{
+		FitsHeaderCard card = null;
+
+		if(o == this)
+			return true;
+		if((o instanceof FitsHeaderCard) == false)
+			return false;
+		card = (FitsHeaderCard)o;
+		return objectEquals(keyword,card.keyword)&&objectEquals(value,card.value)&&
+			objectEquals(comment,card.comment)&&objectEquals(units,card.units);
+	}
+
+	/**
+	 * Return a hash code for this card, derived from the keyword, value, comment and units.
+	 * @return An integer hash code.
+	 */
+	public int hashCode()
+	{
+		int hash;
+
+		hash = objectHashCode(keyword);
+		hash = (31*hash)+objectHashCode(value);
+		hash = (31*hash)+objectHashCode(comment);
+		hash = (31*hash)+objectHashCode(units);
+		return hash;
+	}
+
+	/**
+	 * Return a string representation of this card.
+	 * @return A string.
+	 */
+	public String toString()
+	{
+		return new String(keyword+" = "+value+" / "+comment+" ["+units+"]");
+	}
+
+	/**
+	 * Internal method to compare two objects, either of which can be null.
+	 * @param o1 The first object.
+	 * @param o2 The second object.
+	 * @return A boolean, true if both objects are null, or they are equal.
+	 */
+	private static boolean objectEquals(Object o1,Object o2)
+	{
+		if(o1 == null)
+			return (o2 == null);
+		return o1.equals(o2);
+	}
+
+	/**
+	 * Internal method to return the hash code of an object, which can be null.
+	 * @param o The object.
+	 * @return The object's hash code, or 0 if the object is null.
+	 */
+	private static int objectHashCode(Object o)
+	{
+		if(o == null)
+			return 0;
+		return o.hashCode();
+	}
+}
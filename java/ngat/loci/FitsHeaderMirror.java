@@ -0,0 +1,181 @@
+// FitsHeaderMirror.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class holds a client-side mirror of the FITS header cards the loci-ctrl CCD Flask API currently holds.
+ * It is used by HardwareImplementation to only send FITS header cards that have changed, or are new, and to
+ * only clear the CCD Flask API's FITS headers when a card has to be removed.
+ * <ul>
+ * <li>beginFrame is called when a new set of FITS headers is started (instead of clearing the headers held by
+ *     the CCD Flask API).
+ * <li>addFrameCard is called for each card in the new set. It returns whether the CCD Flask API already holds an
+ *     identical card, in which case the card does not need to be sent.
+ * <li>setServerCard is called once a card has been successfully sent.
+ * <li>Before an exposure is taken, needsClear is called, to see whether the CCD Flask API holds cards that are not
+ *     part of the new set. If so, the headers are cleared (setServerCleared) and the frame's cards
+ *     (getFrameCardList) are re-sent.
+ * <li>invalidate is called if a header command or an exposure fails, an exposure is aborted, at the start of
+ *     each top-level exposure command and on a REDATUM level reboot, as the CCD Flask API's state is then unknown.
+ * </ul>
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see FitsHeaderCard
+ * @see HardwareImplementation#clearFitsHeaders
+ * @see HardwareImplementation#addFitsHeader
+ * @see HardwareImplementation#flushFitsHeaders
+ */
+public class FitsHeaderMirror
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * A hashtable of FitsHeaderCard, keyed by keyword, that we believe the CCD Flask API currently holds.
+	 */
+	private Hashtable<String,FitsHeaderCard> serverCardList = null;
+	/**
+	 * A map of FitsHeaderCard, keyed by keyword, that have been added since the last call to beginFrame.
+	 * A LinkedHashMap is used so the cards can be re-sent in the order they were added.
+	 */
+	private LinkedHashMap<String,FitsHeaderCard> frameCardList = null;
+	/**
+	 * Whether the contents of serverCardList are known to be what the CCD Flask API holds. This is false
+	 * on startup (the CCD Flask API may hold cards from a previous Loci invocation), and after a header
+	 * command fails.
+	 */
+	private boolean valid = false;
+	/**
+	 * The number of cards added that did not need to be sent, as the CCD Flask API already held them.
+	 */
+	private long skippedCardCount = 0;
+
+	/**
+	 * Constructor. Creates the card lists.
+	 * @see #serverCardList
+	 * @see #frameCardList
+	 */
+	public FitsHeaderMirror()
+	{
+		super();
+		serverCardList = new Hashtable<String,FitsHeaderCard>();
+		frameCardList = new LinkedHashMap<String,FitsHeaderCard>();
+	}
+
+	/**
+	 * Return whether the mirror is known to match the cards held by the CCD Flask API.
+	 * @return A boolean, true if the mirror is valid.
+	 * @see #valid
+	 */
+	public synchronized boolean isValid()
+	{
+		return valid;
+	}
+
+	/**
+	 * Start a new set of FITS header cards. The list of cards in the current frame is cleared.
+	 * @see #frameCardList
+	 */
+	public synchronized void beginFrame()
+	{
+		frameCardList.clear();
+	}
+
+	/**
+	 * Add a card to the current frame.
+	 * @param card The card to add.
+	 * @return A boolean, true if the CCD Flask API already holds an identical card (so the card does not need
+	 *         to be sent), and false if the card is new or has changed.
+	 * @see #frameCardList
+	 * @see #serverCardList
+	 * @see #skippedCardCount
+	 */
+	public synchronized boolean addFrameCard(FitsHeaderCard card)
+	{
+		FitsHeaderCard serverCard = null;
+
+		frameCardList.put(card.getKeyword(),card);
+		if(valid == false)
+			return false;
+		serverCard = serverCardList.get(card.getKeyword());
+		if((serverCard != null)&&(serverCard.hashCode() == card.hashCode())&&serverCard.equals(card))
+		{
+			skippedCardCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Record that a card has been successfully sent to the CCD Flask API.
+	 * @param card The card that was sent.
+	 * @see #serverCardList
+	 */
+	public synchronized void setServerCard(FitsHeaderCard card)
+	{
+		serverCardList.put(card.getKeyword(),card);
+	}
+
+	/**
+	 * Return whether the CCD Flask API's headers need to be cleared before the next exposure. This is the case
+	 * if the mirror is invalid, or the CCD Flask API holds a card with a keyword that has not been added
+	 * to the current frame.
+	 * @return A boolean, true if the headers need clearing.
+	 * @see #valid
+	 * @see #serverCardList
+	 * @see #frameCardList
+	 */
+	public synchronized boolean needsClear()
+	{
+		if(valid == false)
+			return true;
+		return (frameCardList.keySet().containsAll(serverCardList.keySet()) == false);
+	}
+
+	/**
+	 * Record that the CCD Flask API's headers have been cleared. The mirror becomes valid.
+	 * @see #serverCardList
+	 * @see #valid
+	 */
+	public synchronized void setServerCleared()
+	{
+		serverCardList.clear();
+		valid = true;
+	}
+
+	/**
+	 * Return a copy of the list of cards added to the current frame.
+	 * @return A list of FitsHeaderCard.
+	 * @see #frameCardList
+	 */
+	public synchronized List<FitsHeaderCard> getFrameCardList()
+	{
+		return new Vector<FitsHeaderCard>(frameCardList.values());
+	}
+
+	/**
+	 * Invalidate the mirror, as the state of the CCD Flask API's headers is unknown. The next call to
+	 * needsClear will return true.
+	 * @see #serverCardList
+	 * @see #valid
+	 */
+	public synchronized void invalidate()
+	{
+		serverCardList.clear();
+		valid = false;
+	}
+
+	/**
+	 * Return the number of cards that were not sent, as the CCD Flask API already held them.
+	 * @return The number of cards.
+	 * @see #skippedCardCount
+	 */
+	public synchronized long getSkippedCardCount()
+	{
+		return skippedCardCount;
+	}
+}
@@ -0,0 +1,187 @@
+// FlaskCommandPool.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * This class holds a pool of idle Flask command instances (subclasses of ngat.loci.ccd.Command and
+ * ngat.loci.filterwheel.Command), keyed by class. Commands that take no parameters (i.e. the status
+ * queries sent by GET_STATUS) can be borrowed from the pool, run, and released back into it, rather than
+ * creating a new command (and a new Flask end-point) for every request. Concurrent GET_STATUS commands
+ * each borrow a different instance, so a command instance is never shared between two threads at once.
+ * Commands that take parameters should not be pooled, as the end-point parameters from a previous
+ * invocation would be retained. The null argument constructor of each command class is resolved once, the first
+ * time the class is borrowed, rather than every time a new instance is created.
+ * @see LociCommandImplementationFactory
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see ngat.loci.ccd.Command
+ * @see ngat.loci.filterwheel.Command
+ */
+public class FlaskCommandPool
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default maximum number of idle instances of each class kept in the pool.
+	 */
+	public final static int DEFAULT_MAX_IDLE_COUNT = 4;
+	/**
+	 * A map from the command class, to a list of idle instances of that class.
+	 */
+	private Map<Class,List<Object>> idleMap = null;
+	/**
+	 * A map from the command class, to it's (accessible) null argument constructor.
+	 */
+	private Map<Class,Constructor<?>> constructorMap = null;
+	/**
+	 * The maximum number of idle instances of each class kept in the pool.
+	 */
+	private int maxIdleCount = DEFAULT_MAX_IDLE_COUNT;
+	/**
+	 * The number of times a borrowed command was re-used from the pool.
+	 */
+	private long reuseCount = 0;
+	/**
+	 * The number of times a borrowed command had to be created.
+	 */
+	private long createCount = 0;
+
+	/**
+	 * Constructor.
+	 * @param maxIdleCount The maximum number of idle instances of each class kept in the pool.
+	 * @see #idleMap
+	 * @see #constructorMap
+	 * @see #setMaxIdleCount
+	 */
+	public FlaskCommandPool(int maxIdleCount)
+	{
+		super();
+		idleMap = new HashMap<Class,List<Object>>();
+		constructorMap = new HashMap<Class,Constructor<?>>();
+		setMaxIdleCount(maxIdleCount);
+	}
+
+	/**
+	 * Set the maximum number of idle instances of each class kept in the pool.
+	 * @param maxIdleCount The maximum number of idle instances. Values less than zero are treated as zero,
+	 *        i.e. no pooling.
+	 * @see #maxIdleCount
+	 */
+	public synchronized void setMaxIdleCount(int maxIdleCount)
+	{
+		this.maxIdleCount = Math.max(0,maxIdleCount);
+	}
+
+	/**
+	 * Get the maximum number of idle instances of each class kept in the pool.
+	 * @return The maximum number of idle instances.
+	 * @see #maxIdleCount
+	 */
+	public synchronized int getMaxIdleCount()
+	{
+		return maxIdleCount;
+	}
+
+	/**
+	 * Borrow an instance of the specified command class from the pool. If there is no idle instance,
+	 * a new one is constructed using it's cached null argument constructor.
+	 * The caller is responsible for setting the address and port number, and for calling release when
+	 * it has finished with the instance (having retrieved any returned data).
+	 * @param commandClass The class of command to borrow.
+	 * @return An instance of commandClass.
+	 * @exception NoSuchMethodException Thrown if the command class has no null argument constructor.
+	 * @exception InstantiationException Thrown if the command class is abstract.
+	 * @exception IllegalAccessException Thrown if the command's constructor is not accessible.
+	 * @exception InvocationTargetException Thrown if the command's constructor throws an exception.
+	 * @see #idleMap
+	 * @see #getConstructor
+	 * @see #release
+	 */
+	public synchronized <T> T borrow(Class<T> commandClass) throws NoSuchMethodException, InstantiationException,
+								       IllegalAccessException, InvocationTargetException
+	{
+		List<Object> idleList = null;
+
+		idleList = idleMap.get(commandClass);
+		if((idleList != null)&&(idleList.size() > 0))
+		{
+			reuseCount++;
+			return commandClass.cast(idleList.remove(idleList.size()-1));
+		}
+		createCount++;
+		return commandClass.cast(getConstructor(commandClass).newInstance(new Object[0]));
+	}
+
+	/**
+	 * Get the null argument constructor of the specified command class. The constructor is resolved
+	 * (and made accessible) the first time the class is used, and cached in constructorMap.
+	 * Must be called whilst synchronized on the pool.
+	 * @param commandClass The command class.
+	 * @return The null argument constructor.
+	 * @exception NoSuchMethodException Thrown if the command class has no null argument constructor.
+	 * @see #constructorMap
+	 */
+	protected Constructor<?> getConstructor(Class<?> commandClass) throws NoSuchMethodException
+	{
+		Constructor<?> constructor = null;
+
+		constructor = constructorMap.get(commandClass);
+		if(constructor == null)
+		{
+			constructor = commandClass.getDeclaredConstructor(new Class[0]);
+			constructor.setAccessible(true);
+			constructorMap.put(commandClass,constructor);
+		}
+		return constructor;
+	}
+
+	/**
+	 * Release a previously borrowed command instance back into the pool. If the pool already
+	 * holds maxIdleCount idle instances of that class, the instance is discarded.
+	 * @param command The command instance to release. Null values are ignored.
+	 * @see #idleMap
+	 * @see #maxIdleCount
+	 * @see #borrow
+	 */
+	public synchronized void release(Object command)
+	{
+		List<Object> idleList = null;
+
+		if(command == null)
+			return;
+		idleList = idleMap.get(command.getClass());
+		if(idleList == null)
+		{
+			idleList = new ArrayList<Object>();
+			idleMap.put(command.getClass(),idleList);
+		}
+		if(idleList.size() < maxIdleCount)
+			idleList.add(command);
+	}
+
+	/**
+	 * Get the number of times a borrowed command was re-used from the pool.
+	 * @return The number of re-uses.
+	 * @see #reuseCount
+	 */
+	public synchronized long getReuseCount()
+	{
+		return reuseCount;
+	}
+
+	/**
+	 * Get the number of times a borrowed command had to be created.
+	 * @return The number of creations.
+	 * @see #createCount
+	 */
+	public synchronized long getCreateCount()
+	{
+		return createCount;
+	}
+}
@@ -6,6 +6,7 @@ import java.lang.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import ngat.loci.ccd.*;
 import ngat.loci.filterwheel.*;
@@ -13,7 +14,6 @@ import ngat.message.base.*;
 import ngat.message.base.*;
 import ngat.message.ISS_INST.*;
 import ngat.util.logging.*;
-import ngat.util.ExecuteCommand;
 
 /**
  * This class provides the implementation for the GET_STATUS command sent to a server using the
@@ -44,6 +44,12 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * @see #commsInstrumentStatus
 	 */
 	public final static int COMMS_INSTRUMENT_STATUS_COUNT = 2;
+	/**
+	 * The default time, in milliseconds, the hardware status queries have to return before that
+	 * subsystem is marked as failed.
+	 * @see #startHardwareQueries
+	 */
+	public final static long DEFAULT_QUERY_DEADLINE = 5000L;
 	/**
 	 * This hashtable is created in processCommand, and filled with status data,
 	 * and is returned in the GET_STATUS_DONE object.
@@ -73,6 +79,32 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_ERROR
 	 */
 	protected int currentMode;
+	/**
+	 * The time (in milliseconds since the epoch) by which the hardware queries started by startHardwareQueries
+	 * must have returned, otherwise that subsystem is deemed to have failed.
+	 * @see #startHardwareQueries
+	 * @see #waitForSample
+	 */
+	protected long queryDeadlineTime = 0L;
+	/**
+	 * The future used to retrieve the camera status sample, started by startHardwareQueries.
+	 * @see #startHardwareQueries
+	 * @see #getExposureStatus
+	 */
+	protected Future<LociStatusSample> cameraStatusFuture = null;
+	/**
+	 * The future used to retrieve the filter wheel status sample, started by startHardwareQueries.
+	 * @see #startHardwareQueries
+	 * @see #getFilterWheelStatus
+	 */
+	protected Future<LociStatusSample> filterWheelFuture = null;
+	/**
+	 * The future used to retrieve the detector temperature sample, started by startHardwareQueries
+	 * if the GET_STATUS level is at least intermediate.
+	 * @see #startHardwareQueries
+	 * @see #getTemperature
+	 */
+	protected Future<LociStatusSample> temperatureFuture = null;
 	
 	/**
 	 * Constructor.
@@ -113,8 +145,11 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * This method implements the GET_STATUS command. 
 	 * The local hashTable is setup (returned in the done object) and a local copy of status setup.
 	 * <ul>
+	 * <li>The commsInstrumentStatus are initialised to UNKNOWN.
 	 * <li>getCCDFlaskConnectionData is called to get the CCD Flask API end-point address/port number.
 	 * <li>getFilterWheelFlaskConnectionData is called to get the filter wheel Flask API end-point address/port number.
+	 * <li>startHardwareQueries is called to start the camera status, filter wheel and (intermediate level) 
+	 *     temperature queries concurrently. The methods below wait for the results of these queries.
 	 * <li>getExposureStatus is called to get the exposure status into the exposureStatus and exposureStatusString
 	 *     variables.
 	 * <li>"Exposure Status" and "Exposure Status String" status properties are added to the hashtable.
@@ -138,6 +173,7 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * @see #hashTable
 	 * @see #detectorTemperatureInstrumentStatus
 	 * @see #commsInstrumentStatus
+	 * @see #startHardwareQueries
 	 * @see #getFilterWheelStatus
 	 * @see #getExposureStatus
 	 * @see #getExposureProgress
@@ -146,8 +182,10 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * @see #currentMode
 	 * @see HardwareImplementation#getCCDFlaskConnectionData
 	 * @see LociStatus#getProperty
-	 * @see LociStatus#getExposureCount
-	 * @see LociStatus#getExposureNumber
+	 * @see LociStatus#getRuntimeState
+	 * @see LociRuntimeState#getCurrentCommand
+	 * @see LociRuntimeState#getExposureCount
+	 * @see LociRuntimeState#getExposureNumber
 	 * @see GET_STATUS#getLevel
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#KEYWORD_INSTRUMENT_STATUS
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#KEYWORD_DETECTOR_TEMPERATURE_INSTRUMENT_STATUS
@@ -156,6 +194,7 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	{
 		GET_STATUS getStatusCommand = (GET_STATUS)command;
 		GET_STATUS_DONE getStatusDone = new GET_STATUS_DONE(command.getId());
+		LociRuntimeState runtimeState = null;
 		ISS_TO_INST currentCommand = null;
 
 		try
@@ -163,10 +202,17 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 			// Create new hashtable to be returned
 			// v1.5 generic typing of collections:<String, Object>, can't be used due to v1.4 compatibility
 			hashTable = new Hashtable();
+			// initialise comms status to unknown
+			for(int i = 0; i < COMMS_INSTRUMENT_STATUS_COUNT; i++)
+			{
+				commsInstrumentStatus[i] = GET_STATUS_DONE.VALUE_STATUS_UNKNOWN;
+			}
 			// get CCD Flask API comms configuration
 			getCCDFlaskConnectionData();
 			// get filter wheel Flask API comms configuration
 			getFilterWheelFlaskConnectionData();
+			// start the independent hardware queries concurrently
+			startHardwareQueries(getStatusCommand.getLevel());
 			// exposure status
 			// Also sets currentMode
 			getExposureStatus(); 
@@ -178,13 +224,9 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 			hashTable.put(GET_STATUS_DONE.KEYWORD_DETECTOR_TEMPERATURE_INSTRUMENT_STATUS,
 				      detectorTemperatureInstrumentStatus);
 			hashTable.put(GET_STATUS_DONE.KEYWORD_INSTRUMENT_STATUS,GET_STATUS_DONE.VALUE_STATUS_UNKNOWN);
-			// initialise comms status to unknown
-			for(int i = 0; i < COMMS_INSTRUMENT_STATUS_COUNT; i++)
-			{
-				commsInstrumentStatus[i] = GET_STATUS_DONE.VALUE_STATUS_UNKNOWN;
-			}
-			// current command
-			currentCommand = status.getCurrentCommand();
+			// current command and exposure count/number, from one consistent snapshot
+			runtimeState = status.getRuntimeState();
+			currentCommand = runtimeState.getCurrentCommand();
 			if(currentCommand == null)
 				hashTable.put("currentCommand","");
 			else
@@ -192,9 +234,9 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 			// basic information
 			getFilterWheelStatus();
 			// "Exposure Count" is searched for by the IcsGUI
-			hashTable.put("Exposure Count",new Integer(status.getExposureCount()));
+			hashTable.put("Exposure Count",new Integer(runtimeState.getExposureCount()));
 			// "Exposure Number" is searched for by the IcsGUI
-			hashTable.put("Exposure Number",new Integer(status.getExposureNumber()));
+			hashTable.put("Exposure Number",new Integer(runtimeState.getExposureNumber()));
 			// Exposure Progress
 			// The exposure progress command will only succeed if the camera is in DRV_ACQUIRING,
 			// so we need to have run getExposureStatus() before getExposureProgress() so currentMode is set correctly.
@@ -236,156 +278,206 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 		return getStatusDone;
 	}
 
+	/**
+	 * Start the independent hardware status queries concurrently. The CCD and filter wheel Flask APIs
+	 * are separate servers, so there is no need to wait for one before querying the other.
+	 * <ul>
+	 * <li>The query deadline is set from the "loci.get_status.query.deadline" property (in milliseconds),
+	 *     or DEFAULT_QUERY_DEADLINE if it is not present.
+	 * <li>The camera status and filter wheel queries are started.
+	 * <li>If the level is at least intermediate, the temperature query is started.
+	 * </ul>
+	 * The exposure progress query is not started here, as it depends on the camera status.
+	 * @param level The GET_STATUS level.
+	 * @see #queryDeadlineTime
+	 * @see #DEFAULT_QUERY_DEADLINE
+	 * @see #cameraStatusFuture
+	 * @see #filterWheelFuture
+	 * @see #temperatureFuture
+	 * @see LociStatusPoller#getSampleFuture
+	 */
+	protected void startHardwareQueries(int level)
+	{
+		LociStatusPoller statusPoller = null;
+		long deadline;
+
+		try
+		{
+			deadline = status.getPropertyLong("loci.get_status.query.deadline");
+		}
+		catch(NumberFormatException e)
+		{
+			deadline = DEFAULT_QUERY_DEADLINE;
+		}
+		queryDeadlineTime = System.currentTimeMillis()+deadline;
+		statusPoller = loci.getStatusPoller();
+		cameraStatusFuture = statusPoller.getSampleFuture(LociStatusPoller.FIELD_CAMERA_STATUS);
+		filterWheelFuture = statusPoller.getSampleFuture(LociStatusPoller.FIELD_FILTER_WHEEL);
+		if(level >= GET_STATUS.LEVEL_INTERMEDIATE)
+			temperatureFuture = statusPoller.getSampleFuture(LociStatusPoller.FIELD_TEMPERATURE);
+		else
+			temperatureFuture = null;
+	}
+
+	/**
+	 * Wait for a status sample, until the query deadline.
+	 * @param future The future to wait on.
+	 * @param fieldName The name of the field being retrieved, used for logging.
+	 * @return The sample, or null if the deadline passed before the sample was retrieved.
+	 * @exception Exception Thrown if the query threw an exception, or the wait was interrupted.
+	 * @see #queryDeadlineTime
+	 */
+	protected LociStatusSample waitForSample(Future<LociStatusSample> future,String fieldName) throws Exception
+	{
+		long remainingTime;
+
+		remainingTime = Math.max(0L,queryDeadlineTime-System.currentTimeMillis());
+		try
+		{
+			return future.get(remainingTime,TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			loci.log(Logging.VERBOSITY_TERSE,"waitForSample:Retrieving "+fieldName+
+				 " timed out after query deadline.");
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			throw new Exception(this.getClass().getName()+":waitForSample:Retrieving "+fieldName+
+					    " failed:",e.getCause());
+		}
+	}
+
 	/**
 	 * Get the status of the filter wheel.
 	 * <ul>
-	 * <li>We construct an instance of GetFilterPositionCommand, and run it, to get filter position data from the filter wheel Flask API.
-	 * <li>If the command run fails, we update commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] to FAIL, and log the error, and return.
-	 * <li>If the command run succeeds, we set the "Filter Wheel:1" hashTable entry to the filter name returned, 
-	 *     and set the "Filter Wheel Position:1" hashtable entry to the filter wheel position returned.
-	 * <li>We construct an instance of GetStatusCommand, and run it, to get filter wheel connection data from the filter wheel Flask API.
-	 * <li>If the command run fails, we update commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] to FAIL, and log the error, and return.
-	 * <li>If the command run succeeds, we set the "Filter Wheel Connection Status:1" hashTable entry to the filter wheel connection status.
+	 * <li>We wait for the sample of the filter wheel status started by startHardwareQueries. This is either the 
+	 *     latest background sample, or (if that is too old) the result of a live query using 
+	 *     GetFilterPositionCommand and GetStatusCommand.
+	 * <li>If the query deadline passes first, we update commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] 
+	 *     to FAIL, and return.
+	 * <li>We set the "Filter Wheel Timestamp" hashTable entry to the time the sample was taken.
+	 * <li>If the filter position was retrieved, we set the "Filter Wheel:1" hashTable entry to the filter name, 
+	 *     and set the "Filter Wheel Position:1" hashtable entry to the filter wheel position.
+	 * <li>If the filter wheel connection status was retrieved, we set the "Filter Wheel Connection Status:1" 
+	 *     hashTable entry to it.
+	 * <li>If the sample failed, we update commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] to FAIL, 
+	 *     and log the error, and return.
 	 * <li>We update the commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] to OK, to say we can communicate with the filter wheel.
 	 * </ul>
-	 * @exception UnknownHostException Thrown if setting the hostname address of the 
-	 *            GetFilterPositionCommand or GetStatusCommand fails.
-	 * @see #filterWheelFlaskHostname
-	 * @see #filterWheelFlaskPortNumber
+	 * @exception Exception Thrown if retrieving the sample fails.
 	 * @see #hashTable
 	 * @see #COMMS_INSTRUMENT_STATUS_FILTER_WHEEL
 	 * @see #commsInstrumentStatus
-	 * @see ngat.loci.filterwheel.GetFilterPositionCommand
-	 * @see ngat.loci.filterwheel.GetFilterPositionCommand#getFilterName
-	 * @see ngat.loci.filterwheel.GetFilterPositionCommand#getFilterPosition
-	 * @see ngat.loci.filterwheel.GetStatusCommand
-	 * @see ngat.loci.filterwheel.GetStatusCommand#getConnectionStatus
+	 * @see #filterWheelFuture
+	 * @see #waitForSample
+	 * @see LociStatusPoller#FIELD_FILTER_WHEEL
+	 * @see LociStatusSample
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#VALUE_STATUS_OK
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#VALUE_STATUS_FAIL
 	 */
-	protected void getFilterWheelStatus() throws UnknownHostException
+	protected void getFilterWheelStatus() throws Exception
 	{
-		GetFilterPositionCommand filterPositionCommand = null;
-		GetStatusCommand getStatusCommand = null;
-		Exception returnException = null;
+		LociStatusSample sample = null;
 		String filterName = null;
 		String filterWheelConnectionStatus = null;
-		int returnCode,filterWheelPosition;
-
-		// Setup GetFilterPositionCommand
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:started for filter wheel Flask API :Hostname: "+
-			 filterWheelFlaskHostname+" Port Number: "+filterWheelFlaskPortNumber+".");
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:Send GetFilterPositionCommand command to Flask API.");
-		filterPositionCommand = new GetFilterPositionCommand();
-		filterPositionCommand.setAddress(filterWheelFlaskHostname);
-		filterPositionCommand.setPortNumber(filterWheelFlaskPortNumber);
-		// actually send the command to the filter wheel Flask API
-		filterPositionCommand.run();
-		// check the parsed reply
-		if(filterPositionCommand.isReturnStatusSuccess() == false)
+		int filterWheelPosition;
+
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:started.");
+		sample = waitForSample(filterWheelFuture,LociStatusPoller.FIELD_FILTER_WHEEL);
+		if(sample == null)
 		{
 			commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] = GET_STATUS_DONE.
 				VALUE_STATUS_FAIL;
 			hashTable.put("Filter Wheel.Comms.Status",
 				      commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL]);
-			returnCode = filterPositionCommand.getHttpResponseCode();
-			returnException = filterPositionCommand.getRunException();
-			loci.log(Logging.VERBOSITY_TERSE,
-				 "getFilterWheelStatus:get filter position command failed with return code "+
-				 returnCode+" run exception:"+returnException);
-			loci.error("getFilterWheelStatus:get filter position command failed with return code "+
-				   returnCode+" run exception:"+returnException,returnException);
 			return;
 		}
+		hashTable.put("Filter Wheel Timestamp",new Date(sample.getTimestamp()));
 		// retrieve returned data and put it in the hashtable
-		filterName = filterPositionCommand.getFilterName();
-		hashTable.put("Filter Wheel:1",new String(filterName));
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel filter name:"+filterName);
-		filterWheelPosition = filterPositionCommand.getFilterPosition();
-		hashTable.put("Filter Wheel Position:1",new Integer(filterWheelPosition));
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel position:"+filterWheelPosition);
-		// Setup GetStatusCommand
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:Send GetStatusCommand command to Flask API.");
-		getStatusCommand = new GetStatusCommand();
-		getStatusCommand.setAddress(filterWheelFlaskHostname);
-		getStatusCommand.setPortNumber(filterWheelFlaskPortNumber);
-		// actually send the command to the filter wheel Flask API
-		getStatusCommand.run();
-		// check the parsed reply
-		if(getStatusCommand.isReturnStatusSuccess() == false)
+		if(sample.hasValue("Filter Name"))
+		{
+			filterName = (String)(sample.getValue("Filter Name"));
+			hashTable.put("Filter Wheel:1",new String(filterName));
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel filter name:"+
+				 filterName);
+			filterWheelPosition = ((Integer)(sample.getValue("Filter Position"))).intValue();
+			hashTable.put("Filter Wheel Position:1",new Integer(filterWheelPosition));
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel position:"+
+				 filterWheelPosition);
+		}
+		if(sample.hasValue("Connection Status"))
+		{
+			filterWheelConnectionStatus = (String)(sample.getValue("Connection Status"));
+			hashTable.put("Filter Wheel Connection Status:1",new String(filterWheelConnectionStatus));
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel connection status:"+
+				 filterWheelConnectionStatus);
+		}
+		// check the sample succeeded
+		if(sample.isSuccessful() == false)
 		{
 			commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] = GET_STATUS_DONE.
 				VALUE_STATUS_FAIL;
 			hashTable.put("Filter Wheel.Comms.Status",
 				      commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL]);
-			returnCode = getStatusCommand.getHttpResponseCode();
-			returnException = getStatusCommand.getRunException();
-			loci.log(Logging.VERBOSITY_TERSE,
-				 "getFilterWheelStatus:get filter wheel status command failed with return code "+
-				 returnCode+" run exception:"+returnException);
-			loci.error("getFilterWheelStatus:get filter position command failed with return code "+
-				   returnCode+" run exception:"+returnException,returnException);
+			loci.log(Logging.VERBOSITY_TERSE,"getFilterWheelStatus:"+sample.getErrorString());
+			loci.error("getFilterWheelStatus:"+sample.getErrorString(),sample.getException());
 			return;
 		}
-		// retrieve returned data and put it in the hashtable
-		filterWheelConnectionStatus = getStatusCommand.getConnectionStatus();
-		hashTable.put("Filter Wheel Connection Status:1",new String(filterWheelConnectionStatus));
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:filter wheel connection status:"+
-			 filterWheelConnectionStatus);
 		// update filter wheel comms status to "OK"
 		commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL] = GET_STATUS_DONE.VALUE_STATUS_OK;
 		hashTable.put("Filter Wheel.Comms.Status",
 			      commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_FILTER_WHEEL]);
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getFilterWheelStatus:finished.");
-		
 	}
 	
 	/**
 	 * Get the exposure status. 
-	 * This retrieved using an instance of GetCameraStatusCommand.
-	 * The "Camera Status" keyword/value pairs are generated from the returned status. 
+	 * We wait for the camera status query started by startHardwareQueries. This is either the latest background 
+	 * sample, or (if that is too old) the result of a live query using an instance of GetCameraStatusCommand.
+	 * If the query deadline passes first, commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR] is set to FAIL,
+	 * and currentMode is left as MODE_IDLE.
+	 * The "Camera Status" keyword/value pairs are generated from the returned status, and the 
+	 * "Camera Status Timestamp" keyword/value pair is set to the time the sample was taken.
 	 * The currentMode is set as either MODE_IDLE, or MODE_EXPOSING if the CCD Flask API getCameraStatus returns
 	 * "DRV_ACQUIRING".
 	 * @exception Exception Thrown if an error occurs.
 	 * @see #currentMode
-	 * @see #ccdFlaskHostname
-	 * @see #ccdFlaskPortNumber
-	 * @see ngat.loci.ccd.GetCameraStatusCommand
-	 * @see ngat.loci.ccd.GetCameraStatusCommand#getCameraStatus
+	 * @see #cameraStatusFuture
+	 * @see #waitForSample
+	 * @see LociStatusPoller#FIELD_CAMERA_STATUS
+	 * @see LociStatusSample
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_IDLE
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_EXPOSING
 	 * @see ngat.message.ISS_INST.GET_STATUS_DONE#MODE_ERROR
 	 */
 	protected void getExposureStatus() throws Exception
 	{
-		GetCameraStatusCommand statusCommand = null;
-		Exception returnException = null;
-		int returnCode;
+		LociStatusSample sample = null;
 		String cameraStatus;
 		
 		// initialise currentMode to IDLE
 		currentMode = GET_STATUS_DONE.MODE_IDLE;
-		// Setup GetCameraStatusCommand
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureStatus:started for CCD Flask API :Hostname: "+
-			 ccdFlaskHostname+" Port Number: "+ccdFlaskPortNumber+".");
-		statusCommand = new GetCameraStatusCommand();
-		statusCommand.setAddress(ccdFlaskHostname);
-		statusCommand.setPortNumber(ccdFlaskPortNumber);
-		// actually send the command to the CCD Flask API
-		statusCommand.run();
-		// check the parsed reply
-		if(statusCommand.isReturnStatusSuccess() == false)
-		{
-			returnCode = statusCommand.getHttpResponseCode();
-			returnException = statusCommand.getRunException();
-			loci.log(Logging.VERBOSITY_TERSE,
-				 "getExposureStatus:exposure status command failed with return code "+
-				 returnCode+" run exception:"+returnException);
-			throw new Exception(this.getClass().getName()+
-					    ":getExposureStatus:exposure status command failed with return code "+returnCode,returnException);
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureStatus:started.");
+		sample = waitForSample(cameraStatusFuture,LociStatusPoller.FIELD_CAMERA_STATUS);
+		if(sample == null)
+		{
+			commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR] = GET_STATUS_DONE.VALUE_STATUS_FAIL;
+			hashTable.put("Detector.Comms.Status",commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR]);
+			return;
 		}
-		cameraStatus = statusCommand.getCameraStatus();
+		// check the sample succeeded
+		if(sample.isSuccessful() == false)
+		{
+			loci.log(Logging.VERBOSITY_TERSE,"getExposureStatus:"+sample.getErrorString()+
+				 " run exception:"+sample.getException());
+			throw new Exception(this.getClass().getName()+":getExposureStatus:"+sample.getErrorString(),
+					    sample.getException());
+		}
+		cameraStatus = (String)(sample.getValue("Camera Status"));
 		hashTable.put("Camera Status",new String(cameraStatus));
+		hashTable.put("Camera Status Timestamp",new Date(sample.getTimestamp()));
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureStatus:finished with camera status:"+
 			  cameraStatus);
 		// change currentMode dependant on what the CCD camera is doing
@@ -397,31 +489,29 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 
 	/**
 	 * Get the exposure progress. 
-	 * This retrieved using an instance of GetExposureProgressCommand.
+	 * This is retrieved from the status poller, either as the latest background sample, or (if that is too old)
+	 * as the result of a live query using an instance of GetExposureProgressCommand. This is only started once
+	 * the camera status is known, and must return before the query deadline, otherwise the exposure progress
+	 * is reported as all zeros.
+	 * The "Exposure Progress Timestamp" keyword/value pair is set to the time the sample was taken.
 	 * The "Exposure Length" keyword/value pair is generated from the returned exposure time. 
 	 * The "Elapsed Exposure Time" keyword/value pair is generated from the returned elapsed time. 
 	 * The "Remaining Exposure Time" keyword/value pair is generated from the returned remaining time. 
 	 * @exception Exception Thrown if an error occurs.
 	 * @see LociConstants#MILLISECONDS_PER_SECOND
 	 * @see #currentMode
-	 * @see #ccdFlaskHostname
-	 * @see #ccdFlaskPortNumber
-	 * @see ngat.loci.ccd.GetExposureProgressCommand
-	 * @see ngat.loci.ccd.GetExposureProgressCommand#getExposureTime
-	 * @see ngat.loci.ccd.GetExposureProgressCommand#getElapsedTime
-	 * @see ngat.loci.ccd.GetExposureProgressCommand#getRemainingTime
+	 * @see #waitForSample
+	 * @see LociStatusPoller#getSampleFuture
+	 * @see LociStatusPoller#FIELD_EXPOSURE_PROGRESS
+	 * @see LociStatusSample
 	 */
 	protected void getExposureProgress() throws Exception
 	{
-		GetExposureProgressCommand statusCommand = null;
-		Exception returnException = null;
-		int returnCode;
+		LociStatusSample sample = null;
 		double elapsedExposureLengthS,exposureLengthS,remainingExposureLengthS;
 		int elapsedExposureLengthMs,exposureLengthMs,remainingExposureLengthMs;
 		
-		// Setup GetExposureProgressCommand
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureProgress:started for CCD Flask API :Hostname: "+
-			 ccdFlaskHostname+" Port Number: "+ccdFlaskPortNumber+".");
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureProgress:started.");
 		// set returned values to some sensible defaults
 		exposureLengthS = 0.0;
 		elapsedExposureLengthS = 0.0;
@@ -430,30 +520,29 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 		if(currentMode == GET_STATUS_DONE.MODE_EXPOSING)
 		{
 			loci.log(Logging.VERBOSITY_INTERMEDIATE,"getExposureProgress:Current Mode is DRV_ACQUIRING, "+
-				 "so we can call GetExposureProgressCommand to retrieve current exposure progress.");
-			statusCommand = new GetExposureProgressCommand();
-			statusCommand.setAddress(ccdFlaskHostname);
-			statusCommand.setPortNumber(ccdFlaskPortNumber);
-			// actually send the command to the CCD Flask API
-			statusCommand.run();
-			// check the parsed reply
-			if(statusCommand.isReturnStatusSuccess())
+				 "so we can retrieve the current exposure progress.");
+			sample = waitForSample(loci.getStatusPoller().
+					       getSampleFuture(LociStatusPoller.FIELD_EXPOSURE_PROGRESS),
+					       LociStatusPoller.FIELD_EXPOSURE_PROGRESS);
+			// check the sample succeeded
+			if(sample == null)
+			{
+				loci.log(Logging.VERBOSITY_TERSE,"getExposureProgress:Query deadline passed: "+
+					 "Setting current exposure progress to all zeros.");
+			}
+			else if(sample.isSuccessful())
 			{
-				exposureLengthS = statusCommand.getExposureTime();
-				elapsedExposureLengthS = statusCommand.getElapsedTime();
-				remainingExposureLengthS = statusCommand.getRemainingTime();
+				exposureLengthS = ((Double)(sample.getValue("Exposure Time"))).doubleValue();
+				elapsedExposureLengthS = ((Double)(sample.getValue("Elapsed Time"))).doubleValue();
+				remainingExposureLengthS = ((Double)(sample.getValue("Remaining Time"))).doubleValue();
+				hashTable.put("Exposure Progress Timestamp",new Date(sample.getTimestamp()));
 			}
 			else // a failure has occured
 			{
 				// This command can fail if the camera is not currently DRV_ACQURIING, so
 				// just log the error on failure.
-				returnCode = statusCommand.getHttpResponseCode();
-				returnException = statusCommand.getRunException();
-				loci.log(Logging.VERBOSITY_TERSE,
-					 "getExposureProgress:command failed with return code "+returnCode+" run exception:"+returnException);
-				//throw new Exception(this.getClass().getName()+
-				//		    ":getExposureProgress:command failed with return code "+
-				//		    returnCode,returnException);
+				loci.log(Logging.VERBOSITY_TERSE,"getExposureProgress:"+sample.getErrorString()+
+					 " run exception:"+sample.getException());
 			}
 		}
 		else
@@ -463,29 +552,47 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 		}
 		// "Exposure Length"
 		// GetExposureProgressCommand returns this in decimal seconds, we want it in integer milliseconds
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Exposure Length is:"+
-				 exposureLengthS+" seconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Exposure Length is:%s seconds.",
+					 exposureLengthS);
+		}
 		exposureLengthMs = (int)(exposureLengthS*((double)LociConstants.MILLISECONDS_PER_SECOND));
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Exposure Length is:"+
-			 exposureLengthMs+" milliseconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Exposure Length is:%s milliseconds.",
+				 exposureLengthMs);
+		}
 		hashTable.put("Exposure Length",new Integer(exposureLengthMs));
 		// "Elapsed Exposure Time"
 		// GetExposureProgressCommand returns this in decimal seconds, we want it in integer milliseconds
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Elapsed Exposure Length is:"+
-			 elapsedExposureLengthS+" seconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Elapsed Exposure Length is:%s seconds.",
+				 elapsedExposureLengthS);
+		}
 		elapsedExposureLengthMs = (int)(elapsedExposureLengthS*((double)LociConstants.MILLISECONDS_PER_SECOND));
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Elapsed Exposure Length is:"+
-			 elapsedExposureLengthMs+" milliseconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Elapsed Exposure Length is:%s milliseconds.",
+				 elapsedExposureLengthMs);
+		}
 		hashTable.put("Elapsed Exposure Time",new Integer(elapsedExposureLengthMs));
 		// "Remaining Exposure Time"
 		// This is not a field that the IcsGUI looks for, but we have the information, so lets add it
 		// GetExposureProgressCommand returns this in decimal seconds, we want it in integer milliseconds
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Remaining Exposure Time is:"+
-			 remainingExposureLengthS+" seconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Remaining Exposure Time is:%s seconds.",
+				 remainingExposureLengthS);
+		}
 		remainingExposureLengthMs = (int)(remainingExposureLengthS*
 						  ((double)LociConstants.MILLISECONDS_PER_SECOND));
-		loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Remaining Exposure Time is:"+
-			 remainingExposureLengthMs+" milliseconds.");
+		if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"getExposureProgress:Remaining Exposure Time is:%s milliseconds.",
+				 remainingExposureLengthMs);
+		}
 		hashTable.put("Remaining Exposure Time",new Integer(remainingExposureLengthMs));
 	}
 
@@ -507,8 +614,13 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 		try
 		{
 			getTemperature();
-			commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR] = GET_STATUS_DONE.
-				VALUE_STATUS_OK;
+			// don't override a failure to retrieve the camera status
+			if(GET_STATUS_DONE.VALUE_STATUS_FAIL.equals(commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR]) ==
+			   false)
+			{
+				commsInstrumentStatus[COMMS_INSTRUMENT_STATUS_DETECTOR] = GET_STATUS_DONE.
+					VALUE_STATUS_OK;
+			}
 		}
 		catch(Exception e)
 		{
@@ -524,7 +636,9 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 
 	/**
 	 * Get the current detector temperature.
-	 * An instance of GetTemperatureCommand is used to send the command to the CCD Flask API end-point.
+	 * We wait for the temperature query started by startHardwareQueries. This is either the latest background 
+	 * sample, or (if that is too old) the result of a live query using an instance of GetTemperatureCommand.
+	 * If the query deadline passes first, an exception is thrown.
 	 * The returned value is stored in
 	 * the hashTable, under the "Temperature" key (converted to Kelvin). 
 	 * A timestamp is also retrieved (when the temperature was actually measured, it may be a cached value), 
@@ -537,42 +651,41 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * @see #hashTable
 	 * @see #setDetectorTemperatureInstrumentStatus
 	 * @see ngat.loci.Loci#CENTIGRADE_TO_KELVIN
-	 * @see ngat.loci.ccd.GetTemperatureCommand
-	 * @see ngat.loci.ccd.GetTemperatureCommand#getTemperature
-	 * @see ngat.loci.ccd.GetTemperatureCommand#getCoolingEnabled
-	 * @see ngat.loci.ccd.GetTemperatureCommand#getCoolingStatus
+	 * @see #temperatureFuture
+	 * @see #waitForSample
+	 * @see LociStatusPoller#FIELD_TEMPERATURE
+	 * @see LociStatusSample
 	 */
 	protected void getTemperature() throws Exception
 	{
-		GetTemperatureCommand statusCommand = null;
+		LociStatusSample sample = null;
 		String coolingStatus = null;
-		Exception returnException = null;
-		int returnCode;
 		double temperature;
-		Date timestamp;
 		boolean coolingEnabled;
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getTemperature:started for CCD Flask API ("+
 			   ccdFlaskHostname+":"+ccdFlaskPortNumber+") end-point.");
-		statusCommand = new GetTemperatureCommand();
-		statusCommand.setAddress(ccdFlaskHostname);
-		statusCommand.setPortNumber(ccdFlaskPortNumber);
-		// actually send the command to the CCD Flask API
-		statusCommand.run();
-		// check the parsed reply
-		if(statusCommand.isReturnStatusSuccess() == false)
-		{
-			returnCode = statusCommand.getHttpResponseCode();
-			returnException = statusCommand.getRunException();
-			loci.log(Logging.VERBOSITY_TERSE,
-				 "getTemperature:get temperature command failed with return code "+returnCode+" run exception:"+returnException);
+		if(temperatureFuture == null)
+			temperatureFuture = loci.getStatusPoller().getSampleFuture(LociStatusPoller.FIELD_TEMPERATURE);
+		sample = waitForSample(temperatureFuture,LociStatusPoller.FIELD_TEMPERATURE);
+		if(sample == null)
+		{
 			throw new Exception(this.getClass().getName()+
-					    ":getTemperature:get temperature command failed with return code "+returnCode,returnException);
+					    ":getTemperature:Retrieving the temperature timed out after query deadline.");
 		}
-		temperature = statusCommand.getTemperature();
-		coolingEnabled = statusCommand.getCoolingEnabled();
-		coolingStatus = statusCommand.getCoolingStatus();
+		// check the sample succeeded
+		if(sample.isSuccessful() == false)
+		{
+			loci.log(Logging.VERBOSITY_TERSE,"getTemperature:"+sample.getErrorString()+
+				 " run exception:"+sample.getException());
+			throw new Exception(this.getClass().getName()+":getTemperature:"+sample.getErrorString(),
+					    sample.getException());
+		}
+		temperature = ((Double)(sample.getValue("Temperature"))).doubleValue();
+		coolingEnabled = ((Boolean)(sample.getValue("Cooling Enabled"))).booleanValue();
+		coolingStatus = (String)(sample.getValue("Cooling Status"));
 		hashTable.put("Temperature",new Double(temperature+Loci.CENTIGRADE_TO_KELVIN));
+		hashTable.put("Temperature Timestamp",new Date(sample.getTimestamp()));
 		hashTable.put("Cooling Enabled",new Boolean(coolingEnabled));
 		hashTable.put("Cooling Status",new String(coolingStatus));
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"getTemperature:finished for CCD Flask API ("+
@@ -686,58 +799,62 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 	 * The following data is put into the hashTable:
 	 * <ul>
 	 * <li><b>Log Level</b> The current logging level Loci is using.
-	 * <li><b>Disk Usage</b> The results of running a &quot;df -k&quot;, to get the disk usage.
-	 * <li><b>Process List</b> The results of running a &quot;ps -e -o pid,pcpu,vsz,ruser,stime,time,args&quot;, 
-	 * 	to get the processes running on this machine.
-	 * <li><b>Uptime</b> The results of running a &quot;uptime&quot;, 
-	 * 	to get system load and time since last reboot.
+	 * <li><b>Config Version</b> The version number of the configuration snapshot currently in use.
+	 * <li><b>Disk Usage, Process List, Uptime</b> and the other system metrics returned by 
+	 *     LociSystemMetrics.getMetrics: disk usage per filesystem, the processes running on this machine, 
+	 *     the time since last reboot and load averages, and JVM heap and thread usage. These are retrieved
+	 *     in-process (rather than forking df, ps and uptime) and cached for a configurable time to live.
 	 * <li><b>Total Memory, Free Memory</b> The total and free memory in the Java virtual machine.
 	 * <li><b>java.version, java.vendor, java.home, java.vm.version, java.vm.vendor, java.class.path</b> 
 	 * 	Java virtual machine version, classpath and type.
 	 * <li><b>os.name, os.arch, os.version</b> The operating system type/version.
 	 * <li><b>user.name, user.home, user.dir</b> Data about the user the process is running as.
-	 * <li><b>thread.list</b> A list of threads the Loci process is running.
+	 * <li><b>Client Connection ...</b> Metrics for the pool of threads used to send commands to the ISS/DpRt,
+	 *     see getClientConnectionExecutorStatus.
+	 * <li><b>Server Connection ...</b> Metrics for the pool of threads used to handle incoming connections,
+	 *     see getServerConnectionExecutorStatus.
+	 * <li><b>Async Log Handler ...</b> Metrics for the asynchronous log handlers, see getAsyncLogHandlerStatus.
+	 * <li><b>FITS Filename ...</b> Metrics for the FITS filename lease cache and local fallback filename 
+	 *     generator, see getFitsFilenameStatus.
+	 * <li><b>Flask Command Pool ...</b> Metrics for the pool of re-usable Flask commands, 
+	 *     see getFlaskCommandPoolStatus.
 	 * </ul>
 	 * @see #serverConnectionThread
 	 * @see #hashTable
-	 * @see ExecuteCommand#run
+	 * @see Loci#getSystemMetrics
+	 * @see LociSystemMetrics#getMetrics
 	 * @see LociStatus#getLogLevel
+	 * @see LociStatus#getConfigVersion
+	 * @see #getClientConnectionExecutorStatus
+	 * @see #getServerConnectionExecutorStatus
+	 * @see #getAsyncLogHandlerStatus
+	 * @see #getFitsFilenameStatus
+	 * @see #getFlaskCommandPoolStatus
 	 */
 	private void getFullStatus()
 	{
-		ExecuteCommand executeCommand = null;
 		Runtime runtime = null;
-		StringBuffer sb = null;
-		Thread threadList[] = null;
-		int threadCount;
 
 		// log level
 		hashTable.put("Log Level",new Integer(status.getLogLevel()));
-		// execute 'df -k' on instrument computer
-		executeCommand = new ExecuteCommand("df -k");
-		executeCommand.run();
-		if(executeCommand.getException() == null)
-			hashTable.put("Disk Usage",new String(executeCommand.getOutputString()));
-		else
-			hashTable.put("Disk Usage",new String(executeCommand.getException().toString()));
-		// execute "ps -e -o pid,pcpu,vsz,ruser,stime,time,args" on instrument computer
-		executeCommand = new ExecuteCommand("ps -e -o pid,pcpu,vsz,ruser,stime,time,args");
-		executeCommand.run();
-		if(executeCommand.getException() == null)
-			hashTable.put("Process List",new String(executeCommand.getOutputString()));
-		else
-			hashTable.put("Process List",new String(executeCommand.getException().toString()));
-		// execute "uptime" on instrument computer
-		executeCommand = new ExecuteCommand("uptime");
-		executeCommand.run();
-		if(executeCommand.getException() == null)
-			hashTable.put("Uptime",new String(executeCommand.getOutputString()));
-		else
-			hashTable.put("Uptime",new String(executeCommand.getException().toString()));
+		// configuration version
+		hashTable.put("Config Version",new Long(status.getConfigVersion()));
+		// disk usage, process list, uptime/load average and JVM usage
+		hashTable.putAll(loci.getSystemMetrics().getMetrics());
 		// get vm memory situation
 		runtime = Runtime.getRuntime();
 		hashTable.put("Free Memory",new Long(runtime.freeMemory()));
 		hashTable.put("Total Memory",new Long(runtime.totalMemory()));
+		// get ISS/DpRt client connection pool metrics
+		getClientConnectionExecutorStatus();
+		// get incoming connection pool metrics
+		getServerConnectionExecutorStatus();
+		// get asynchronous log handler metrics
+		getAsyncLogHandlerStatus();
+		// get FITS filename lease cache metrics
+		getFitsFilenameStatus();
+		// get Flask command pool metrics
+		getFlaskCommandPoolStatus();
 		// get some java vm information
 		hashTable.put("java.version",new String(System.getProperty("java.version")));
 		hashTable.put("java.vendor",new String(System.getProperty("java.vendor")));
@@ -752,4 +869,191 @@ public class GET_STATUSImplementation extends HardwareImplementation implements
 		hashTable.put("user.home",new String(System.getProperty("user.home")));
 		hashTable.put("user.dir",new String(System.getProperty("user.dir")));
 	}
+
+	/**
+	 * Add metrics for the pool of threads used to send commands to the ISS/DpRt to the hashtable:
+	 * <ul>
+	 * <li><b>Client Connection Thread Count</b> The number of core threads in the pool.
+	 * <li><b>Client Connection Pool Size</b> The number of threads currently in the pool (including extra
+	 *     threads created because all the core threads were busy).
+	 * <li><b>Client Connection Largest Pool Size</b> The largest number of threads there have been in the pool.
+	 * <li><b>Client Connection In Flight</b> The number of sub-commands running.
+	 * <li><b>Client Connection Submitted</b> The number of sub-commands submitted.
+	 * <li><b>Client Connection Completed</b> The number of sub-commands completed.
+	 * <li><b>Client Connection Queue Wait Mean/Max</b> The mean/maximum time (in milliseconds) sub-commands 
+	 *     waited for a pool thread to start running them.
+	 * <li><b>Client Connection Latency Mean/Max</b> The mean/maximum time (in milliseconds) between 
+	 *     sub-commands being submitted and completing.
+	 * </ul>
+	 * @see #hashTable
+	 * @see Loci#getClientConnectionExecutor
+	 * @see LociClientConnectionExecutor
+	 */
+	protected void getClientConnectionExecutorStatus()
+	{
+		LociClientConnectionExecutor executor = null;
+
+		executor = loci.getClientConnectionExecutor();
+		if(executor == null)
+			return;
+		hashTable.put("Client Connection Thread Count",new Integer(executor.getThreadCount()));
+		hashTable.put("Client Connection Pool Size",new Integer(executor.getPoolSize()));
+		hashTable.put("Client Connection Largest Pool Size",new Integer(executor.getLargestPoolSize()));
+		hashTable.put("Client Connection In Flight",new Long(executor.getInFlightCount()));
+		hashTable.put("Client Connection Submitted",new Long(executor.getSubmittedCount()));
+		hashTable.put("Client Connection Completed",new Long(executor.getCompletedCount()));
+		hashTable.put("Client Connection Queue Wait Mean",new Double(executor.getMeanQueueWaitTime()));
+		hashTable.put("Client Connection Queue Wait Max",new Long(executor.getMaxQueueWaitTime()));
+		hashTable.put("Client Connection Latency Mean",new Double(executor.getMeanLatency()));
+		hashTable.put("Client Connection Latency Max",new Long(executor.getMaxLatency()));
+	}
+
+	/**
+	 * Add metrics for the pool of threads used to handle incoming connections to the hashtable:
+	 * <ul>
+	 * <li><b>Server Connection Mode</b> "pool" if incoming connections are run by the pool, "thread" if a 
+	 *     new thread is started for each connection (in which case no other metrics are added).
+	 * <li><b>Server Connection Thread Count</b> The number of interrupt lane threads in the pool.
+	 * <li><b>Server Connection Normal Lane Count</b> The number of extra threads currently running 
+	 *     normal (non-INTERRUPT) commands.
+	 * <li><b>Server Connection Normal Lane Overflow</b> The number of normal commands that started when
+	 *     the normal lane maximum was already reached (the pool was still grown for them).
+	 * <li><b>Server Connection Active</b> The number of pool threads handling connections.
+	 * <li><b>Server Connection Queue Length</b> The number of connections waiting for a pool thread.
+	 * <li><b>Server Connection Accepted</b> The number of connections accepted.
+	 * <li><b>Server Connection Rejected</b> The number of connections rejected as the backlog was full.
+	 * <li><b>Server Connection Queue Wait Mean/Max</b> The mean/maximum time (in milliseconds) connections 
+	 *     waited for a pool thread.
+	 * </ul>
+	 * @see #hashTable
+	 * @see Loci#getServerConnectionExecutor
+	 * @see LociServerConnectionExecutor
+	 */
+	protected void getServerConnectionExecutorStatus()
+	{
+		LociServerConnectionExecutor executor = null;
+
+		executor = loci.getServerConnectionExecutor();
+		if(executor == null)
+		{
+			hashTable.put("Server Connection Mode",new String("thread"));
+			return;
+		}
+		hashTable.put("Server Connection Mode",new String("pool"));
+		hashTable.put("Server Connection Thread Count",new Integer(executor.getThreadCount()));
+		hashTable.put("Server Connection Normal Lane Count",new Integer(executor.getNormalLaneCount()));
+		hashTable.put("Server Connection Normal Lane Overflow",new Long(executor.getNormalLaneOverflowCount()));
+		hashTable.put("Server Connection Active",new Integer(executor.getActiveCount()));
+		hashTable.put("Server Connection Queue Length",new Integer(executor.getQueueLength()));
+		hashTable.put("Server Connection Accepted",new Long(executor.getAcceptedCount()));
+		hashTable.put("Server Connection Rejected",new Long(executor.getRejectedCount()));
+		hashTable.put("Server Connection Queue Wait Mean",new Double(executor.getMeanQueueWaitTime()));
+		hashTable.put("Server Connection Queue Wait Max",new Long(executor.getMaxQueueWaitTime()));
+	}
+
+	/**
+	 * Add metrics for each asynchronous log handler to the hashtable. Each keyword is suffixed by the 
+	 * index of the handler in Loci's list of asynchronous log handlers:
+	 * <ul>
+	 * <li><b>Async Log Handler Name.&lt;n&gt;</b> The name of the handler's writer thread, which includes the 
+	 *     logger name and handler index.
+	 * <li><b>Async Log Handler Queue Length.&lt;n&gt;</b> The number of records waiting to be written.
+	 * <li><b>Async Log Handler Written.&lt;n&gt;</b> The number of records written to the wrapped handler.
+	 * <li><b>Async Log Handler Dropped.&lt;n&gt;</b> The number of records dropped as the buffer was full.
+	 * <li><b>Async Log Handler Blocked.&lt;n&gt;</b> The number of times a logging thread waited for space in 
+	 *     the buffer.
+	 * <li><b>Async Log Handler Failed.&lt;n&gt;</b> The number of records the wrapped handler failed to write.
+	 * </ul>
+	 * @see #hashTable
+	 * @see Loci#getAsyncLogHandlerList
+	 * @see LociAsyncLogHandler
+	 */
+	protected void getAsyncLogHandlerStatus()
+	{
+		List<LociAsyncLogHandler> handlerList = null;
+		LociAsyncLogHandler handler = null;
+
+		handlerList = loci.getAsyncLogHandlerList();
+		for(int i = 0; i < handlerList.size(); i++)
+		{
+			handler = handlerList.get(i);
+			hashTable.put("Async Log Handler Name."+i,new String(handler.getWriterThreadName()));
+			hashTable.put("Async Log Handler Queue Length."+i,new Integer(handler.getQueueLength()));
+			hashTable.put("Async Log Handler Written."+i,new Long(handler.getWrittenCount()));
+			hashTable.put("Async Log Handler Dropped."+i,new Long(handler.getDroppedCount()));
+			hashTable.put("Async Log Handler Blocked."+i,new Long(handler.getBlockedCount()));
+			hashTable.put("Async Log Handler Failed."+i,new Long(handler.getFailedCount()));
+		}
+	}
+
+	/**
+	 * Add metrics for the FITS filename lease cache, and the local fallback filename generator, to the hashtable:
+	 * <ul>
+	 * <li><b>FITS Filename Lease Enabled</b> Whether filenames are prefetched from the filename-server.
+	 * <li><b>FITS Filename Lease Count</b> The number of unused leased filenames currently held.
+	 * <li><b>FITS Filename Lease Hit</b> The number of filenames returned from a prefetched lease.
+	 * <li><b>FITS Filename Lease Miss</b> The number of filenames retrieved synchronously from the filename-server.
+	 * <li><b>FITS Filename Lease Discarded</b> The number of leased filenames discarded without being used.
+	 * <li><b>FITS Filename Generator</b> Where the last filename came from, "server" (the filename-server) or 
+	 *     "local" (the local fallback filename generator).
+	 * <li><b>FITS Filename Fallback Enabled</b> Whether the local fallback filename generator is enabled.
+	 * <li><b>FITS Filename Fallback Count</b> The number of filenames generated locally.
+	 * <li><b>FITS Filename Server Unavailable</b> Whether the filename-server is currently not being used, as it
+	 *     was too slow or failed.
+	 * <li><b>FITS Filename Server Timeouts</b> The number of times the filename-server exceeded the latency budget.
+	 * <li><b>FITS Filename Server Failures</b> The number of times a call to the filename-server failed.
+	 * <li><b>FITS Filename Server Reconciled</b> The number of filenames issued by the filename-server that
+	 *     were discarded, as they had already been generated locally.
+	 * <li><b>FITS Filename Server Latency Last/Max</b> The time (in milliseconds) the last/longest synchronous 
+	 *     call to the filename-server took.
+	 * </ul>
+	 * @see #hashTable
+	 * @see Loci#getFitsFilenameLeaseCache
+	 * @see LociFitsFilenameLeaseCache
+	 */
+	protected void getFitsFilenameStatus()
+	{
+		LociFitsFilenameLeaseCache leaseCache = null;
+
+		leaseCache = loci.getFitsFilenameLeaseCache();
+		if(leaseCache == null)
+			return;
+		hashTable.put("FITS Filename Lease Enabled",new Boolean(leaseCache.isEnabled()));
+		hashTable.put("FITS Filename Lease Count",new Integer(leaseCache.getLeaseCount()));
+		hashTable.put("FITS Filename Lease Hit",new Long(leaseCache.getLeaseHitCount()));
+		hashTable.put("FITS Filename Lease Miss",new Long(leaseCache.getLeaseMissCount()));
+		hashTable.put("FITS Filename Lease Discarded",new Long(leaseCache.getLeaseDiscardCount()));
+		hashTable.put("FITS Filename Generator",new String(leaseCache.getFilenameSource()));
+		hashTable.put("FITS Filename Fallback Enabled",new Boolean(leaseCache.isFallbackEnabled()));
+		hashTable.put("FITS Filename Fallback Count",new Long(leaseCache.getFallbackCount()));
+		hashTable.put("FITS Filename Server Unavailable",new Boolean(leaseCache.isServerUnavailable()));
+		hashTable.put("FITS Filename Server Timeouts",new Long(leaseCache.getServerTimeoutCount()));
+		hashTable.put("FITS Filename Server Failures",new Long(leaseCache.getServerFailCount()));
+		hashTable.put("FITS Filename Server Reconciled",new Long(leaseCache.getReconcileCount()));
+		hashTable.put("FITS Filename Server Latency Last",new Long(leaseCache.getLastServerLatency()));
+		hashTable.put("FITS Filename Server Latency Max",new Long(leaseCache.getMaxServerLatency()));
+	}
+
+	/**
+	 * Add metrics for the pool of re-usable Flask commands to the hashtable:
+	 * <ul>
+	 * <li><b>Flask Command Pool Max Idle</b> The maximum number of idle instances of each command kept in the pool.
+	 * <li><b>Flask Command Pool Reused</b> The number of commands borrowed from the pool that were re-used.
+	 * <li><b>Flask Command Pool Created</b> The number of commands borrowed from the pool that had to be created.
+	 * </ul>
+	 * @see #hashTable
+	 * @see Loci#getFlaskCommandPool
+	 * @see FlaskCommandPool
+	 */
+	protected void getFlaskCommandPoolStatus()
+	{
+		FlaskCommandPool flaskCommandPool = null;
+
+		flaskCommandPool = loci.getFlaskCommandPool();
+		if(flaskCommandPool == null)
+			return;
+		hashTable.put("Flask Command Pool Max Idle",new Integer(flaskCommandPool.getMaxIdleCount()));
+		hashTable.put("Flask Command Pool Reused",new Long(flaskCommandPool.getReuseCount()));
+		hashTable.put("Flask Command Pool Created",new Long(flaskCommandPool.getCreateCount()));
+	}
 }
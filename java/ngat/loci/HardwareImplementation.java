@@ -43,7 +43,22 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	 * The port number the loci-ctrl filter wheel Flask end-point is located on.
 	 */
 	protected int filterWheelFlaskPortNumber;
-	
+	/**
+	 * When non-null, addFitsHeader adds cards to this batch command rather than sending them to
+	 * the CCD Flask API one at a time. The batch is sent by sendFitsHeaderBatch.
+	 * @see #startFitsHeaderBatch
+	 * @see #sendFitsHeaderBatch
+	 * @see #addFitsHeader
+	 */
+	protected SetHeaderKeywordsBatchCommand fitsHeaderBatchCommand = null;
+	/**
+	 * The list of FitsHeaderCard added to fitsHeaderBatchCommand, used to update the FITS header mirror
+	 * once the batch has been successfully sent.
+	 * @see #fitsHeaderBatchCommand
+	 * @see FitsHeaderMirror
+	 */
+	protected List<FitsHeaderCard> fitsHeaderBatchCardList = null;
+
 	/**
 	 * This method calls the super-classes method. 
 	 * @param command The command to be implemented.
@@ -159,27 +174,112 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	}	
 
 	/**
-	 * This routine clears the current set of FITS headers. 
+	 * This routine starts a new set of FITS headers. The loci-ctrl CCD Flask API's current set of FITS headers
+	 * is not necessarily cleared: a client-side mirror of the headers it holds (FitsHeaderMirror) is used
+	 * so that only new or changed headers are sent by addFitsHeader, and the headers are only cleared by 
+	 * flushFitsHeaders (before the next exposure) if a header has to be removed.
+	 * <ul>
+	 * <li>If the FITS header mirror is not valid (we do not know what headers the CCD Flask API holds), 
+	 *     we call sendClearHeaderKeywordsCommand to clear the headers, and mark the mirror as cleared.
+	 * <li>We call the mirror's beginFrame method to start a new set of headers.
+	 * </ul>
+	 * @see #sendClearHeaderKeywordsCommand
+	 * @see #flushFitsHeaders
+	 * @see LociStatus#getFitsHeaderMirror
+	 * @see FitsHeaderMirror#isValid
+	 * @see FitsHeaderMirror#setServerCleared
+	 * @see FitsHeaderMirror#beginFrame
+	 * @exception Exception Thrown if ClearHeaderKeywordsCommand throws an exception, or returns a status that is
+	 *            not success.
+	 */
+	public void clearFitsHeaders() throws Exception
+	{
+		FitsHeaderMirror fitsHeaderMirror = null;
+
+		fitsHeaderMirror = status.getFitsHeaderMirror();
+		if(fitsHeaderMirror.isValid() == false)
+		{
+			sendClearHeaderKeywordsCommand();
+			fitsHeaderMirror.setServerCleared();
+		}
+		fitsHeaderMirror.beginFrame();
+	}
+
+	/**
+	 * This routine should be called before an exposure is started, to ensure the loci-ctrl CCD Flask API
+	 * holds exactly the set of FITS headers added since clearFitsHeaders was called.
+	 * If the FITS header mirror reports the CCD Flask API holds headers not in the current set (needsClear),
+	 * we call sendClearHeaderKeywordsCommand to clear the headers, mark the mirror as cleared, and re-send 
+	 * the current set of headers in a batch.
+	 * @see #clearFitsHeaders
+	 * @see #sendClearHeaderKeywordsCommand
+	 * @see #addFitsHeader
+	 * @see #startFitsHeaderBatch
+	 * @see #sendFitsHeaderBatch
+	 * @see #abandonFitsHeaderBatch
+	 * @see FitsHeaderMirror#needsClear
+	 * @see FitsHeaderMirror#getFrameCardList
+	 * @exception Exception Thrown if clearing or sending the headers fails.
+	 */
+	public void flushFitsHeaders() throws Exception
+	{
+		FitsHeaderMirror fitsHeaderMirror = null;
+		List<FitsHeaderCard> cardList = null;
+		FitsHeaderCard card = null;
+
+		fitsHeaderMirror = status.getFitsHeaderMirror();
+		if(fitsHeaderMirror.needsClear() == false)
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,
+				 "%s:flushFitsHeaders:CCD Flask API FITS headers are up to date (%d cards not re-sent so far).",
+				 this.getClass().getName(),fitsHeaderMirror.getSkippedCardCount());
+			return;
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			 ":flushFitsHeaders:Clearing and re-sending CCD Flask API FITS headers.");
+		sendClearHeaderKeywordsCommand();
+		fitsHeaderMirror.setServerCleared();
+		cardList = fitsHeaderMirror.getFrameCardList();
+		startFitsHeaderBatch();
+		try
+		{
+			for(int i = 0; i < cardList.size(); i++)
+			{
+				card = cardList.get(i);
+				addFitsHeader(card.getKeyword(),card.getValue(),card.getComment(),card.getUnits());
+			}
+			sendFitsHeaderBatch();
+		}
+		finally
+		{
+			abandonFitsHeaderBatch();
+		}
+	}
+
+	/**
+	 * This routine clears the set of FITS headers held by the loci-ctrl CCD Flask API. 
 	 * <ul>
 	 * <li>We call getCCDFlaskConnectionData to get the Flask API configuration.
 	 * <li>We construct an instance of ClearHeaderKeywordsCommand, configure it, run the command,
-	 *     and check the reply.
+	 *     and check the reply. If the command fails, the FITS header mirror is invalidated.
 	 * </ul>
 	 * @see #getCCDFlaskConnectionData
 	 * @see #ccdFlaskHostname
 	 * @see #ccdFlaskPortNumber
 	 * @see ngat.loci.ccd.ClearHeaderKeywordsCommand
+	 * @see FitsHeaderMirror#invalidate
+	 * @see FlaskCommandPool
 	 * @exception Exception Thrown if ClearHeaderKeywordsCommand throws an exception, or returns a status that is
 	 *            not success.
 	 */
-	public void clearFitsHeaders() throws Exception
+	protected void sendClearHeaderKeywordsCommand() throws Exception
 	{
 		ClearHeaderKeywordsCommand clearHeaderKeywordsCommand = null;
 		
 		// get CCD Flask API connection data
 		getCCDFlaskConnectionData();
 		// setup
-		clearHeaderKeywordsCommand = new ClearHeaderKeywordsCommand();
+		clearHeaderKeywordsCommand = loci.getFlaskCommandPool().borrow(ClearHeaderKeywordsCommand.class);
 		clearHeaderKeywordsCommand.setAddress(ccdFlaskHostname);
 		clearHeaderKeywordsCommand.setPortNumber(ccdFlaskPortNumber);
 		// run command
@@ -187,31 +287,34 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		// check reply
 		if(clearHeaderKeywordsCommand.getRunException() != null)
 		{
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
-					    ":clearFitsHeaders:ClearHeaderKeywordsCommand Failed:",
+					    ":sendClearHeaderKeywordsCommand:ClearHeaderKeywordsCommand Failed:",
 					    clearHeaderKeywordsCommand.getRunException());
 		}
 		loci.log(Logging.VERBOSITY_VERBOSE,
-			 "clearFitsHeaders:Clear Fits Header Command Finished with status: "+
+			 "sendClearHeaderKeywordsCommand:Clear Fits Header Command Finished with status: "+
 			 clearHeaderKeywordsCommand.getReturnStatus()+
 			 " and message:"+clearHeaderKeywordsCommand.getMessage()+".");
 		if(clearHeaderKeywordsCommand.isReturnStatusSuccess() == false)
 		{
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
-					    ":clearFitsHeaders:Clear Fits Header Command failed with status: "+
+					    ":sendClearHeaderKeywordsCommand:Clear Fits Header Command failed with status: "+
 					    clearHeaderKeywordsCommand.getReturnStatus()+
 					    " and message:"+clearHeaderKeywordsCommand.getMessage()+".");
 		}
+		loci.getFlaskCommandPool().release(clearHeaderKeywordsCommand);
 	}
 
 	/**
 	 * This routine gets a set of FITS header from a config file. The retrieved FITS headers are added to the 
-	 * C layer. The "loci.fits.keyword.&lt;n&gt;" properties is queried in ascending order
-	 * of &lt;n&gt; to find keywords.
-	 * The "loci.fits.value.&lt;keyword&gt;" property contains the value of the keyword.
-	 * The value's type is retrieved from the property "loci.fits.value.type.&lt;keyword&gt;", 
-	 * which should comtain one of the following values: boolean|float|integer|string.
-	 * The addFitsHeader method is then called to actually add the FITS header to the C layer.
+	 * C layer. The FITS headers are compiled from the "loci.fits.keyword.&lt;n&gt;" properties into a list
+	 * of typed FitsHeaderCard by LociStatus when the configuration is loaded (or reloaded), so no
+	 * properties are parsed here. The list is retrieved using the status's getFitsHeaderCardList method,
+	 * and the addFitsHeader method is then called for each card to actually add the FITS header to the C layer.
+	 * The headers are collected into a batch, which is sent to the CCD Flask API in one request
+	 * once all the keywords have been added.
 	 * @param command The command being implemented that made this call to the ISS. This is used
 	 * 	for error logging.
 	 * @param commandDone A COMMAND_DONE subclass specific to the command being implemented. If an
@@ -219,111 +322,77 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	 * @return The routine returns a boolean to indicate whether the operation was completed
 	 *  	successfully.
 	 * @see #addFitsHeader
+	 * @see #startFitsHeaderBatch
+	 * @see #sendFitsHeaderBatch
+	 * @see #abandonFitsHeaderBatch
+	 * @see LociStatus#getFitsHeaderCardList
+	 * @see FitsHeaderCard
 	 */
 	public boolean setFitsHeaders(COMMAND command,COMMAND_DONE commandDone)
 	{
-		String keyword = null;
-		String typeString = null;
-		String valueString = null;
-		String commentString = null;
-		String unitsString = null;
-		boolean done;
-		double dvalue;
-		int index,ivalue;
-		boolean bvalue;
+		List<FitsHeaderCard> cardList = null;
+		FitsHeaderCard card = null;
+		int index;
 
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":setFitsHeaders:Started.");
-		index = 0;
-		done = false;
-		while(done == false)
+		// get the list of FITS header cards compiled from the properties at load time
+		try
 		{
-			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				 ":setFitsHeaders:Looking for keyword index "+index+" in list.");
-			keyword = status.getProperty("loci.fits.keyword."+index);
-			if(keyword != null)
+			cardList = status.getFitsHeaderCardList();
+		}
+		catch(Exception e)
+		{
+			loci.error(this.getClass().getName()+":setFitsHeaders:Failed to get FITS header list:",e);
+			commandDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1203);
+			commandDone.setErrorString(this.getClass().getName()+
+						   ":setFitsHeaders:Failed to get FITS header list:"+e);
+			commandDone.setSuccessful(false);
+			return false;
+		}
+		startFitsHeaderBatch();
+		try
+		{
+			for(index = 0; index < cardList.size(); index++)
 			{
-				// value type
-				typeString = status.getProperty("loci.fits.value.type."+keyword);
-				if(typeString == null)
-				{
-					loci.error(this.getClass().getName()+
-						   ":setFitsHeaders:Failed to get value type for keyword:"+keyword);
-					commandDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1203);
-					commandDone.setErrorString(this.getClass().getName()+
-						   ":setFitsHeaders:Failed to get value type for keyword:"+keyword);
-					commandDone.setSuccessful(false);
-					return false;
-				}
-				// comment
-				commentString = status.getProperty("loci.fits.comment."+keyword);
-				// comment can be null if no comment exists
-				// units
-				unitsString = status.getProperty("loci.fits.units."+keyword);
-				// comment can be null if no units exist
-				// Add FITS header
+				card = cardList.get(index);
 				try
 				{
-					if(typeString.equals("string"))
-					{
-						valueString = status.getProperty("loci.fits.value."+keyword);
-						addFitsHeader(keyword,valueString,commentString,unitsString);
-					}
-					else if(typeString.equals("integer"))
-					{
-						Integer iov = null;
-						
-						ivalue = status.getPropertyInteger("loci.fits.value."+keyword);
-						iov = new Integer(ivalue);
-						addFitsHeader(keyword,iov,commentString,unitsString);
-					}
-					else if(typeString.equals("float"))
-					{
-						Float fov = null;
-							
-						dvalue = status.getPropertyDouble("loci.fits.value."+keyword);
-						fov = new Float(dvalue);
-						addFitsHeader(keyword,fov,commentString,unitsString);
-					}
-					else if(typeString.equals("boolean"))
-					{
-						Boolean bov = null;
-						
-						bvalue = status.getPropertyBoolean("loci.fits.value."+keyword);
-						bov = new Boolean(bvalue);
-						addFitsHeader(keyword,bov,commentString,unitsString);
-					}
-					else
-					{
-						loci.error(this.getClass().getName()+
-							   ":setFitsHeaders:Unknown value type "+typeString+
-							   " for keyword:"+keyword);
-						commandDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1204);
-						commandDone.setErrorString(this.getClass().getName()+
-									   ":setFitsHeaders:Unknown value type "+
-									   typeString+" for keyword:"+keyword);
-						commandDone.setSuccessful(false);
-						return false;
-					}
+					addFitsHeader(card.getKeyword(),card.getValue(),card.getComment(),card.getUnits());
 				}
 				catch(Exception e)
 				{
 					loci.error(this.getClass().getName()+
 						     ":setFitsHeaders:Failed to add value for keyword:"+
-						     keyword,e);
+						     card.getKeyword(),e);
 					commandDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1206);
 					commandDone.setErrorString(this.getClass().getName()+
 								   ":setFitsHeaders:Failed to add value for keyword:"+
-								   keyword+":"+e);
+								   card.getKeyword()+":"+e);
 					commandDone.setSuccessful(false);
 					return false;
 				}
-				// increment index
-				index++;
+			}// end for
+			// send the batch of keywords to the CCD Flask API
+			try
+			{
+				sendFitsHeaderBatch();
 			}
-			else
-				done = true;
-		}// end while
+			catch(Exception e)
+			{
+				loci.error(this.getClass().getName()+":setFitsHeaders:Failed to send FITS headers:",e);
+				commandDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1213);
+				commandDone.setErrorString(this.getClass().getName()+
+							   ":setFitsHeaders:Failed to send FITS headers:"+e);
+				commandDone.setSuccessful(false);
+				return false;
+			}
+		}
+		finally
+		{
+			// discard any unsent keywords if we returned early with an error
+			abandonFitsHeaderBatch();
+		}
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			   ":setFitsHeaders:Finished.");
 		return true;
@@ -351,6 +420,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	 * @see #getFilterWheelFlaskConnectionData
 	 * @see ngat.loci.LociStatus#getFilterIdName
 	 * @see ngat.loci.filterwheel.GetFilterPositionCommand
+	 * @see FlaskCommandPool
 	 */
 	public boolean setFilterWheelFitsHeaders(COMMAND command,COMMAND_DONE commandDone)
 	{
@@ -366,7 +436,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		{
 			// get Flask API parameters
 			getFilterWheelFlaskConnectionData();
-			filterPositionCommand = new GetFilterPositionCommand();
+			filterPositionCommand = loci.getFlaskCommandPool().borrow(GetFilterPositionCommand.class);
 			filterPositionCommand.setAddress(filterWheelFlaskHostname);
 			filterPositionCommand.setPortNumber(filterWheelFlaskPortNumber);
 			// actually send the command to the filter wheel Flask API
@@ -391,6 +461,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			}
 			// get the current filter name
 			filterName = filterPositionCommand.getFilterName();
+			loci.getFlaskCommandPool().release(filterPositionCommand);
 			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 				 ":setFilterWheelFitsHeaders:Current filter name is:"+filterName);
 		}
@@ -405,6 +476,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			return false;
 		}
 		// set headers based on name
+		startFitsHeaderBatch();
 		try
 		{
 			// FILTER1
@@ -414,6 +486,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 				 ":setFilterWheelFitsHeaders:Current filter Id is:"+filterId);
 			addFitsHeader("FILTERI1",filterId,"The filter wheel filter id.",null);
+			sendFitsHeaderBatch();
 		}
 		catch(Exception e)
 		{
@@ -424,7 +497,11 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 						   ":setFilterWheelFitsHeaders:Failed to set FILTER FITS headers:"+e);
 			commandDone.setSuccessful(false);
 			return false;
-		}	
+		}
+		finally
+		{
+			abandonFitsHeaderBatch();
+		}
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":setFilterWheelFitsHeaders:Finished.");
 		return true;
@@ -452,6 +529,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":setPerFrameFitsHeaders:Started.");
+		startFitsHeaderBatch();
 		try
 		{
 			// OBSTYPE
@@ -465,6 +543,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			ccdScaleUnbinned = status.getPropertyDouble("loci.fits.value.CCDSCALE");
 			ccdScale = ccdScaleUnbinned * ((double)binning);
 			addFitsHeader("CCDSCALE",ccdScale,"Plate scale in arcsec / binned pixels.","arcsec/binned pixel");
+			sendFitsHeaderBatch();
 		}
 		catch(Exception e)
 		{
@@ -475,7 +554,11 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 						   ":setPerFrameFitsHeaders:Failed to add FITS Header:"+e);
 			commandDone.setSuccessful(false);
 			return false;
-		}	
+		}
+		finally
+		{
+			abandonFitsHeaderBatch();
+		}
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":setPerFrameFitsHeaders:Finished.");
 		return true;
@@ -484,7 +567,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	/**
 	 * This routine tries to get a set of FITS headers for an exposure, by issuing a GET_FITS command
 	 * to the ISS. The results from this command are put into the C layers list of FITS headers by calling
-	 * addISSFitsHeaderList.
+	 * setISSFitsHeaders.
 	 * If an error occurs the done objects field's can be set to record the error.
 	 * @param command The command being implemented that made this call to the ISS. This is used
 	 * 	for error logging.
@@ -492,26 +575,48 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	 * 	error occurs the relevant fields are filled in with the error.
 	 * @return The routine returns a boolean to indicate whether the operation was completed
 	 *  	successfully.
-	 * @see #addISSFitsHeaderList
+	 * @see #setISSFitsHeaders
 	 * @see Loci#sendISSCommand
-	 * @see Loci#getStatus
-	 * @see LociStatus#getPropertyInteger
 	 */
 	public boolean getFitsHeadersFromISS(COMMAND command,COMMAND_DONE done)
 	{
 		INST_TO_ISS_DONE instToISSDone = null;
-		GET_FITS_DONE getFitsDone = null;
-		FitsHeaderCardImage cardImage = null;
-		Object value = null;
-		Vector list = null;
-		int orderNumberOffset;
 
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":getFitsHeadersFromISS:Started.");
 		instToISSDone = loci.sendISSCommand(new GET_FITS(command.getId()),serverConnectionThread);
+		if(setISSFitsHeaders(command,done,instToISSDone) == false)
+			return false;
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+			 ":getFitsHeadersFromISS:finished.");
+		return true;
+	}
+
+	/**
+	 * This routine takes the done message returned by the ISS in response to a GET_FITS command,
+	 * and puts the FITS headers contained in it into the C layers list of FITS headers by calling
+	 * addISSFitsHeaderList. The GET_FITS command may have been sent by getFitsHeadersFromISS, or
+	 * prefetched in the background (see LociISSFitsHeaderPrefetchThread).
+	 * If an error occurs the done objects field's can be set to record the error.
+	 * @param command The command being implemented that made this call to the ISS. This is used
+	 * 	for error logging.
+	 * @param done A COMMAND_DONE subclass specific to the command being implemented. If an
+	 * 	error occurs the relevant fields are filled in with the error.
+	 * @param instToISSDone The done message returned by the ISS in response to GET_FITS.
+	 * @return The routine returns a boolean to indicate whether the operation was completed
+	 *  	successfully.
+	 * @see #getFitsHeadersFromISS
+	 * @see #addISSFitsHeaderList
+	 * @see LociISSFitsHeaderPrefetchThread
+	 */
+	public boolean setISSFitsHeaders(COMMAND command,COMMAND_DONE done,INST_TO_ISS_DONE instToISSDone)
+	{
+		GET_FITS_DONE getFitsDone = null;
+		Vector list = null;
+
 		if(instToISSDone.getSuccessful() == false)
 		{
-			loci.error(this.getClass().getName()+":getFitsHeadersFromISS:"+
+			loci.error(this.getClass().getName()+":setISSFitsHeaders:"+
 				     command.getClass().getName()+":"+instToISSDone.getErrorString());
 			done.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1205);
 			done.setErrorString(instToISSDone.getErrorString());
@@ -529,24 +634,24 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		catch(Exception e)
 		{
 			loci.error(this.getClass().getName()+
-				     ":getFitsHeadersFromISS:addISSFitsHeaderList failed.",e);
+				     ":setISSFitsHeaders:addISSFitsHeaderList failed.",e);
 			done.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1207);
 			done.setErrorString(this.getClass().getName()+
-					    ":getFitsHeadersFromISS:addISSFitsHeaderList failed:"+e);
+					    ":setISSFitsHeaders:addISSFitsHeaderList failed:"+e);
 			done.setSuccessful(false);
 			return false;
 		}
-		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-			 ":getFitsHeadersFromISS:finished.");
 		return true;
 	}
 
 	/**
 	 * Try to extract the GET_FITS headers returned from the ISS (RCS),
-	 * and pass them onto the C layer.
+	 * and pass them onto the C layer. The headers are sent to the CCD Flask API as one batch.
 	 * @param list A Vector of FitsHeaderCardImage instances. These will be passed to the C layer.
-	 * @exception Exception Thrown if addFitsHeader fails.
+	 * @exception Exception Thrown if addFitsHeader or sendFitsHeaderBatch fails.
 	 * @see #addFitsHeader
+	 * @see #startFitsHeaderBatch
+	 * @see #sendFitsHeaderBatch
 	 * @see ngat.fits.FitsHeaderCardImageKeywordComparator
 	 * @see ngat.fits.FitsHeaderCardImage
 	 */
@@ -556,20 +661,127 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
 			 ":addISSFitsHeaderList:started.");
-		// iterate over keywords to copy
-		for(int index = 0; index < list.size(); index ++)
+		startFitsHeaderBatch();
+		try
 		{
-			cardImage = (FitsHeaderCardImage)(list.get(index));
-			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-				 ":addISSFitsHeaderList:Adding "+cardImage.getKeyword()+" to CCD Flask API layer.");
-			addFitsHeader(cardImage.getKeyword(),cardImage.getValue(),
-				      cardImage.getComment(),cardImage.getUnits());
-		}// end for
+			// iterate over keywords to copy
+			for(int index = 0; index < list.size(); index ++)
+			{
+				cardImage = (FitsHeaderCardImage)(list.get(index));
+				loci.log(Logging.VERBOSITY_VERBOSE,"%s:addISSFitsHeaderList:Adding %s to CCD Flask API layer.",
+					 this.getClass().getName(),cardImage.getKeyword());
+				addFitsHeader(cardImage.getKeyword(),cardImage.getValue(),
+					      cardImage.getComment(),cardImage.getUnits());
+			}// end for
+			sendFitsHeaderBatch();
+		}
+		finally
+		{
+			abandonFitsHeaderBatch();
+		}
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":addISSFitsHeaderList:finished.");
 	}
 
+	/**
+	 * Start collecting FITS headers into a batch. Subsequent calls to addFitsHeader add the card to
+	 * a new instance of SetHeaderKeywordsBatchCommand, rather than sending it to the CCD Flask API,
+	 * until sendFitsHeaderBatch or abandonFitsHeaderBatch is called.
+	 * @see #fitsHeaderBatchCommand
+	 * @see #addFitsHeader
+	 * @see #sendFitsHeaderBatch
+	 * @see #abandonFitsHeaderBatch
+	 * @see ngat.loci.ccd.SetHeaderKeywordsBatchCommand
+	 */
+	protected void startFitsHeaderBatch()
+	{
+		fitsHeaderBatchCommand = new SetHeaderKeywordsBatchCommand();
+		fitsHeaderBatchCardList = new Vector<FitsHeaderCard>();
+	}
+
+	/**
+	 * Send the batch of FITS headers collected since startFitsHeaderBatch was called to the CCD Flask API,
+	 * in one request. SetHeaderKeywordsBatchCommand itself falls back to sending one keyword per request
+	 * if the CCD Flask API does not support the batch end-point. After this call, addFitsHeader
+	 * sends keywords one at a time again.
+	 * @exception Exception Thrown if the command internally errors, or the return status indicates a
+	 *            failure.
+	 * @see #fitsHeaderBatchCommand
+	 * @see #startFitsHeaderBatch
+	 * @see #getCCDFlaskConnectionData
+	 * @see ngat.loci.ccd.SetHeaderKeywordsBatchCommand
+	 */
+	protected void sendFitsHeaderBatch() throws Exception
+	{
+		SetHeaderKeywordsBatchCommand batchCommand = null;
+		List<FitsHeaderCard> cardList = null;
+
+		batchCommand = fitsHeaderBatchCommand;
+		cardList = fitsHeaderBatchCardList;
+		fitsHeaderBatchCommand = null;
+		fitsHeaderBatchCardList = null;
+		if(batchCommand == null)
+			return;
+		if(batchCommand.getKeywordCount() == 0)
+			return;
+		// get Flask API parameters
+		getCCDFlaskConnectionData();
+		batchCommand.setAddress(ccdFlaskHostname);
+		batchCommand.setPortNumber(ccdFlaskPortNumber);
+		if(loci.isLoggable(Logging.VERBOSITY_INTERMEDIATE))
+		{
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:sendFitsHeaderBatch:Sending %d keywords.",
+				 this.getClass().getName(),batchCommand.getKeywordCount());
+		}
+		// actually send the command to the CCD flask API
+		batchCommand.run();
+		// check whether a run exception occurred
+		if(batchCommand.getRunException() != null)
+		{
+			status.getFitsHeaderMirror().invalidate();
+			loci.error("sendFitsHeaderBatch:SetHeaderKeywordsBatchCommand Failed:"+
+				   batchCommand.getRunException(),batchCommand.getRunException());
+			throw new Exception(this.getClass().getName()+
+					    ":sendFitsHeaderBatch:SetHeaderKeywordsBatchCommand Failed:",
+					    batchCommand.getRunException());
+		}
+		// check the parsed reply
+		loci.log(Logging.VERBOSITY_VERBOSE,"sendFitsHeaderBatch:Set Header Keywords Batch Command Finished with status: "+
+			 "%s and message:%s (one keyword per request:%s).",
+			 batchCommand.getReturnStatus(),batchCommand.getMessage(),batchCommand.getUsedFallback());
+		if(batchCommand.isReturnStatusSuccess() == false)
+		{
+			status.getFitsHeaderMirror().invalidate();
+			loci.error("sendFitsHeaderBatch:Command failed with return code "+
+				   batchCommand.getReturnStatus()+" and message:"+batchCommand.getMessage());
+			throw new Exception(this.getClass().getName()+
+					    ":sendFitsHeaderBatch:Set Header Keywords Batch Command failed with status: "+
+					    batchCommand.getReturnStatus()+
+					    " and message:"+batchCommand.getMessage()+".");
+		}
+		// update the FITS header mirror with the cards the CCD Flask API now holds
+		for(int i = 0; i < cardList.size(); i++)
+		{
+			status.getFitsHeaderMirror().setServerCard(cardList.get(i));
+		}
+	}
+
+	/**
+	 * Discard any FITS headers collected since startFitsHeaderBatch was called, that have not been sent.
+	 * After this call, addFitsHeader sends keywords one at a time again.
+	 * @see #fitsHeaderBatchCommand
+	 */
+	protected void abandonFitsHeaderBatch()
+	{
+		fitsHeaderBatchCommand = null;
+		fitsHeaderBatchCardList = null;
+	}
+
 	/**
 	 * Method to add the specified FITS header to the C layers list of FITS headers. 
+	 * The card is added to the FITS header mirror's current frame, and is not sent if the CCD Flask API
+	 * already holds an identical card.
+	 * If a batch has been started (startFitsHeaderBatch), the header is added to the batch,
+	 * and is not sent until sendFitsHeaderBatch is called.
 	 * @param keyword The FITS headers keyword.
 	 * @param value The FITS headers value - an object of class String,Integer,Float,Double,Boolean,Date.
 	 * @param commentString A string describing a comment to go in the FITS header card. 
@@ -583,6 +795,10 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 	 * @see #ccdFlaskHostname
 	 * @see #ccdFlaskPortNumber
 	 * @see #dateFitsFieldToString
+	 * @see #fitsHeaderBatchCommand
+	 * @see #addFitsHeaderToBatch
+	 * @see FitsHeaderMirror#addFrameCard
+	 * @see FitsHeaderMirror#setServerCard
 	 * @see ngat.loci.LociStatus#getProperty
 	 * @see ngat.loci.LociStatus#getPropertyInteger
 	 */
@@ -590,8 +806,10 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 				     String commentString,String unitsString) throws Exception
 	{
 		SetHeaderKeywordCommand setHeaderKeywordCommand = null;
+		FitsHeaderCard card = null;
 		int returnCode;
 		String errorString = null;
+		String valueString = null;
 
 		if(keyword == null)
 		{
@@ -602,6 +820,21 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 			throw new NullPointerException(this.getClass().getName()+
 						       ":addFitsHeader:value was null for keyword:"+keyword);
 		}
+		// only send the card if the CCD Flask API does not already hold an identical one
+		card = new FitsHeaderCard(keyword,value,commentString,unitsString);
+		if(status.getFitsHeaderMirror().addFrameCard(card))
+		{
+			loci.log(Logging.VERBOSITY_VERY_VERBOSE,"%s:addFitsHeader:Keyword %s with value %s is unchanged, not sending.",
+				 this.getClass().getName(),keyword,value);
+			return;
+		}
+		// if we are collecting a batch of keywords, add it to the batch rather than sending it now
+		if(fitsHeaderBatchCommand != null)
+		{
+			addFitsHeaderToBatch(keyword,value,commentString,unitsString);
+			fitsHeaderBatchCardList.add(card);
+			return;
+		}
 		// get Flask API parameters
 		getCCDFlaskConnectionData();
 		// create command
@@ -612,44 +845,40 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		setHeaderKeywordCommand.setKeyword(keyword);
 		if(value instanceof String)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":addFitsHeader:Adding keyword "+keyword+" with String value "+value+".");
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with String value %s.",
+				 this.getClass().getName(),keyword,value);
 			setHeaderKeywordCommand.setValue((String)value);
 		}
 		else if(value instanceof Integer)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":addFitsHeader:Adding keyword "+keyword+" with integer value "+
-				   ((Integer)value).intValue()+".");
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with integer value %s.",
+				 this.getClass().getName(),keyword,value);
 			setHeaderKeywordCommand.setValue(((Integer)value).intValue());
 		}
 		else if(value instanceof Float)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				 ":addFitsHeader:Adding keyword "+keyword+" with float value "+
-				   ((Float)value).doubleValue()+".");
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with float value %s.",
+				 this.getClass().getName(),keyword,value);
 			setHeaderKeywordCommand.setValue(((Float)value).doubleValue());
 		}
 		else if(value instanceof Double)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":addFitsHeader:Adding keyword "+keyword+" with double value "+
-				   ((Double)value).doubleValue()+".");
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with double value %s.",
+				 this.getClass().getName(),keyword,value);
 		        setHeaderKeywordCommand.setValue(((Double)value).doubleValue());
 		}
 		else if(value instanceof Boolean)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":addFitsHeader:Adding keyword "+keyword+" with boolean value "+
-				   ((Boolean)value).booleanValue()+".");
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with boolean value %s.",
+				 this.getClass().getName(),keyword,value);
 			setHeaderKeywordCommand.setValue(((Boolean)value).booleanValue());
 		}
 		else if(value instanceof Date)
 		{
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				   ":addFitsHeader:Adding keyword "+keyword+" with date value "+
-				   dateFitsFieldToString((Date)value)+".");
-			setHeaderKeywordCommand.setValue(dateFitsFieldToString((Date)value));
+			valueString = dateFitsFieldToString((Date)value);
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeader:Adding keyword %s with date value %s.",
+				 this.getClass().getName(),keyword,valueString);
+			setHeaderKeywordCommand.setValue(valueString);
 		}
 		else
 		{
@@ -673,6 +902,7 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 		// check whether a run exception occurred
 		if(setHeaderKeywordCommand.getRunException() != null)
 		{
+			status.getFitsHeaderMirror().invalidate();
 			loci.error("addFitsHeader:SetHeaderKeywordCommand Failed:"+
 				   setHeaderKeywordCommand.getRunException(),
 				   setHeaderKeywordCommand.getRunException());
@@ -681,12 +911,11 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 					    setHeaderKeywordCommand.getRunException());
 		}
 		// check the parsed reply
-		loci.log(Logging.VERBOSITY_VERBOSE,
-			 "addFitsHeader:Add Fits Header Command Finished with status: "+
-			 setHeaderKeywordCommand.getReturnStatus()+
-			 " and message:"+setHeaderKeywordCommand.getMessage()+".");
+		loci.log(Logging.VERBOSITY_VERBOSE,"addFitsHeader:Add Fits Header Command Finished with status: %s and message:%s.",
+			 setHeaderKeywordCommand.getReturnStatus(),setHeaderKeywordCommand.getMessage());
 		if(setHeaderKeywordCommand.isReturnStatusSuccess() == false)
 		{
+			status.getFitsHeaderMirror().invalidate();
 			loci.error("addFitsHeader:Command failed with return code "+
 				   setHeaderKeywordCommand.getReturnStatus()+
 				   " and message:"+setHeaderKeywordCommand.getMessage());
@@ -695,6 +924,49 @@ public class HardwareImplementation extends CommandImplementation implements JMS
 					    setHeaderKeywordCommand.getReturnStatus()+
 					    " and message:"+setHeaderKeywordCommand.getMessage()+".");
 		}
+		status.getFitsHeaderMirror().setServerCard(card);
+	}
+
+	/**
+	 * Add the specified FITS header to the current batch of FITS headers (fitsHeaderBatchCommand).
+	 * @param keyword The FITS headers keyword.
+	 * @param value The FITS headers value - an object of class String,Integer,Float,Double,Boolean,Date.
+	 * @param commentString A string describing a comment to go in the FITS header card, or null.
+	 * @param unitsString A string describing the units to go in the FITS header card, or null.
+	 * @exception Exception Thrown if the value has an illegal class, or the card cannot be created.
+	 * @see #fitsHeaderBatchCommand
+	 * @see #dateFitsFieldToString
+	 * @see ngat.loci.ccd.SetHeaderKeywordsBatchCommand#addKeyword
+	 */
+	protected void addFitsHeaderToBatch(String keyword,Object value,
+					    String commentString,String unitsString) throws Exception
+	{
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:addFitsHeaderToBatch:Adding keyword %s with value %s.",
+			 this.getClass().getName(),keyword,value);
+		if(value instanceof String)
+			fitsHeaderBatchCommand.addKeyword(keyword,(String)value,commentString,unitsString);
+		else if(value instanceof Integer)
+			fitsHeaderBatchCommand.addKeyword(keyword,((Integer)value).intValue(),commentString,unitsString);
+		else if(value instanceof Float)
+			fitsHeaderBatchCommand.addKeyword(keyword,((Float)value).doubleValue(),commentString,unitsString);
+		else if(value instanceof Double)
+			fitsHeaderBatchCommand.addKeyword(keyword,((Double)value).doubleValue(),commentString,unitsString);
+		else if(value instanceof Boolean)
+		{
+			fitsHeaderBatchCommand.addKeyword(keyword,((Boolean)value).booleanValue(),commentString,
+							  unitsString);
+		}
+		else if(value instanceof Date)
+		{
+			fitsHeaderBatchCommand.addKeyword(keyword,dateFitsFieldToString((Date)value),commentString,
+							  unitsString);
+		}
+		else
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+
+							   ":addFitsHeaderToBatch:value had illegal class:"+
+							   value.getClass().getName());
+		}
 	}
 
 	/**
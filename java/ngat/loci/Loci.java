@@ -8,8 +8,10 @@ import java.io.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 import ngat.fits.FitsFilenameServer;
+import ngat.message.base.COMMAND_DONE;
 import ngat.net.*;
 import ngat.util.*;
 import ngat.util.logging.*;
@@ -37,6 +39,10 @@ public class Loci
 	 * Internal constant used when converting temperatures in centigrade to Kelvin.
 	 */
 	public final static double CENTIGRADE_TO_KELVIN = 273.15;
+	/**
+	 * How long close waits for each asynchronous log handler to write out it's queued records, in milliseconds.
+	 */
+	public final static long ASYNC_LOG_HANDLER_FLUSH_TIMEOUT = 2000;
 	/**
 	 * The minimum port number to listen for connections on.
 	 */
@@ -69,11 +75,78 @@ public class Loci
 	 */
 	private FitsFilenameServer fitsFilenameServer = null;
 	/**
-	 * This hashtable holds the map between COMMAND sub-class names and their implementations, which
-	 * are stored as the Hashtable data values as class objects of sub-classes of CommandImplementation.
-	 * When Loci gets a COMMAND from a client it can query this Hashtable to find it's implementation class.
+	 * A cache of FITS filenames leased (prefetched) from the filename-server via fitsFilenameServer.
+	 * @see #initFitsFilenameServer
+	 * @see #getFitsFilenameLeaseCache
+	 */
+	private LociFitsFilenameLeaseCache fitsFilenameLeaseCache = null;
+	/**
+	 * A pool of threads used to run the LociTCPClientConnectionThread instances used to send commands
+	 * to the ISS and DP(RT).
+	 * @see #initClientConnectionExecutor
+	 * @see #getClientConnectionExecutor
+	 */
+	private LociClientConnectionExecutor clientConnectionExecutor = null;
+	/**
+	 * A bounded pool of threads used to run the LociTCPServerConnectionThread instances handling
+	 * incoming connections to the server. This is null if the server starts a new thread for each connection.
+	 * @see #initServerConnectionExecutor
+	 * @see #getServerConnectionExecutor
+	 */
+	private LociServerConnectionExecutor serverConnectionExecutor = null;
+	/**
+	 * A pool of idle Flask command instances, used to re-use status query commands rather than
+	 * creating new ones for each request.
+	 * @see #initFlaskConnections
+	 * @see #getFlaskCommandPool
+	 */
+	private FlaskCommandPool flaskCommandPool = null;
+	/**
+	 * The background thread that samples the CCD and filter wheel status, for use by GET_STATUS.
+	 * @see #initStatusPoller
+	 * @see #getStatusPoller
+	 */
+	private LociStatusPoller statusPoller = null;
+	/**
+	 * The cached system metrics provider, used by full level GET_STATUS.
+	 * @see #initSystemMetrics
+	 * @see #getSystemMetrics
+	 */
+	private LociSystemMetrics systemMetrics = null;
+	/**
+	 * The background thread that reloads the configuration when the property files change.
+	 * @see #initConfigWatcher
+	 * @see #getConfigWatcher
+	 */
+	private LociConfigWatcher configWatcher = null;
+	/**
+	 * The in-process FITS image statistics engine, used by TWILIGHT_CALIBRATE to measure flats.
+	 * @see #initImageStatistics
+	 * @see #getImageStatistics
+	 */
+	private LociImageStatistics imageStatistics = null;
+	/**
+	 * The list of asynchronous log handlers, wrapping the log handlers whose properties asked for them.
+	 * @see #initAsyncLogHandler
+	 * @see #getAsyncLogHandlerList
 	 */
-	private Hashtable implementationList = null;
+	private List<LociAsyncLogHandler> asyncLogHandlerList = new Vector<LociAsyncLogHandler>();
+	/**
+	 * This map holds the map between COMMAND sub-class names and factories for their implementations, 
+	 * which are built once at startup by initImplementationList. When Loci gets a COMMAND from a client 
+	 * it queries this map to find the factory used to create it's implementation. The map is unmodifiable
+	 * once built, so no synchronisation is needed to read it.
+	 * @see #initImplementationList
+	 * @see #getImplementation
+	 * @see LociCommandImplementationFactory
+	 */
+	private Map<String,LociCommandImplementationFactory> implementationList = null;
+	/**
+	 * A single instance of UnknownCommandImplementation, returned by getImplementation for all commands
+	 * with no (or a broken) implementation. It holds no per-command state.
+	 * @see #getImplementation
+	 */
+	private UnknownCommandImplementation unknownCommandImplementation = new UnknownCommandImplementation();
 	/**
 	 * Command line argument. The level of logging to perform in Loci.
 	 */
@@ -136,9 +209,23 @@ public class Loci
 	 * <li>We initialise the IP address of the DpRt (Data Pipeline (Real Time)) from the properties file.
 	 * <li>We initialise various acknowledge times (timeouts associated with the receiving of commands
 	 *     over network sockets) from the properties file.
-	 * <li>
+	 * <li>We initialise the pool of threads used to send commands to the ISS/DpRt (initClientConnectionExecutor).
+	 * <li>We initialise the pool of threads used to handle incoming connections (initServerConnectionExecutor).
+	 * <li>We initialise the HTTP keep-alive settings and command pool used to talk to the 
+	 *     Flask APIs (initFlaskConnections).
+	 * <li>We create and configure the background status poller (initStatusPoller).
+	 * <li>We create and configure the system metrics provider (initSystemMetrics).
+	 * <li>We create and configure the configuration file watcher (initConfigWatcher).
+	 * <li>We create and configure the FITS image statistics engine (initImageStatistics).
 	 * </ul>
 	 * @see #initLoggers
+	 * @see #initClientConnectionExecutor
+	 * @see #initServerConnectionExecutor
+	 * @see #initFlaskConnections
+	 * @see #initStatusPoller
+	 * @see #initSystemMetrics
+	 * @see #initConfigWatcher
+	 * @see #initImageStatistics
 	 * @see #setLogLevel
 	 * @see #initImplementationList
 	 * @see #status
@@ -222,6 +309,127 @@ public class Loci
 			error(this.getClass().getName()+":init:initialsing server connection thread times:",e);
 			// don't throw the error - failing to get this property is not 'vital' to Loci.
 		}		
+	// initialise the pool of threads used to send commands to the ISS and DP(RT)
+		initClientConnectionExecutor();
+	// initialise the pool of threads used to handle incoming connections
+		initServerConnectionExecutor();
+	// initialise the persistent HTTP connections and command pool used to talk to the Flask APIs
+		initFlaskConnections();
+	// initialise the background status poller
+		initStatusPoller();
+	// initialise the system metrics provider
+		initSystemMetrics();
+	// initialise the configuration file watcher
+		initConfigWatcher();
+	// initialise the FITS image statistics engine
+		initImageStatistics();
+	}
+
+	/**
+	 * Initialise the pool of threads used to run LociTCPClientConnectionThread instances.
+	 * The number of core threads is retrieved from the "loci.client_connection.executor.thread_count" property,
+	 * if this does not exist or is invalid LociClientConnectionExecutor.DEFAULT_THREAD_COUNT is used.
+	 * If the pool already exists (i.e. on a re-initialisation), the number of threads is changed,
+	 * otherwise the pool is created with threads of normal priority.
+	 * @see #clientConnectionExecutor
+	 * @see LociClientConnectionExecutor
+	 * @see LociClientConnectionExecutor#DEFAULT_THREAD_COUNT
+	 * @see LociStatus#getThreadPriorityNormal
+	 */
+	protected void initClientConnectionExecutor()
+	{
+		int threadCount;
+
+		try
+		{
+			threadCount = status.getPropertyInteger("loci.client_connection.executor.thread_count");
+		}
+		catch(NumberFormatException e)
+		{
+			threadCount = LociClientConnectionExecutor.DEFAULT_THREAD_COUNT;
+		}
+		if(clientConnectionExecutor == null)
+		{
+			clientConnectionExecutor = new LociClientConnectionExecutor(status,threadCount,
+									status.getThreadPriorityNormal());
+		}
+		else
+			clientConnectionExecutor.setThreadCount(threadCount);
+	}
+
+	/**
+	 * Initialise the pool of threads used to run the LociTCPServerConnectionThread instances handling incoming
+	 * connections. The connection handling mode is retrieved from the "loci.server_connection.mode" property:
+	 * <ul>
+	 * <li><b>thread</b> (the default) A new thread is started for each incoming connection.
+	 * <li><b>pool</b> Incoming connections are run by a bounded LociServerConnectionExecutor. 
+	 *     The number of (interrupt lane) threads is retrieved from 
+	 *     "loci.server_connection.executor.thread_count", the maximum number of connections queued waiting 
+	 *     for a thread from "loci.server_connection.executor.backlog", and the maximum number of 
+	 *     extra threads used to run normal (non-INTERRUPT) commands from 
+	 *     "loci.server_connection.executor.normal_lane.max". Defaults are used for missing or invalid values.
+	 * </ul>
+	 * If the pool already exists (i.e. on a re-initialisation), the number of threads is changed
+	 * (the backlog cannot be changed), or the pool is shutdown if the mode has been changed to <b>thread</b>.
+	 * Connections already accepted by a shutdown pool are still run.
+	 * @see #serverConnectionExecutor
+	 * @see LociServerConnectionExecutor
+	 * @see LociServerConnectionExecutor#DEFAULT_THREAD_COUNT
+	 * @see LociServerConnectionExecutor#DEFAULT_BACKLOG
+	 * @see LociServerConnectionExecutor#DEFAULT_NORMAL_LANE_MAX
+	 * @see LociStatus#getThreadPriorityInterrupt
+	 */
+	protected void initServerConnectionExecutor()
+	{
+		String mode = null;
+		int threadCount,backlog,normalLaneMax;
+
+		mode = status.getProperty("loci.server_connection.mode");
+		if((mode == null)||(mode.trim().equals("pool") == false))
+		{
+			if(serverConnectionExecutor != null)
+			{
+				log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				    ":initServerConnectionExecutor:Shutting down connection pool.");
+				serverConnectionExecutor.shutdown();
+				serverConnectionExecutor = null;
+			}
+			return;
+		}
+		try
+		{
+			threadCount = status.getPropertyInteger("loci.server_connection.executor.thread_count");
+		}
+		catch(NumberFormatException e)
+		{
+			threadCount = LociServerConnectionExecutor.DEFAULT_THREAD_COUNT;
+		}
+		try
+		{
+			backlog = status.getPropertyInteger("loci.server_connection.executor.backlog");
+		}
+		catch(NumberFormatException e)
+		{
+			backlog = LociServerConnectionExecutor.DEFAULT_BACKLOG;
+		}
+		try
+		{
+			normalLaneMax = status.getPropertyInteger("loci.server_connection.executor.normal_lane.max");
+		}
+		catch(NumberFormatException e)
+		{
+			normalLaneMax = LociServerConnectionExecutor.DEFAULT_NORMAL_LANE_MAX;
+		}
+		if(serverConnectionExecutor == null)
+		{
+			serverConnectionExecutor = new LociServerConnectionExecutor(threadCount,backlog,normalLaneMax,
+									status.getThreadPriorityInterrupt());
+		}
+		else
+			serverConnectionExecutor.setThreadCount(threadCount,normalLaneMax);
+		log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+		    ":initServerConnectionExecutor:Connection pool has "+threadCount+" threads, backlog "+backlog+
+		    ", normal lane maximum "+normalLaneMax+".");
 	}
 
 	/**
@@ -262,6 +470,8 @@ public class Loci
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.GetTemperatureCommand"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.SetCoolingCommand"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.SetHeaderKeywordCommand"),null,Logging.ALL);
+		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.SetHeaderKeywordsBatchCommand"),null,
+				Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.SetImageDimensionsCommand"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.SetTemperatureCommand"),null,Logging.ALL);
 		copyLogHandlers(logLogger,LogManager.getLogger("ngat.loci.ccd.TakeBiasFrameCommand"),null,Logging.ALL);
@@ -274,10 +484,13 @@ public class Loci
 	 * These handlers are in the status properties:
 	 * "loci.log."+l.getName()+".handler."+index+".name" retrieves the relevant class name
 	 * for each handler.
+	 * Each handler can be wrapped in a LociAsyncLogHandler, so that it's I/O is done on a separate writer 
+	 * thread, see initAsyncLogHandler.
 	 * @param l The logger.
 	 * @see #initFileLogHandler
 	 * @see #initConsoleLogHandler
 	 * @see #initDatagramLogHandler
+	 * @see #initAsyncLogHandler
 	 */
 	protected void initLogHandlers(Logger l)
 	{
@@ -319,6 +532,8 @@ public class Loci
 					}
 					if(handler != null)
 					{
+						handler.setLogLevel(Logging.ALL);
+						handler = initAsyncLogHandler(l,index,handler);
 						handler.setLogLevel(Logging.ALL);
 						l.addHandler(handler);
 					}
@@ -333,6 +548,61 @@ public class Loci
 		while(handlerName != null);
 	}
 
+	/**
+	 * Routine to wrap a handler in a LociAsyncLogHandler, if the handler's properties say so.
+	 * The following properties are used:
+	 * <ul>
+	 * <li><b>async</b> A boolean, if true the handler is wrapped. If missing, the handler is not wrapped.
+	 * <li><b>async.capacity</b> The number of records the ring buffer holds (default 
+	 *     LociAsyncLogHandler.DEFAULT_CAPACITY).
+	 * <li><b>async.overflow</b> The overflow policy, DROP_LOWEST_VERBOSITY (the default) or BLOCK.
+	 * <li><b>async.drop_level</b> For DROP_LOWEST_VERBOSITY, records more verbose than this level are 
+	 *     dropped first (default Logging.VERBOSITY_TERSE).
+	 * </ul>
+	 * Each property is prefixed by "loci.log."+l.getName()+".handler."+index+".".
+	 * The created handler is added to asyncLogHandlerList.
+	 * @param l The logger the handler is being added to.
+	 * @param index The index in the property file of the handler.
+	 * @param handler The handler to wrap.
+	 * @return The LociAsyncLogHandler wrapping the handler, or the handler itself if it is not to be wrapped.
+	 * @exception NumberFormatException Thrown if the capacity or drop level are not valid numbers.
+	 * @exception IllegalArgumentException Thrown if the overflow policy is not valid.
+	 * @see #asyncLogHandlerList
+	 * @see LociAsyncLogHandler
+	 * @see LociAsyncLogHandler#parseOverflowPolicy
+	 */
+	protected LogHandler initAsyncLogHandler(Logger l,int index,LogHandler handler) throws NumberFormatException,
+		IllegalArgumentException
+	{
+		LociAsyncLogHandler asyncHandler = null;
+		String prefix = null;
+		String overflowString = null;
+		int capacity,overflowPolicy,dropLevel;
+
+		prefix = "loci.log."+l.getName()+".handler."+index+".";
+		if(status.propertyContainsKey(prefix+"async") == false)
+			return handler;
+		if(status.getPropertyBoolean(prefix+"async") == false)
+			return handler;
+		if(status.propertyContainsKey(prefix+"async.capacity"))
+			capacity = status.getPropertyInteger(prefix+"async.capacity");
+		else
+			capacity = LociAsyncLogHandler.DEFAULT_CAPACITY;
+		overflowString = status.getProperty(prefix+"async.overflow");
+		if(overflowString != null)
+			overflowPolicy = LociAsyncLogHandler.parseOverflowPolicy(overflowString.trim());
+		else
+			overflowPolicy = LociAsyncLogHandler.OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY;
+		if(status.propertyContainsKey(prefix+"async.drop_level"))
+			dropLevel = status.getPropertyInteger(prefix+"async.drop_level");
+		else
+			dropLevel = Logging.VERBOSITY_TERSE;
+		asyncHandler = new LociAsyncLogHandler("Loci async log handler "+l.getName()+"."+index,handler,
+						       capacity,overflowPolicy,dropLevel);
+		asyncLogHandlerList.add(asyncHandler);
+		return asyncHandler;
+	}
+
 	/**
 	 * Routine to add a FileLogHandler to the specified logger.
 	 * This method expects either 3 or 6 constructor parameters to be in the status properties.
@@ -589,6 +859,7 @@ public class Loci
 	 * @see #status
 	 * @see #init
 	 * @see #setLogLevel
+	 * @see ngat.loci.ccd.SetHeaderKeywordsBatchCommand#setBatchEndPointAvailable
 	 */
 	public void reInit() throws FileNotFoundException,IOException,NumberFormatException,Exception
 	{
@@ -626,32 +897,204 @@ public class Loci
 			error(this.getClass().getName()+":reinit:initialsing server connection thread times:",e);
 			// don't throw the error - failing to get this property is not 'vital' to Loci.
 		}
+	// re-size the pool of threads used to send commands to the ISS and DP(RT)
+		initClientConnectionExecutor();
+	// re-configure the pool of threads used to handle incoming connections
+		initServerConnectionExecutor();
+	// re-size the Flask command pool
+		initFlaskConnections();
+	// re-try the CCD Flask API's batch header end-point, the server may have been upgraded
+		SetHeaderKeywordsBatchCommand.setBatchEndPointAvailable(true);
+	// the CCD Flask API may have been restarted, so don't trust the FITS header mirror
+		status.getFitsHeaderMirror().invalidate();
+	// re-configure the background status poller
+		initStatusPoller();
+	// re-configure the system metrics provider
+		initSystemMetrics();
+	// re-configure the configuration file watcher
+		initConfigWatcher();
+	// re-size the FITS image statistics engine's pool of threads
+		initImageStatistics();
+	}
+
+	/**
+	 * Initialise the HTTP connection settings and command pool used to talk to the CCD and filter wheel
+	 * Flask APIs. The Flask end-points use the JVM's HttpURLConnection, which keeps a cache of 
+	 * idle persistent (keep-alive) connections to each server. We configure that cache using the
+	 * standard JVM networking system properties:
+	 * <ul>
+	 * <li><b>http.keepAlive</b> is set from "loci.flask.http.keep_alive" (default true).
+	 * <li><b>http.maxConnections</b> (the maximum number of idle connections kept per server) is set from
+	 *     "loci.flask.http.max_connections".
+	 * <li><b>http.keepAlive.time.server</b> (the number of seconds an idle connection is kept before it is
+	 *     evicted, when the server does not specify a timeout) is set from "loci.flask.http.idle_timeout". 
+	 *     Older JVMs ignore this property, and use a fixed 5 second idle timeout.
+	 * </ul>
+	 * The JVM reads these properties when the first HTTP connection is made, so they are only set
+	 * if they have not already been set (i.e. on the command line), and changing them in the
+	 * config file has no effect on a re-initialisation.
+	 * The Flask command pool is created (or re-sized), the maximum number of idle instances of each 
+	 * command being retrieved from "loci.flask.command_pool.max_idle".
+	 * @see #flaskCommandPool
+	 * @see FlaskCommandPool
+	 * @see FlaskCommandPool#DEFAULT_MAX_IDLE_COUNT
+	 */
+	protected void initFlaskConnections()
+	{
+		String keyList[] = {"loci.flask.http.keep_alive","loci.flask.http.max_connections",
+				    "loci.flask.http.idle_timeout"};
+		String systemPropertyList[] = {"http.keepAlive","http.maxConnections","http.keepAlive.time.server"};
+		String value = null;
+		int maxIdleCount;
+
+		for(int i = 0; i < keyList.length; i++)
+		{
+			value = status.getProperty(keyList[i]);
+			if((value != null)&&(System.getProperty(systemPropertyList[i]) == null))
+			{
+				System.setProperty(systemPropertyList[i],value.trim());
+				log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":initFlaskConnections:Set "+
+				    systemPropertyList[i]+" to "+value.trim()+".");
+			}
+		}
+		try
+		{
+			maxIdleCount = status.getPropertyInteger("loci.flask.command_pool.max_idle");
+		}
+		catch(NumberFormatException e)
+		{
+			maxIdleCount = FlaskCommandPool.DEFAULT_MAX_IDLE_COUNT;
+		}
+		if(flaskCommandPool == null)
+			flaskCommandPool = new FlaskCommandPool(maxIdleCount);
+		else
+			flaskCommandPool.setMaxIdleCount(maxIdleCount);
+	}
+
+	/**
+	 * Create (if it does not already exist) and configure the background status poller.
+	 * The poller thread is not started until the server is started in run.
+	 * @see #statusPoller
+	 * @see LociStatusPoller#configure
+	 * @see #run
+	 */
+	protected void initStatusPoller()
+	{
+		if(statusPoller == null)
+		{
+			statusPoller = new LociStatusPoller(this);
+			statusPoller.setPriority(status.getThreadPriorityNormal());
+		}
+		statusPoller.configure(status);
+	}
+
+	/**
+	 * Create (if it does not already exist) and configure the system metrics provider. The time to live
+	 * of the cached metrics is retrieved from the "loci.get_status.system_metrics.time_to_live" property,
+	 * if this does not exist or is invalid LociSystemMetrics.DEFAULT_TIME_TO_LIVE is used.
+	 * @see #systemMetrics
+	 * @see LociSystemMetrics
+	 * @see LociSystemMetrics#DEFAULT_TIME_TO_LIVE
+	 */
+	protected void initSystemMetrics()
+	{
+		long timeToLive;
+
+		try
+		{
+			timeToLive = status.getPropertyLong("loci.get_status.system_metrics.time_to_live");
+		}
+		catch(NumberFormatException e)
+		{
+			timeToLive = LociSystemMetrics.DEFAULT_TIME_TO_LIVE;
+		}
+		if(systemMetrics == null)
+			systemMetrics = new LociSystemMetrics(timeToLive);
+		else
+			systemMetrics.setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * Create (if it does not already exist) and configure the configuration file watcher.
+	 * The watcher thread is not started until the server is started in run.
+	 * @see #configWatcher
+	 * @see LociConfigWatcher#configure
+	 * @see #run
+	 */
+	protected void initConfigWatcher()
+	{
+		if(configWatcher == null)
+		{
+			configWatcher = new LociConfigWatcher(this);
+			configWatcher.setPriority(status.getThreadPriorityNormal());
+		}
+		configWatcher.configure(status);
+	}
+
+	/**
+	 * Create (if it does not already exist) and configure the FITS image statistics engine.
+	 * The number of threads used to process each image is retrieved from the 
+	 * "loci.image_statistics.thread_count" property, if this does not exist or is invalid the number of
+	 * available processors is used.
+	 * @see #imageStatistics
+	 * @see LociImageStatistics
+	 * @see LociImageStatistics#setThreadCount
+	 */
+	protected void initImageStatistics()
+	{
+		int threadCount;
+
+		try
+		{
+			threadCount = status.getPropertyInteger("loci.image_statistics.thread_count");
+		}
+		catch(NumberFormatException e)
+		{
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		if(imageStatistics == null)
+			imageStatistics = new LociImageStatistics(threadCount);
+		else
+			imageStatistics.setThreadCount(threadCount);
 	}
 
 	/**
-	 * This method creates the implementationList, and fills it with Class objects of sub-classes
+	 * This method creates the implementationList, and fills it with factories for sub-classes
 	 * of CommandImplementation. The command implementation namess are retrieved from the Loci property files,
 	 * using keys of the form <b>loci.command.implementation.&lt;<i>N</i>&gt;</b>, where <i>N</i> is
-	 * an integer is incremented. It puts the class object reference in the Hashtable with the 
-	 * results of it's getImplementString static method
-	 * as the key. If an implementation object class fails to be put in the hashtable for some reason
-	 * it ignores it and continues for the next object in the list.
+	 * an integer is incremented. If <b>loci.command.implementation.&lt;<i>N</i>&gt;.pooled</b> is true,
+	 * the factory keeps a pool of idle instances (up to <b>loci.command.implementation.pool.max_idle</b>)
+	 * for re-use. It puts the factory in the map with the results of the class's getImplementString static method
+	 * as the key. If an implementation object class fails to be put in the map for some reason
+	 * it ignores it and continues for the next object in the list. The constructed map is made unmodifiable.
 	 * @see #implementationList
 	 * @see CommandImplementation#getImplementString
+	 * @see LociCommandImplementationFactory
+	 * @see LociCommandImplementationFactory#DEFAULT_MAX_IDLE_COUNT
 	 */
 	private void initImplementationList()
 	{
+		Map<String,LociCommandImplementationFactory> newImplementationList = null;
+		LociCommandImplementationFactory factory = null;
+		LociCommandImplementationFactory oldFactory = null;
 		Class cl = null;
-		Class oldClass = null;
 		Method method = null;
 		Class methodClassParameterList[] = {};
 		Object methodParameterList[] = {};
 		String implementString = null;
 		String className = null;
-		int index;
-		boolean done;
+		int index,maxIdleCount;
+		boolean done,pooled;
 
-		implementationList = new Hashtable();
+		newImplementationList = new HashMap<String,LociCommandImplementationFactory>();
+		try
+		{
+			maxIdleCount = status.getPropertyInteger("loci.command.implementation.pool.max_idle");
+		}
+		catch(NumberFormatException e)
+		{
+			maxIdleCount = LociCommandImplementationFactory.DEFAULT_MAX_IDLE_COUNT;
+		}
 		index = 0;
 		done = false;
 		while(done == false)
@@ -672,12 +1115,19 @@ public class Loci
 					log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
 					    ":initImplementationList:class "+className+
 					    " implements command "+implementString);
-				// put key and class into implementationList
-					oldClass = (Class)implementationList.put(implementString,cl);
-					if(oldClass != null)// the put returned another class with the same key.
+					if(implementString == null)
+						throw new NullPointerException("Implement string was null.");
+				// create a factory for cl, resolving it's constructor now rather than per command
+					pooled = "true".equals(status.getProperty("loci.command.implementation."+index+
+										  ".pooled"));
+					factory = new LociCommandImplementationFactory(cl,implementString,pooled,
+										       maxIdleCount);
+				// put key and factory into implementationList
+					oldFactory = newImplementationList.put(implementString,factory);
+					if(oldFactory != null)// the put returned another factory with the same key.
 					{
 						error(this.getClass().getName()+":initImplementationList:Classes "+
-							oldClass.getName()+" and "+cl.getName()+
+							oldFactory.getImplementationClass().getName()+" and "+cl.getName()+
 							" both implement command:"+implementString);
 					}
 				}
@@ -699,7 +1149,7 @@ public class Loci
 						className+":SecurityException:",e);
 					// keep trying for next implementation in the list
 				}
-				catch(NullPointerException e)// Hashtable.put exception - null key.
+				catch(NullPointerException e)// null implement string
 				{
 					error(this.getClass().getName()+":initImplementationList:Class "+
 						cl.getName()+" implement string is null?:",e);
@@ -711,7 +1161,7 @@ public class Loci
 						cl.getName()+":IllegalAccessException:",e);
 					// keep trying for next implementation in the list
 				}
-				catch(IllegalArgumentException e)// Method.invoke exception
+				catch(IllegalArgumentException e)// Method.invoke / factory constructor exception
 				{
 					error(this.getClass().getName()+":initImplementationList:Class "+
 						cl.getName()+":IllegalArgumentException:",e);
@@ -729,6 +1179,7 @@ public class Loci
 			else
 				done = true;
 		}// end while not done
+		implementationList = Collections.unmodifiableMap(newImplementationList);
 		log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":initImplementationList:finished at index "+
 		    index+".");
 	}
@@ -812,6 +1263,7 @@ public class Loci
 	 * <li>Retrieve the FITS instrument code to use for generating FITS image filenames from the
 	 *     "loci.file.fits.instrument_code" property.
 	 * <li>Construct the fitsFilenameServer instance, and set the configured properties.
+	 * <li>Construct the fitsFilenameLeaseCache instance around the fitsFilenameServer instance.
 	 * </ul>
 	 * @exception Exception Thrown if the configuration proeprties cannot be retrieved / parsed, 
 	 *            or have an illegal value.
@@ -824,6 +1276,8 @@ public class Loci
 	 * @see ngat.fits.FitsFilenameServer#setAddress
 	 * @see ngat.fits.FitsFilenameServer#setPortNumber
 	 * @see ngat.fits.FitsFilenameServer#setInstrumentCode
+	 * @see #fitsFilenameLeaseCache
+	 * @see LociFitsFilenameLeaseCache
 	 */
 	protected void initFitsFilenameServer() throws Exception
 	{
@@ -842,13 +1296,17 @@ public class Loci
 		fitsFilenameServer.setAddress(fitsFilenameServerHostname);
 		fitsFilenameServer.setPortNumber(fitsFilenameServerPortNumber);
 		fitsFilenameServer.setInstrumentCode(instrumentCode);	
+		// initialise filename lease cache
+		fitsFilenameLeaseCache = new LociFitsFilenameLeaseCache(this,fitsFilenameServer);
 		log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":initFitsFilenameServer:Finished.");
 	}
 	
 	/**
-	 * This is the run routine. It starts a new server to handle incoming requests, and waits for the
-	 * server to terminate.
+	 * This is the run routine. It starts a new server to handle incoming requests, starts the
+	 * background status poller and configuration file watcher, and waits for the server to terminate.
 	 * @see #server
+	 * @see #statusPoller
+	 * @see #configWatcher
 	 * @see #lociPortNumber
 	 * @see #titServer
 	 * @see #titPortNumber
@@ -874,6 +1332,8 @@ public class Loci
 		error(this.getClass().getName()+":run:server started on port:"+lociPortNumber);
 		server.start();
 		titServer.start();
+		statusPoller.start();
+		configWatcher.start();
 		try
 		{
 			log(Logging.VERBOSITY_VERY_TERSE,
@@ -890,18 +1350,45 @@ public class Loci
 
 	/**
 	 * Routine to be called at the end of execution of Loci to close down communications.
-	 * Currently closes LociTCPServer and TitServer.
+	 * Currently closes LociTCPServer and TitServer, and stops the background status poller and
+	 * configuration file watcher, FITS filename prefetching and the image statistics threads. Records queued in asynchronous log handlers are flushed.
 	 * @param serverConnectionThread An object of class LociTCPServerConnectionThread. The connection thread
 	 *        of the command being implemented should be passed in. 
 	 * @see LociTCPServer#close
 	 * @see #server
 	 * @see TitServer#close
 	 * @see #titServer
+	 * @see #statusPoller
+	 * @see LociStatusPoller#quit
+	 * @see #configWatcher
+	 * @see LociConfigWatcher#quit
+	 * @see #fitsFilenameLeaseCache
+	 * @see LociFitsFilenameLeaseCache#shutdown
+	 * @see #imageStatistics
+	 * @see LociImageStatistics#shutdown
+	 * @see #clientConnectionExecutor
+	 * @see LociClientConnectionExecutor#shutdown
+	 * @see #asyncLogHandlerList
+	 * @see #ASYNC_LOG_HANDLER_FLUSH_TIMEOUT
+	 * @see LociAsyncLogHandler#flush
 	 */
 	public void close(LociTCPServerConnectionThread serverConnectionThread)
 	{
 		server.close();
 		titServer.close();
+		statusPoller.quit();
+		configWatcher.quit();
+		if(fitsFilenameLeaseCache != null)
+			fitsFilenameLeaseCache.shutdown();
+		if(imageStatistics != null)
+			imageStatistics.shutdown();
+		if(clientConnectionExecutor != null)
+			clientConnectionExecutor.shutdown();
+		// write out any queued log records before we exit
+		for(int i = 0; i < asyncLogHandlerList.size(); i++)
+		{
+			asyncLogHandlerList.get(i).flush(ASYNC_LOG_HANDLER_FLUSH_TIMEOUT);
+		}
 	}
 
 	/**
@@ -934,46 +1421,157 @@ public class Loci
 		return fitsFilenameServer;
 	}
 
+	/**
+	 * Get the cache of FITS filenames leased from the filename-server. Commands should get filenames from
+	 * this rather than calling the FitsFilenameServer instance directly.
+	 * @return The instance of LociFitsFilenameLeaseCache.
+	 * @see #fitsFilenameLeaseCache
+	 */
+	public LociFitsFilenameLeaseCache getFitsFilenameLeaseCache()
+	{
+		return fitsFilenameLeaseCache;
+	}
+
+	/**
+	 * Get the pool of threads used to send commands to the ISS and DP(RT).
+	 * @return The instance of LociClientConnectionExecutor.
+	 * @see #clientConnectionExecutor
+	 */
+	public LociClientConnectionExecutor getClientConnectionExecutor()
+	{
+		return clientConnectionExecutor;
+	}
+
+	/**
+	 * Get the pool of threads used to handle incoming connections to the server.
+	 * @return The instance of LociServerConnectionExecutor, or null if a new thread is started for
+	 *         each incoming connection.
+	 * @see #serverConnectionExecutor
+	 */
+	public LociServerConnectionExecutor getServerConnectionExecutor()
+	{
+		return serverConnectionExecutor;
+	}
+
+	/**
+	 * Get the pool of idle Flask command instances.
+	 * @return The instance of FlaskCommandPool.
+	 * @see #flaskCommandPool
+	 */
+	public FlaskCommandPool getFlaskCommandPool()
+	{
+		return flaskCommandPool;
+	}
+
+	/**
+	 * Get the background status poller.
+	 * @return The instance of LociStatusPoller.
+	 * @see #statusPoller
+	 */
+	public LociStatusPoller getStatusPoller()
+	{
+		return statusPoller;
+	}
+
+	/**
+	 * Get the list of asynchronous log handlers.
+	 * @return The list of LociAsyncLogHandler instances.
+	 * @see #asyncLogHandlerList
+	 */
+	public List<LociAsyncLogHandler> getAsyncLogHandlerList()
+	{
+		return asyncLogHandlerList;
+	}
+
+	/**
+	 * Get the system metrics provider.
+	 * @return The instance of LociSystemMetrics.
+	 * @see #systemMetrics
+	 */
+	public LociSystemMetrics getSystemMetrics()
+	{
+		return systemMetrics;
+	}
+
+	/**
+	 * Get the FITS image statistics engine.
+	 * @return The instance of LociImageStatistics.
+	 * @see #imageStatistics
+	 */
+	public LociImageStatistics getImageStatistics()
+	{
+		return imageStatistics;
+	}
+
+	/**
+	 * Get the configuration file watcher.
+	 * @return The instance of LociConfigWatcher.
+	 * @see #configWatcher
+	 */
+	public LociConfigWatcher getConfigWatcher()
+	{
+		return configWatcher;
+	}
+
 	/**
 	 * This routine returns an instance of the sub-class of CommandImplementation that
 	 * implements the command with class name commandClassName. If an implementation is
-	 * not found or an instance cannot be created, an instance of UnknownCommandImplementation is returned instead.
-	 * The instance is constructed 
-	 * using a null argument constructor, from the Class object stored in the implementationList.
+	 * not found or an instance cannot be created, the shared instance of UnknownCommandImplementation 
+	 * is returned instead. The instance is created by the factory stored in the implementationList, which
+	 * either re-uses a pooled instance or calls the pre-resolved null argument constructor.
 	 * @param commandClassName The class-name of a COMMAND sub-class.
-	 * @return A new instance of a sub-class of CommandImplementation that implements the 
-	 * 	command, or an instance of UnknownCommandImplementation.
+	 * @return An instance of a sub-class of CommandImplementation that implements the 
+	 * 	command, or the instance of UnknownCommandImplementation.
+	 * @see #implementationList
+	 * @see #unknownCommandImplementation
+	 * @see #releaseImplementation
+	 * @see LociCommandImplementationFactory#newImplementation
 	 */
 	public JMSCommandImplementation getImplementation(String commandClassName)
 	{
-		JMSCommandImplementation unknownCommandImplementation = new UnknownCommandImplementation();
-		JMSCommandImplementation object = null;
-		Class cl = null;
+		LociCommandImplementationFactory factory = null;
 
-		cl = (Class)implementationList.get(commandClassName);
-		if(cl != null)
-		{
-			try
-			{
-				object = (JMSCommandImplementation)cl.newInstance();
-			}
-			catch(InstantiationException e)//Class.newInstance exception
-			{
-				error(this.getClass().getName()+":getImplementation:Class "+
-					cl.getName()+":InstantiationException:",e);
-				object = null;
-			}
-			catch(IllegalAccessException e)//Class.newInstance exception
-			{
-				error(this.getClass().getName()+":getImplementation:Class "+
-					cl.getName()+":IllegalAccessException:",e);
-				object = null;
-			}
-		}// end if found class
-		if(object != null)
-			return object;
-		else
+		factory = implementationList.get(commandClassName);
+		if(factory == null)
 			return unknownCommandImplementation;
+		try
+		{
+			return factory.newImplementation();
+		}
+		catch(InstantiationException e)//Constructor.newInstance exception
+		{
+			error(this.getClass().getName()+":getImplementation:Class "+
+			      factory.getImplementationClass().getName()+":InstantiationException:",e);
+		}
+		catch(IllegalAccessException e)//Constructor.newInstance exception
+		{
+			error(this.getClass().getName()+":getImplementation:Class "+
+			      factory.getImplementationClass().getName()+":IllegalAccessException:",e);
+		}
+		catch(InvocationTargetException e)//Constructor.newInstance exception
+		{
+			error(this.getClass().getName()+":getImplementation:Class "+
+			      factory.getImplementationClass().getName()+":InvocationTargetException:",e);
+		}
+		return unknownCommandImplementation;
+	}
+
+	/**
+	 * This routine is called when a command implementation returned by getImplementation has finished processing
+	 * it's command. If the implementation's factory is pooled, the instance is kept for re-use.
+	 * @param commandClassName The class-name of the COMMAND sub-class the implementation was used for.
+	 * @param implementation The command implementation.
+	 * @see #implementationList
+	 * @see #getImplementation
+	 * @see LociCommandImplementationFactory#release
+	 */
+	public void releaseImplementation(String commandClassName,JMSCommandImplementation implementation)
+	{
+		LociCommandImplementationFactory factory = null;
+
+		factory = implementationList.get(commandClassName);
+		if(factory != null)
+			factory.release(implementation);
 	}
 
 	/**
@@ -1024,42 +1622,26 @@ public class Loci
 	 * 	if the done was null.
 	 * @see #issAddress
 	 * @see #issPortNumber
+	 * @see #waitForCommandFuture
 	 * @see LociTCPClientConnectionThread
+	 * @see LociCommandFuture
 	 * @see LociTCPServerConnectionThread#getAbortProcessCommand
 	 */
 	public INST_TO_ISS_DONE sendISSCommand(INST_TO_ISS command,LociTCPServerConnectionThread commandThread,
 					       boolean checkAbort)
 	{
 		LociTCPClientConnectionThread thread = null;
+		LociCommandFuture<COMMAND_DONE> future = null;
 		INST_TO_ISS_DONE done = null;
-		boolean finished = false;
 
 		log(Logging.VERBOSITY_VERY_TERSE,
 		    this.getClass().getName()+":sendISSCommand:"+command.getClass().getName());
+		future = new LociCommandFuture<COMMAND_DONE>();
 		thread = new LociTCPClientConnectionThread(issAddress,issPortNumber,command,commandThread);
 		thread.setLoci(this);
-		thread.start();
-		finished = false;
-		while(finished == false)
-		{
-			try
-			{
-				thread.join(100);// wait 100 millis for the thread to finish
-			}
-			catch(InterruptedException e)
-			{
-				error("run:join interrupted:",e);
-			}
-		// If the thread has finished so has this loop
-			finished = (thread.isAlive() == false);
-		// check if the thread has been aborted, if checkAbort has been set.
-			if(checkAbort)
-			{
-			// If the commandThread has been aborted, stop processing this thread
-				if(commandThread.getAbortProcessCommand())
-					finished = true;
-			}
-		}
+		thread.setFuture(future);
+		clientConnectionExecutor.execute(thread);
+		waitForCommandFuture(future,commandThread,checkAbort);
 		done = (INST_TO_ISS_DONE)thread.getDone();
 		if(done == null)
 		{
@@ -1102,37 +1684,25 @@ public class Loci
 	 * 	if the done was null.
 	 * @see #dprtAddress
 	 * @see #dprtPortNumber
+	 * @see #waitForCommandFuture
 	 * @see LociTCPClientConnectionThread
+	 * @see LociCommandFuture
 	 * @see LociTCPServerConnectionThread#getAbortProcessCommand
 	 */
 	public INST_TO_DP_DONE sendDpRtCommand(INST_TO_DP command,LociTCPServerConnectionThread commandThread)
 	{
 		LociTCPClientConnectionThread thread = null;
+		LociCommandFuture<COMMAND_DONE> future = null;
 		INST_TO_DP_DONE done = null;
-		boolean finished = false;
 
 		log(Logging.VERBOSITY_VERY_TERSE,
 		    this.getClass().getName()+":sendDpRtCommand:"+command.getClass().getName());
+		future = new LociCommandFuture<COMMAND_DONE>();
 		thread = new LociTCPClientConnectionThread(dprtAddress,dprtPortNumber,command,commandThread);
 		thread.setLoci(this);
-		thread.start();
-		finished = false;
-		while(finished == false)
-		{
-			try
-			{
-				thread.join(100);// wait 100 millis for the thread to finish
-			}
-			catch(InterruptedException e)
-			{
-				error("run:join interrupted:",e);
-			}
-		// If the thread has finished so has this loop
-			finished = (thread.isAlive() == false);
-		// If the commandThread has been aborted, stop processing this thread
-			if(commandThread.getAbortProcessCommand())
-				finished = true;
-		}
+		thread.setFuture(future);
+		clientConnectionExecutor.execute(thread);
+		waitForCommandFuture(future,commandThread,true);
 		done = (INST_TO_DP_DONE)thread.getDone();
 		if(done == null)
 		{
@@ -1165,6 +1735,42 @@ public class Loci
 		return done;
 	}
 
+	/**
+	 * Routine to wait for a sub-command sent to the ISS/DP(RT) to complete. The future is completed by the
+	 * LociTCPClientConnectionThread sending the command when it terminates. If checkAbort is set, the future
+	 * is registered with the commandThread, which cancels it as soon as the command is aborted,
+	 * so we stop waiting immediately.
+	 * @param future The future the client connection thread completes.
+	 * @param commandThread The thread the command that caused the sub-command to be sent is running on.
+	 * @param checkAbort A boolean, set to true if we want to stop waiting if the commandThread is aborted.
+	 * @see LociCommandFuture#get
+	 * @see LociTCPServerConnectionThread#addCommandFuture
+	 * @see LociTCPServerConnectionThread#removeCommandFuture
+	 */
+	protected void waitForCommandFuture(LociCommandFuture<COMMAND_DONE> future,
+					    LociTCPServerConnectionThread commandThread,boolean checkAbort)
+	{
+		if(checkAbort)
+			commandThread.addCommandFuture(future);
+		try
+		{
+			future.get();
+		}
+		catch(CancellationException e)
+		{
+			// the commandThread has been aborted, stop waiting for the sub-command
+		}
+		catch(InterruptedException e)
+		{
+			error("waitForCommandFuture:wait interrupted:",e);
+		}
+		finally
+		{
+			if(checkAbort)
+				commandThread.removeCommandFuture(future);
+		}
+	}
+
 	/**
 	 * Routine to write the string to the relevant logger. If the relevant logger has not been
 	 * created yet the error gets written to System.out.
@@ -1183,6 +1789,99 @@ public class Loci
 		}
 	}
 
+	/**
+	 * Return whether a log message of the specified level would be written, given the current log level.
+	 * This is a cheap check (it does not lock), which can be used to avoid building log messages
+	 * that would be thrown away, i.e. on hot paths:
+	 * <pre>
+	 * if(loci.isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+	 * 	loci.log(Logging.VERBOSITY_VERY_VERBOSE,"..."+value+"...");
+	 * </pre>
+	 * The loggers use an absolute filter, so a message is written if it's level is less than or
+	 * equal to the log level. If the log logger has not been created yet, the same test as log uses is applied.
+	 * @param level The level of logging of the message.
+	 * @return true if a message of this level would be logged, false if it would be discarded.
+	 * @see #log(int,String)
+	 * @see #logLogger
+	 * @see LociStatus#getLogLevel
+	 */
+	public boolean isLoggable(int level)
+	{
+		if(logLogger != null)
+			return (level <= status.getLogLevel());
+		else
+			return ((status.getLogLevel()&level) > 0);
+	}
+
+	/**
+	 * Routine to write a formatted message to the relevant logger. The message is only formatted
+	 * (using String.format) if a message of this level would be logged, so the cost of building the message
+	 * (beyond creating the argument array) is not incurred when it would be discarded. Calls with one to three
+	 * arguments use the fixed-arity overloads instead, which do not create an argument array:
+	 * <pre>
+	 * loci.log(Logging.VERBOSITY_VERBOSE,"%s:addFitsHeader:Adding keyword %s with value %s.",
+	 * 	this.getClass().getName(),keyword,value);
+	 * </pre>
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param args The arguments referenced by the format specifiers in the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String)
+	 */
+	public void log(int level,String format,Object... args)
+	{
+		if(isLoggable(level))
+			log(level,String.format(format,args));
+	}
+
+	/**
+	 * Write a formatted message with one argument. This fixed-arity overload of log(int,String,Object...) is
+	 * chosen by the compiler for calls with one argument, so no argument array is created when the message would
+	 * be discarded. Primitive arguments are still boxed by the caller, so hot path calls passing them should
+	 * be guarded by isLoggable.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String)
+	 */
+	public void log(int level,String format,Object arg0)
+	{
+		if(isLoggable(level))
+			log(level,String.format(format,arg0));
+	}
+
+	/**
+	 * Write a formatted message with two arguments, without creating an argument array.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @param arg1 The second argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String,Object)
+	 */
+	public void log(int level,String format,Object arg0,Object arg1)
+	{
+		if(isLoggable(level))
+			log(level,String.format(format,arg0,arg1));
+	}
+
+	/**
+	 * Write a formatted message with three arguments, without creating an argument array.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @param arg1 The second argument referenced by the format string.
+	 * @param arg2 The third argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String,Object)
+	 */
+	public void log(int level,String format,Object arg0,Object arg1,Object arg2)
+	{
+		if(isLoggable(level))
+			log(level,String.format(format,arg0,arg1,arg2));
+	}
+
 	/**
 	 * Routine to write the string to the relevant logger. If the relevant logger has not been
 	 * created yet the error gets written to System.err.
@@ -0,0 +1,481 @@
+// LociAsyncLogHandler.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import ngat.util.logging.*;
+
+/**
+ * This class is a log handler that wraps another LogHandler (a FileLogHandler, MulticastLogHandler,
+ * DatagramLogHandler etc), so that the wrapped handler's (possibly slow) disk or network I/O is done on a dedicated
+ * writer thread, rather than on the thread that logged the record (e.g. a thread sequencing exposures or
+ * processing an ABORT). Published records are put into a bounded lock-free ring buffer, which the writer
+ * thread drains into the wrapped handler.
+ * <p>
+ * When the ring buffer fills up, the overflow policy determines what happens:
+ * <ul>
+ * <li><b>OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY</b> Once the buffer is more than three quarters full, records
+ *     more verbose than the drop level are dropped, so the remaining space is kept for the more important records.
+ *     When the buffer is completely full, all records are dropped. The logging thread is never blocked.
+ * <li><b>OVERFLOW_POLICY_BLOCK</b> The logging thread waits for the writer thread to make space in the buffer.
+ *     No records are lost, but a stalled wrapped handler will eventually stall the logging thread.
+ * </ul>
+ * The number of records dropped, and the number of times a logging thread was blocked, are counted.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see Loci#initLogHandlers
+ * @see Loci#initAsyncLogHandler
+ */
+public class LociAsyncLogHandler extends LogHandler
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Overflow policy: when the buffer is getting full, drop the most verbose records first.
+	 */
+	public final static int OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY = 0;
+	/**
+	 * Overflow policy: when the buffer is full, block the logging thread until there is space.
+	 */
+	public final static int OVERFLOW_POLICY_BLOCK = 1;
+	/**
+	 * The default capacity of the ring buffer (number of records).
+	 */
+	public final static int DEFAULT_CAPACITY = 4096;
+	/**
+	 * How long the writer thread parks for when the buffer is empty, in nanoseconds (100 ms).
+	 * The writer is unparked when a record is published, so this only bounds how long a missed wakeup can delay
+	 * a record.
+	 */
+	protected final static long WRITER_PARK_TIME = 100000000L;
+	/**
+	 * How long a blocked logging thread parks for before re-trying to put a record into the buffer,
+	 * in nanoseconds (100 microseconds).
+	 */
+	protected final static long BLOCK_PARK_TIME = 100000L;
+	/**
+	 * The handler records are written to, by the writer thread.
+	 */
+	protected LogHandler handler = null;
+	/**
+	 * The ring buffer of records. The length is a power of two.
+	 */
+	protected AtomicReferenceArray<LogRecord> buffer = null;
+	/**
+	 * The sequence number of each slot in the ring buffer. A slot can be written to by the producer
+	 * claiming position <i>pos</i> when it's sequence number is <i>pos</i>, and read by the writer
+	 * thread at position <i>pos</i> when it's sequence number is <i>pos+1</i>.
+	 */
+	protected AtomicLongArray sequenceList = null;
+	/**
+	 * The length of the buffer minus one, used to turn a position into a slot index.
+	 */
+	protected int mask;
+	/**
+	 * The next position a producer will write to.
+	 */
+	protected AtomicLong tail = new AtomicLong(0);
+	/**
+	 * The next position the writer thread will read from. Only the writer thread modifies this.
+	 */
+	protected volatile long head = 0;
+	/**
+	 * The overflow policy, one of OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY or OVERFLOW_POLICY_BLOCK.
+	 */
+	protected int overflowPolicy = OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY;
+	/**
+	 * When using OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY, records with a level greater than this
+	 * (i.e. more verbose) are dropped once the buffer is above the high water mark.
+	 */
+	protected int dropLevel = Logging.VERBOSITY_TERSE;
+	/**
+	 * The number of records in the buffer above which verbose records are dropped (three quarters of the capacity).
+	 */
+	protected int highWaterMark;
+	/**
+	 * The writer thread.
+	 */
+	protected WriterThread writerThread = null;
+	/**
+	 * Set to true when the writer thread is about to park, so producers know to unpark it.
+	 */
+	protected volatile boolean writerWaiting = false;
+	/**
+	 * Set to true when the handler is closed.
+	 */
+	protected volatile boolean closed = false;
+	/**
+	 * The number of records written to the wrapped handler.
+	 */
+	protected AtomicLong writtenCount = new AtomicLong(0);
+	/**
+	 * The number of records dropped because the buffer was full (or above the high water mark).
+	 */
+	protected AtomicLong droppedCount = new AtomicLong(0);
+	/**
+	 * The number of times a logging thread has been blocked waiting for space in the buffer.
+	 */
+	protected AtomicLong blockedCount = new AtomicLong(0);
+	/**
+	 * The number of records the wrapped handler threw an exception whilst publishing.
+	 */
+	protected AtomicLong failedCount = new AtomicLong(0);
+
+	/**
+	 * Constructor. Creates the ring buffer, and starts the writer thread.
+	 * @param name The name of this handler, used to name the writer thread.
+	 * @param handler The handler to write records to.
+	 * @param capacity The minimum capacity of the ring buffer, rounded up to a power of two.
+	 * @param overflowPolicy The overflow policy, one of OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY or
+	 *        OVERFLOW_POLICY_BLOCK.
+	 * @param dropLevel When using OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY, records more verbose than this level
+	 *        are dropped first.
+	 * @exception IllegalArgumentException Thrown if the overflow policy is not legal.
+	 * @see #buffer
+	 * @see #sequenceList
+	 * @see #writerThread
+	 */
+	public LociAsyncLogHandler(String name,LogHandler handler,int capacity,int overflowPolicy,int dropLevel)
+		throws IllegalArgumentException
+	{
+		super(null);
+		int size;
+
+		if((overflowPolicy != OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY)&&(overflowPolicy != OVERFLOW_POLICY_BLOCK))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Illegal overflow policy:"+
+							   overflowPolicy);
+		}
+		this.handler = handler;
+		this.overflowPolicy = overflowPolicy;
+		this.dropLevel = dropLevel;
+		size = 2;
+		while(size < capacity)
+			size *= 2;
+		mask = size-1;
+		highWaterMark = (size*3)/4;
+		buffer = new AtomicReferenceArray<LogRecord>(size);
+		sequenceList = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequenceList.set(i,i);
+		writerThread = new WriterThread(name);
+		writerThread.start();
+	}
+
+	/**
+	 * Parse an overflow policy string into one of the overflow policy constants.
+	 * @param s The string, either "DROP_LOWEST_VERBOSITY" or "BLOCK".
+	 * @return The overflow policy.
+	 * @exception IllegalArgumentException Thrown if the string is not a legal overflow policy.
+	 * @see #OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY
+	 * @see #OVERFLOW_POLICY_BLOCK
+	 */
+	public static int parseOverflowPolicy(String s) throws IllegalArgumentException
+	{
+		if(s.equals("DROP_LOWEST_VERBOSITY"))
+			return OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY;
+		else if(s.equals("BLOCK"))
+			return OVERFLOW_POLICY_BLOCK;
+		throw new IllegalArgumentException("ngat.loci.LociAsyncLogHandler:parseOverflowPolicy:"+
+						   "Illegal overflow policy:"+s);
+	}
+
+	/**
+	 * Publish a record. The record is put into the ring buffer, to be written to the wrapped handler
+	 * by the writer thread. If the buffer is full, the overflow policy is applied.
+	 * @param record The record to publish.
+	 * @see #offer
+	 * @see #overflowPolicy
+	 * @see #highWaterMark
+	 * @see #dropLevel
+	 */
+	public void publish(LogRecord record)
+	{
+		boolean blocked = false;
+
+		if(closed)
+		{
+			droppedCount.incrementAndGet();
+			return;
+		}
+		if((overflowPolicy == OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY)&&(record.getLevel() > dropLevel)&&
+		   (getQueueLength() >= highWaterMark))
+		{
+			droppedCount.incrementAndGet();
+			return;
+		}
+		while(offer(record) == false)
+		{
+			if((overflowPolicy == OVERFLOW_POLICY_DROP_LOWEST_VERBOSITY)||closed)
+			{
+				droppedCount.incrementAndGet();
+				return;
+			}
+			if(blocked == false)
+			{
+				blockedCount.incrementAndGet();
+				blocked = true;
+			}
+			LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(BLOCK_PARK_TIME);
+		}
+		if(writerWaiting)
+			LockSupport.unpark(writerThread);
+	}
+
+	/**
+	 * Wait for the records currently in the buffer to be written to the wrapped handler.
+	 * @param timeout The maximum time to wait, in milliseconds.
+	 * @return true if the buffer was drained, false if the timeout expired first.
+	 * @see #tail
+	 * @see #head
+	 */
+	public boolean flush(long timeout)
+	{
+		long endTime,position;
+
+		position = tail.get();
+		endTime = System.currentTimeMillis()+timeout;
+		while(head < position)
+		{
+			if(System.currentTimeMillis() > endTime)
+				return false;
+			LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(BLOCK_PARK_TIME);
+		}
+		return true;
+	}
+
+	/**
+	 * Close the handler. The writer thread writes the records remaining in the buffer, then
+	 * closes the wrapped handler. Records published after this call are dropped.
+	 * @see #closed
+	 * @see #writerThread
+	 */
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(writerThread);
+	}
+
+	/**
+	 * Try to put a record into the ring buffer. This can be called by many threads at once.
+	 * @param record The record.
+	 * @return true if the record was put in the buffer, false if the buffer was full.
+	 * @see #tail
+	 * @see #sequenceList
+	 * @see #buffer
+	 */
+	protected boolean offer(LogRecord record)
+	{
+		long position,sequence;
+		int index;
+
+		position = tail.get();
+		while(true)
+		{
+			index = (int)(position & mask);
+			sequence = sequenceList.get(index);
+			if(sequence == position)
+			{
+				if(tail.compareAndSet(position,position+1))
+					break;
+				position = tail.get();
+			}
+			else if(sequence < position)
+				return false;
+			else
+				position = tail.get();
+		}
+		buffer.set(index,record);
+		sequenceList.set(index,position+1);
+		return true;
+	}
+
+	/**
+	 * Take the next record out of the ring buffer. Only called by the writer thread.
+	 * @return The next record, or null if the buffer is empty.
+	 * @see #head
+	 * @see #sequenceList
+	 * @see #buffer
+	 */
+	protected LogRecord poll()
+	{
+		LogRecord record = null;
+		long position;
+		int index;
+
+		position = head;
+		index = (int)(position & mask);
+		if(sequenceList.get(index) != position+1)
+			return null;
+		record = buffer.get(index);
+		buffer.set(index,null);
+		sequenceList.set(index,position+mask+1);
+		head = position+1;
+		return record;
+	}
+
+	/**
+	 * Get the wrapped handler.
+	 * @return The handler records are written to.
+	 * @see #handler
+	 */
+	public LogHandler getHandler()
+	{
+		return handler;
+	}
+
+	/**
+	 * Get the name of the writer thread.
+	 * @return The name of the thread.
+	 * @see #writerThread
+	 */
+	public String getWriterThreadName()
+	{
+		return writerThread.getName();
+	}
+
+	/**
+	 * Get the capacity of the ring buffer.
+	 * @return The number of records the buffer can hold.
+	 * @see #mask
+	 */
+	public int getCapacity()
+	{
+		return mask+1;
+	}
+
+	/**
+	 * Get the overflow policy.
+	 * @return The overflow policy.
+	 * @see #overflowPolicy
+	 */
+	public int getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Get the number of records waiting in the buffer to be written.
+	 * @return The number of records.
+	 * @see #tail
+	 * @see #head
+	 */
+	public int getQueueLength()
+	{
+		return (int)Math.max(0,tail.get()-head);
+	}
+
+	/**
+	 * Get the number of records written to the wrapped handler.
+	 * @return The number of records.
+	 * @see #writtenCount
+	 */
+	public long getWrittenCount()
+	{
+		return writtenCount.get();
+	}
+
+	/**
+	 * Get the number of records dropped.
+	 * @return The number of records.
+	 * @see #droppedCount
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	/**
+	 * Get the number of times a logging thread was blocked waiting for space in the buffer.
+	 * @return The number of times.
+	 * @see #blockedCount
+	 */
+	public long getBlockedCount()
+	{
+		return blockedCount.get();
+	}
+
+	/**
+	 * Get the number of records the wrapped handler failed to publish.
+	 * @return The number of records.
+	 * @see #failedCount
+	 */
+	public long getFailedCount()
+	{
+		return failedCount.get();
+	}
+
+	/**
+	 * Inner class, the thread that drains the ring buffer into the wrapped handler.
+	 * It is a daemon thread, so it does not stop the JVM exiting.
+	 */
+	protected class WriterThread extends Thread
+	{
+		/**
+		 * Constructor.
+		 * @param name The name of the thread.
+		 */
+		public WriterThread(String name)
+		{
+			super(name);
+			setDaemon(true);
+		}
+
+		/**
+		 * Run method. Records are taken out of the buffer and written to the wrapped handler. When the buffer
+		 * is empty, the thread parks until a record is published. Exceptions thrown by the wrapped handler are
+		 * counted, they cannot be logged (as that could recurse into this handler). When the handler is closed,
+		 * the remaining records are written and the wrapped handler is closed.
+		 * @see #poll
+		 * @see #handler
+		 * @see #writerWaiting
+		 * @see #closed
+		 */
+		public void run()
+		{
+			LogRecord record = null;
+
+			while(true)
+			{
+				record = poll();
+				if(record == null)
+				{
+					if(closed)
+						break;
+					writerWaiting = true;
+					// re-check after setting writerWaiting, in case a record was published in between
+					record = poll();
+					if(record == null)
+						LockSupport.parkNanos(WRITER_PARK_TIME);
+					writerWaiting = false;
+					if(record == null)
+						continue;
+				}
+				try
+				{
+					handler.publish(record);
+					writtenCount.incrementAndGet();
+				}
+				catch(Exception e)
+				{
+					failedCount.incrementAndGet();
+				}
+			}
+			try
+			{
+				handler.close();
+			}
+			catch(Exception e)
+			{
+				failedCount.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,346 @@
+// LociClientConnectionExecutor.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is a pool of threads, used to run the LociTCPClientConnectionThread instances
+ * Loci uses to send commands to the ISS and DP(RT), so that a new thread does not have to be created for
+ * every sub-command. The pool keeps a core number of threads alive. Work units are handed directly to an idle
+ * thread (there is no queue): if all the threads are busy (i.e. waiting on a slow or hung ISS or DP(RT)), 
+ * an extra thread is created, which exits after it has been idle for a minute. A sub-command therefore never 
+ * waits behind another one, as it did not when a new thread was created for every sub-command.
+ * It also keeps some metrics on the work units it has run: the number submitted and
+ * completed, the number in flight (submitted but not completed), the time work units spent waiting
+ * for a pool thread to start running them, and the total latency (from submission to completion).
+ * Each work unit pins the configuration snapshot of the thread that submitted it, whilst it runs.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see Loci#sendISSCommand
+ * @see Loci#sendDpRtCommand
+ * @see LociTCPClientConnectionThread
+ */
+public class LociClientConnectionExecutor
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default number of core threads in the pool.
+	 */
+	public final static int DEFAULT_THREAD_COUNT = 8;
+	/**
+	 * The thread pool.
+	 */
+	private ThreadPoolExecutor executor = null;
+	/**
+	 * The status object, used to retrieve the submitting thread's configuration snapshot, and pin it 
+	 * to the pool thread running the work unit.
+	 * @see WorkUnit
+	 */
+	private LociStatus status = null;
+	/**
+	 * The number of work units submitted to the pool.
+	 */
+	private long submittedCount = 0;
+	/**
+	 * The number of work units that have completed.
+	 */
+	private long completedCount = 0;
+	/**
+	 * The total time (in milliseconds) work units have spent waiting for a pool thread to start running them.
+	 */
+	private long totalQueueWaitTime = 0;
+	/**
+	 * The maximum time (in milliseconds) a work unit has spent waiting for a pool thread to start running it.
+	 */
+	private long maxQueueWaitTime = 0;
+	/**
+	 * The total time (in milliseconds) between work units being submitted and completing.
+	 */
+	private long totalLatency = 0;
+	/**
+	 * The maximum time (in milliseconds) between a work unit being submitted and completing.
+	 */
+	private long maxLatency = 0;
+
+	/**
+	 * Constructor. Creates the thread pool. The pool uses a SynchronousQueue, so work units are handed
+	 * directly to an idle thread, and an extra thread is created when all the threads are busy.
+	 * @param s The status object.
+	 * @param threadCount The number of core threads in the pool.
+	 * @param threadPriority The priority of the threads in the pool.
+	 * @see #status
+	 * @see #executor
+	 * @see PoolThreadFactory
+	 */
+	public LociClientConnectionExecutor(LociStatus s,int threadCount,int threadPriority)
+	{
+		super();
+		status = s;
+		threadCount = Math.max(1,threadCount);
+		executor = new ThreadPoolExecutor(threadCount,Integer.MAX_VALUE,60,TimeUnit.SECONDS,
+						  new SynchronousQueue<Runnable>(),
+						  new PoolThreadFactory(threadPriority));
+	}
+
+	/**
+	 * Change the number of core threads in the pool.
+	 * @param threadCount The number of core threads in the pool.
+	 * @see #executor
+	 */
+	public void setThreadCount(int threadCount)
+	{
+		executor.setCorePoolSize(Math.max(1,threadCount));
+	}
+
+	/**
+	 * Get the number of core threads in the pool.
+	 * @return The number of threads.
+	 * @see #executor
+	 */
+	public int getThreadCount()
+	{
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Get the number of threads currently in the pool, including any extra threads created because all the
+	 * core threads were busy.
+	 * @return The number of threads.
+	 * @see #executor
+	 */
+	public int getPoolSize()
+	{
+		return executor.getPoolSize();
+	}
+
+	/**
+	 * Get the largest number of threads that have ever been in the pool at the same time.
+	 * @return The number of threads.
+	 * @see #executor
+	 */
+	public int getLargestPoolSize()
+	{
+		return executor.getLargestPoolSize();
+	}
+
+	/**
+	 * Run the specified work unit (usually a LociTCPClientConnectionThread) on a pool thread.
+	 * The work unit is wrapped in a WorkUnit, which records the metrics, and pins the calling thread's
+	 * configuration snapshot whilst it runs.
+	 * @param r The work unit to run.
+	 * @see #executor
+	 * @see WorkUnit
+	 */
+	public void execute(Runnable r)
+	{
+		synchronized(this)
+		{
+			submittedCount++;
+		}
+		executor.execute(new WorkUnit(r,status.getActiveConfigSnapshot()));
+	}
+
+	/**
+	 * Shutdown the pool. Work units already submitted are still run, but no new work units are accepted.
+	 * Called when Loci is closed down.
+	 * @see #executor
+	 * @see Loci#close
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Get the number of work units submitted.
+	 * @return The number of work units.
+	 * @see #submittedCount
+	 */
+	public synchronized long getSubmittedCount()
+	{
+		return submittedCount;
+	}
+
+	/**
+	 * Get the number of work units that have completed.
+	 * @return The number of work units.
+	 * @see #completedCount
+	 */
+	public synchronized long getCompletedCount()
+	{
+		return completedCount;
+	}
+
+	/**
+	 * Get the number of work units in flight, i.e. submitted but not yet completed.
+	 * @return The number of work units.
+	 * @see #submittedCount
+	 * @see #completedCount
+	 */
+	public synchronized long getInFlightCount()
+	{
+		return submittedCount-completedCount;
+	}
+
+	/**
+	 * Get the mean time work units spent waiting for a pool thread to start running them.
+	 * @return The mean time in milliseconds, or 0 if no work units have completed.
+	 * @see #totalQueueWaitTime
+	 * @see #completedCount
+	 */
+	public synchronized double getMeanQueueWaitTime()
+	{
+		if(completedCount == 0)
+			return 0.0;
+		return ((double)totalQueueWaitTime)/((double)completedCount);
+	}
+
+	/**
+	 * Get the maximum time a work unit has spent waiting for a pool thread to start running it.
+	 * @return The time in milliseconds.
+	 * @see #maxQueueWaitTime
+	 */
+	public synchronized long getMaxQueueWaitTime()
+	{
+		return maxQueueWaitTime;
+	}
+
+	/**
+	 * Get the mean time between work units being submitted and completing.
+	 * @return The mean time in milliseconds, or 0 if no work units have completed.
+	 * @see #totalLatency
+	 * @see #completedCount
+	 */
+	public synchronized double getMeanLatency()
+	{
+		if(completedCount == 0)
+			return 0.0;
+		return ((double)totalLatency)/((double)completedCount);
+	}
+
+	/**
+	 * Get the maximum time between a work unit being submitted and completing.
+	 * @return The time in milliseconds.
+	 * @see #maxLatency
+	 */
+	public synchronized long getMaxLatency()
+	{
+		return maxLatency;
+	}
+
+	/**
+	 * Method called by a WorkUnit when it completes, to update the metrics.
+	 * @param queueWaitTime How long the work unit waited for a pool thread, in milliseconds.
+	 * @param latency How long between the work unit being submitted and completing, in milliseconds.
+	 */
+	protected synchronized void workUnitCompleted(long queueWaitTime,long latency)
+	{
+		completedCount++;
+		totalQueueWaitTime += queueWaitTime;
+		if(queueWaitTime > maxQueueWaitTime)
+			maxQueueWaitTime = queueWaitTime;
+		totalLatency += latency;
+		if(latency > maxLatency)
+			maxLatency = latency;
+	}
+
+	/**
+	 * Inner class wrapping a work unit submitted to the pool, which records when it was submitted, 
+	 * started and completed, and pins the submitting thread's configuration snapshot whilst it runs.
+	 */
+	protected class WorkUnit implements Runnable
+	{
+		/**
+		 * The work unit to run.
+		 */
+		private Runnable runnable = null;
+		/**
+		 * The time the work unit was submitted, in milliseconds since the epoch.
+		 */
+		private long submitTime = 0;
+		/**
+		 * The configuration snapshot of the thread that submitted the work unit.
+		 */
+		private LociConfigSnapshot configSnapshot = null;
+
+		/**
+		 * Constructor.
+		 * @param r The work unit to run.
+		 * @param snapshot The configuration snapshot of the thread that submitted the work unit.
+		 */
+		public WorkUnit(Runnable r,LociConfigSnapshot snapshot)
+		{
+			runnable = r;
+			configSnapshot = snapshot;
+			submitTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Run the work unit with the submitting thread's configuration snapshot pinned, and update the
+		 * metrics when it completes.
+		 * @see #workUnitCompleted
+		 * @see LociStatus#pinConfigSnapshot(LociConfigSnapshot)
+		 */
+		public void run()
+		{
+			long startTime;
+
+			startTime = System.currentTimeMillis();
+			status.pinConfigSnapshot(configSnapshot);
+			try
+			{
+				runnable.run();
+			}
+			finally
+			{
+				status.unpinConfigSnapshot();
+				workUnitCompleted(startTime-submitTime,System.currentTimeMillis()-submitTime);
+			}
+		}
+	}
+
+	/**
+	 * Inner class used to create the pool threads. They are named daemon threads, with the specified priority.
+	 */
+	protected static class PoolThreadFactory implements ThreadFactory
+	{
+		/**
+		 * The priority of the created threads.
+		 */
+		private int threadPriority;
+		/**
+		 * The number of threads created, used to name the threads.
+		 */
+		private int threadCount = 0;
+
+		/**
+		 * Constructor.
+		 * @param priority The priority of the created threads.
+		 */
+		public PoolThreadFactory(int priority)
+		{
+			threadPriority = priority;
+		}
+
+		/**
+		 * Create a new pool thread.
+		 * @param r The runnable the thread should run.
+		 * @return The new thread.
+		 */
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = null;
+
+			t = new Thread(r,"LociClientConnectionExecutor:"+threadCount);
+			threadCount++;
+			t.setDaemon(true);
+			t.setPriority(threadPriority);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+// LociCommandFuture.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is a simple completion future, used to wait for the done message of a command sent to the
+ * ISS or DP(RT) by a LociTCPClientConnectionThread. The client connection thread completes the future
+ * when it terminates. The future can also be cancelled, which LociTCPServerConnectionThread does when the
+ * command it is processing is aborted, so a thread waiting in get returns immediately without polling.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociTCPClientConnectionThread#setFuture
+ * @see LociTCPServerConnectionThread#addCommandFuture
+ * @see Loci#sendISSCommand
+ * @see Loci#sendDpRtCommand
+ */
+public class LociCommandFuture<V> implements Future<V>
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The value the future was completed with.
+	 */
+	private V value = null;
+	/**
+	 * Whether the future has been completed or cancelled.
+	 */
+	private boolean done = false;
+	/**
+	 * Whether the future was cancelled.
+	 */
+	private boolean cancelled = false;
+
+	/**
+	 * Default constructor.
+	 */
+	public LociCommandFuture()
+	{
+		super();
+	}
+
+	/**
+	 * Complete the future with the specified value, waking up any threads waiting in get.
+	 * This has no effect if the future has already been completed or cancelled.
+	 * @param v The value to complete the future with. This can be null.
+	 * @return true if the future was completed by this call, false if it was already completed or cancelled.
+	 * @see #value
+	 * @see #done
+	 */
+	public synchronized boolean complete(V v)
+	{
+		if(done)
+			return false;
+		value = v;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Cancel the future, waking up any threads waiting in get.
+	 * This has no effect if the future has already been completed or cancelled.
+	 * @param mayInterruptIfRunning Ignored, the client connection thread is not interrupted.
+	 * @return true if the future was cancelled by this call, false if it was already completed or cancelled.
+	 * @see #cancelled
+	 * @see #done
+	 */
+	public synchronized boolean cancel(boolean mayInterruptIfRunning)
+	{
+		if(done)
+			return false;
+		cancelled = true;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Return whether the future was cancelled.
+	 * @return true if the future was cancelled.
+	 * @see #cancelled
+	 */
+	public synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Return whether the future has been completed or cancelled.
+	 * @return true if the future has been completed or cancelled.
+	 * @see #done
+	 */
+	public synchronized boolean isDone()
+	{
+		return done;
+	}
+
+	/**
+	 * Wait until the future has been completed or cancelled, and return the value it was completed with.
+	 * @return The value the future was completed with.
+	 * @exception CancellationException Thrown if the future was cancelled.
+	 * @exception InterruptedException Thrown if the wait was interrupted.
+	 * @see #value
+	 */
+	public synchronized V get() throws InterruptedException
+	{
+		while(done == false)
+			wait();
+		if(cancelled)
+			throw new CancellationException(this.getClass().getName()+":get:Future was cancelled.");
+		return value;
+	}
+
+	/**
+	 * Wait until the future has been completed or cancelled, or the timeout expires, and return the value 
+	 * it was completed with.
+	 * @param timeout The maximum time to wait.
+	 * @param unit The units of timeout.
+	 * @return The value the future was completed with.
+	 * @exception CancellationException Thrown if the future was cancelled.
+	 * @exception InterruptedException Thrown if the wait was interrupted.
+	 * @exception TimeoutException Thrown if the timeout expired before the future was completed.
+	 * @see #value
+	 */
+	public synchronized V get(long timeout,TimeUnit unit) throws InterruptedException, TimeoutException
+	{
+		long endTime,now;
+
+		endTime = System.currentTimeMillis()+unit.toMillis(timeout);
+		now = System.currentTimeMillis();
+		while((done == false)&&(now < endTime))
+		{
+			wait(endTime-now);
+			now = System.currentTimeMillis();
+		}
+		if(done == false)
+			throw new TimeoutException(this.getClass().getName()+":get:Timed out after "+timeout+" "+unit+".");
+		if(cancelled)
+			throw new CancellationException(this.getClass().getName()+":get:Future was cancelled.");
+		return value;
+	}
+}
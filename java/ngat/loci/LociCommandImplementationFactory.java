@@ -0,0 +1,158 @@
+// LociCommandImplementationFactory.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * This class creates instances of one command implementation class. The implementation class's null argument
+ * constructor is resolved (and made accessible) once, when Loci's implementation registry is built at startup,
+ * rather than every time a command is received. The factory can also keep a pool of idle instances for
+ * implementations that re-initialise all their per-command state in processCommand (i.e. GET_STATUS), so that
+ * these are re-used rather than being constructed for every command. A pooled instance must be released
+ * when the command it was used for has been processed.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see Loci#getImplementation
+ * @see Loci#releaseImplementation
+ */
+public class LociCommandImplementationFactory
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default maximum number of idle instances kept by a pooled factory.
+	 */
+	public final static int DEFAULT_MAX_IDLE_COUNT = 4;
+	/**
+	 * The class name of the ngat.message command this factory's implementation implements.
+	 */
+	private String implementString = null;
+	/**
+	 * The null argument constructor of the implementation class.
+	 */
+	private Constructor<?> constructor = null;
+	/**
+	 * Whether instances are pooled.
+	 */
+	private boolean pooled = false;
+	/**
+	 * The maximum number of idle instances kept, if the factory is pooled.
+	 */
+	private int maxIdleCount = DEFAULT_MAX_IDLE_COUNT;
+	/**
+	 * The list of idle instances, if the factory is pooled.
+	 */
+	private List<JMSCommandImplementation> idleList = null;
+
+	/**
+	 * Constructor. Resolves the null argument constructor of the implementation class, and makes it accessible.
+	 * @param implementationClass The command implementation class, which must implement JMSCommandImplementation.
+	 * @param implementString The class name of the ngat.message command the implementation implements.
+	 * @param pooled Whether instances should be pooled.
+	 * @param maxIdleCount The maximum number of idle instances kept, if the factory is pooled.
+	 * @exception NoSuchMethodException Thrown if the implementation class has no null argument constructor.
+	 * @exception SecurityException Thrown if the constructor cannot be made accessible.
+	 * @exception IllegalArgumentException Thrown if the implementation class does not implement
+	 *            JMSCommandImplementation.
+	 * @see #constructor
+	 * @see #idleList
+	 */
+	public LociCommandImplementationFactory(Class<?> implementationClass,String implementString,boolean pooled,
+						int maxIdleCount) throws NoSuchMethodException, SecurityException,
+									 IllegalArgumentException
+	{
+		super();
+		if(JMSCommandImplementation.class.isAssignableFrom(implementationClass) == false)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Class "+
+							   implementationClass.getName()+
+							   " does not implement JMSCommandImplementation.");
+		}
+		this.implementString = implementString;
+		this.pooled = pooled;
+		this.maxIdleCount = Math.max(0,maxIdleCount);
+		constructor = implementationClass.getDeclaredConstructor(new Class[0]);
+		constructor.setAccessible(true);
+		idleList = new ArrayList<JMSCommandImplementation>();
+	}
+
+	/**
+	 * Get an instance of the implementation. If the factory is pooled and has an idle instance, that is returned,
+	 * otherwise a new instance is constructed.
+	 * @return An instance of the implementation.
+	 * @exception InstantiationException Thrown if the implementation class is abstract.
+	 * @exception IllegalAccessException Thrown if the constructor is not accessible.
+	 * @exception InvocationTargetException Thrown if the constructor throws an exception.
+	 * @see #pooled
+	 * @see #idleList
+	 * @see #constructor
+	 */
+	public JMSCommandImplementation newImplementation() throws InstantiationException, IllegalAccessException,
+								   InvocationTargetException
+	{
+		if(pooled)
+		{
+			synchronized(idleList)
+			{
+				if(idleList.size() > 0)
+					return idleList.remove(idleList.size()-1);
+			}
+		}
+		return (JMSCommandImplementation)constructor.newInstance(new Object[0]);
+	}
+
+	/**
+	 * Release an instance of the implementation, after the command it was used for has been processed.
+	 * If the factory is pooled, and has less than maxIdleCount idle instances, the instance is kept for
+	 * re-use, otherwise it is discarded.
+	 * @param implementation The instance to release.
+	 * @see #pooled
+	 * @see #idleList
+	 * @see #maxIdleCount
+	 */
+	public void release(JMSCommandImplementation implementation)
+	{
+		if((pooled == false)||(implementation == null))
+			return;
+		synchronized(idleList)
+		{
+			if(idleList.size() < maxIdleCount)
+				idleList.add(implementation);
+		}
+	}
+
+	/**
+	 * Get the class name of the ngat.message command this factory's implementation implements.
+	 * @return The command class name.
+	 * @see #implementString
+	 */
+	public String getImplementString()
+	{
+		return implementString;
+	}
+
+	/**
+	 * Get the implementation class.
+	 * @return The implementation class.
+	 * @see #constructor
+	 */
+	public Class<?> getImplementationClass()
+	{
+		return constructor.getDeclaringClass();
+	}
+
+	/**
+	 * Get whether instances are pooled.
+	 * @return true if instances are pooled, false otherwise.
+	 * @see #pooled
+	 */
+	public boolean isPooled()
+	{
+		return pooled;
+	}
+}
@@ -0,0 +1,311 @@
+// LociConfigSnapshot.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class is an immutable, versioned snapshot of the Loci configuration, loaded from the list of
+ * property files (network, loci, fits, current filter, filter). The properties loaded from each file are kept
+ * separately, together with the file's last modified time and length when it was loaded, so that a
+ * reload only has to re-parse the files that have changed. The properties from each file are merged
+ * (later files overriding earlier ones) into one unmodifiable map, which is read without locking.
+ * LociStatus publishes a new snapshot atomically when the configuration is (re)loaded, so a command
+ * that retrieves a snapshot sees a consistent configuration for as long as it holds on to it.
+ * The snapshot also holds the list of FITS header cards compiled from it's fits properties, so the
+ * FITS headers a command writes do not change under it either.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatus#getConfigSnapshot
+ * @see LociStatus#load
+ * @see LociStatus#reload
+ */
+public class LociConfigSnapshot
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The version number of this snapshot, incremented each time the configuration is (re)loaded.
+	 */
+	private long version = 0;
+	/**
+	 * The time this snapshot was created, in milliseconds since the epoch.
+	 */
+	private long createTime = 0;
+	/**
+	 * The list of property filenames.
+	 */
+	private String filenameList[] = null;
+	/**
+	 * The properties loaded from each file. These are never modified once the snapshot has been created.
+	 */
+	private Properties filePropertiesList[] = null;
+	/**
+	 * The last modified time of each file, when it was loaded.
+	 */
+	private long lastModifiedList[] = null;
+	/**
+	 * The length of each file, when it was loaded.
+	 */
+	private long lengthList[] = null;
+	/**
+	 * The merged properties from all the files, as an unmodifiable map of keyword to value.
+	 */
+	private Map<String,String> propertyMap = null;
+	/**
+	 * An unmodifiable list of FitsHeaderCard, compiled from this snapshot's "loci.fits.keyword.&lt;n&gt;" 
+	 * properties (or kept from the previous snapshot, if they failed to compile). This is null if no list
+	 * has ever compiled.
+	 * @see #setFitsHeaderCardList
+	 * @see #getFitsHeaderCardList
+	 */
+	private List<FitsHeaderCard> fitsHeaderCardList = null;
+	/**
+	 * If compiling this snapshot's FITS header properties failed, the exception describing why, otherwise null.
+	 * @see #setFitsHeaderCardList
+	 * @see #getFitsHeaderCardListException
+	 */
+	private Exception fitsHeaderCardListException = null;
+
+	/**
+	 * Constructor. Merges the properties from each file into the propertyMap.
+	 * @param version The version number of this snapshot.
+	 * @param filenameList The list of property filenames.
+	 * @param filePropertiesList The properties loaded from each file, in the same order as filenameList.
+	 *        Later files override properties in earlier ones. The snapshot takes ownership of these, they must not
+	 *        be modified after this call.
+	 * @param lastModifiedList The last modified time of each file, when it was loaded.
+	 * @param lengthList The length of each file, when it was loaded.
+	 * @see #propertyMap
+	 */
+	public LociConfigSnapshot(long version,String filenameList[],Properties filePropertiesList[],
+				  long lastModifiedList[],long lengthList[])
+	{
+		super();
+		Map<String,String> map = null;
+		Enumeration e = null;
+		String key = null;
+
+		this.version = version;
+		this.createTime = System.currentTimeMillis();
+		this.filenameList = (String[])(filenameList.clone());
+		this.filePropertiesList = (Properties[])(filePropertiesList.clone());
+		this.lastModifiedList = (long[])(lastModifiedList.clone());
+		this.lengthList = (long[])(lengthList.clone());
+		map = new HashMap<String,String>();
+		for(int i = 0; i < this.filePropertiesList.length; i++)
+		{
+			e = this.filePropertiesList[i].propertyNames();
+			while(e.hasMoreElements())
+			{
+				key = (String)(e.nextElement());
+				map.put(key,this.filePropertiesList[i].getProperty(key));
+			}
+		}
+		propertyMap = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Load a properties file, returning the loaded properties.
+	 * @param filename The filename of the properties file.
+	 * @return A new Properties object containing the file's properties.
+	 * @exception FileNotFoundException Thrown if the file is not found.
+	 * @exception IOException Thrown if an IO error occurs whilst loading the file.
+	 */
+	public static Properties loadFile(String filename) throws FileNotFoundException, IOException
+	{
+		FileInputStream fileInputStream = null;
+		Properties properties = null;
+
+		properties = new Properties();
+		fileInputStream = new FileInputStream(filename);
+		try
+		{
+			properties.load(fileInputStream);
+		}
+		finally
+		{
+			fileInputStream.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * Return whether the specified file has changed (it's last modified time or length is different) since
+	 * it was loaded into this snapshot.
+	 * @param index The index of the file in the filenameList.
+	 * @return true if the file has changed, false if it has not.
+	 * @see #filenameList
+	 * @see #lastModifiedList
+	 * @see #lengthList
+	 */
+	public boolean isFileChanged(int index)
+	{
+		File file = null;
+
+		file = new File(filenameList[index]);
+		return (file.lastModified() != lastModifiedList[index])||(file.length() != lengthList[index]);
+	}
+
+	/**
+	 * Return whether any of the specified files have changed since they were loaded into this snapshot.
+	 * @param startIndex The index of the first file in the filenameList to check.
+	 * @return true if any file from startIndex onwards has changed, false if none have.
+	 * @see #isFileChanged
+	 */
+	public boolean isChanged(int startIndex)
+	{
+		for(int i = startIndex; i < filenameList.length; i++)
+		{
+			if(isFileChanged(i))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the version number of this snapshot.
+	 * @return The version number.
+	 * @see #version
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the time this snapshot was created.
+	 * @return The time, in milliseconds since the epoch.
+	 * @see #createTime
+	 */
+	public long getCreateTime()
+	{
+		return createTime;
+	}
+
+	/**
+	 * Get the number of property files in this snapshot.
+	 * @return The number of files.
+	 * @see #filenameList
+	 */
+	public int getFileCount()
+	{
+		return filenameList.length;
+	}
+
+	/**
+	 * Get the filename of a property file in this snapshot.
+	 * @param index The index of the file.
+	 * @return The filename.
+	 * @see #filenameList
+	 */
+	public String getFilename(int index)
+	{
+		return filenameList[index];
+	}
+
+	/**
+	 * Get the properties loaded from a file. The returned object must not be modified.
+	 * @param index The index of the file.
+	 * @return The properties loaded from the file.
+	 * @see #filePropertiesList
+	 */
+	public Properties getFileProperties(int index)
+	{
+		return filePropertiesList[index];
+	}
+
+	/**
+	 * Get the last modified time of a file, when it was loaded.
+	 * @param index The index of the file.
+	 * @return The last modified time, in milliseconds since the epoch.
+	 * @see #lastModifiedList
+	 */
+	public long getFileLastModified(int index)
+	{
+		return lastModifiedList[index];
+	}
+
+	/**
+	 * Get the length of a file, when it was loaded.
+	 * @param index The index of the file.
+	 * @return The length in bytes.
+	 * @see #lengthList
+	 */
+	public long getFileLength(int index)
+	{
+		return lengthList[index];
+	}
+
+	/**
+	 * Return whether the snapshot contains the specified keyword.
+	 * @param p The property keyword.
+	 * @return true if the keyword exists, false otherwise.
+	 * @see #propertyMap
+	 */
+	public boolean containsKey(String p)
+	{
+		return propertyMap.containsKey(p);
+	}
+
+	/**
+	 * Get a property value.
+	 * @param p The property keyword.
+	 * @return The value, or null if the keyword does not exist.
+	 * @see #propertyMap
+	 */
+	public String getProperty(String p)
+	{
+		return propertyMap.get(p);
+	}
+
+	/**
+	 * Get the merged properties as an unmodifiable map.
+	 * @return The map of keyword to value.
+	 * @see #propertyMap
+	 */
+	public Map<String,String> getPropertyMap()
+	{
+		return propertyMap;
+	}
+
+	/**
+	 * Set the FITS header card list compiled from this snapshot. This is only called by LociStatus,
+	 * before the snapshot is published.
+	 * @param cardList An unmodifiable list of FitsHeaderCard, or null if no list has ever compiled.
+	 * @param compileException The exception thrown compiling this snapshot's FITS header properties, 
+	 *        or null if they compiled.
+	 * @see #fitsHeaderCardList
+	 * @see #fitsHeaderCardListException
+	 * @see LociStatus#compileFitsHeaderCardList
+	 */
+	protected void setFitsHeaderCardList(List<FitsHeaderCard> cardList,Exception compileException)
+	{
+		fitsHeaderCardList = cardList;
+		fitsHeaderCardListException = compileException;
+	}
+
+	/**
+	 * Get the FITS header card list compiled from this snapshot.
+	 * @return An unmodifiable list of FitsHeaderCard, or null if no list has ever compiled.
+	 * @see #fitsHeaderCardList
+	 */
+	public List<FitsHeaderCard> getFitsHeaderCardList()
+	{
+		return fitsHeaderCardList;
+	}
+
+	/**
+	 * Get the exception thrown compiling this snapshot's FITS header properties.
+	 * @return The exception, or null if they compiled.
+	 * @see #fitsHeaderCardListException
+	 */
+	public Exception getFitsHeaderCardListException()
+	{
+		return fitsHeaderCardListException;
+	}
+}
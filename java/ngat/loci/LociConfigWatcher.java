@@ -0,0 +1,188 @@
+// LociConfigWatcher.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+
+import ngat.util.logging.*;
+
+/**
+ * This class is a background thread that watches the Loci property files (apart from the network one) for
+ * changes, and reloads them when they change. Every watch period the files last modified times and lengths are
+ * checked against those recorded in the current configuration snapshot (a cheap stat of each file). If any have
+ * changed LociStatus.reload is called, which re-parses only the changed files into a new configuration snapshot
+ * and publishes it atomically. This is done off the command path, so commands are not held up by the reload.
+ * Each command pins the snapshot current when it started (LociStatus.pinConfigSnapshot), so a running command
+ * continues to see a consistent configuration. A changed file is only reloaded once it has not been modified
+ * for a watch period, so a file that is still being written is not read half-written.
+ * Settings used by Loci's sub-systems at initialisation (thread pool sizes, log levels etc) are still only
+ * re-read by a REDATUM level REBOOT.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatus#isConfigChanged
+ * @see LociStatus#reload
+ * @see LociStatus#pinConfigSnapshot
+ * @see LociConfigSnapshot
+ */
+public class LociConfigWatcher extends Thread
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default watch period, in milliseconds. This is the period used when the watch period
+	 * property is missing or invalid.
+	 */
+	public final static long DEFAULT_WATCH_PERIOD = 10000;
+	/**
+	 * The minimum watch period, in milliseconds, to stop the watcher spinning on the file system.
+	 */
+	public final static long MIN_WATCH_PERIOD = 500;
+	/**
+	 * The Loci object, used for logging.
+	 */
+	private Loci loci = null;
+	/**
+	 * The status object, whose configuration is watched.
+	 */
+	private LociStatus status = null;
+	/**
+	 * Whether the watcher checks for changes.
+	 */
+	private volatile boolean enabled = false;
+	/**
+	 * How often the files are checked for changes, in milliseconds.
+	 */
+	private volatile long watchPeriod = DEFAULT_WATCH_PERIOD;
+	/**
+	 * Set to true to make the watcher thread terminate.
+	 */
+	private volatile boolean quit = false;
+	/**
+	 * The number of times the configuration has been reloaded by this watcher.
+	 */
+	private volatile long reloadCount = 0;
+
+	/**
+	 * Constructor. The thread is made a daemon, so it does not stop the JVM exiting.
+	 * @param loci The Loci object.
+	 * @see #loci
+	 * @see #status
+	 */
+	public LociConfigWatcher(Loci loci)
+	{
+		super("Loci configuration watcher");
+		this.loci = loci;
+		this.status = loci.getStatus();
+		setDaemon(true);
+	}
+
+	/**
+	 * Configure the watcher from the properties. Whether the watcher is enabled is retrieved from
+	 * "loci.config.watch.enable" (default false), and the watch period (in milliseconds) from
+	 * "loci.config.watch.period" (default DEFAULT_WATCH_PERIOD, minimum MIN_WATCH_PERIOD).
+	 * @param status The status object to retrieve the properties from.
+	 * @see #enabled
+	 * @see #watchPeriod
+	 */
+	public void configure(LociStatus status)
+	{
+		long period;
+
+		try
+		{
+			enabled = status.getPropertyBoolean("loci.config.watch.enable");
+		}
+		catch(NullPointerException e)
+		{
+			enabled = false;
+		}
+		try
+		{
+			period = status.getPropertyLong("loci.config.watch.period");
+		}
+		catch(NumberFormatException e)
+		{
+			period = DEFAULT_WATCH_PERIOD;
+		}
+		watchPeriod = Math.max(MIN_WATCH_PERIOD,period);
+		interrupt();
+	}
+
+	/**
+	 * Run method. Every watchPeriod, if the watcher is enabled, and the configuration files have changed,
+	 * and none of them have been modified in the last watchPeriod (so they are not still being written),
+	 * the configuration is reloaded. Failures are logged, and the old configuration stays in use.
+	 * @see #quit
+	 * @see #enabled
+	 * @see #watchPeriod
+	 * @see LociStatus#isConfigChanged
+	 * @see LociStatus#getConfigFileLastModified
+	 * @see LociStatus#reload
+	 */
+	public void run()
+	{
+		long startTime;
+
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:Started.");
+		while(quit == false)
+		{
+			try
+			{
+				Thread.sleep(watchPeriod);
+			}
+			catch(InterruptedException e)
+			{
+				// re-configured or quitting
+				continue;
+			}
+			if((enabled == false)||(status.isConfigChanged() == false))
+				continue;
+			// wait for the changed files to settle
+			if((System.currentTimeMillis()-status.getConfigFileLastModified()) < watchPeriod)
+			{
+				loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+					 ":run:Configuration changed, waiting for the files to settle.");
+				continue;
+			}
+			try
+			{
+				startTime = System.currentTimeMillis();
+				if(status.reload())
+				{
+					reloadCount++;
+					loci.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+						 ":run:Reloaded configuration version "+status.getConfigVersion()+" in "+
+						 (System.currentTimeMillis()-startTime)+" ms.");
+				}
+			}
+			catch(Exception e)
+			{
+				loci.error(this.getClass().getName()+":run:Reloading configuration failed:",e);
+			}
+		}
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:Finished.");
+	}
+
+	/**
+	 * Stop the watcher thread.
+	 * @see #quit
+	 */
+	public void quit()
+	{
+		quit = true;
+		interrupt();
+	}
+
+	/**
+	 * Get the number of times the configuration has been reloaded by this watcher.
+	 * @return The number of reloads.
+	 * @see #reloadCount
+	 */
+	public long getReloadCount()
+	{
+		return reloadCount;
+	}
+}
@@ -0,0 +1,393 @@
+// LociFitsFilenameGenerator.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.text.*;
+import java.util.*;
+
+import ngat.util.*;
+import ngat.util.logging.*;
+
+/**
+ * This class is a local FITS filename generator, used as a fallback when the remote filename-server is slow
+ * or unreachable. It generates filenames following the same LT naming rules as the filename-server:
+ * <i>instrument</i>_<i>exposurecode</i>_<i>date</i>_<i>multrun</i>_<i>run</i>_<i>window</i>_<i>pipeline</i>
+ * .<i>extension</i>, e.g. k_f_20250801_1_1_1_0.fits, where the date is the date of the start of the night.
+ * <p>
+ * The generator is monotonic and persistent: the last date, multrun and run numbers are saved to a state file
+ * each time a multrun is started or a filename generated, and re-loaded at startup. Each filename returned
+ * by the filename-server is observed, so locally generated multruns always start after the last multrun
+ * the server has issued. The range of multrun numbers generated locally each night is also saved, so that
+ * when the filename-server comes back any filename it issues in that range can be recognised (as reserved),
+ * and discarded, so the server is advanced past the locally used multruns. Generated filenames that already
+ * exist in the FITS directory are skipped.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociFitsFilenameLeaseCache
+ */
+public class LociFitsFilenameGenerator
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The window number used in generated filenames (the whole detector).
+	 */
+	public final static int WINDOW_NUMBER = 1;
+	/**
+	 * The pipeline processing flag used in generated filenames (unreduced).
+	 */
+	public final static int PIPELINE_FLAG = 0;
+	/**
+	 * State file keyword for the night date.
+	 */
+	protected final static String STATE_KEY_DATE = "fallback.date";
+	/**
+	 * State file keyword for the last multrun number issued (by the server or locally) on the night date.
+	 */
+	protected final static String STATE_KEY_MULTRUN = "fallback.multrun";
+	/**
+	 * State file keyword for the last run number generated locally.
+	 */
+	protected final static String STATE_KEY_RUN = "fallback.run";
+	/**
+	 * State file keyword for the first multrun number generated locally on the night date.
+	 */
+	protected final static String STATE_KEY_LOCAL_MULTRUN_MIN = "fallback.local.multrun.min";
+	/**
+	 * State file keyword for the last multrun number generated locally on the night date.
+	 */
+	protected final static String STATE_KEY_LOCAL_MULTRUN_MAX = "fallback.local.multrun.max";
+	/**
+	 * The Loci object, used for logging.
+	 */
+	private Loci loci = null;
+	/**
+	 * The instrument code, from "loci.file.fits.instrument_code".
+	 */
+	private char instrumentCode;
+	/**
+	 * The FITS directory, from "loci.file.fits.path", with a terminating '/'.
+	 */
+	private String fitsDirectory = null;
+	/**
+	 * The filename of the persistent state file.
+	 */
+	private String stateFilename = null;
+	/**
+	 * The night date of the last multrun, of the form yyyyMMdd.
+	 */
+	private String date = null;
+	/**
+	 * The last multrun number issued on the night date, by the server or locally.
+	 */
+	private int multrun = 0;
+	/**
+	 * The last run number generated locally.
+	 */
+	private int run = 0;
+	/**
+	 * The first multrun number generated locally on the night date, or 0 if none have been.
+	 */
+	private int localMultrunMin = 0;
+	/**
+	 * The last multrun number generated locally on the night date, or 0 if none have been.
+	 */
+	private int localMultrunMax = 0;
+	/**
+	 * The number of filenames generated locally.
+	 */
+	private long generatedCount = 0;
+
+	/**
+	 * Constructor. Retrieves the instrument code and FITS directory from the properties, and loads the
+	 * saved state (if the state file exists).
+	 * @param loci The Loci object.
+	 * @param stateFilename The filename of the persistent state file.
+	 * @exception Exception Thrown if the instrument code cannot be retrieved.
+	 * @see #instrumentCode
+	 * @see #fitsDirectory
+	 * @see #loadState
+	 */
+	public LociFitsFilenameGenerator(Loci loci,String stateFilename) throws Exception
+	{
+		super();
+		LociStatus status = null;
+
+		this.loci = loci;
+		this.stateFilename = stateFilename;
+		status = loci.getStatus();
+		instrumentCode = status.getPropertyChar("loci.file.fits.instrument_code");
+		fitsDirectory = status.getProperty("loci.file.fits.path");
+		if(fitsDirectory == null)
+			fitsDirectory = "";
+		else if(fitsDirectory.endsWith("/") == false)
+			fitsDirectory = fitsDirectory+"/";
+		loadState();
+	}
+
+	/**
+	 * Generate the first filename of a new multrun. The multrun number is one more than the last multrun
+	 * issued on the current night date (by the server or locally), or 1 on a new night.
+	 * Multrun numbers whose first filename already exists in the FITS directory are skipped.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 * @see #getNightDate
+	 * @see #saveState
+	 */
+	public synchronized String startMultrun(char exposureCode,String fileExtension)
+	{
+		String nightDate = null;
+		String filenameLeaf = null;
+
+		nightDate = getNightDate();
+		if(nightDate.equals(date) == false)
+		{
+			date = nightDate;
+			multrun = 0;
+			localMultrunMin = 0;
+			localMultrunMax = 0;
+		}
+		do
+		{
+			multrun++;
+			run = 1;
+			filenameLeaf = getFilenameLeaf(exposureCode,fileExtension);
+		}
+		while(new File(fitsDirectory+filenameLeaf).exists());
+		if(localMultrunMin == 0)
+			localMultrunMin = multrun;
+		localMultrunMax = multrun;
+		generatedCount++;
+		saveState();
+		loci.log(Logging.VERBOSITY_TERSE,"%s:startMultrun:Generated fallback filename %s.",
+			 this.getClass().getName(),filenameLeaf);
+		return filenameLeaf;
+	}
+
+	/**
+	 * Generate the next filename in the current locally generated multrun.
+	 * Run numbers whose filename already exists in the FITS directory are skipped.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 * @see #saveState
+	 */
+	public synchronized String nextRun(char exposureCode,String fileExtension)
+	{
+		String filenameLeaf = null;
+
+		do
+		{
+			run++;
+			filenameLeaf = getFilenameLeaf(exposureCode,fileExtension);
+		}
+		while(new File(fitsDirectory+filenameLeaf).exists());
+		generatedCount++;
+		saveState();
+		if(loci.isLoggable(Logging.VERBOSITY_INTERMEDIATE))
+		{
+			loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:nextRun:Generated fallback filename %s.",
+				 this.getClass().getName(),filenameLeaf);
+		}
+		return filenameLeaf;
+	}
+
+	/**
+	 * Observe a filename issued by the filename-server, so that locally generated multruns start after it.
+	 * @param filenameLeaf The filename leaf issued by the server.
+	 * @see #parseFilename
+	 * @see #saveState
+	 */
+	public synchronized void observe(String filenameLeaf)
+	{
+		String partList[] = null;
+		int serverMultrun;
+
+		partList = parseFilename(filenameLeaf);
+		if(partList == null)
+			return;
+		try
+		{
+			serverMultrun = Integer.parseInt(partList[3]);
+		}
+		catch(NumberFormatException e)
+		{
+			return;
+		}
+		if(partList[2].equals(date) == false)
+		{
+			if((date != null)&&(partList[2].compareTo(date) < 0))
+				return;
+			date = partList[2];
+			multrun = 0;
+			localMultrunMin = 0;
+			localMultrunMax = 0;
+		}
+		if(serverMultrun > multrun)
+		{
+			multrun = serverMultrun;
+			saveState();
+		}
+	}
+
+	/**
+	 * Return whether a filename issued by the filename-server is in the range of multruns generated locally
+	 * on that night, i.e. it would clash with a locally generated filename.
+	 * @param filenameLeaf The filename leaf issued by the server.
+	 * @return true if the filename's multrun has been used locally, false if it has not.
+	 * @see #localMultrunMin
+	 * @see #localMultrunMax
+	 */
+	public synchronized boolean isReserved(String filenameLeaf)
+	{
+		String partList[] = null;
+		int serverMultrun;
+
+		if(localMultrunMax == 0)
+			return false;
+		partList = parseFilename(filenameLeaf);
+		if((partList == null)||(partList[2].equals(date) == false))
+			return false;
+		try
+		{
+			serverMultrun = Integer.parseInt(partList[3]);
+		}
+		catch(NumberFormatException e)
+		{
+			return false;
+		}
+		return (serverMultrun >= localMultrunMin)&&(serverMultrun <= localMultrunMax);
+	}
+
+	/**
+	 * Get the number of multruns generated locally on the current night date, which the filename-server may
+	 * issue again.
+	 * @return The number of multruns.
+	 */
+	public synchronized int getReservedMultrunCount()
+	{
+		if(localMultrunMax == 0)
+			return 0;
+		return localMultrunMax-localMultrunMin+1;
+	}
+
+	/**
+	 * Get the number of filenames generated locally.
+	 * @return The number of filenames.
+	 * @see #generatedCount
+	 */
+	public synchronized long getGeneratedCount()
+	{
+		return generatedCount;
+	}
+
+	/**
+	 * Create a filename leaf from the current date, multrun and run numbers.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 */
+	protected String getFilenameLeaf(char exposureCode,String fileExtension)
+	{
+		return instrumentCode+"_"+exposureCode+"_"+date+"_"+multrun+"_"+run+"_"+WINDOW_NUMBER+"_"+
+			PIPELINE_FLAG+"."+fileExtension;
+	}
+
+	/**
+	 * Get the date of the start of the current night, of the form yyyyMMdd (UTC). Before midday the night
+	 * started on the previous day.
+	 * @return The night date.
+	 */
+	protected String getNightDate()
+	{
+		SimpleDateFormat dateFormat = null;
+		Calendar calendar = null;
+
+		calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		if(calendar.get(Calendar.HOUR_OF_DAY) < 12)
+			calendar.add(Calendar.DAY_OF_YEAR,-1);
+		dateFormat = new SimpleDateFormat("yyyyMMdd");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return dateFormat.format(calendar.getTime());
+	}
+
+	/**
+	 * Split a LT filename leaf into it's parts.
+	 * @param filenameLeaf The filename leaf.
+	 * @return An array of the parts: instrument code, exposure code, date, multrun, run, window,
+	 *         pipeline flag and extension, or null if the filename is not a LT filename.
+	 */
+	protected static String[] parseFilename(String filenameLeaf)
+	{
+		String partList[] = null;
+
+		if(filenameLeaf == null)
+			return null;
+		partList = filenameLeaf.split("_");
+		if(partList.length < 5)
+			return null;
+		return partList;
+	}
+
+	/**
+	 * Load the saved state from the state file. If the file does not exist or is corrupt, the generator
+	 * starts from no saved state.
+	 * @see #stateFilename
+	 */
+	protected void loadState()
+	{
+		NGATProperties properties = null;
+
+		if(new File(stateFilename).exists() == false)
+			return;
+		properties = new NGATProperties();
+		try
+		{
+			properties.load(stateFilename);
+			date = properties.getProperty(STATE_KEY_DATE);
+			multrun = properties.getInt(STATE_KEY_MULTRUN);
+			run = properties.getInt(STATE_KEY_RUN);
+			localMultrunMin = properties.getInt(STATE_KEY_LOCAL_MULTRUN_MIN);
+			localMultrunMax = properties.getInt(STATE_KEY_LOCAL_MULTRUN_MAX);
+		}
+		catch(Exception e)
+		{
+			loci.error(this.getClass().getName()+":loadState:Failed to load "+stateFilename+":",e);
+			date = null;
+			multrun = 0;
+			run = 0;
+			localMultrunMin = 0;
+			localMultrunMax = 0;
+		}
+	}
+
+	/**
+	 * Save the state to the state file. Failures are logged, the generator carries on using the in-memory state.
+	 * @see #stateFilename
+	 */
+	protected void saveState()
+	{
+		NGATProperties properties = null;
+
+		properties = new NGATProperties();
+		if(date != null)
+			properties.setProperty(STATE_KEY_DATE,date);
+		properties.setProperty(STATE_KEY_MULTRUN,""+multrun);
+		properties.setProperty(STATE_KEY_RUN,""+run);
+		properties.setProperty(STATE_KEY_LOCAL_MULTRUN_MIN,""+localMultrunMin);
+		properties.setProperty(STATE_KEY_LOCAL_MULTRUN_MAX,""+localMultrunMax);
+		try
+		{
+			properties.save(stateFilename,"Loci fallback FITS filename generator state saved on:"+new Date());
+		}
+		catch(IOException e)
+		{
+			loci.error(this.getClass().getName()+":saveState:Failed to save "+stateFilename+":",e);
+		}
+	}
+}
@@ -0,0 +1,1118 @@
+// LociFitsFilenameLeaseCache.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.fits.FitsFilenameServer;
+import ngat.util.logging.*;
+
+/**
+ * This class is a cache of FITS filename leases, wrapped around Loci's FitsFilenameServer instance.
+ * Each call to the remote filename-server allocates a unique LT filename (the server increments it's multrun and
+ * run numbers). Rather than calling the filename-server synchronously each time a frame needs renaming, the
+ * cache prefetches filenames in the background, so that when a frame is renamed the filename has usually
+ * already been leased from the server.
+ * <p>
+ * Leases are held per exposure code. A multrun is started by prefetchMultrun (or a call to getFilename with
+ * the MULTRUN_FLAG_START flag), which leases the first filename of a new multrun (MULTRUN_FLAG_START),
+ * followed by a number of following filenames in that multrun (MULTRUN_FLAG_NEXT). Each call to getFilename with
+ * MULTRUN_FLAG_NEXT takes the next lease, and tops up the prefetched leases in the background.
+ * <p>
+ * Leases are reconciled with the server as follows:
+ * <ul>
+ * <li>Each prefetched filename's date and multrun number is checked against the multrun the lease holder
+ *     started. If they differ, another client has started a multrun on the server in between, so the filename
+ *     is discarded, prefetching stops, and subsequent filenames are retrieved synchronously.
+ * <li>Leases older than the lease timeout are discarded (e.g. the night has rolled over).
+ * <li>When a new multrun is started, leases from the previous multrun that were never used are discarded.
+ * </ul>
+ * The filename-server has no way to return an unused filename, so each discarded lease leaves a gap in
+ * the run (or multrun) numbers. Discarded leases are logged and counted.
+ * <p>
+ * If the fallback generator is enabled, each synchronous call to the filename-server is given a latency budget.
+ * If the server takes longer than this (or fails), a new multrun is started using a local filename generator
+ * (LociFitsFilenameGenerator), and the rest of that multrun is generated locally. The server is not tried
+ * again for a retry period. When the server is used again, any multrun it issues that was already generated
+ * locally is discarded, and another multrun requested, until the server has moved past the locally
+ * generated multruns.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see Loci#getFitsFilenameLeaseCache
+ * @see Loci#getFitsFilenameServer
+ * @see LociFitsFilenameGenerator
+ * @see ngat.fits.FitsFilenameServer
+ */
+public class LociFitsFilenameLeaseCache
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default number of filenames to prefetch for each multrun.
+	 */
+	public final static int DEFAULT_PREFETCH_COUNT = 4;
+	/**
+	 * The default length of time a lease is valid for, in milliseconds (10 minutes).
+	 */
+	public final static long DEFAULT_LEASE_TIMEOUT = 600000;
+	/**
+	 * The default time a synchronous call to the filename-server is allowed to take, before the local filename
+	 * generator is used instead, in milliseconds.
+	 */
+	public final static long DEFAULT_LATENCY_BUDGET = 2000;
+	/**
+	 * The default time after the filename-server was too slow (or failed), before it is tried again,
+	 * in milliseconds.
+	 */
+	public final static long DEFAULT_RETRY_PERIOD = 60000;
+	/**
+	 * Filename source string, returned by getFilenameSource when the last filename came from the filename-server.
+	 */
+	public final static String FILENAME_SOURCE_SERVER = "server";
+	/**
+	 * Filename source string, returned by getFilenameSource when the last filename was generated locally.
+	 */
+	public final static String FILENAME_SOURCE_LOCAL = "local";
+	/**
+	 * The Loci object, used for logging.
+	 */
+	private Loci loci = null;
+	/**
+	 * The filename-server instance leases are retrieved from. All calls to it are made whilst synchronized
+	 * on this object, as it holds the parameters and results of each call.
+	 */
+	private FitsFilenameServer fitsFilenameServer = null;
+	/**
+	 * Whether filenames are prefetched. If false, getFilename always calls the filename-server synchronously.
+	 */
+	private boolean enabled = false;
+	/**
+	 * The number of filenames to prefetch for each multrun.
+	 */
+	private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+	/**
+	 * The length of time a lease is valid for, in milliseconds.
+	 */
+	private long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+	/**
+	 * The single background thread prefetching filenames.
+	 */
+	private ExecutorService prefetchExecutor = null;
+	/**
+	 * Map of exposure code to the leases for that exposure code.
+	 */
+	private Map<Character,LeaseQueue> leaseQueueMap = new HashMap<Character,LeaseQueue>();
+	/**
+	 * The number of filenames returned from a prefetched lease.
+	 */
+	private long leaseHitCount = 0;
+	/**
+	 * The number of filenames that had to be retrieved synchronously from the filename-server.
+	 */
+	private long leaseMissCount = 0;
+	/**
+	 * The number of leased filenames that were discarded without being used.
+	 */
+	private long leaseDiscardCount = 0;
+	/**
+	 * The local filename generator, used when the filename-server is too slow. This is null if the fallback
+	 * is not enabled.
+	 */
+	private LociFitsFilenameGenerator fallbackGenerator = null;
+	/**
+	 * The time a synchronous call to the filename-server (or a wait for a prefetch in progress) is allowed 
+	 * to take, in milliseconds.
+	 */
+	private long latencyBudget = DEFAULT_LATENCY_BUDGET;
+	/**
+	 * The time after the filename-server was too slow (or failed), before it is tried again, in milliseconds.
+	 */
+	private long retryPeriod = DEFAULT_RETRY_PERIOD;
+	/**
+	 * The time before which the filename-server is not used, in milliseconds since the epoch.
+	 */
+	private volatile long serverRetryTime = 0;
+	/**
+	 * The threads making synchronous calls to the filename-server, so they can be timed out.
+	 */
+	private ExecutorService fetchExecutor = null;
+	/**
+	 * Where the last filename came from, FILENAME_SOURCE_SERVER or FILENAME_SOURCE_LOCAL.
+	 */
+	private volatile String filenameSource = FILENAME_SOURCE_SERVER;
+	/**
+	 * The number of times the filename-server exceeded the latency budget.
+	 */
+	private long serverTimeoutCount = 0;
+	/**
+	 * The number of times a call to the filename-server failed.
+	 */
+	private long serverFailCount = 0;
+	/**
+	 * The number of filenames issued by the filename-server that were discarded, as they had already been
+	 * generated locally.
+	 */
+	private long reconcileCount = 0;
+	/**
+	 * The time the last synchronous call to the filename-server took, in milliseconds.
+	 */
+	private long lastServerLatency = 0;
+	/**
+	 * The longest time a synchronous call to the filename-server took, in milliseconds.
+	 */
+	private long maxServerLatency = 0;
+
+	/**
+	 * Constructor. The cache is configured from the properties:
+	 * <ul>
+	 * <li><b>loci.file.fits.lease.enable</b> Whether to prefetch filenames (default false).
+	 * <li><b>loci.file.fits.lease.prefetch_count</b> The number of filenames to prefetch per multrun
+	 *     (default DEFAULT_PREFETCH_COUNT).
+	 * <li><b>loci.file.fits.lease.timeout</b> How long a lease is valid for, in milliseconds
+	 *     (default DEFAULT_LEASE_TIMEOUT).
+	 * <li><b>loci.file.fits.fallback.enable</b> Whether to use the local filename generator when the 
+	 *     filename-server is too slow (default false).
+	 * <li><b>loci.file.fits.fallback.state_filename</b> The local filename generator's state file. The fallback
+	 *     is disabled if this is missing.
+	 * <li><b>loci.file.fits.fallback.latency_budget</b> How long a synchronous call to the filename-server can
+	 *     take, in milliseconds (default DEFAULT_LATENCY_BUDGET).
+	 * <li><b>loci.file.fits.fallback.retry_period</b> How long to wait before trying the filename-server again,
+	 *     in milliseconds (default DEFAULT_RETRY_PERIOD).
+	 * </ul>
+	 * @param loci The Loci object.
+	 * @param fitsFilenameServer The configured filename-server instance.
+	 * @exception Exception Thrown if the local filename generator cannot be created.
+	 * @see #enabled
+	 * @see #prefetchCount
+	 * @see #leaseTimeout
+	 * @see #prefetchExecutor
+	 * @see #fallbackGenerator
+	 * @see #latencyBudget
+	 * @see #retryPeriod
+	 * @see #fetchExecutor
+	 */
+	public LociFitsFilenameLeaseCache(Loci loci,FitsFilenameServer fitsFilenameServer) throws Exception
+	{
+		super();
+		LociStatus status = null;
+
+		this.loci = loci;
+		this.fitsFilenameServer = fitsFilenameServer;
+		status = loci.getStatus();
+		try
+		{
+			enabled = status.getPropertyBoolean("loci.file.fits.lease.enable");
+		}
+		catch(NullPointerException e)
+		{
+			enabled = false;
+		}
+		try
+		{
+			prefetchCount = Math.max(0,status.getPropertyInteger("loci.file.fits.lease.prefetch_count"));
+		}
+		catch(NumberFormatException e)
+		{
+			prefetchCount = DEFAULT_PREFETCH_COUNT;
+		}
+		try
+		{
+			leaseTimeout = status.getPropertyLong("loci.file.fits.lease.timeout");
+		}
+		catch(NumberFormatException e)
+		{
+			leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+		}
+		prefetchExecutor = Executors.newSingleThreadExecutor(
+					    new LociClientConnectionExecutor.PoolThreadFactory(Thread.NORM_PRIORITY));
+		initFallback(status);
+	}
+
+	/**
+	 * Initialise the local filename generator fallback, if it is enabled.
+	 * @param status The status object to retrieve the properties from.
+	 * @exception Exception Thrown if the local filename generator cannot be created.
+	 * @see #fallbackGenerator
+	 * @see #latencyBudget
+	 * @see #retryPeriod
+	 * @see #fetchExecutor
+	 */
+	protected void initFallback(LociStatus status) throws Exception
+	{
+		String stateFilename = null;
+		boolean fallbackEnabled;
+
+		try
+		{
+			fallbackEnabled = status.getPropertyBoolean("loci.file.fits.fallback.enable");
+		}
+		catch(NullPointerException e)
+		{
+			fallbackEnabled = false;
+		}
+		// the latency budget also limits the wait for a prefetch in progress, so is read even without the fallback
+		try
+		{
+			latencyBudget = status.getPropertyLong("loci.file.fits.fallback.latency_budget");
+		}
+		catch(NumberFormatException e)
+		{
+			latencyBudget = DEFAULT_LATENCY_BUDGET;
+		}
+		if(fallbackEnabled == false)
+			return;
+		stateFilename = status.getProperty("loci.file.fits.fallback.state_filename");
+		if(stateFilename == null)
+		{
+			loci.error(this.getClass().getName()+
+				   ":initFallback:No state filename, local filename generator disabled.");
+			return;
+		}
+		try
+		{
+			retryPeriod = status.getPropertyLong("loci.file.fits.fallback.retry_period");
+		}
+		catch(NumberFormatException e)
+		{
+			retryPeriod = DEFAULT_RETRY_PERIOD;
+		}
+		fallbackGenerator = new LociFitsFilenameGenerator(loci,stateFilename);
+		fetchExecutor = Executors.newCachedThreadPool(
+					new LociClientConnectionExecutor.PoolThreadFactory(Thread.NORM_PRIORITY));
+	}
+
+	/**
+	 * Start prefetching filenames for a new multrun with the specified exposure code. Any unused leases
+	 * from the previous multrun are discarded. The first filename (MULTRUN_FLAG_START) and prefetchCount
+	 * following filenames (MULTRUN_FLAG_NEXT) are leased in the background. This should be called when a command
+	 * that will produce a multrun starts, so the filenames are ready when the first frame is saved.
+	 * Note if the command then produces no frames, the multrun number is not used.
+	 * If the cache is not enabled this does nothing.
+	 * @param exposureCode The exposure code of the filenames e.g. FitsFilename.EXPOSURE_CODE_SKY_FLAT.
+	 * @param fileExtension The file extension of the filenames e.g. "fits".
+	 * @see #getLeaseQueue
+	 * @see #discardLeases
+	 * @see PrefetchTask
+	 */
+	public void prefetchMultrun(char exposureCode,String fileExtension)
+	{
+		LeaseQueue queue = null;
+
+		if(enabled == false)
+			return;
+		// don't prefetch whilst the filename-server is too slow
+		if(System.currentTimeMillis() < serverRetryTime)
+			return;
+		queue = getLeaseQueue(exposureCode);
+		synchronized(queue)
+		{
+			discardLeases(queue,"new multrun");
+			queue.fileExtension = fileExtension;
+			queue.prefetching = true;
+			prefetchExecutor.execute(new PrefetchTask(queue,queue.generation,true,prefetchCount));
+		}
+	}
+
+	/**
+	 * Get a unique FITS filename leaf from the filename-server, using a prefetched lease if one is available.
+	 * <ul>
+	 * <li>If the current multrun was started by the local filename generator, MULTRUN_FLAG_NEXT filenames are 
+	 *     generated locally, as the filename-server does not know about the multrun.
+	 * <li>For MULTRUN_FLAG_START, the prefetched first filename of the multrun is used, if prefetchMultrun has
+	 *     been called. Otherwise unused leases are discarded, the first filename is retrieved synchronously,
+	 *     and the following filenames prefetched.
+	 * <li>For MULTRUN_FLAG_NEXT, the next valid lease is used (waiting up to the latency budget for a prefetch
+	 *     in progress if necessary).
+	 *     If none is available the filename is retrieved synchronously. More filenames are then prefetched,
+	 *     if fewer than half of prefetchCount remain.
+	 * <li>If the cache is not enabled, the filename-server is always called synchronously.
+	 * <li>If the fallback is enabled and the filename-server takes longer than the latency budget (or fails),
+	 *     a new multrun is started by the local filename generator.
+	 * </ul>
+	 * @param exposureCode The exposure code of the filename e.g. FitsFilename.EXPOSURE_CODE_SKY_FLAT.
+	 * @param multrunFlag Either FitsFilenameServer.MULTRUN_FLAG_START or FitsFilenameServer.MULTRUN_FLAG_NEXT.
+	 * @param fileExtension The file extension of the filename e.g. "fits".
+	 * @return The filename leaf (without a directory).
+	 * @exception Exception Thrown if the call to the filename-server fails, and the fallback is not enabled.
+	 * @see #takeLease
+	 * @see #fetchServerFilename
+	 * @see #generateFilename
+	 * @see PrefetchTask
+	 */
+	public String getFilename(char exposureCode,String multrunFlag,String fileExtension) throws Exception
+	{
+		LeaseQueue queue = null;
+		String filenameLeaf = null;
+		String multrunKey = null;
+		boolean start;
+
+		start = multrunFlag.equals(FitsFilenameServer.MULTRUN_FLAG_START);
+		queue = getLeaseQueue(exposureCode);
+		synchronized(queue)
+		{
+			// the filename-server does not know about a locally generated multrun, so it is continued locally
+			if(queue.localMultrun && (start == false))
+				return generateFilename(queue,exposureCode,false,fileExtension);
+			queue.localMultrun = false;
+			if(enabled)
+				filenameLeaf = takeLease(queue,start,fileExtension);
+			if(filenameLeaf != null)
+			{
+				leaseHit();
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				{
+					loci.log(Logging.VERBOSITY_VERBOSE,"%s:getFilename:Using leased filename:%s.",
+						 this.getClass().getName(),filenameLeaf);
+				}
+			}
+			else
+			{
+				if(enabled)
+					leaseMiss();
+				if(start)
+				{
+					discardLeases(queue,"new multrun");
+					queue.fileExtension = fileExtension;
+				}
+				else if((queue.leaseList.isEmpty() == false)||queue.prefetching)
+				{
+					// stop any prefetch in progress, as it's filenames would be out of order
+					multrunKey = queue.multrunKey;
+					discardLeases(queue,"lease out of sequence");
+					queue.multrunKey = multrunKey;
+				}
+				filenameLeaf = fetchServerFilename(exposureCode,multrunFlag,fileExtension);
+				if(filenameLeaf == null)
+				{
+					// the filename-server is too slow, start a new multrun locally
+					discardLeases(queue,"filename-server unavailable");
+					return generateFilename(queue,exposureCode,true,fileExtension);
+				}
+				if(start)
+					queue.multrunKey = getMultrunKey(filenameLeaf);
+				else if((queue.multrunKey != null)&&
+					(queue.multrunKey.equals(getMultrunKey(filenameLeaf)) == false))
+				{
+					// another client has started a multrun on the server, stop prefetching
+					queue.multrunKey = null;
+				}
+			}
+			filenameSource = FILENAME_SOURCE_SERVER;
+			// top up prefetched leases, if the multrun is still consistent with the server
+			if(enabled && (queue.prefetching == false)&&(queue.multrunKey != null)&&
+			   (queue.leaseList.size() < Math.max(1,prefetchCount/2))&&
+			   (queue.fileExtension != null)&&queue.fileExtension.equals(fileExtension))
+			{
+				queue.prefetching = true;
+				prefetchExecutor.execute(new PrefetchTask(queue,queue.generation,false,
+									  prefetchCount-queue.leaseList.size()));
+			}
+		}
+		return filenameLeaf;
+	}
+
+	/**
+	 * Shutdown the background prefetch thread, and the threads making synchronous calls to the filename-server.
+	 * @see #prefetchExecutor
+	 * @see #fetchExecutor
+	 */
+	public void shutdown()
+	{
+		prefetchExecutor.shutdownNow();
+		if(fetchExecutor != null)
+			fetchExecutor.shutdownNow();
+	}
+
+	/**
+	 * Get whether filenames are prefetched.
+	 * @return true if the cache is enabled.
+	 * @see #enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Get the number of filenames returned from a prefetched lease.
+	 * @return The number of filenames.
+	 * @see #leaseHitCount
+	 */
+	public synchronized long getLeaseHitCount()
+	{
+		return leaseHitCount;
+	}
+
+	/**
+	 * Get the number of filenames that had to be retrieved synchronously from the filename-server.
+	 * @return The number of filenames.
+	 * @see #leaseMissCount
+	 */
+	public synchronized long getLeaseMissCount()
+	{
+		return leaseMissCount;
+	}
+
+	/**
+	 * Get the number of leased filenames that were discarded without being used.
+	 * @return The number of filenames.
+	 * @see #leaseDiscardCount
+	 */
+	public synchronized long getLeaseDiscardCount()
+	{
+		return leaseDiscardCount;
+	}
+
+	/**
+	 * Get whether the local filename generator fallback is enabled.
+	 * @return true if the fallback is enabled.
+	 * @see #fallbackGenerator
+	 */
+	public boolean isFallbackEnabled()
+	{
+		return (fallbackGenerator != null);
+	}
+
+	/**
+	 * Get where the last filename came from.
+	 * @return FILENAME_SOURCE_SERVER or FILENAME_SOURCE_LOCAL.
+	 * @see #filenameSource
+	 */
+	public String getFilenameSource()
+	{
+		return filenameSource;
+	}
+
+	/**
+	 * Get the number of filenames generated by the local filename generator.
+	 * @return The number of filenames.
+	 * @see #fallbackGenerator
+	 */
+	public long getFallbackCount()
+	{
+		if(fallbackGenerator == null)
+			return 0;
+		return fallbackGenerator.getGeneratedCount();
+	}
+
+	/**
+	 * Get whether the filename-server is currently not being used, as it was too slow or failed.
+	 * @return true if the server is in it's retry period.
+	 * @see #serverRetryTime
+	 */
+	public boolean isServerUnavailable()
+	{
+		return (System.currentTimeMillis() < serverRetryTime);
+	}
+
+	/**
+	 * Get the number of times the filename-server exceeded the latency budget.
+	 * @return The number of times.
+	 * @see #serverTimeoutCount
+	 */
+	public synchronized long getServerTimeoutCount()
+	{
+		return serverTimeoutCount;
+	}
+
+	/**
+	 * Get the number of times a call to the filename-server failed.
+	 * @return The number of times.
+	 * @see #serverFailCount
+	 */
+	public synchronized long getServerFailCount()
+	{
+		return serverFailCount;
+	}
+
+	/**
+	 * Get the number of server filenames discarded, as they had already been generated locally.
+	 * @return The number of filenames.
+	 * @see #reconcileCount
+	 */
+	public synchronized long getReconcileCount()
+	{
+		return reconcileCount;
+	}
+
+	/**
+	 * Get the time the last synchronous call to the filename-server took.
+	 * @return The time in milliseconds.
+	 * @see #lastServerLatency
+	 */
+	public synchronized long getLastServerLatency()
+	{
+		return lastServerLatency;
+	}
+
+	/**
+	 * Get the longest time a synchronous call to the filename-server took.
+	 * @return The time in milliseconds.
+	 * @see #maxServerLatency
+	 */
+	public synchronized long getMaxServerLatency()
+	{
+		return maxServerLatency;
+	}
+
+	/**
+	 * Get the number of unused leases currently held, for all exposure codes.
+	 * @return The number of leases.
+	 * @see #leaseQueueMap
+	 */
+	public int getLeaseCount()
+	{
+		List<LeaseQueue> queueList = null;
+		int count = 0;
+
+		synchronized(leaseQueueMap)
+		{
+			queueList = new Vector<LeaseQueue>(leaseQueueMap.values());
+		}
+		for(int i = 0; i < queueList.size(); i++)
+		{
+			synchronized(queueList.get(i))
+			{
+				count += queueList.get(i).leaseList.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the lease queue for an exposure code, creating it if necessary.
+	 * @param exposureCode The exposure code.
+	 * @return The lease queue.
+	 * @see #leaseQueueMap
+	 */
+	protected LeaseQueue getLeaseQueue(char exposureCode)
+	{
+		LeaseQueue queue = null;
+
+		synchronized(leaseQueueMap)
+		{
+			queue = leaseQueueMap.get(new Character(exposureCode));
+			if(queue == null)
+			{
+				queue = new LeaseQueue(exposureCode);
+				leaseQueueMap.put(new Character(exposureCode),queue);
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Take a valid lease from the queue, waiting for a prefetch in progress if the queue is empty.
+	 * We only wait for the latency budget, a stalled prefetch then returning null so the caller
+	 * discards it and retrieves the filename synchronously (or from the fallback generator, if enabled).
+	 * Expired leases are discarded. Must be called whilst synchronized on the queue.
+	 * @param queue The lease queue.
+	 * @param start Whether the caller wants the first filename of a multrun.
+	 * @param fileExtension The file extension the caller wants.
+	 * @return The leased filename leaf, or null if no suitable lease is available.
+	 * @see #leaseTimeout
+	 * @see #latencyBudget
+	 * @see #discardLease
+	 */
+	protected String takeLease(LeaseQueue queue,boolean start,String fileExtension)
+	{
+		Lease lease = null;
+		long endTime,remainingTime;
+
+		if((queue.fileExtension == null)||(queue.fileExtension.equals(fileExtension) == false))
+			return null;
+		endTime = System.currentTimeMillis()+latencyBudget;
+		while(true)
+		{
+			while(queue.leaseList.isEmpty()&&queue.prefetching)
+			{
+				remainingTime = endTime-System.currentTimeMillis();
+				if(remainingTime <= 0)
+				{
+					loci.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+						 ":takeLease:Prefetch in progress took longer than "+latencyBudget+" ms.");
+					return null;
+				}
+				try
+				{
+					queue.wait(remainingTime);
+				}
+				catch(InterruptedException e)
+				{
+					return null;
+				}
+			}
+			if(queue.leaseList.isEmpty())
+				return null;
+			lease = queue.leaseList.getFirst();
+			if(lease.start != start)
+				return null;
+			queue.leaseList.removeFirst();
+			if((System.currentTimeMillis()-lease.createTime) > leaseTimeout)
+			{
+				discardLease(lease,"lease expired");
+				continue;
+			}
+			return lease.filenameLeaf;
+		}
+	}
+
+	/**
+	 * Discard all the leases in a queue, and stop any prefetch in progress from adding to the queue.
+	 * Must be called whilst synchronized on the queue.
+	 * @param queue The lease queue.
+	 * @param reason Why the leases are being discarded, for logging.
+	 * @see #discardLease
+	 */
+	protected void discardLeases(LeaseQueue queue,String reason)
+	{
+		while(queue.leaseList.isEmpty() == false)
+			discardLease(queue.leaseList.removeFirst(),reason);
+		queue.generation++;
+		queue.prefetching = false;
+		queue.multrunKey = null;
+		queue.notifyAll();
+	}
+
+	/**
+	 * Log and count a discarded lease. The filename-server has no way to take back a filename, so this leaves
+	 * a gap in the run numbers.
+	 * @param lease The discarded lease.
+	 * @param reason Why the lease is being discarded, for logging.
+	 * @see #leaseDiscardCount
+	 */
+	protected void discardLease(Lease lease,String reason)
+	{
+		synchronized(this)
+		{
+			leaseDiscardCount++;
+		}
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:discardLease:Discarding unused filename %s:%s.",
+			 this.getClass().getName(),lease.filenameLeaf,reason);
+	}
+
+	/**
+	 * Retrieve a filename leaf synchronously from the filename-server, within the latency budget.
+	 * If the fallback is not enabled this just calls fetchFilename. Otherwise, if the server is in it's retry
+	 * period, or does not return a filename within the latency budget, or fails, null is returned and the 
+	 * server is not tried again until the retry period has passed. A call that exceeded the latency budget is
+	 * left to finish in the background, and it's filename is not used.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param multrunFlag Either FitsFilenameServer.MULTRUN_FLAG_START or FitsFilenameServer.MULTRUN_FLAG_NEXT.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf, or null if the local filename generator should be used.
+	 * @exception Exception Thrown if the call to the filename-server fails, and the fallback is not enabled,
+	 *            or the thread is interrupted.
+	 * @see #fetchFilename
+	 * @see #fetchExecutor
+	 * @see #latencyBudget
+	 * @see #serverRetryTime
+	 * @see #serverUnavailable
+	 */
+	protected String fetchServerFilename(final char exposureCode,final String multrunFlag,
+					     final String fileExtension) throws Exception
+	{
+		Future<String> future = null;
+		String filenameLeaf = null;
+		long startTime,latency;
+
+		if(fallbackGenerator == null)
+			return fetchFilename(exposureCode,multrunFlag,fileExtension);
+		if(System.currentTimeMillis() < serverRetryTime)
+			return null;
+		startTime = System.currentTimeMillis();
+		future = fetchExecutor.submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return fetchFilename(exposureCode,multrunFlag,fileExtension);
+			}
+		});
+		try
+		{
+			filenameLeaf = future.get(latencyBudget,TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			synchronized(this)
+			{
+				serverTimeoutCount++;
+			}
+			serverUnavailable("took longer than the latency budget of "+latencyBudget+" ms");
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			synchronized(this)
+			{
+				serverFailCount++;
+			}
+			loci.error(this.getClass().getName()+":fetchServerFilename:Filename-server failed:",e);
+			serverUnavailable("failed");
+			return null;
+		}
+		latency = System.currentTimeMillis()-startTime;
+		synchronized(this)
+		{
+			lastServerLatency = latency;
+			if(latency > maxServerLatency)
+				maxServerLatency = latency;
+		}
+		return filenameLeaf;
+	}
+
+	/**
+	 * Called when the filename-server was too slow or failed. The server is not used again until the retry
+	 * period has passed.
+	 * @param reason Why the server is unavailable, for logging.
+	 * @see #serverRetryTime
+	 * @see #retryPeriod
+	 */
+	protected void serverUnavailable(String reason)
+	{
+		serverRetryTime = System.currentTimeMillis()+retryPeriod;
+		loci.log(Logging.VERBOSITY_TERSE,"%s:serverUnavailable:Filename-server %s:"+
+			 "using local filename generator for the next %d ms.",this.getClass().getName(),reason,
+			 retryPeriod);
+	}
+
+	/**
+	 * Generate a filename using the local filename generator.
+	 * @param queue The lease queue of the exposure code, which records whether the current multrun is local.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param start Whether to start a new multrun, or generate the next filename in the current local multrun.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 * @see #fallbackGenerator
+	 * @see LociFitsFilenameGenerator#startMultrun
+	 * @see LociFitsFilenameGenerator#nextRun
+	 */
+	protected String generateFilename(LeaseQueue queue,char exposureCode,boolean start,String fileExtension)
+	{
+		String filenameLeaf = null;
+
+		if(start)
+		{
+			filenameLeaf = fallbackGenerator.startMultrun(exposureCode,fileExtension);
+			queue.localMultrun = true;
+		}
+		else
+			filenameLeaf = fallbackGenerator.nextRun(exposureCode,fileExtension);
+		filenameSource = FILENAME_SOURCE_LOCAL;
+		return filenameLeaf;
+	}
+
+	/**
+	 * Retrieve a filename leaf synchronously from the filename-server. If the fallback is enabled,
+	 * each filename is observed by the local filename generator (so locally generated multruns start after it).
+	 * A filename in a multrun that has already been generated locally is discarded: for MULTRUN_FLAG_START another
+	 * multrun is requested, until the server has moved past the locally generated multruns.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param multrunFlag Either FitsFilenameServer.MULTRUN_FLAG_START or FitsFilenameServer.MULTRUN_FLAG_NEXT.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 * @exception Exception Thrown if the call to the filename-server fails, or the server's filename clashes
+	 *            with a locally generated one.
+	 * @see #fitsFilenameServer
+	 * @see #callServer
+	 * @see #fallbackGenerator
+	 * @see #reconcileCount
+	 */
+	protected String fetchFilename(char exposureCode,String multrunFlag,String fileExtension) throws Exception
+	{
+		String filenameLeaf = null;
+		boolean reserved;
+		int attemptCount = 0;
+
+		synchronized(fitsFilenameServer)
+		{
+			do
+			{
+				filenameLeaf = callServer(exposureCode,multrunFlag,fileExtension);
+				if(fallbackGenerator == null)
+					return filenameLeaf;
+				reserved = fallbackGenerator.isReserved(filenameLeaf);
+				fallbackGenerator.observe(filenameLeaf);
+				if(reserved)
+				{
+					synchronized(this)
+					{
+						reconcileCount++;
+					}
+					loci.log(Logging.VERBOSITY_INTERMEDIATE,"%s:fetchFilename:Discarding filename %s:"+
+						 "already generated locally.",this.getClass().getName(),filenameLeaf);
+					if(multrunFlag.equals(FitsFilenameServer.MULTRUN_FLAG_START) == false)
+					{
+						throw new Exception(this.getClass().getName()+":fetchFilename:Filename "+
+								    filenameLeaf+" clashes with a locally generated filename.");
+					}
+				}
+				attemptCount++;
+			}
+			while(reserved && (attemptCount <= fallbackGenerator.getReservedMultrunCount()));
+			if(reserved)
+			{
+				throw new Exception(this.getClass().getName()+":fetchFilename:Filename "+filenameLeaf+
+						    " still clashes with a locally generated filename after "+
+						    attemptCount+" attempts.");
+			}
+			return filenameLeaf;
+		}
+	}
+
+	/**
+	 * Call the filename-server to retrieve a filename leaf. Must be called whilst synchronized on
+	 * fitsFilenameServer.
+	 * @param exposureCode The exposure code of the filename.
+	 * @param multrunFlag Either FitsFilenameServer.MULTRUN_FLAG_START or FitsFilenameServer.MULTRUN_FLAG_NEXT.
+	 * @param fileExtension The file extension of the filename.
+	 * @return The filename leaf.
+	 * @exception Exception Thrown if the call to the filename-server fails.
+	 * @see #fitsFilenameServer
+	 */
+	protected String callServer(char exposureCode,String multrunFlag,String fileExtension) throws Exception
+	{
+		// fitsFilenameServer connection details and instrument code have already been setup.
+		fitsFilenameServer.setExposureCode(exposureCode);
+		fitsFilenameServer.setMultrunFlag(multrunFlag);
+		fitsFilenameServer.setFileExtension(fileExtension);
+		fitsFilenameServer.run();
+		if(fitsFilenameServer.getRunException() != null)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":callServer:Failed to get a filename:",
+					    fitsFilenameServer.getRunException());
+		}
+		if(fitsFilenameServer.isReturnStatusOK() == false)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":callServer:Failed to get a filename:"+
+					    fitsFilenameServer.getReturnMessage());
+		}
+		return fitsFilenameServer.getReturnFilename();
+	}
+
+	/**
+	 * Get the date and multrun number from a LT filename leaf, which is of the form:
+	 * <i>instrument</i>_<i>exposurecode</i>_<i>date</i>_<i>multrun</i>_<i>run</i>_<i>window</i>_<i>pipeline</i>
+	 * .<i>extension</i>, e.g. k_f_20250801_1_1_1_0.fits.
+	 * @param filenameLeaf The filename leaf.
+	 * @return A string of the form <i>date</i>_<i>multrun</i>, or null if the filename cannot be parsed.
+	 */
+	protected static String getMultrunKey(String filenameLeaf)
+	{
+		String partList[] = null;
+
+		if(filenameLeaf == null)
+			return null;
+		partList = filenameLeaf.split("_");
+		if(partList.length < 5)
+			return null;
+		return partList[2]+"_"+partList[3];
+	}
+
+	/**
+	 * Increment the number of filenames returned from a prefetched lease.
+	 * @see #leaseHitCount
+	 */
+	protected synchronized void leaseHit()
+	{
+		leaseHitCount++;
+	}
+
+	/**
+	 * Increment the number of filenames retrieved synchronously from the filename-server.
+	 * @see #leaseMissCount
+	 */
+	protected synchronized void leaseMiss()
+	{
+		leaseMissCount++;
+	}
+
+	/**
+	 * Inner class holding a leased filename.
+	 */
+	protected static class Lease
+	{
+		/**
+		 * The filename leaf.
+		 */
+		protected String filenameLeaf = null;
+		/**
+		 * Whether this is the first filename of a multrun (MULTRUN_FLAG_START).
+		 */
+		protected boolean start = false;
+		/**
+		 * When the filename was leased, in milliseconds since the epoch.
+		 */
+		protected long createTime = 0;
+
+		/**
+		 * Constructor.
+		 * @param filenameLeaf The filename leaf.
+		 * @param start Whether this is the first filename of a multrun.
+		 */
+		public Lease(String filenameLeaf,boolean start)
+		{
+			this.filenameLeaf = filenameLeaf;
+			this.start = start;
+			this.createTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Inner class holding the leases for one exposure code. Fields are accessed whilst synchronized on the queue.
+	 */
+	protected static class LeaseQueue
+	{
+		/**
+		 * The exposure code.
+		 */
+		protected char exposureCode;
+		/**
+		 * The file extension of the leased filenames.
+		 */
+		protected String fileExtension = null;
+		/**
+		 * The leased filenames, in the order they were allocated by the server.
+		 */
+		protected LinkedList<Lease> leaseList = new LinkedList<Lease>();
+		/**
+		 * The date and multrun number of the current multrun, or null if it is not known (or the leases
+		 * have become inconsistent with the server).
+		 */
+		protected String multrunKey = null;
+		/**
+		 * Incremented whenever the leases are discarded, so a prefetch in progress knows to discard it's results.
+		 */
+		protected long generation = 0;
+		/**
+		 * Whether a prefetch is in progress.
+		 */
+		protected boolean prefetching = false;
+		/**
+		 * Whether the current multrun was started by the local filename generator.
+		 */
+		protected boolean localMultrun = false;
+
+		/**
+		 * Constructor.
+		 * @param exposureCode The exposure code.
+		 */
+		public LeaseQueue(char exposureCode)
+		{
+			this.exposureCode = exposureCode;
+		}
+	}
+
+	/**
+	 * Inner class, run on the prefetch thread, which leases filenames from the filename-server
+	 * and adds them to a lease queue.
+	 */
+	protected class PrefetchTask implements Runnable
+	{
+		/**
+		 * The queue to add leases to.
+		 */
+		protected LeaseQueue queue = null;
+		/**
+		 * The generation of the queue when the task was submitted. If it changes, the task's filenames are
+		 * discarded.
+		 */
+		protected long generation = 0;
+		/**
+		 * Whether to lease the first filename of a new multrun before the following filenames.
+		 */
+		protected boolean start = false;
+		/**
+		 * The number of following (MULTRUN_FLAG_NEXT) filenames to lease.
+		 */
+		protected int count = 0;
+
+		/**
+		 * Constructor.
+		 * @param queue The queue to add leases to.
+		 * @param generation The generation of the queue.
+		 * @param start Whether to lease the first filename of a new multrun.
+		 * @param count The number of following filenames to lease.
+		 */
+		public PrefetchTask(LeaseQueue queue,long generation,boolean start,int count)
+		{
+			this.queue = queue;
+			this.generation = generation;
+			this.start = start;
+			this.count = count;
+		}
+
+		/**
+		 * Run method. Each filename is retrieved from the filename-server, and checked against the queue:
+		 * if the queue's generation has changed the filename is discarded and the task stops. If the filename's
+		 * multrun differs from the queue's multrun, another client has started a multrun on the server,
+		 * so the filename is discarded, the queue's multrun is cleared (stopping further prefetches) and the task
+		 * stops. Otherwise the lease is added to the queue, and any thread waiting on the queue notified.
+		 * @see #fetchFilename
+		 * @see #getMultrunKey
+		 * @see #discardLease
+		 */
+		public void run()
+		{
+			Lease lease = null;
+			String filenameLeaf = null;
+			String fileExtension = null;
+			boolean leaseStart;
+
+			try
+			{
+				synchronized(queue)
+				{
+					fileExtension = queue.fileExtension;
+				}
+				for(int i = 0; i < count+(start ? 1 : 0); i++)
+				{
+					leaseStart = start && (i == 0);
+					filenameLeaf = fetchFilename(queue.exposureCode,(leaseStart ?
+						     FitsFilenameServer.MULTRUN_FLAG_START : FitsFilenameServer.MULTRUN_FLAG_NEXT),
+								     fileExtension);
+					lease = new Lease(filenameLeaf,leaseStart);
+					synchronized(queue)
+					{
+						if(queue.generation != generation)
+						{
+							discardLease(lease,"leases discarded whilst prefetching");
+							return;
+						}
+						if(leaseStart)
+							queue.multrunKey = getMultrunKey(filenameLeaf);
+						else if((queue.multrunKey == null)||
+							(queue.multrunKey.equals(getMultrunKey(filenameLeaf)) == false))
+						{
+							discardLease(lease,"multrun "+getMultrunKey(filenameLeaf)+
+								     " does not match "+queue.multrunKey);
+							queue.multrunKey = null;
+							return;
+						}
+						queue.leaseList.addLast(lease);
+						queue.notifyAll();
+					}
+				}
+			}
+			catch(Exception e)
+			{
+				loci.error(this.getClass().getName()+":run:Prefetching filename failed:",e);
+			}
+			finally
+			{
+				synchronized(queue)
+				{
+					if(queue.generation == generation)
+						queue.prefetching = false;
+					queue.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+// LociISSFitsHeaderPrefetchThread.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+
+import ngat.message.ISS_INST.*;
+import ngat.util.logging.*;
+
+/**
+ * This class is a thread that fetches the ISS (RCS) FITS headers (using GET_FITS) in the background.
+ * It is used by the pipelined MULTRUN, to fetch the FITS headers for the next frame whilst the current
+ * frame is exposing and reading out. The thread waits for a start delay (so the headers are fetched near
+ * the end of the current exposure), then sends the GET_FITS command to the ISS, and stores the returned
+ * done message and the time the request was made.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see MULTRUNImplementation
+ * @see Loci#sendISSCommand
+ */
+public class LociISSFitsHeaderPrefetchThread extends Thread
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Field holding the instance of the loci currently executing, used to send the ISS command, log etc.
+	 */
+	private Loci loci = null;
+	/**
+	 * The server connection thread the MULTRUN command is running on. GET_FITS is sent on behalf of this thread,
+	 * so an abort of the MULTRUN also stops the GET_FITS.
+	 */
+	private LociTCPServerConnectionThread serverConnectionThread = null;
+	/**
+	 * The id of the command the GET_FITS is being sent on behalf of.
+	 */
+	private String commandId = null;
+	/**
+	 * How long to wait, in milliseconds, after the thread has been started, before sending the GET_FITS
+	 * command to the ISS.
+	 */
+	private long startDelay = 0;
+	/**
+	 * The time (in milliseconds since the epoch) the GET_FITS command was sent to the ISS,
+	 * or 0 if it has not been sent.
+	 */
+	private long requestTime = 0;
+	/**
+	 * The done message returned from the ISS, or null if the command has not completed (or was cancelled).
+	 */
+	private INST_TO_ISS_DONE done = null;
+	/**
+	 * Whether the prefetch has been cancelled.
+	 */
+	private boolean cancelled = false;
+	/**
+	 * The configuration snapshot pinned by the MULTRUN command, retrieved when this thread is constructed
+	 * (on the MULTRUN's thread), and pinned to this thread whilst it runs.
+	 * @see LociStatus#getActiveConfigSnapshot
+	 * @see LociStatus#pinConfigSnapshot(LociConfigSnapshot)
+	 */
+	private LociConfigSnapshot configSnapshot = null;
+
+	/**
+	 * The constructor. This must be called on the command's thread, as the configuration snapshot pinned by
+	 * the command is retrieved here.
+	 * @param l The loci object.
+	 * @param sct The server connection thread the command is running on.
+	 * @param id The id of the command the GET_FITS is being sent on behalf of.
+	 * @param delay How long to wait before sending the GET_FITS command, in milliseconds.
+	 * @see #loci
+	 * @see #serverConnectionThread
+	 * @see #commandId
+	 * @see #startDelay
+	 * @see #configSnapshot
+	 */
+	public LociISSFitsHeaderPrefetchThread(Loci l,LociTCPServerConnectionThread sct,String id,long delay)
+	{
+		super("LociISSFitsHeaderPrefetchThread:"+id);
+		loci = l;
+		serverConnectionThread = sct;
+		commandId = id;
+		startDelay = delay;
+		configSnapshot = loci.getStatus().getActiveConfigSnapshot();
+	}
+
+	/**
+	 * Run method, called when the thread is started.
+	 * We wait for startDelay milliseconds (or until cancel is called). If we have not been cancelled,
+	 * we record the request time and send a GET_FITS command to the ISS using loci's sendISSCommand.
+	 * The returned done message is stored. The command's configuration snapshot is pinned to this thread
+	 * whilst it runs.
+	 * @see #configSnapshot
+	 * @see #startDelay
+	 * @see #cancelled
+	 * @see #requestTime
+	 * @see #done
+	 * @see Loci#sendISSCommand
+	 */
+	public void run()
+	{
+		loci.getStatus().pinConfigSnapshot(configSnapshot);
+		try
+		{
+			prefetch();
+		}
+		finally
+		{
+			loci.getStatus().unpinConfigSnapshot();
+		}
+	}
+
+	/**
+	 * Wait for startDelay milliseconds (or until cancel is called), then send the GET_FITS command
+	 * and store the returned done message.
+	 * @see #run
+	 */
+	protected void prefetch()
+	{
+		INST_TO_ISS_DONE instToISSDone = null;
+		long endTime,now;
+
+		endTime = System.currentTimeMillis()+startDelay;
+		synchronized(this)
+		{
+			now = System.currentTimeMillis();
+			while((cancelled == false)&&(now < endTime))
+			{
+				try
+				{
+					wait(endTime-now);
+				}
+				catch(InterruptedException e)
+				{
+				}
+				now = System.currentTimeMillis();
+			}
+			if(cancelled)
+				return;
+			requestTime = now;
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":run:Sending GET_FITS for command:"+
+			 commandId+".");
+		instToISSDone = loci.sendISSCommand(new GET_FITS(commandId),serverConnectionThread);
+		synchronized(this)
+		{
+			done = instToISSDone;
+		}
+	}
+
+	/**
+	 * Cancel the prefetch. If the thread is still waiting for the start delay to expire, it returns without
+	 * sending the GET_FITS command.
+	 * @see #cancelled
+	 */
+	public synchronized void cancel()
+	{
+		cancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the prefetch to finish (by waiting for the thread to terminate).
+	 * @exception InterruptedException Thrown if the wait is interrupted.
+	 */
+	public void waitForDone() throws InterruptedException
+	{
+		join();
+	}
+
+	/**
+	 * Return the done message returned from the ISS.
+	 * @return The done message, or null if the prefetch has not completed or was cancelled.
+	 * @see #done
+	 */
+	public synchronized INST_TO_ISS_DONE getDone()
+	{
+		return done;
+	}
+
+	/**
+	 * Return the time the GET_FITS command was sent to the ISS.
+	 * @return The time, in milliseconds since the epoch, or 0 if the command has not been sent.
+	 * @see #requestTime
+	 */
+	public synchronized long getRequestTime()
+	{
+		return requestTime;
+	}
+}
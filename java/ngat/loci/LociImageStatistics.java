@@ -0,0 +1,652 @@
+// LociImageStatistics.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is an in-process FITS image statistics engine. It is used by TWILIGHT_CALIBRATE to compute the
+ * mean and peak counts of each flat (used to calculate the next exposure length), rather than sending the
+ * frame to the DpRt and waiting for a full reduction.
+ * <p>
+ * The FITS file is memory mapped, and the (16 bit) image is split into bands of rows, which are processed
+ * in parallel by a pool of threads. The statistics can be computed from every pixel, or a strided sample
+ * (every <i>n</i>th pixel of every <i>n</i>th row). The following statistics are computed:
+ * <ul>
+ * <li>The mean and standard deviation of the (sampled) pixels.
+ * <li>The peak (maximum) pixel value.
+ * <li>The sigma clipped mean: the mean of the pixels within a number of standard deviations of the mean,
+ *     iterated a number of times (each iteration is another parallel pass over the image).
+ * <li>The saturation fraction: the fraction of pixels at or above the saturation level.
+ * </ul>
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see TWILIGHT_CALIBRATEImplementation#doFrame
+ * @see Loci#getImageStatistics
+ */
+public class LociImageStatistics
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The length of a FITS header/data block in bytes.
+	 */
+	public final static int FITS_BLOCK_LENGTH = 2880;
+	/**
+	 * The length of a FITS header card in bytes.
+	 */
+	public final static int FITS_CARD_LENGTH = 80;
+	/**
+	 * Index in the array returned by a StatisticsTask of the sum of the pixel values.
+	 */
+	protected final static int TASK_INDEX_SUM = 0;
+	/**
+	 * Index in the array returned by a StatisticsTask of the sum of the squares of the pixel values.
+	 */
+	protected final static int TASK_INDEX_SUM_SQUARED = 1;
+	/**
+	 * Index in the array returned by a StatisticsTask of the number of pixels.
+	 */
+	protected final static int TASK_INDEX_COUNT = 2;
+	/**
+	 * Index in the array returned by a StatisticsTask of the maximum pixel value.
+	 */
+	protected final static int TASK_INDEX_MAX = 3;
+	/**
+	 * Index in the array returned by a StatisticsTask of the number of saturated pixels.
+	 */
+	protected final static int TASK_INDEX_SATURATED = 4;
+	/**
+	 * The number of values in the array returned by a StatisticsTask.
+	 */
+	protected final static int TASK_VALUE_COUNT = 5;
+	/**
+	 * The pool of threads the bands of the image are processed on.
+	 */
+	private ThreadPoolExecutor executor = null;
+
+	/**
+	 * Constructor.
+	 * @param threadCount The number of threads used to process each image.
+	 * @see #executor
+	 */
+	public LociImageStatistics(int threadCount)
+	{
+		super();
+		threadCount = Math.max(1,threadCount);
+		executor = new ThreadPoolExecutor(threadCount,threadCount,60,TimeUnit.SECONDS,
+						  new LinkedBlockingQueue<Runnable>(),
+						  new LociClientConnectionExecutor.PoolThreadFactory(Thread.NORM_PRIORITY));
+	}
+
+	/**
+	 * Change the number of threads used to process each image.
+	 * @param threadCount The number of threads.
+	 * @see #executor
+	 */
+	public synchronized void setThreadCount(int threadCount)
+	{
+		threadCount = Math.max(1,threadCount);
+		if(threadCount > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(threadCount);
+			executor.setCorePoolSize(threadCount);
+		}
+		else
+		{
+			executor.setCorePoolSize(threadCount);
+			executor.setMaximumPoolSize(threadCount);
+		}
+	}
+
+	/**
+	 * Get the number of threads used to process each image.
+	 * @return The number of threads.
+	 * @see #executor
+	 */
+	public int getThreadCount()
+	{
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Compute the statistics of a FITS image.
+	 * @param filename The FITS image filename. The primary HDU must be a 2 dimensional 16 bit integer image.
+	 * @param sampleStride Only every sampleStride'th pixel of every sampleStride'th row is used. 1 uses
+	 *        every pixel.
+	 * @param clipSigma The number of standard deviations from the mean, outside which pixels are rejected
+	 *        when computing the clipped mean.
+	 * @param clipIterations The number of clipping iterations. If this is 0 the clipped mean is the mean.
+	 * @param saturationLevel Pixels with a value (after BZERO and BSCALE are applied) at or above this are
+	 *        counted as saturated.
+	 * @return The computed statistics.
+	 * @exception IOException Thrown if the file cannot be read, or is not a suitable FITS image.
+	 * @exception InterruptedException Thrown if the thread is interrupted whilst waiting for the statistics.
+	 * @see #parseHeader
+	 * @see #runTasks
+	 * @see Statistics
+	 */
+	public Statistics compute(String filename,int sampleStride,double clipSigma,int clipIterations,
+				  double saturationLevel) throws IOException, InterruptedException
+	{
+		RandomAccessFile file = null;
+		FileChannel channel = null;
+		MappedByteBuffer mappedBuffer = null;
+		ShortBuffer imageBuffer = null;
+		Statistics statistics = null;
+		double headerValueList[] = null;
+		double resultList[] = null;
+		double mean,standardDeviation,clippedMean,clippedStandardDeviation,lowLimit,highLimit;
+		long startTime,dataOffset,dataLength;
+		int naxis1,naxis2;
+
+		startTime = System.currentTimeMillis();
+		sampleStride = Math.max(1,sampleStride);
+		file = new RandomAccessFile(filename,"r");
+		try
+		{
+			channel = file.getChannel();
+			mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+			headerValueList = parseHeader(filename,mappedBuffer);
+			naxis1 = (int)(headerValueList[HEADER_INDEX_NAXIS1]);
+			naxis2 = (int)(headerValueList[HEADER_INDEX_NAXIS2]);
+			dataOffset = (long)(headerValueList[HEADER_INDEX_DATA_OFFSET]);
+			dataLength = ((long)naxis1)*((long)naxis2)*2L;
+			if(dataOffset+dataLength > channel.size())
+			{
+				throw new IOException(this.getClass().getName()+":compute:"+filename+
+						      ":File too short for "+naxis1+"x"+naxis2+" image.");
+			}
+			// FITS data is big endian, which is the default byte order of a ByteBuffer
+			mappedBuffer.position((int)dataOffset);
+			imageBuffer = mappedBuffer.slice().asShortBuffer();
+			// first pass: mean, standard deviation, peak and saturation
+			resultList = runTasks(imageBuffer,naxis1,naxis2,sampleStride,headerValueList,saturationLevel,
+					      Double.NEGATIVE_INFINITY,Double.POSITIVE_INFINITY);
+			if(resultList[TASK_INDEX_COUNT] < 1)
+			{
+				throw new IOException(this.getClass().getName()+":compute:"+filename+
+						      ":Image contains no pixels.");
+			}
+			mean = resultList[TASK_INDEX_SUM]/resultList[TASK_INDEX_COUNT];
+			standardDeviation = getStandardDeviation(resultList,mean);
+			statistics = new Statistics();
+			statistics.filename = filename;
+			statistics.mean = mean;
+			statistics.standardDeviation = standardDeviation;
+			statistics.peak = resultList[TASK_INDEX_MAX];
+			statistics.pixelCount = (long)(resultList[TASK_INDEX_COUNT]);
+			statistics.saturationFraction = resultList[TASK_INDEX_SATURATED]/resultList[TASK_INDEX_COUNT];
+			statistics.sampleStride = sampleStride;
+			// clipping passes
+			clippedMean = mean;
+			clippedStandardDeviation = standardDeviation;
+			for(int i = 0; i < clipIterations; i++)
+			{
+				lowLimit = clippedMean-(clipSigma*clippedStandardDeviation);
+				highLimit = clippedMean+(clipSigma*clippedStandardDeviation);
+				resultList = runTasks(imageBuffer,naxis1,naxis2,sampleStride,headerValueList,saturationLevel,
+						      lowLimit,highLimit);
+				if(resultList[TASK_INDEX_COUNT] < 1)
+					break;
+				clippedMean = resultList[TASK_INDEX_SUM]/resultList[TASK_INDEX_COUNT];
+				clippedStandardDeviation = getStandardDeviation(resultList,clippedMean);
+			}
+			statistics.clippedMean = clippedMean;
+		}
+		finally
+		{
+			file.close();
+		}
+		statistics.elapsedTime = System.currentTimeMillis()-startTime;
+		return statistics;
+	}
+
+	/**
+	 * Shutdown the pool of threads.
+	 * @see #executor
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Index in the array returned by parseHeader of NAXIS1.
+	 */
+	protected final static int HEADER_INDEX_NAXIS1 = 0;
+	/**
+	 * Index in the array returned by parseHeader of NAXIS2.
+	 */
+	protected final static int HEADER_INDEX_NAXIS2 = 1;
+	/**
+	 * Index in the array returned by parseHeader of BZERO.
+	 */
+	protected final static int HEADER_INDEX_BZERO = 2;
+	/**
+	 * Index in the array returned by parseHeader of BSCALE.
+	 */
+	protected final static int HEADER_INDEX_BSCALE = 3;
+	/**
+	 * Index in the array returned by parseHeader of the byte offset of the image data.
+	 */
+	protected final static int HEADER_INDEX_DATA_OFFSET = 4;
+
+	/**
+	 * Parse the primary FITS header, to retrieve the image dimensions, BZERO and BSCALE, and the offset
+	 * of the image data. The header must have BITPIX = 16 and NAXIS = 2.
+	 * @param filename The filename, for error messages.
+	 * @param buffer The mapped file.
+	 * @return An array of values, indexed by HEADER_INDEX_NAXIS1, HEADER_INDEX_NAXIS2, HEADER_INDEX_BZERO,
+	 *         HEADER_INDEX_BSCALE and HEADER_INDEX_DATA_OFFSET.
+	 * @exception IOException Thrown if the header is not complete, or is not a 2 dimensional 16 bit image.
+	 */
+	protected double[] parseHeader(String filename,ByteBuffer buffer) throws IOException
+	{
+		byte cardBytes[] = new byte[FITS_CARD_LENGTH];
+		double valueList[] = new double[HEADER_INDEX_DATA_OFFSET+1];
+		String card = null;
+		String keyword = null;
+		String value = null;
+		int position,bitpix,naxis;
+		boolean done;
+
+		bitpix = 0;
+		naxis = 0;
+		valueList[HEADER_INDEX_NAXIS1] = 0;
+		valueList[HEADER_INDEX_NAXIS2] = 0;
+		valueList[HEADER_INDEX_BZERO] = 0.0;
+		valueList[HEADER_INDEX_BSCALE] = 1.0;
+		position = 0;
+		done = false;
+		while(done == false)
+		{
+			if(position+FITS_CARD_LENGTH > buffer.limit())
+			{
+				throw new IOException(this.getClass().getName()+":parseHeader:"+filename+
+						      ":No END card found.");
+			}
+			buffer.position(position);
+			buffer.get(cardBytes);
+			position += FITS_CARD_LENGTH;
+			card = new String(cardBytes,"US-ASCII");
+			keyword = card.substring(0,8).trim();
+			if(keyword.equals("END"))
+			{
+				done = true;
+				continue;
+			}
+			if(card.charAt(8) != '=')
+				continue;
+			value = card.substring(10);
+			if(value.indexOf('/') > -1)
+				value = value.substring(0,value.indexOf('/'));
+			value = value.trim();
+			try
+			{
+				if(keyword.equals("BITPIX"))
+					bitpix = Integer.parseInt(value);
+				else if(keyword.equals("NAXIS"))
+					naxis = Integer.parseInt(value);
+				else if(keyword.equals("NAXIS1"))
+					valueList[HEADER_INDEX_NAXIS1] = Integer.parseInt(value);
+				else if(keyword.equals("NAXIS2"))
+					valueList[HEADER_INDEX_NAXIS2] = Integer.parseInt(value);
+				else if(keyword.equals("BZERO"))
+					valueList[HEADER_INDEX_BZERO] = Double.parseDouble(value);
+				else if(keyword.equals("BSCALE"))
+					valueList[HEADER_INDEX_BSCALE] = Double.parseDouble(value);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IOException(this.getClass().getName()+":parseHeader:"+filename+
+						      ":Illegal value for "+keyword+":"+value);
+			}
+		}
+		if((bitpix != 16)||(naxis != 2))
+		{
+			throw new IOException(this.getClass().getName()+":parseHeader:"+filename+
+					      ":Not a 2 dimensional 16 bit image:BITPIX = "+bitpix+":NAXIS = "+naxis);
+		}
+		// the data starts at the next block boundary after the END card
+		valueList[HEADER_INDEX_DATA_OFFSET] = ((position+FITS_BLOCK_LENGTH-1)/FITS_BLOCK_LENGTH)*
+			FITS_BLOCK_LENGTH;
+		return valueList;
+	}
+
+	/**
+	 * Split the (sampled) rows of the image into one band per thread, and process each band in parallel.
+	 * @param imageBuffer The image data.
+	 * @param naxis1 The number of columns in the image.
+	 * @param naxis2 The number of rows in the image.
+	 * @param sampleStride The sample stride.
+	 * @param headerValueList The parsed header values, used for BZERO and BSCALE.
+	 * @param saturationLevel The saturation level.
+	 * @param lowLimit Pixels below this value are ignored.
+	 * @param highLimit Pixels above this value are ignored.
+	 * @return An array of values (indexed by TASK_INDEX_SUM etc) combined from all the bands.
+	 * @exception IOException Thrown if a band failed.
+	 * @exception InterruptedException Thrown if the thread is interrupted whilst waiting for the bands.
+	 * @see #executor
+	 * @see StatisticsTask
+	 */
+	protected double[] runTasks(ShortBuffer imageBuffer,int naxis1,int naxis2,int sampleStride,
+				    double headerValueList[],double saturationLevel,double lowLimit,double highLimit)
+		throws IOException, InterruptedException
+	{
+		List<Future<double[]>> futureList = null;
+		double resultList[] = null;
+		double taskResultList[] = null;
+		int sampledRowCount,bandRowCount,startRow,endRow,threadCount;
+
+		threadCount = getThreadCount();
+		sampledRowCount = (naxis2+sampleStride-1)/sampleStride;
+		bandRowCount = Math.max(1,(sampledRowCount+threadCount-1)/threadCount)*sampleStride;
+		futureList = new Vector<Future<double[]>>();
+		for(startRow = 0; startRow < naxis2; startRow += bandRowCount)
+		{
+			endRow = Math.min(naxis2,startRow+bandRowCount);
+			futureList.add(executor.submit(new StatisticsTask(imageBuffer,naxis1,startRow,endRow,sampleStride,
+									  headerValueList[HEADER_INDEX_BZERO],
+									  headerValueList[HEADER_INDEX_BSCALE],
+									  saturationLevel,lowLimit,highLimit)));
+		}
+		resultList = new double[TASK_VALUE_COUNT];
+		resultList[TASK_INDEX_MAX] = Double.NEGATIVE_INFINITY;
+		try
+		{
+			for(int i = 0; i < futureList.size(); i++)
+			{
+				taskResultList = futureList.get(i).get();
+				resultList[TASK_INDEX_SUM] += taskResultList[TASK_INDEX_SUM];
+				resultList[TASK_INDEX_SUM_SQUARED] += taskResultList[TASK_INDEX_SUM_SQUARED];
+				resultList[TASK_INDEX_COUNT] += taskResultList[TASK_INDEX_COUNT];
+				resultList[TASK_INDEX_SATURATED] += taskResultList[TASK_INDEX_SATURATED];
+				resultList[TASK_INDEX_MAX] = Math.max(resultList[TASK_INDEX_MAX],
+								      taskResultList[TASK_INDEX_MAX]);
+			}
+		}
+		catch(ExecutionException e)
+		{
+			for(int i = 0; i < futureList.size(); i++)
+				futureList.get(i).cancel(true);
+			throw new IOException(this.getClass().getName()+":runTasks:Computing statistics failed:"+
+					      e.getCause());
+		}
+		return resultList;
+	}
+
+	/**
+	 * Compute the standard deviation from the sum of the squares returned by runTasks.
+	 * @param resultList The values returned by runTasks.
+	 * @param mean The mean.
+	 * @return The standard deviation.
+	 */
+	protected double getStandardDeviation(double resultList[],double mean)
+	{
+		double variance;
+
+		variance = (resultList[TASK_INDEX_SUM_SQUARED]/resultList[TASK_INDEX_COUNT])-(mean*mean);
+		if(variance < 0.0)
+			return 0.0;
+		return Math.sqrt(variance);
+	}
+
+	/**
+	 * Inner class that processes a band of rows of the image.
+	 */
+	protected static class StatisticsTask implements Callable<double[]>
+	{
+		/**
+		 * The image data. Only absolute gets are used, so the buffer can be shared between tasks.
+		 */
+		protected ShortBuffer imageBuffer = null;
+		/**
+		 * The number of columns in the image.
+		 */
+		protected int naxis1;
+		/**
+		 * The first row of the band.
+		 */
+		protected int startRow;
+		/**
+		 * The row after the last row of the band.
+		 */
+		protected int endRow;
+		/**
+		 * The sample stride.
+		 */
+		protected int sampleStride;
+		/**
+		 * The FITS BZERO value.
+		 */
+		protected double bzero;
+		/**
+		 * The FITS BSCALE value.
+		 */
+		protected double bscale;
+		/**
+		 * The saturation level.
+		 */
+		protected double saturationLevel;
+		/**
+		 * Pixels below this value are ignored.
+		 */
+		protected double lowLimit;
+		/**
+		 * Pixels above this value are ignored.
+		 */
+		protected double highLimit;
+
+		/**
+		 * Constructor.
+		 * @param imageBuffer The image data.
+		 * @param naxis1 The number of columns in the image.
+		 * @param startRow The first row of the band.
+		 * @param endRow The row after the last row of the band.
+		 * @param sampleStride The sample stride.
+		 * @param bzero The FITS BZERO value.
+		 * @param bscale The FITS BSCALE value.
+		 * @param saturationLevel The saturation level.
+		 * @param lowLimit Pixels below this value are ignored.
+		 * @param highLimit Pixels above this value are ignored.
+		 */
+		public StatisticsTask(ShortBuffer imageBuffer,int naxis1,int startRow,int endRow,int sampleStride,
+				      double bzero,double bscale,double saturationLevel,double lowLimit,double highLimit)
+		{
+			this.imageBuffer = imageBuffer;
+			this.naxis1 = naxis1;
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.sampleStride = sampleStride;
+			this.bzero = bzero;
+			this.bscale = bscale;
+			this.saturationLevel = saturationLevel;
+			this.lowLimit = lowLimit;
+			this.highLimit = highLimit;
+		}
+
+		/**
+		 * Process the band of rows.
+		 * @return An array of values, indexed by TASK_INDEX_SUM etc.
+		 */
+		public double[] call()
+		{
+			double resultList[] = new double[TASK_VALUE_COUNT];
+			double value,sum,sumSquared,max;
+			long count,saturatedCount;
+			int rowOffset;
+
+			sum = 0.0;
+			sumSquared = 0.0;
+			max = Double.NEGATIVE_INFINITY;
+			count = 0;
+			saturatedCount = 0;
+			for(int y = startRow; y < endRow; y += sampleStride)
+			{
+				rowOffset = y*naxis1;
+				for(int x = 0; x < naxis1; x += sampleStride)
+				{
+					value = (((double)imageBuffer.get(rowOffset+x))*bscale)+bzero;
+					if((value < lowLimit)||(value > highLimit))
+						continue;
+					sum += value;
+					sumSquared += value*value;
+					count++;
+					if(value > max)
+						max = value;
+					if(value >= saturationLevel)
+						saturatedCount++;
+				}
+			}
+			resultList[TASK_INDEX_SUM] = sum;
+			resultList[TASK_INDEX_SUM_SQUARED] = sumSquared;
+			resultList[TASK_INDEX_COUNT] = count;
+			resultList[TASK_INDEX_MAX] = max;
+			resultList[TASK_INDEX_SATURATED] = saturatedCount;
+			return resultList;
+		}
+	}
+
+	/**
+	 * Inner class holding the statistics computed for an image.
+	 */
+	public static class Statistics
+	{
+		/**
+		 * The FITS image filename.
+		 */
+		protected String filename = null;
+		/**
+		 * The mean pixel value.
+		 */
+		protected double mean = 0.0;
+		/**
+		 * The standard deviation of the pixel values.
+		 */
+		protected double standardDeviation = 0.0;
+		/**
+		 * The sigma clipped mean pixel value.
+		 */
+		protected double clippedMean = 0.0;
+		/**
+		 * The peak pixel value.
+		 */
+		protected double peak = 0.0;
+		/**
+		 * The fraction of pixels at or above the saturation level.
+		 */
+		protected double saturationFraction = 0.0;
+		/**
+		 * The number of pixels the statistics were computed from.
+		 */
+		protected long pixelCount = 0;
+		/**
+		 * The sample stride used.
+		 */
+		protected int sampleStride = 1;
+		/**
+		 * How long the statistics took to compute, in milliseconds.
+		 */
+		protected long elapsedTime = 0;
+
+		/**
+		 * Get the FITS image filename.
+		 * @return The filename.
+		 */
+		public String getFilename()
+		{
+			return filename;
+		}
+
+		/**
+		 * Get the mean pixel value.
+		 * @return The mean.
+		 */
+		public double getMean()
+		{
+			return mean;
+		}
+
+		/**
+		 * Get the standard deviation of the pixel values.
+		 * @return The standard deviation.
+		 */
+		public double getStandardDeviation()
+		{
+			return standardDeviation;
+		}
+
+		/**
+		 * Get the sigma clipped mean pixel value.
+		 * @return The clipped mean.
+		 */
+		public double getClippedMean()
+		{
+			return clippedMean;
+		}
+
+		/**
+		 * Get the peak pixel value.
+		 * @return The peak.
+		 */
+		public double getPeak()
+		{
+			return peak;
+		}
+
+		/**
+		 * Get the fraction of pixels at or above the saturation level.
+		 * @return The saturation fraction, between 0 and 1.
+		 */
+		public double getSaturationFraction()
+		{
+			return saturationFraction;
+		}
+
+		/**
+		 * Get the number of pixels the statistics were computed from.
+		 * @return The number of pixels.
+		 */
+		public long getPixelCount()
+		{
+			return pixelCount;
+		}
+
+		/**
+		 * Get the sample stride used.
+		 * @return The sample stride.
+		 */
+		public int getSampleStride()
+		{
+			return sampleStride;
+		}
+
+		/**
+		 * Get how long the statistics took to compute.
+		 * @return The time in milliseconds.
+		 */
+		public long getElapsedTime()
+		{
+			return elapsedTime;
+		}
+
+		/**
+		 * Return a string describing the statistics, for logging.
+		 * @return The string.
+		 */
+		public String toString()
+		{
+			return "mean:"+mean+":standard deviation:"+standardDeviation+":clipped mean:"+clippedMean+
+				":peak:"+peak+":saturation fraction:"+saturationFraction+":pixels:"+pixelCount+
+				":stride:"+sampleStride+":time:"+elapsedTime+" ms";
+		}
+	}
+}
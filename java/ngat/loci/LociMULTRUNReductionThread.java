@@ -0,0 +1,425 @@
+// LociMULTRUNReductionThread.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.util.*;
+
+import ngat.message.ISS_INST.*;
+import ngat.util.logging.*;
+
+/**
+ * This class is a thread that reduces MULTRUN frames using the data pipeline (DpRt) asynchronously,
+ * so the next frame can be exposed whilst the previous one is being reduced.
+ * Filenames are added to a bounded queue using addFilename (which blocks when the queue is full,
+ * applying back-pressure to the MULTRUN). The thread reduces each queued frame in turn by calling the
+ * implementation's reduceExpose method (which calls Loci.sendDpRtCommand), and sends a MULTRUN_DP_ACK 
+ * to the client as each reduction completes. finish and waitForDrain are called at the end of the MULTRUN,
+ * to wait for all queued frames to be reduced before MULTRUN_DONE is returned.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see MULTRUNImplementation
+ * @see EXPOSEImplementation#reduceExpose
+ */
+public class LociMULTRUNReductionThread extends Thread
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * How long to wait (in milliseconds) between checks for the command being aborted, 
+	 * when waiting for queue space or for the queue to drain.
+	 */
+	public final static long ABORT_CHECK_TIME = 100;
+	/**
+	 * The MULTRUN implementation, used to call reduceExpose.
+	 */
+	private MULTRUNImplementation implementation = null;
+	/**
+	 * The MULTRUN command being implemented.
+	 */
+	private MULTRUN multRunCommand = null;
+	/**
+	 * The server connection thread the MULTRUN command is running on, used to send MULTRUN_DP_ACKs to the
+	 * client and check for aborts. It's sendAcknowledge method serialises the acknowledgements sent by this
+	 * thread, the MULTRUN thread and any forwarded sub-command acknowledgements. The abort flag is only
+	 * read when this object's lock is not held, and the connection's acknowledge lock is never held whilst
+	 * acquiring this object's lock, so the locks cannot be taken in opposite orders.
+	 * @see LociTCPServerConnectionThread#sendAcknowledge
+	 * @see LociTCPServerConnectionThread#getAcknowledgeLock
+	 */
+	private LociTCPServerConnectionThread serverConnectionThread = null;
+	/**
+	 * The time to complete to put in each MULTRUN_DP_ACK sent to the client, in milliseconds.
+	 */
+	private int acknowledgeTimeToComplete = 0;
+	/**
+	 * The list of FITS filenames waiting to be reduced.
+	 */
+	private LinkedList<String> filenameQueue = null;
+	/**
+	 * The maximum number of filenames allowed in the queue, before addFilename blocks.
+	 */
+	private int queueDepth = 1;
+	/**
+	 * Whether the frame currently removed from the queue is being reduced.
+	 */
+	private boolean reducing = false;
+	/**
+	 * Set when no more filenames will be added to the queue.
+	 */
+	private boolean finished = false;
+	/**
+	 * Set when the MULTRUN has been terminated, and no more reductions or acknowledgements should be done.
+	 * This is only set whilst holding the connection's acknowledge lock, and is volatile so it can be read
+	 * without holding this object's lock.
+	 * @see #cancel
+	 */
+	private volatile boolean cancelled = false;
+	/**
+	 * Set if a reduction, or sending a MULTRUN_DP_ACK, failed.
+	 */
+	private boolean failed = false;
+	/**
+	 * The error number of the first failure.
+	 */
+	private int errorNum = 0;
+	/**
+	 * The error string of the first failure.
+	 */
+	private String errorString = null;
+	/**
+	 * A MULTRUN_DONE containing the data pipeline results of the last successfully reduced frame,
+	 * or null if no frame has been reduced.
+	 */
+	private MULTRUN_DONE lastReduceDone = null;
+	/**
+	 * The status object, used to pin the MULTRUN's configuration snapshot to this thread.
+	 */
+	private LociStatus status = null;
+	/**
+	 * The configuration snapshot pinned by the MULTRUN command, retrieved when this thread is constructed
+	 * (on the MULTRUN's thread), and pinned to this thread whilst it runs, so the reductions read the
+	 * same configuration as the MULTRUN.
+	 * @see LociStatus#getActiveConfigSnapshot
+	 * @see LociStatus#pinConfigSnapshot(LociConfigSnapshot)
+	 */
+	private LociConfigSnapshot configSnapshot = null;
+
+	/**
+	 * The constructor. This must be called on the MULTRUN's thread, as the configuration snapshot pinned by
+	 * the MULTRUN is retrieved here.
+	 * @param impl The MULTRUN implementation.
+	 * @param command The MULTRUN command being implemented.
+	 * @param sct The server connection thread the MULTRUN is running on.
+	 * @param s The status object.
+	 * @param depth The maximum number of filenames allowed in the queue (at least 1).
+	 * @param ackTime The time to complete to put in each MULTRUN_DP_ACK sent to the client, in milliseconds.
+	 * @see #implementation
+	 * @see #multRunCommand
+	 * @see #serverConnectionThread
+	 * @see #queueDepth
+	 * @see #acknowledgeTimeToComplete
+	 * @see #status
+	 * @see #configSnapshot
+	 */
+	public LociMULTRUNReductionThread(MULTRUNImplementation impl,MULTRUN command,
+					  LociTCPServerConnectionThread sct,LociStatus s,int depth,int ackTime)
+	{
+		super("LociMULTRUNReductionThread:"+command.getId());
+		implementation = impl;
+		multRunCommand = command;
+		serverConnectionThread = sct;
+		queueDepth = Math.max(1,depth);
+		acknowledgeTimeToComplete = ackTime;
+		filenameQueue = new LinkedList<String>();
+		status = s;
+		configSnapshot = status.getActiveConfigSnapshot();
+	}
+
+	/**
+	 * Run method, called when the thread is started. We remove filenames from the queue in turn,
+	 * and call reduceFrame for each of them, until the queue is empty and finish has been called,
+	 * or cancel has been called, or a reduction fails. The MULTRUN's configuration snapshot is pinned
+	 * to this thread whilst it runs.
+	 * @see #filenameQueue
+	 * @see #reduceFrame
+	 * @see #configSnapshot
+	 */
+	public void run()
+	{
+		status.pinConfigSnapshot(configSnapshot);
+		try
+		{
+			reduceQueue();
+		}
+		finally
+		{
+			status.unpinConfigSnapshot();
+		}
+	}
+
+	/**
+	 * Remove filenames from the queue in turn, and call reduceFrame for each of them, until the queue is 
+	 * empty and finish has been called, or cancel has been called, or a reduction fails.
+	 * @see #run
+	 * @see #filenameQueue
+	 * @see #reduceFrame
+	 */
+	protected void reduceQueue()
+	{
+		String filename = null;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				reducing = false;
+				notifyAll();
+				while((filenameQueue.size() == 0)&&(finished == false)&&(cancelled == false)&&
+				      (failed == false))
+				{
+					try
+					{
+						// cancel does not take this object's lock to notify us
+						wait(ABORT_CHECK_TIME);
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				if(cancelled || failed || (filenameQueue.size() == 0))
+					return;
+				filename = filenameQueue.removeFirst();
+				reducing = true;
+				// let a blocked addFilename know there is now space in the queue
+				notifyAll();
+			}
+			reduceFrame(filename);
+		}
+	}
+
+	/**
+	 * Add a filename to the queue to be reduced. If the queue is full, we wait until there is space,
+	 * a reduction fails, or the command is aborted. The abort flag is checked without holding
+	 * this object's lock.
+	 * @param filename The FITS filename to reduce.
+	 * @return true if the filename was added to the queue, false if a reduction has failed, or
+	 *         the command has been aborted.
+	 * @see #filenameQueue
+	 * @see #queueDepth
+	 * @see #ABORT_CHECK_TIME
+	 */
+	public boolean addFilename(String filename)
+	{
+		while(serverConnectionThread.getAbortProcessCommand() == false)
+		{
+			synchronized(this)
+			{
+				if(failed || cancelled)
+					return false;
+				if(filenameQueue.size() < queueDepth)
+				{
+					filenameQueue.addLast(filename);
+					notifyAll();
+					return true;
+				}
+				try
+				{
+					wait(ABORT_CHECK_TIME);
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tell the thread no more filenames will be added to the queue. The thread terminates once the queue
+	 * is empty.
+	 * @see #finished
+	 */
+	public synchronized void finish()
+	{
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until all the queued frames have been reduced, a reduction fails, or the command is aborted.
+	 * The abort flag is checked without holding this object's lock.
+	 * @return true if all the queued frames were reduced successfully, false otherwise.
+	 * @see #ABORT_CHECK_TIME
+	 */
+	public boolean waitForDrain()
+	{
+		while(serverConnectionThread.getAbortProcessCommand() == false)
+		{
+			synchronized(this)
+			{
+				if(failed || cancelled)
+					return false;
+				if((filenameQueue.size() == 0)&&(reducing == false))
+					return true;
+				try
+				{
+					wait(ABORT_CHECK_TIME);
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Cancel any outstanding reductions. Any queued frames are discarded (the thread stops taking frames from
+	 * the queue), and no more MULTRUN_DP_ACKs are sent to the client once this method returns
+	 * (a reduction already in progress is allowed to complete). Only the connection's acknowledge lock
+	 * is taken, so an acknowledgement being sent completes before cancelled is set.
+	 * @see #cancelled
+	 * @see LociTCPServerConnectionThread#getAcknowledgeLock
+	 */
+	public void cancel()
+	{
+		synchronized(serverConnectionThread.getAcknowledgeLock())
+		{
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * Return whether a reduction (or sending the reduction's acknowledgement) has failed.
+	 * @return true if a failure occured.
+	 * @see #failed
+	 */
+	public synchronized boolean getFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * Return the error number of the first failure.
+	 * @return The error number.
+	 * @see #errorNum
+	 */
+	public synchronized int getErrorNum()
+	{
+		return errorNum;
+	}
+
+	/**
+	 * Return the error string of the first failure.
+	 * @return The error string.
+	 * @see #errorString
+	 */
+	public synchronized String getErrorString()
+	{
+		return errorString;
+	}
+
+	/**
+	 * Return a MULTRUN_DONE containing the data pipeline results of the last successfully reduced frame.
+	 * @return The MULTRUN_DONE, or null if no frame has been reduced.
+	 * @see #lastReduceDone
+	 */
+	public synchronized MULTRUN_DONE getLastReduceDone()
+	{
+		return lastReduceDone;
+	}
+
+	/**
+	 * Reduce a frame. We call the implementation's reduceExpose method, and then send a MULTRUN_DP_ACK
+	 * containing the results to the client (unless the thread has been cancelled).
+	 * If either fails, setFailed is called.
+	 * @param filename The FITS filename to reduce.
+	 * @see EXPOSEImplementation#reduceExpose
+	 * @see #setFailed
+	 * @see #lastReduceDone
+	 */
+	protected void reduceFrame(String filename)
+	{
+		MULTRUN_DONE reduceDone = null;
+		MULTRUN_DP_ACK multRunDpAck = null;
+		IOException sendException = null;
+
+		reduceDone = new MULTRUN_DONE(multRunCommand.getId());
+		if(implementation.reduceExpose(multRunCommand,reduceDone,filename) == false)
+		{
+			setFailed(reduceDone.getErrorNum(),reduceDone.getErrorString());
+			return;
+		}
+		// send acknowledge to say frame has been reduced.
+		multRunDpAck = new MULTRUN_DP_ACK(multRunCommand.getId());
+		multRunDpAck.setTimeToComplete(acknowledgeTimeToComplete);
+		// copy Data Pipeline results from DONE to ACK
+		multRunDpAck.setFilename(reduceDone.getFilename());
+		multRunDpAck.setCounts(reduceDone.getCounts());
+		multRunDpAck.setSeeing(reduceDone.getSeeing());
+		multRunDpAck.setXpix(reduceDone.getXpix());
+		multRunDpAck.setYpix(reduceDone.getYpix());
+		multRunDpAck.setPhotometricity(reduceDone.getPhotometricity());
+		multRunDpAck.setSkyBrightness(reduceDone.getSkyBrightness());
+		multRunDpAck.setSaturation(reduceDone.getSaturation());
+		// hold the acknowledge lock, so cancel cannot return whilst we are sending the acknowledgement.
+		// No other lock is taken whilst holding it.
+		synchronized(serverConnectionThread.getAcknowledgeLock())
+		{
+			if(cancelled)
+				return;
+			try
+			{
+				serverConnectionThread.sendAcknowledge(multRunDpAck);
+			}
+			catch(IOException e)
+			{
+				sendException = e;
+			}
+		}
+		if(sendException != null)
+		{
+			setFailed(LociConstants.LOCI_ERROR_CODE_BASE+1003,"sendAcknowledge(DP) failed:"+
+				  sendException.toString());
+			return;
+		}
+		synchronized(this)
+		{
+			lastReduceDone = reduceDone;
+		}
+	}
+
+	/**
+	 * Return whether the thread has been cancelled.
+	 * @return true if the thread has been cancelled.
+	 * @see #cancelled
+	 */
+	protected boolean getCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Record a failure. Only the first failure's error number and string are kept.
+	 * Any threads waiting in addFilename or waitForDrain are woken up.
+	 * @param num The error number.
+	 * @param s The error string.
+	 * @see #failed
+	 * @see #errorNum
+	 * @see #errorString
+	 */
+	protected synchronized void setFailed(int num,String s)
+	{
+		if(failed == false)
+		{
+			failed = true;
+			errorNum = num;
+			errorString = s;
+		}
+		notifyAll();
+	}
+}
@@ -73,10 +73,13 @@ public class LociREBOOTQuitThread extends Thread
 
 	/**
 	 * Run method, called when the thread is started.
-	 * If the waitThread is non-null, we try to wait until it has terminated.
+	 * If the waitThread is non-null, we try to wait until it has terminated. If the waitThread is a
+	 * LociTCPServerConnectionThread, we use it's waitForFinish method, as the connection may be running
+	 * on a LociServerConnectionExecutor pool thread rather than as a started thread.
 	 * System.exit(exitValue) is then called.
 	 * @see #waitThread
 	 * @see #exitValue
+	 * @see LociTCPServerConnectionThread#waitForFinish
 	 */
 	public void run()
 	{
@@ -84,7 +87,10 @@ public class LociREBOOTQuitThread extends Thread
 		{
 			try
 			{
-				waitThread.join();
+				if(waitThread instanceof LociTCPServerConnectionThread)
+					((LociTCPServerConnectionThread)waitThread).waitForFinish();
+				else
+					waitThread.join();
 			}
 			catch (InterruptedException e)
 			{
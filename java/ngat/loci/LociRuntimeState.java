@@ -0,0 +1,257 @@
+// LociRuntimeState.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+
+import ngat.message.ISS_INST.*;
+
+/**
+ * This class is an immutable snapshot of the runtime state of Loci, i.e. the fields of LociStatus that change
+ * whilst commands are processed (the current command and thread, the exposure count/number/filename,
+ * the config name and binning, and the log level). LociStatus publishes a new instance atomically whenever
+ * one of these fields changes, so a reader gets a consistent multi-field view of the state without locking.
+ * Instances are never modified, the <i>with</i> methods return a copy with one field (or pair of fields) changed.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatus#getRuntimeState
+ */
+public class LociRuntimeState
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The logging level.
+	 */
+	private final int logLevel;
+	/**
+	 * The command Loci is currently processing, or null. INTERRUPT commands do not set this.
+	 */
+	private final ISS_TO_INST currentCommand;
+	/**
+	 * The thread processing the currentCommand, or null.
+	 */
+	private final Thread currentThread;
+	/**
+	 * The count of the number of exposures needed for the current command to be implemented.
+	 */
+	private final int exposureCount;
+	/**
+	 * The number of the current exposure being taken.
+	 */
+	private final int exposureNumber;
+	/**
+	 * The filename of the current exposure being taken (if any).
+	 */
+	private final String exposureFilename;
+	/**
+	 * The name of the configuration last used to configure the instrument.
+	 */
+	private final String configName;
+	/**
+	 * The last X binning value selected when configuring the detector.
+	 */
+	private final int configBinningX;
+	/**
+	 * The last Y binning value selected when configuring the detector.
+	 */
+	private final int configBinningY;
+
+	/**
+	 * Default constructor. Creates the initial state: log level 0, no current command or thread,
+	 * no exposures, config name "UNKNOWN" and binning 2x2.
+	 */
+	public LociRuntimeState()
+	{
+		this(0,null,null,0,0,null,"UNKNOWN",2,2);
+	}
+
+	/**
+	 * Constructor setting every field.
+	 * @param logLevel The logging level.
+	 * @param currentCommand The command currently being processed, or null.
+	 * @param currentThread The thread processing the current command, or null.
+	 * @param exposureCount The number of exposures needed for the current command.
+	 * @param exposureNumber The number of the current exposure.
+	 * @param exposureFilename The filename of the current exposure, or null.
+	 * @param configName The name of the last configuration.
+	 * @param configBinningX The last X binning factor.
+	 * @param configBinningY The last Y binning factor.
+	 */
+	protected LociRuntimeState(int logLevel,ISS_TO_INST currentCommand,Thread currentThread,
+				   int exposureCount,int exposureNumber,String exposureFilename,
+				   String configName,int configBinningX,int configBinningY)
+	{
+		super();
+		this.logLevel = logLevel;
+		this.currentCommand = currentCommand;
+		this.currentThread = currentThread;
+		this.exposureCount = exposureCount;
+		this.exposureNumber = exposureNumber;
+		this.exposureFilename = exposureFilename;
+		this.configName = configName;
+		this.configBinningX = configBinningX;
+		this.configBinningY = configBinningY;
+	}
+
+	/**
+	 * Return a copy of this state with a different log level.
+	 * @param level The new log level.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withLogLevel(int level)
+	{
+		return new LociRuntimeState(level,currentCommand,currentThread,exposureCount,exposureNumber,
+					    exposureFilename,configName,configBinningX,configBinningY);
+	}
+
+	/**
+	 * Return a copy of this state with a different current command and thread.
+	 * @param command The new current command, or null.
+	 * @param thread The new current thread, or null.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withCurrentCommand(ISS_TO_INST command,Thread thread)
+	{
+		return new LociRuntimeState(logLevel,command,thread,exposureCount,exposureNumber,
+					    exposureFilename,configName,configBinningX,configBinningY);
+	}
+
+	/**
+	 * Return a copy of this state with a different exposure count and number.
+	 * @param count The new exposure count.
+	 * @param number The new exposure number.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withExposure(int count,int number)
+	{
+		return new LociRuntimeState(logLevel,currentCommand,currentThread,count,number,
+					    exposureFilename,configName,configBinningX,configBinningY);
+	}
+
+	/**
+	 * Return a copy of this state with a different exposure filename.
+	 * @param filename The new exposure filename.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withExposureFilename(String filename)
+	{
+		return new LociRuntimeState(logLevel,currentCommand,currentThread,exposureCount,exposureNumber,
+					    filename,configName,configBinningX,configBinningY);
+	}
+
+	/**
+	 * Return a copy of this state with a different config name.
+	 * @param name The new config name.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withConfigName(String name)
+	{
+		return new LociRuntimeState(logLevel,currentCommand,currentThread,exposureCount,exposureNumber,
+					    exposureFilename,name,configBinningX,configBinningY);
+	}
+
+	/**
+	 * Return a copy of this state with different config binning factors.
+	 * @param xBin The new X binning factor.
+	 * @param yBin The new Y binning factor.
+	 * @return The new state.
+	 */
+	public LociRuntimeState withConfigBinning(int xBin,int yBin)
+	{
+		return new LociRuntimeState(logLevel,currentCommand,currentThread,exposureCount,exposureNumber,
+					    exposureFilename,configName,xBin,yBin);
+	}
+
+	/**
+	 * Get the logging level.
+	 * @return The log level.
+	 * @see #logLevel
+	 */
+	public int getLogLevel()
+	{
+		return logLevel;
+	}
+
+	/**
+	 * Get the command currently being processed.
+	 * @return The current command, or null.
+	 * @see #currentCommand
+	 */
+	public ISS_TO_INST getCurrentCommand()
+	{
+		return currentCommand;
+	}
+
+	/**
+	 * Get the thread processing the current command.
+	 * @return The current thread, or null.
+	 * @see #currentThread
+	 */
+	public Thread getCurrentThread()
+	{
+		return currentThread;
+	}
+
+	/**
+	 * Get the number of exposures needed to complete the current command.
+	 * @return The exposure count.
+	 * @see #exposureCount
+	 */
+	public int getExposureCount()
+	{
+		return exposureCount;
+	}
+
+	/**
+	 * Get the number of the current exposure.
+	 * @return The exposure number.
+	 * @see #exposureNumber
+	 */
+	public int getExposureNumber()
+	{
+		return exposureNumber;
+	}
+
+	/**
+	 * Get the filename of the current exposure.
+	 * @return The exposure filename, or null.
+	 * @see #exposureFilename
+	 */
+	public String getExposureFilename()
+	{
+		return exposureFilename;
+	}
+
+	/**
+	 * Get the name of the last configuration.
+	 * @return The config name.
+	 * @see #configName
+	 */
+	public String getConfigName()
+	{
+		return configName;
+	}
+
+	/**
+	 * Get the last X binning factor.
+	 * @return The X binning factor.
+	 * @see #configBinningX
+	 */
+	public int getConfigBinningX()
+	{
+		return configBinningX;
+	}
+
+	/**
+	 * Get the last Y binning factor.
+	 * @return The Y binning factor.
+	 * @see #configBinningY
+	 */
+	public int getConfigBinningY()
+	{
+		return configBinningY;
+	}
+}
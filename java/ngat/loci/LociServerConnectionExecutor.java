@@ -0,0 +1,392 @@
+// LociServerConnectionExecutor.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is a bounded pool of threads, used by LociTCPServer to run the LociTCPServerConnectionThread
+ * instances that handle each incoming connection, rather than starting a new thread for every connection.
+ * Connections waiting for a pool thread are queued, up to a backlog limit. Connections arriving when the
+ * backlog is full are rejected (their socket is closed).
+ * <p>
+ * The pool has two lanes. The interrupt lane is the fixed number of pool threads, which read each incoming
+ * command (at interrupt priority) and process INTERRUPT commands (GET_STATUS, ABORT etc).
+ * Normal (non-INTERRUPT) commands, such as MULTRUN, can run for a long time. When a connection thread finds
+ * it is processing a normal command, it claims a normal lane slot, which grows the pool by one thread
+ * for the duration of the command, so that long running normal commands never reduce the number of threads 
+ * available to process INTERRUPT commands. The normal lane maximum is the number of normal commands expected to
+ * run at once: a normal command claiming a slot beyond it is counted (and logged by the connection thread) as an
+ * overflow, but the pool is still grown for it.
+ * <p>
+ * The pool also keeps metrics: the number of connections accepted and rejected, and the time connections
+ * spent queued waiting for a pool thread.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociTCPServer#startConnectionThread
+ * @see LociTCPServerConnectionThread
+ */
+public class LociServerConnectionExecutor
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default number of threads in the interrupt lane of the pool.
+	 */
+	public final static int DEFAULT_THREAD_COUNT = 8;
+	/**
+	 * The default maximum number of connections queued waiting for a pool thread.
+	 */
+	public final static int DEFAULT_BACKLOG = 32;
+	/**
+	 * The default maximum number of normal lane slots.
+	 */
+	public final static int DEFAULT_NORMAL_LANE_MAX = 2;
+	/**
+	 * The thread pool.
+	 */
+	private ThreadPoolExecutor executor = null;
+	/**
+	 * The number of threads in the interrupt lane of the pool.
+	 */
+	private int threadCount = DEFAULT_THREAD_COUNT;
+	/**
+	 * The maximum number of normal lane slots expected to be claimed at once. Claims beyond this are overflows.
+	 */
+	private int normalLaneMax = DEFAULT_NORMAL_LANE_MAX;
+	/**
+	 * The number of normal lane slots currently claimed.
+	 */
+	private int normalLaneCount = 0;
+	/**
+	 * The number of normal commands that claimed a normal lane slot beyond the normal lane maximum.
+	 */
+	private long normalLaneOverflowCount = 0;
+	/**
+	 * The priority of the pool threads whilst reading a command, i.e. interrupt priority.
+	 */
+	private int threadPriority;
+	/**
+	 * The number of connections accepted into the pool.
+	 */
+	private long acceptedCount = 0;
+	/**
+	 * The number of connections rejected because the backlog was full.
+	 */
+	private long rejectedCount = 0;
+	/**
+	 * The number of connections that have started running on a pool thread.
+	 */
+	private long startedCount = 0;
+	/**
+	 * The total time (in milliseconds) connections have spent waiting in the queue for a pool thread.
+	 */
+	private long totalQueueWaitTime = 0;
+	/**
+	 * The maximum time (in milliseconds) a connection has spent waiting in the queue for a pool thread.
+	 */
+	private long maxQueueWaitTime = 0;
+
+	/**
+	 * Constructor. Creates the thread pool.
+	 * @param threadCount The number of threads in the interrupt lane of the pool.
+	 * @param backlog The maximum number of connections queued waiting for a pool thread.
+	 * @param normalLaneMax The maximum number of normal lane slots.
+	 * @param threadPriority The priority of the pool threads whilst reading a command, i.e. interrupt priority.
+	 * @see #executor
+	 * @see LociClientConnectionExecutor.PoolThreadFactory
+	 */
+	public LociServerConnectionExecutor(int threadCount,int backlog,int normalLaneMax,int threadPriority)
+	{
+		super();
+		this.threadCount = Math.max(1,threadCount);
+		this.normalLaneMax = Math.max(0,normalLaneMax);
+		this.threadPriority = threadPriority;
+		executor = new ThreadPoolExecutor(this.threadCount,this.threadCount,60,TimeUnit.SECONDS,
+						  new ArrayBlockingQueue<Runnable>(Math.max(1,backlog)),
+						  new LociClientConnectionExecutor.PoolThreadFactory(threadPriority));
+	}
+
+	/**
+	 * Change the number of threads in the interrupt lane of the pool, and the maximum number of
+	 * normal lane slots. The backlog cannot be changed once the pool has been created.
+	 * @param threadCount The number of threads in the interrupt lane of the pool.
+	 * @param normalLaneMax The maximum number of normal lane slots.
+	 * @see #threadCount
+	 * @see #normalLaneMax
+	 * @see #resizePool
+	 */
+	public synchronized void setThreadCount(int threadCount,int normalLaneMax)
+	{
+		this.threadCount = Math.max(1,threadCount);
+		this.normalLaneMax = Math.max(0,normalLaneMax);
+		resizePool();
+	}
+
+	/**
+	 * Run the specified connection thread on a pool thread. If the backlog is full, the connection is rejected
+	 * and it's socket closed.
+	 * @param connectionThread The connection thread to run.
+	 * @param connectionSocket The connection's socket, closed if the connection is rejected.
+	 * @return true if the connection was accepted, false if it was rejected.
+	 * @see #executor
+	 * @see ConnectionUnit
+	 */
+	public boolean execute(LociTCPServerConnectionThread connectionThread,Socket connectionSocket)
+	{
+		try
+		{
+			executor.execute(new ConnectionUnit(connectionThread));
+		}
+		catch(RejectedExecutionException e)
+		{
+			synchronized(this)
+			{
+				rejectedCount++;
+			}
+			try
+			{
+				connectionSocket.close();
+			}
+			catch(IOException ioe)
+			{
+				// we are rejecting the connection anyway
+			}
+			return false;
+		}
+		synchronized(this)
+		{
+			acceptedCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Called by a connection thread when it has found it is processing a normal (non-INTERRUPT) command.
+	 * A normal lane slot is always claimed and the pool grown by one thread, so the command never runs in
+	 * place of an interrupt lane thread. endNormalCommand must be called when the command is finished.
+	 * If the normal lane maximum was already reached, the claim is counted as an overflow.
+	 * @return true if the slot was within the normal lane maximum, false if it was an overflow (the caller
+	 *         should log this).
+	 * @see #normalLaneCount
+	 * @see #normalLaneMax
+	 * @see #resizePool
+	 * @see #endNormalCommand
+	 */
+	public synchronized boolean beginNormalCommand()
+	{
+		boolean withinMax;
+
+		withinMax = (normalLaneCount < normalLaneMax);
+		if(withinMax == false)
+			normalLaneOverflowCount++;
+		normalLaneCount++;
+		resizePool();
+		return withinMax;
+	}
+
+	/**
+	 * Called by a connection thread when a normal command, that claimed a normal lane slot, has finished.
+	 * The slot is released, and the pool shrunk by one thread.
+	 * @see #normalLaneCount
+	 * @see #resizePool
+	 * @see #beginNormalCommand
+	 */
+	public synchronized void endNormalCommand()
+	{
+		if(normalLaneCount > 0)
+			normalLaneCount--;
+		resizePool();
+	}
+
+	/**
+	 * Resize the pool to the number of interrupt lane threads, plus the number of claimed normal lane slots.
+	 * @see #executor
+	 * @see #threadCount
+	 * @see #normalLaneCount
+	 */
+	protected synchronized void resizePool()
+	{
+		int poolSize;
+
+		poolSize = threadCount+normalLaneCount;
+		if(poolSize > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(poolSize);
+			executor.setCorePoolSize(poolSize);
+		}
+		else
+		{
+			executor.setCorePoolSize(poolSize);
+			executor.setMaximumPoolSize(poolSize);
+		}
+	}
+
+	/**
+	 * Shutdown the pool. Connections already accepted are still run.
+	 * @see #executor
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Get the number of threads in the interrupt lane of the pool.
+	 * @return The number of threads.
+	 * @see #threadCount
+	 */
+	public synchronized int getThreadCount()
+	{
+		return threadCount;
+	}
+
+	/**
+	 * Get the maximum number of normal lane slots expected to be claimed at once.
+	 * @return The number of slots.
+	 * @see #normalLaneMax
+	 */
+	public synchronized int getNormalLaneMax()
+	{
+		return normalLaneMax;
+	}
+
+	/**
+	 * Get the number of normal lane slots currently claimed.
+	 * @return The number of slots.
+	 * @see #normalLaneCount
+	 */
+	public synchronized int getNormalLaneCount()
+	{
+		return normalLaneCount;
+	}
+
+	/**
+	 * Get the number of normal commands that claimed a normal lane slot beyond the normal lane maximum.
+	 * @return The number of commands.
+	 * @see #normalLaneOverflowCount
+	 */
+	public synchronized long getNormalLaneOverflowCount()
+	{
+		return normalLaneOverflowCount;
+	}
+
+	/**
+	 * Get the number of pool threads actively running connections.
+	 * @return The number of threads.
+	 * @see #executor
+	 */
+	public int getActiveCount()
+	{
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Get the number of connections queued waiting for a pool thread.
+	 * @return The number of connections.
+	 * @see #executor
+	 */
+	public int getQueueLength()
+	{
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Get the number of connections accepted into the pool.
+	 * @return The number of connections.
+	 * @see #acceptedCount
+	 */
+	public synchronized long getAcceptedCount()
+	{
+		return acceptedCount;
+	}
+
+	/**
+	 * Get the number of connections rejected because the backlog was full.
+	 * @return The number of connections.
+	 * @see #rejectedCount
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return rejectedCount;
+	}
+
+	/**
+	 * Get the mean time connections spent waiting in the queue for a pool thread.
+	 * @return The mean time in milliseconds, or 0 if no connections have started.
+	 * @see #totalQueueWaitTime
+	 * @see #startedCount
+	 */
+	public synchronized double getMeanQueueWaitTime()
+	{
+		if(startedCount == 0)
+			return 0.0;
+		return ((double)totalQueueWaitTime)/((double)startedCount);
+	}
+
+	/**
+	 * Get the maximum time a connection has spent waiting in the queue for a pool thread.
+	 * @return The time in milliseconds.
+	 * @see #maxQueueWaitTime
+	 */
+	public synchronized long getMaxQueueWaitTime()
+	{
+		return maxQueueWaitTime;
+	}
+
+	/**
+	 * Method called by a ConnectionUnit when it starts running on a pool thread, to update the metrics.
+	 * @param queueWaitTime How long the connection waited for a pool thread, in milliseconds.
+	 */
+	protected synchronized void connectionStarted(long queueWaitTime)
+	{
+		startedCount++;
+		totalQueueWaitTime += queueWaitTime;
+		if(queueWaitTime > maxQueueWaitTime)
+			maxQueueWaitTime = queueWaitTime;
+	}
+
+	/**
+	 * Inner class wrapping a connection thread submitted to the pool, which records when it was submitted
+	 * and started. The pool thread's priority is reset to interrupt priority before each connection is run
+	 * (as the connection thread changes it to normal priority for normal commands).
+	 */
+	protected class ConnectionUnit implements Runnable
+	{
+		/**
+		 * The connection thread to run.
+		 */
+		private LociTCPServerConnectionThread connectionThread = null;
+		/**
+		 * The time the connection was submitted, in milliseconds since the epoch.
+		 */
+		private long submitTime = 0;
+
+		/**
+		 * Constructor.
+		 * @param connectionThread The connection thread to run.
+		 */
+		public ConnectionUnit(LociTCPServerConnectionThread connectionThread)
+		{
+			this.connectionThread = connectionThread;
+			submitTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Run the connection thread on the current pool thread, at interrupt priority.
+		 * @see #connectionStarted
+		 * @see #threadPriority
+		 */
+		public void run()
+		{
+			connectionStarted(System.currentTimeMillis()-submitTime);
+			Thread.currentThread().setPriority(threadPriority);
+			connectionThread.run();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+// LociSolarEphemeris.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+
+/**
+ * This class is a low precision solar ephemeris, used to compute the altitude of the sun (and it's rate of
+ * change) at the telescope site, for twilight planning. The sun's position is computed using the
+ * Astronomical Almanac's low precision formulae (accurate to about 0.01 degrees between 1950 and 2050),
+ * which is more than enough to predict twilight sky brightness. Atmospheric refraction is not included.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see TWILIGHT_CALIBRATEImplementation#setTimeOfNight
+ */
+public class LociSolarEphemeris
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The Julian Date of the Unix epoch (1970-01-01T00:00:00 UTC).
+	 */
+	public final static double JULIAN_DATE_UNIX_EPOCH = 2440587.5;
+	/**
+	 * The Julian Date of the J2000.0 epoch.
+	 */
+	public final static double JULIAN_DATE_J2000 = 2451545.0;
+	/**
+	 * The number of milliseconds in a day.
+	 */
+	public final static double MILLISECONDS_PER_DAY = 86400000.0;
+	/**
+	 * Half the time interval the rate of change of the sun's altitude is computed over, in milliseconds.
+	 */
+	public final static long ALTITUDE_RATE_HALF_INTERVAL = 30000L;
+	/**
+	 * The site latitude, in degrees (north positive).
+	 */
+	private double latitude = 0.0;
+	/**
+	 * The site longitude, in degrees (east positive).
+	 */
+	private double longitude = 0.0;
+
+	/**
+	 * Constructor.
+	 * @param latitude The site latitude, in degrees (north positive).
+	 * @param longitude The site longitude, in degrees (east positive).
+	 * @exception IllegalArgumentException Thrown if the latitude or longitude are out of range.
+	 * @see #latitude
+	 * @see #longitude
+	 */
+	public LociSolarEphemeris(double latitude,double longitude) throws IllegalArgumentException
+	{
+		super();
+		if((latitude < -90.0)||(latitude > 90.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Illegal latitude:"+latitude);
+		}
+		if((longitude < -180.0)||(longitude > 360.0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":Illegal longitude:"+longitude);
+		}
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	/**
+	 * Get the site latitude.
+	 * @return The latitude, in degrees (north positive).
+	 */
+	public double getLatitude()
+	{
+		return latitude;
+	}
+
+	/**
+	 * Get the site longitude.
+	 * @return The longitude, in degrees (east positive).
+	 */
+	public double getLongitude()
+	{
+		return longitude;
+	}
+
+	/**
+	 * Compute the altitude of the centre of the sun at the site.
+	 * <ul>
+	 * <li>The number of days since J2000.0 is computed.
+	 * <li>The sun's mean longitude and mean anomaly are computed, and from these the ecliptic longitude.
+	 * <li>The ecliptic longitude is converted to right ascension and declination using the obliquity of the
+	 *     ecliptic.
+	 * <li>The local sidereal time is computed from the Greenwich mean sidereal time and the site longitude,
+	 *     and hence the sun's hour angle.
+	 * <li>The altitude is computed from the hour angle, declination and site latitude.
+	 * </ul>
+	 * @param time The time, in milliseconds since the epoch (as returned by System.currentTimeMillis).
+	 * @return The altitude, in degrees.
+	 */
+	public double getSunAltitude(long time)
+	{
+		double days,meanLongitude,meanAnomaly,eclipticLongitude,obliquity;
+		double rightAscension,declination,siderealTime,hourAngle,sinAltitude,latitudeRadians;
+
+		days = (((double)time)/MILLISECONDS_PER_DAY)+JULIAN_DATE_UNIX_EPOCH-JULIAN_DATE_J2000;
+		meanLongitude = normaliseDegrees(280.460+(0.9856474*days));
+		meanAnomaly = Math.toRadians(normaliseDegrees(357.528+(0.9856003*days)));
+		eclipticLongitude = Math.toRadians(meanLongitude+(1.915*Math.sin(meanAnomaly))+
+						   (0.020*Math.sin(2.0*meanAnomaly)));
+		obliquity = Math.toRadians(23.439-(0.0000004*days));
+		rightAscension = Math.toDegrees(Math.atan2(Math.cos(obliquity)*Math.sin(eclipticLongitude),
+							   Math.cos(eclipticLongitude)));
+		declination = Math.asin(Math.sin(obliquity)*Math.sin(eclipticLongitude));
+		// Greenwich mean sidereal time in degrees, plus the site longitude
+		siderealTime = normaliseDegrees(280.46061837+(360.98564736629*days)+longitude);
+		hourAngle = Math.toRadians(siderealTime-rightAscension);
+		latitudeRadians = Math.toRadians(latitude);
+		sinAltitude = (Math.sin(latitudeRadians)*Math.sin(declination))+
+			(Math.cos(latitudeRadians)*Math.cos(declination)*Math.cos(hourAngle));
+		return Math.toDegrees(Math.asin(Math.max(-1.0,Math.min(1.0,sinAltitude))));
+	}
+
+	/**
+	 * Compute the rate of change of the altitude of the sun at the site, from the altitudes
+	 * ALTITUDE_RATE_HALF_INTERVAL either side of the specified time.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @return The rate of change of the altitude, in degrees per second. This is positive when the sun is rising,
+	 *         and negative when it is setting.
+	 * @see #getSunAltitude
+	 * @see #ALTITUDE_RATE_HALF_INTERVAL
+	 */
+	public double getSunAltitudeRate(long time)
+	{
+		return (getSunAltitude(time+ALTITUDE_RATE_HALF_INTERVAL)-getSunAltitude(time-ALTITUDE_RATE_HALF_INTERVAL))/
+			(((double)(2*ALTITUDE_RATE_HALF_INTERVAL))/1000.0);
+	}
+
+	/**
+	 * Return whether the sun is rising at the specified time.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @return true if the sun's altitude is increasing, false if it is decreasing.
+	 * @see #getSunAltitudeRate
+	 */
+	public boolean isSunRising(long time)
+	{
+		return (getSunAltitudeRate(time) > 0.0);
+	}
+
+	/**
+	 * Normalise an angle into the range 0..360 degrees.
+	 * @param degrees The angle in degrees.
+	 * @return The normalised angle, in degrees.
+	 */
+	protected double normaliseDegrees(double degrees)
+	{
+		degrees = degrees % 360.0;
+		if(degrees < 0.0)
+			degrees += 360.0;
+		return degrees;
+	}
+}
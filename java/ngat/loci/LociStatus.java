@@ -81,7 +81,10 @@ public class LociStatus
 	 */
 	private String filterPropertyFilename = DEFAULT_FILTER_PROPERTY_FILE_NAME;
 	/**
-	 * The logging level. An absolute filter is used by the loggers. See:
+	 * The runtime state of Loci: the current command and thread, exposure count/number/filename,
+	 * config name and binning, and the log level. This is an immutable object, replaced (copy-on-write)
+	 * whenever one of these fields changes, so readers get a consistent snapshot without locking.
+	 * The log level is used as an absolute filter by the loggers. See:
 	 * <ul>
 	 * <li><a href="http://ltdevsrv.livjm.ac.uk/~dev/log_udp/cdocs/log_udp.html#LOG_VERBOSITY">LOG_VERBOSITY</a>
 	 * <li><a href="http://ltdevsrv.livjm.ac.uk/~dev/ngat/javadocs/ngat/util/logging/ngat/util/logging/Logging.html#VERBOSITY_VERY_TERSE">VERBOSITY_VERY_TERSE</a>
@@ -90,38 +93,52 @@ public class LociStatus
 	 * <li><a href="http://ltdevsrv.livjm.ac.uk/~dev/ngat/javadocs/ngat/util/logging/ngat/util/logging/Logging.html#VERBOSITY_VERBOSE">VERBOSITY_VERBOSE</a>
 	 * <li><a href="http://ltdevsrv.livjm.ac.uk/~dev/ngat/javadocs/ngat/util/logging/ngat/util/logging/Logging.html#VERBOSITY_VERY_VERBOSE">VERBOSITY_VERY_VERBOSE</a>
 	 * </ul>
+	 * @see LociRuntimeState
+	 * @see #getRuntimeState
+	 * @see #runtimeStateLock
 	 */
-	private int logLevel = 0;
+	private volatile LociRuntimeState runtimeState = new LociRuntimeState();
 	/**
-	 * The current thread that the Loci Control System is using to process the
-	 * <a href="#currentCommand">currentCommand</a>. This does not get set for
-	 * commands that can be sent while others are in operation, such as Abort and get status comamnds.
-	 * This can be null when no command is currently being processed.
+	 * Lock held whilst a new runtimeState is created from the old one and published, so concurrent updates
+	 * to different fields are not lost. Readers never take this lock.
+	 * @see #runtimeState
 	 */
-	private Thread currentThread = null;
+	private Object runtimeStateLock = new Object();
 	/**
-	 * The current command that the LociControl System is working on. This does not get set for
-	 * commands that can be sent while others are in operation, such as Abort and get status comamnds.
-	 * This can be null when no command is currently being processed.
+	 * The index of the network properties file in the configuration snapshot's file list.
+	 * This file is loaded by load but not by reload.
 	 */
-	private ISS_TO_INST currentCommand = null;
+	private final static int CONFIG_FILE_INDEX_NETWORK = 0;
 	/**
-	 * A list of properties held in the properties file. This contains configuration information in loci
-	 * that needs to be changed irregularily.
-	 */
-	private Properties properties = null;
-	/**
-	 * The count of the number of exposures needed for the current command to be implemented.
+	 * An immutable, versioned snapshot of the properties held in the property files. This contains configuration
+	 * information in loci that needs to be changed irregularily. A new snapshot is published atomically
+	 * when the configuration is loaded or reloaded, running commands reading the old snapshot are not affected.
+	 * @see LociConfigSnapshot
+	 * @see #getConfigSnapshot
+	 * @see #load
+	 * @see #reload
 	 */
-	private int exposureCount = 0;
+	private volatile LociConfigSnapshot configSnapshot = null;
 	/**
-	 * The number of the current exposure being taken.
+	 * The configuration snapshot pinned by the command running on each thread. Whilst a thread has a pinned
+	 * snapshot, the getProperty methods called on that thread read it rather than the latest snapshot,
+	 * so a configuration reloaded by the LociConfigWatcher does not change under a running command.
+	 * Threads a command hands work to (LociMULTRUNReductionThread, LociISSFitsHeaderPrefetchThread, 
+	 * the TWILIGHT_CALIBRATE archive reduction task and the LociClientConnectionExecutor pool threads) are
+	 * given the command's snapshot when the work is created, and pin it whilst they run.
+	 * @see #pinConfigSnapshot
+	 * @see #unpinConfigSnapshot
+	 * @see #getActiveConfigSnapshot
 	 */
-	private int exposureNumber = 0;
+	private ThreadLocal<LociConfigSnapshot> pinnedConfigSnapshot = new ThreadLocal<LociConfigSnapshot>();
 	/**
-	 * The filename of the current exposure being taken (if any).
+	 * Lock held whilst the configuration is being loaded or reloaded, so that concurrent reloads
+	 * (i.e. a REDATUM and the configuration watcher) do not publish snapshots out of order.
+	 * Readers never take this lock.
+	 * @see #load
+	 * @see #reload
 	 */
-	private String exposureFilename = null;
+	private Object configLock = new Object();
 	/**
 	 * The current unique config ID, held on disc over reboots.
 	 * Incremented each time a new configuration is attained,
@@ -129,29 +146,21 @@ public class LociStatus
 	 */
 	private PersistentUniqueInteger configId = null;
 	/**
-	 * The name of the ngat.phase2.LociConfig object instance that was last used	
-	 * to configure the instrument (via an ngat.message.ISS_INST.CONFIG message).
-	 * Used for the CONFNAME FITS keyword value.
-	 * Initialised to 'UNKNOWN', so that if we try to take a frame before configuring Loci
-	 * we get an error about setup not being complete, rather than an error about NULL FITS values.
-	 */
-	private String configName = "UNKNOWN";
-	/**
-	 * The last X binning value selected when configuring the detector using the CONFIG command.
+	 * A client-side mirror of the FITS header cards held by the loci-ctrl CCD Flask API.
+	 * @see #getFitsHeaderMirror
 	 */
-	private int configBinningX = 2;
-	/**
-	 * The last Ybinning value selected when configuring the detector using the CONFIG command.
-	 */
-	private int configBinningY = 2;
+	private FitsHeaderMirror fitsHeaderMirror = null;
 	
 	/**
-	 * Default constructor. Initialises the properties.
-	 * @see #properties
+	 * Default constructor. Initialises the configuration snapshot (to an empty version 0 snapshot) 
+	 * and the FITS header mirror.
+	 * @see #configSnapshot
+	 * @see #fitsHeaderMirror
 	 */
 	public LociStatus()
 	{
-		properties = new Properties();
+		configSnapshot = new LociConfigSnapshot(0,new String[0],new Properties[0],new long[0],new long[0]);
+		fitsHeaderMirror = new FitsHeaderMirror();
 	}
 
 	/**
@@ -216,217 +225,433 @@ public class LociStatus
 	}
 	
 	/**
-	 * The load method for the class. This loads the property file from disc, using the specified
-	 * filename. Any old properties are first cleared.
+	 * The load method for the class. This loads all the property files from disc, using the specified
+	 * filenames, into a new configuration snapshot, which replaces the old snapshot (and any old properties).
+	 * The FITS header card list is compiled into the snapshot before it is published (see loadConfigSnapshot).
 	 * The configId unique persistent integer is then initialised, using a filename stored in the properties.
-	 * @see #properties
+	 * @see #configSnapshot
+	 * @see #getConfigFilenameList
+	 * @see #loadConfigSnapshot
 	 * @see #initialiseConfigId
-	 * @see #netPropertyFilename
-	 * @see #lociPropertyFilename
-	 * @see #fitsPropertyFilename
-	 * @see #currentFilterPropertyFilename
-	 * @see #filterPropertyFilename
 	 * @exception FileNotFoundException Thrown if a configuration file is not found.
 	 * @exception IOException Thrown if an IO error occurs whilst loading a configuration file.
 	 */
 	public void load()  throws FileNotFoundException, IOException
 	{
-		FileInputStream fileInputStream = null;
-
 		System.out.println(this.getClass().getName()+":load:Started.");
-	// clear old properties
-		System.out.println(this.getClass().getName()+":load:Clearing properties.");
-		properties.clear();
-	// network properties load
-		System.out.println(this.getClass().getName()+":load:Loading network properties from:"+
-				   netPropertyFilename);
-		fileInputStream = new FileInputStream(netPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// normal properties load
-		System.out.println(this.getClass().getName()+":load:Loading Loci properties from:"+
-				   lociPropertyFilename);
-		fileInputStream = new FileInputStream(lociPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// fits properties load
-		System.out.println(this.getClass().getName()+":load:Loading FITS properties from:"+
-				   fitsPropertyFilename);
-		fileInputStream = new FileInputStream(fitsPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// current filter properties laod
-		System.out.println(this.getClass().getName()+":load:Loading current filter properties from:"+
-				   currentFilterPropertyFilename);
-		fileInputStream = new FileInputStream(currentFilterPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// filter properties laod
-		System.out.println(this.getClass().getName()+":load:Loading filter properties from:"+
-				   filterPropertyFilename);
-		fileInputStream = new FileInputStream(filterPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// initialise configId
-		System.out.println(this.getClass().getName()+":load:Initialising config id.");
-		initialiseConfigId();
-	}
-
-	/**
-	 * The reload method for the class. This reloads the specified property files from disc.
-	 * The current properties are not cleared, as network properties are not re-loaded, as this would
-	 * involve resetting up the server connection thread which may be in use. If properties have been
-	 * deleted from the loaded files, reload does not clear these properties. Any new properties or
-	 * ones where the values have changed will change.
-	 * The configId unique persistent integer is then initialised, using a filename stored in the properties.
-	 * @see #properties
+		synchronized(configLock)
+		{
+			loadConfigSnapshot(true);
+		// initialise configId
+			System.out.println(this.getClass().getName()+":load:Initialising config id.");
+			initialiseConfigId();
+		}
+		System.out.println(this.getClass().getName()+":load:Loaded configuration version "+
+				   configSnapshot.getVersion()+".");
+	}
+
+	/**
+	 * The reload method for the class. This reloads the property files that have changed (their last
+	 * modified time or length is different to when they were last loaded) from disc, into a new configuration
+	 * snapshot, which is then published atomically. Files that have not changed are not re-parsed, their 
+	 * properties are re-used from the current snapshot. The network properties file is never reloaded, as
+	 * this would involve resetting up the server connection thread which may be in use. 
+	 * As each file's properties are held separately, properties deleted from a reloaded file are removed
+	 * from the configuration. Commands that retrieved the previous snapshot (getConfigSnapshot) continue to see
+	 * a consistent (old) configuration. If the calling thread has pinned a snapshot, the new snapshot is
+	 * pinned in it's place.
+	 * The FITS header card list is compiled into the new snapshot before it is published (see loadConfigSnapshot).
+	 * If any files were reloaded, the configId unique persistent integer is then initialised, using a filename 
+	 * stored in the properties.
+	 * @return true if any files had changed and a new snapshot was published, false if no files had changed.
+	 * @see #configSnapshot
+	 * @see #loadConfigSnapshot
 	 * @see #initialiseConfigId
+	 * @exception FileNotFoundException Thrown if a configuration file is not found.
+	 * @exception IOException Thrown if an IO error occurs whilst loading a configuration file.
+	 */
+	public boolean reload() throws FileNotFoundException,IOException
+	{
+		synchronized(configLock)
+		{
+			if(loadConfigSnapshot(false) == false)
+				return false;
+		// a command that asked for the reload (REDATUM) wants to see the new configuration
+			if(pinnedConfigSnapshot.get() != null)
+				pinnedConfigSnapshot.set(configSnapshot);
+		// initialise configId
+			initialiseConfigId();
+		}
+		return true;
+	}
+
+	/**
+	 * Return whether any of the property files reloaded by reload have changed since they were last loaded.
+	 * This only checks the files last modified times and lengths, it does not read them.
+	 * @return true if any of the files have changed, false otherwise.
+	 * @see #configSnapshot
+	 * @see LociConfigSnapshot#isChanged
+	 * @see #CONFIG_FILE_INDEX_NETWORK
+	 */
+	public boolean isConfigChanged()
+	{
+		return configSnapshot.isChanged(CONFIG_FILE_INDEX_NETWORK+1);
+	}
+
+	/**
+	 * Get the current configuration snapshot. A command can retrieve the snapshot once, and read all it's 
+	 * properties from it, to get a consistent view of the configuration even if it is reloaded whilst the
+	 * command is running.
+	 * @return The current configuration snapshot.
+	 * @see #configSnapshot
+	 */
+	public LociConfigSnapshot getConfigSnapshot()
+	{
+		return configSnapshot;
+	}
+
+	/**
+	 * Pin the current configuration snapshot to the calling thread. Until unpinConfigSnapshot is called,
+	 * the getProperty methods called on this thread read the pinned snapshot, even if the configuration is
+	 * reloaded in the meantime. This is called when a command is initialised.
+	 * @return The pinned snapshot.
+	 * @see #pinnedConfigSnapshot
+	 * @see #unpinConfigSnapshot
+	 * @see CommandImplementation#init
+	 */
+	public LociConfigSnapshot pinConfigSnapshot()
+	{
+		LociConfigSnapshot snapshot = null;
+
+		snapshot = configSnapshot;
+		pinnedConfigSnapshot.set(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Pin the specified configuration snapshot to the calling thread. This is used by threads doing work on
+	 * behalf of a command, to read the same configuration as the command (which retrieved the snapshot
+	 * using getActiveConfigSnapshot). The thread must call unpinConfigSnapshot when the work is done.
+	 * @param snapshot The snapshot to pin. If this is null, any snapshot pinned to the calling thread is unpinned.
+	 * @see #pinnedConfigSnapshot
+	 * @see #unpinConfigSnapshot
+	 * @see #getActiveConfigSnapshot
+	 */
+	public void pinConfigSnapshot(LociConfigSnapshot snapshot)
+	{
+		if(snapshot == null)
+			pinnedConfigSnapshot.remove();
+		else
+			pinnedConfigSnapshot.set(snapshot);
+	}
+
+	/**
+	 * Unpin the configuration snapshot pinned to the calling thread, so the getProperty methods read the
+	 * latest snapshot again. This is called when a server connection has finished, as it's thread may be
+	 * re-used by a pool.
+	 * @see #pinnedConfigSnapshot
+	 * @see #pinConfigSnapshot
+	 * @see LociTCPServerConnectionThread#run
+	 */
+	public void unpinConfigSnapshot()
+	{
+		pinnedConfigSnapshot.remove();
+	}
+
+	/**
+	 * Get the configuration snapshot the getProperty methods read on the calling thread. This is the snapshot
+	 * pinned by the command running on this thread, if there is one, otherwise the latest snapshot.
+	 * A command passes this to any threads it hands work to, so they can pin it.
+	 * @return The configuration snapshot.
+	 * @see #pinnedConfigSnapshot
+	 * @see #configSnapshot
+	 * @see #pinConfigSnapshot(LociConfigSnapshot)
+	 */
+	public LociConfigSnapshot getActiveConfigSnapshot()
+	{
+		LociConfigSnapshot snapshot = null;
+
+		snapshot = pinnedConfigSnapshot.get();
+		if(snapshot == null)
+			return configSnapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Get the latest time any of the property files reloaded by reload were modified on disc.
+	 * @return The last modified time, in milliseconds since the epoch.
+	 * @see #configSnapshot
+	 * @see #CONFIG_FILE_INDEX_NETWORK
+	 */
+	public long getConfigFileLastModified()
+	{
+		LociConfigSnapshot snapshot = null;
+		long lastModified;
+
+		snapshot = configSnapshot;
+		lastModified = 0L;
+		for(int i = CONFIG_FILE_INDEX_NETWORK+1; i < snapshot.getFileCount(); i++)
+			lastModified = Math.max(lastModified,new File(snapshot.getFilename(i)).lastModified());
+		return lastModified;
+	}
+
+	/**
+	 * Get the version number of the current configuration snapshot. This is incremented each time
+	 * the configuration is loaded, or reloaded with changed files.
+	 * @return The version number.
+	 * @see #configSnapshot
+	 * @see LociConfigSnapshot#getVersion
+	 */
+	public long getConfigVersion()
+	{
+		return configSnapshot.getVersion();
+	}
+
+	/**
+	 * Get the list of property filenames, in the order they are loaded (later files override properties
+	 * in earlier ones). The network properties file is first (at index CONFIG_FILE_INDEX_NETWORK).
+	 * @return A list of filenames.
+	 * @see #netPropertyFilename
 	 * @see #lociPropertyFilename
 	 * @see #fitsPropertyFilename
 	 * @see #currentFilterPropertyFilename
 	 * @see #filterPropertyFilename
+	 * @see #CONFIG_FILE_INDEX_NETWORK
+	 */
+	protected String[] getConfigFilenameList()
+	{
+		String filenameList[] = {netPropertyFilename,lociPropertyFilename,fitsPropertyFilename,
+					 currentFilterPropertyFilename,filterPropertyFilename};
+		return filenameList;
+	}
+
+	/**
+	 * Internal method to create a new configuration snapshot, and publish it. Each file's last modified time
+	 * and length are retrieved before it is parsed, so a change made whilst the file is being parsed
+	 * is detected by the next reload. The FITS header card list is compiled into the new snapshot
+	 * (compileFitsHeaderCardList) before it is published. This method should be called with configLock held.
+	 * @param loadAll If true, all the property files are loaded. If false, the network property file is
+	 *        not loaded, nor are files with the same filename, last modified time and length as when they were
+	 *        loaded into the current snapshot. The properties from the current snapshot are used instead.
+	 * @return true if a new snapshot was published, false if loadAll was false and no files had changed.
 	 * @exception FileNotFoundException Thrown if a configuration file is not found.
 	 * @exception IOException Thrown if an IO error occurs whilst loading a configuration file.
+	 * @see #configSnapshot
+	 * @see #configLock
+	 * @see #getConfigFilenameList
+	 * @see LociConfigSnapshot#loadFile
+	 * @see #compileFitsHeaderCardList
 	 */
-	public void reload() throws FileNotFoundException,IOException
+	private boolean loadConfigSnapshot(boolean loadAll) throws FileNotFoundException, IOException
 	{
-		FileInputStream fileInputStream = null;
+		LociConfigSnapshot oldSnapshot = null;
+		LociConfigSnapshot newSnapshot = null;
+		File file = null;
+		String filenameList[] = null;
+		Properties filePropertiesList[] = null;
+		long lastModifiedList[] = null;
+		long lengthList[] = null;
+		boolean changed,reuse;
 
-	// don't clear old properties, the network properties are not re-loaded
-	// normal properties load
-		fileInputStream = new FileInputStream(lociPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// fits properties load
-		fileInputStream = new FileInputStream(fitsPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// current filter properties laod
-		fileInputStream = new FileInputStream(currentFilterPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// filter properties laod
-		fileInputStream = new FileInputStream(filterPropertyFilename);
-		properties.load(fileInputStream);
-		fileInputStream.close();
-	// initialise configId
-		initialiseConfigId();
+		oldSnapshot = configSnapshot;
+		filenameList = getConfigFilenameList();
+		filePropertiesList = new Properties[filenameList.length];
+		lastModifiedList = new long[filenameList.length];
+		lengthList = new long[filenameList.length];
+		changed = loadAll;
+		for(int i = 0; i < filenameList.length; i++)
+		{
+			reuse = (loadAll == false)&&(i < oldSnapshot.getFileCount())&&
+				filenameList[i].equals(oldSnapshot.getFilename(i))&&
+				((i == CONFIG_FILE_INDEX_NETWORK)||(oldSnapshot.isFileChanged(i) == false));
+			if(reuse)
+			{
+				filePropertiesList[i] = oldSnapshot.getFileProperties(i);
+				lastModifiedList[i] = oldSnapshot.getFileLastModified(i);
+				lengthList[i] = oldSnapshot.getFileLength(i);
+			}
+			else
+			{
+				System.out.println(this.getClass().getName()+":loadConfigSnapshot:Loading properties from:"+
+						   filenameList[i]);
+				file = new File(filenameList[i]);
+				lastModifiedList[i] = file.lastModified();
+				lengthList[i] = file.length();
+				filePropertiesList[i] = LociConfigSnapshot.loadFile(filenameList[i]);
+				changed = true;
+			}
+		}
+		if(changed == false)
+			return false;
+		newSnapshot = new LociConfigSnapshot(oldSnapshot.getVersion()+1,filenameList,filePropertiesList,
+						     lastModifiedList,lengthList);
+		compileFitsHeaderCardList(newSnapshot,oldSnapshot);
+		configSnapshot = newSnapshot;
+		return true;
+	}
+
+	/**
+	 * Get a snapshot of the runtime state of Loci. The returned object is immutable, so all it's fields
+	 * are consistent with each other, and this method never blocks.
+	 * @return The current runtime state.
+	 * @see #runtimeState
+	 */
+	public LociRuntimeState getRuntimeState()
+	{
+		return runtimeState;
 	}
 
 	/**
 	 * Set the logging level for Loci.
 	 * @param level The level of logging.
+	 * @see #runtimeState
 	 */
-	public synchronized void setLogLevel(int level)
+	public void setLogLevel(int level)
 	{
-		logLevel = level;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withLogLevel(level);
+		}
 	}
 
 	/**
 	 * Get the logging level for Loci.
 	 * @return The current log level.
+	 * @see #runtimeState
 	 */	
-	public synchronized int getLogLevel()
+	public int getLogLevel()
 	{
-		return logLevel;
+		return runtimeState.getLogLevel();
+	}
+
+	/**
+	 * Set the command that is currently executing, and the thread executing it, in one update.
+	 * @param command The command that is currently executing, or null.
+	 * @param thread The thread that is currently executing the command, or null.
+	 * @see #runtimeState
+	 */
+	public void setCurrentCommand(ISS_TO_INST command,Thread thread)
+	{
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withCurrentCommand(command,thread);
+		}
 	}
 
 	/**
 	 * Set the command that is currently executing.
 	 * @param command The command that is currently executing.
+	 * @see #runtimeState
 	 */
-	public synchronized void setCurrentCommand(ISS_TO_INST command)
+	public void setCurrentCommand(ISS_TO_INST command)
 	{
-		currentCommand = command;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withCurrentCommand(command,runtimeState.getCurrentThread());
+		}
 	}
 
 	/**
-	 * Get the the command Loci is currently processing.
-	 * @return The command currently being processed.
+	 * Get the the command Loci is currently processing. This does not get set for
+	 * commands that can be sent while others are in operation, such as Abort and get status comamnds.
+	 * @return The command currently being processed, or null if no command is currently being processed.
+	 * @see #runtimeState
 	 */
-	public synchronized ISS_TO_INST getCurrentCommand()
+	public ISS_TO_INST getCurrentCommand()
 	{
-		return currentCommand;
+		return runtimeState.getCurrentCommand();
 	}
 
 	/**
-	 * Set the thread that is currently executing the <a href="#currentCommand">currentCommand</a>.
+	 * Set the thread that is currently executing the current command.
 	 * @param thread The thread that is currently executing.
-	 * @see #currentThread
+	 * @see #runtimeState
 	 */
-	public synchronized void setCurrentThread(Thread thread)
+	public void setCurrentThread(Thread thread)
 	{
-		currentThread = thread;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withCurrentCommand(runtimeState.getCurrentCommand(),thread);
+		}
 	}
 
 	/**
-	 * Get the the thread currently executing to process the <a href="#currentCommand">currentCommand</a>.
-	 * @return The thread currently being executed.
-	 * @see #currentThread
+	 * Get the the thread currently executing to process the current command.
+	 * @return The thread currently being executed, or null if no command is currently being processed.
+	 * @see #runtimeState
 	 */
-	public synchronized Thread getCurrentThread()
+	public Thread getCurrentThread()
 	{
-		return currentThread;
+		return runtimeState.getCurrentThread();
 	}
 
 	/**
 	 * Set the number of exposures needed to complete the current command implementation.
 	 * @param c The total number of exposures needed.
-	 * @see #exposureCount
+	 * @see #runtimeState
 	 */
-	public synchronized void setExposureCount(int c)
+	public void setExposureCount(int c)
 	{
-		exposureCount = c;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withExposure(c,runtimeState.getExposureNumber());
+		}
 	}
 
 	/**
 	 * Get the number of exposures needed to complete the current command implementation.
 	 * @return Returns the number of exposures needed.
-	 * @see #exposureCount
+	 * @see #runtimeState
 	 */
-	public synchronized int getExposureCount()
+	public int getExposureCount()
 	{
-		return exposureCount;
+		return runtimeState.getExposureCount();
 	}
 
 	/**
 	 * Set the current exposure number the current command implementation is on.
 	 * @param n The current exposure number.
-	 * @see #exposureNumber
+	 * @see #runtimeState
 	 */
-	public synchronized void setExposureNumber(int n)
+	public void setExposureNumber(int n)
 	{
-		exposureNumber = n;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withExposure(runtimeState.getExposureCount(),n);
+		}
 	}
 
 	/**
 	 * Get the current exposure number the current command implementation is on.
 	 * @return Returns the current exposure number.
-	 * @see #exposureNumber
+	 * @see #runtimeState
 	 */
-	public synchronized int getExposureNumber()
+	public int getExposureNumber()
 	{
-		return exposureNumber;
+		return runtimeState.getExposureNumber();
 	}
 
 	/**
 	 * Set the current exposure filename being taken.
 	 * @param f The current filename.
-	 * @see #exposureFilename
+	 * @see #runtimeState
 	 */
-	public synchronized void setExposureFilename(String f)
+	public void setExposureFilename(String f)
 	{
-		exposureFilename = f;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withExposureFilename(f);
+		}
 	}
 
 	/**
 	 * Get the current exposure filename.
 	 * @return Returns the current exposure filename.
-	 * @see #exposureFilename
+	 * @see #runtimeState
 	 */
-	public synchronized String getExposureFilename()
+	public String getExposureFilename()
 	{
-		return exposureFilename;
+		return runtimeState.getExposureFilename();
 	}
 
 	/**
@@ -465,70 +690,111 @@ public class LociStatus
 	/**
 	 * Method to set our reference to the string identifier of the last
 	 * ngat.phase2.LociConfig instance to successfully configure the Loci camera.
+	 * Used for the CONFNAME FITS keyword value.
 	 * @param s The string from the configuration object instance.
-	 * @see #configName
+	 * @see #runtimeState
 	 */
-	public synchronized void setConfigName(String s)
+	public void setConfigName(String s)
 	{
-		configName = s;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withConfigName(s);
+		}
 	}
 
 	/**
 	 * Method to get the string identifier of the last
 	 * ngat.phase2.LociConfig instance to successfully configure the Loci camera.
-	 * @return The string identifier, or null if the Loci camera has not been configured
+	 * @return The string identifier, which is 'UNKNOWN' if the Loci camera has not been configured
 	 * 	since Loci started.
-	 * @see #configName
+	 * @see #runtimeState
 	 */
-	public synchronized String getConfigName()
+	public String getConfigName()
 	{
-		return configName;
+		return runtimeState.getConfigName();
 	}
 	
 	/**
 	 * Method to set the binning factors last used to successfully configure the Loci camera.
 	 * @param xBin An integer, the last X binning factor.
 	 * @param yBin An integer, the last Y binning factor.
-	 * @see #configBinningX
-	 * @see #configBinningY
+	 * @see #runtimeState
 	 */
-	public synchronized void setConfigBinning(int xBin,int yBin)
+	public void setConfigBinning(int xBin,int yBin)
 	{
-		configBinningX = xBin;
-		configBinningY = yBin;
+		synchronized(runtimeStateLock)
+		{
+			runtimeState = runtimeState.withConfigBinning(xBin,yBin);
+		}
 	}
 	
 	/**
 	 * Method to get the last X binning factor used to successfully configure the Loci camera.
 	 * @return An integer, the last X binning factor.
-	 * @see #configBinningX
+	 * @see #runtimeState
 	 */
-	public synchronized int getConfigBinningX()
+	public int getConfigBinningX()
 	{
-		return configBinningX;
+		return runtimeState.getConfigBinningX();
 	}
 	
 	/**
 	 * Method to get the last Y binning factor used to successfully configure the Loci camera.
 	 * @return An integer, the last Y binning factor.
-	 * @see #configBinningY
+	 * @see #runtimeState
 	 */
-	public synchronized int getConfigBinningY()
+	public int getConfigBinningY()
 	{
-		return configBinningY;
+		return runtimeState.getConfigBinningY();
 	}
 	
+	/**
+	 * Get the list of FITS header cards compiled from the fits properties of the configuration snapshot
+	 * the getProperty methods read on the calling thread (i.e. the snapshot pinned by the running command).
+	 * The same list is therefore returned for the whole of a command, even if the configuration is reloaded.
+	 * @return An unmodifiable list of FitsHeaderCard.
+	 * @exception Exception Thrown if the FITS header properties have never compiled into a list of cards.
+	 * @see #getActiveConfigSnapshot
+	 * @see LociConfigSnapshot#getFitsHeaderCardList
+	 * @see #compileFitsHeaderCardList
+	 */
+	public List<FitsHeaderCard> getFitsHeaderCardList() throws Exception
+	{
+		LociConfigSnapshot snapshot = null;
+		List<FitsHeaderCard> cardList = null;
+
+		snapshot = getActiveConfigSnapshot();
+		cardList = snapshot.getFitsHeaderCardList();
+		if(cardList == null)
+		{
+			throw new Exception(this.getClass().getName()+
+					    ":getFitsHeaderCardList:FITS header list failed to compile:",
+					    snapshot.getFitsHeaderCardListException());
+		}
+		return cardList;
+	}
+
+	/**
+	 * Get the client-side mirror of the FITS header cards held by the loci-ctrl CCD Flask API.
+	 * @return The instance of FitsHeaderMirror.
+	 * @see #fitsHeaderMirror
+	 */
+	public FitsHeaderMirror getFitsHeaderMirror()
+	{
+		return fitsHeaderMirror;
+	}
+
 	/**
 	 * Method to return whether the loaded properties contain the specified keyword.
 	 * Calls the proprties object containsKey method. Note assumes the properties object has been initialised.
 	 * @param p The property key we wish to test exists.
 	 * @return The method returnd true if the specified key is a key in out list of properties,
 	 *         otherwise it returns false.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public boolean propertyContainsKey(String p)
 	{
-		return properties.containsKey(p);
+		return getActiveConfigSnapshot().containsKey(p);
 	}
 
 	/**
@@ -536,11 +802,11 @@ public class LociStatus
 	 * @param p The property key we want the value for.
 	 * @return The properties value, as a string object. If the key is not found, Properties.getProperty
 	 *         will return null.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public String getProperty(String p)
 	{
-		return properties.getProperty(p);
+		return getActiveConfigSnapshot().getProperty(p);
 	}
 
 	/**
@@ -550,14 +816,14 @@ public class LociStatus
 	 * @return The properties value, as an integer.
 	 * @exception NumberFormatException If the properties value string is not a valid integer, this
 	 * 	exception will be thrown when the Integer.parseInt routine is called.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public int getPropertyInteger(String p) throws NumberFormatException
 	{
 		String valueString = null;
 		int returnValue = 0;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		try
 		{
 			returnValue = Integer.parseInt(valueString);
@@ -578,14 +844,14 @@ public class LociStatus
 	 * @return The properties value, as a long.
 	 * @exception NumberFormatException If the properties value string is not a valid long, this
 	 * 	exception will be thrown when the Long.parseLong routine is called.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public long getPropertyLong(String p) throws NumberFormatException
 	{
 		String valueString = null;
 		long returnValue = 0;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		try
 		{
 			returnValue = Long.parseLong(valueString);
@@ -606,14 +872,14 @@ public class LociStatus
 	 * @return The properties value, as a short.
 	 * @exception NumberFormatException If the properties value string is not a valid short, this
 	 * 	exception will be thrown when the Short.parseShort routine is called.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public short getPropertyShort(String p) throws NumberFormatException
 	{
 		String valueString = null;
 		short returnValue = 0;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		try
 		{
 			returnValue = Short.parseShort(valueString);
@@ -634,14 +900,14 @@ public class LociStatus
 	 * @return The properties value, as an double.
 	 * @exception NumberFormatException If the properties value string is not a valid double, this
 	 * 	exception will be thrown when the Double.valueOf routine is called.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public double getPropertyDouble(String p) throws NumberFormatException
 	{
 		String valueString = null;
 		Double returnValue = null;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		try
 		{
 			returnValue = Double.valueOf(valueString);
@@ -662,14 +928,14 @@ public class LociStatus
 	 * @return The properties value, as a float.
 	 * @exception NumberFormatException If the properties value string is not a valid float, this
 	 * 	exception will be thrown.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public float getPropertyFloat(String p) throws NumberFormatException
 	{
 		String valueString = null;
 		Float returnValue = null;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		try
 		{
 			returnValue = Float.valueOf(valueString);
@@ -691,14 +957,14 @@ public class LociStatus
 	 * @return The properties value, as an boolean.
 	 * @exception NullPointerException If the properties value string is null, this
 	 * 	exception will be thrown.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public boolean getPropertyBoolean(String p) throws NullPointerException
 	{
 		String valueString = null;
 		Boolean b = null;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		if(valueString == null)
 		{
 			throw new NullPointerException(this.getClass().getName()+":getPropertyBoolean:keyword:"+
@@ -715,14 +981,14 @@ public class LociStatus
 	 * @exception NullPointerException If the properties value string is null, this
 	 * 	exception will be thrown.
 	 * @exception Exception Thrown if the properties value string is not of length 1.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public char getPropertyChar(String p) throws NullPointerException, Exception
 	{
 		String valueString = null;
 		char ch;
 
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		if(valueString == null)
 		{
 			throw new NullPointerException(this.getClass().getName()+":getPropertyChar:keyword:"+
@@ -746,14 +1012,14 @@ public class LociStatus
 	 * @exception NullPointerException If the properties value string is null an exception is thrown.
 	 * @exception IllegalArgumentException If the properties value string is not a valid time period,
 	 *            an exception is thrown.
-	 * @see #properties
+	 * @see #getActiveConfigSnapshot
 	 */
 	public int getPropertyLogHandlerTimePeriod(String p) throws NullPointerException, IllegalArgumentException
 	{
 		String valueString = null;
 		int timePeriod = 0;
  
-		valueString = properties.getProperty(p);
+		valueString = getActiveConfigSnapshot().getProperty(p);
 		if(valueString == null)
 		{
 			throw new NullPointerException(this.getClass().getName()+
@@ -950,6 +1216,84 @@ public class LociStatus
 		return retval;
 	}
 
+	/**
+	 * Internal method to compile the FITS header properties of a new configuration snapshot into an
+	 * unmodifiable list of typed FitsHeaderCard, which is stored in the snapshot.
+	 * The "loci.fits.keyword.&lt;n&gt;" properties are queried in ascending order of &lt;n&gt; to find keywords.
+	 * The "loci.fits.value.&lt;keyword&gt;" property contains the value of the keyword.
+	 * The value's type is retrieved from the property "loci.fits.value.type.&lt;keyword&gt;", 
+	 * which should comtain one of the following values: boolean|float|integer|string.
+	 * The optional "loci.fits.comment.&lt;keyword&gt;" and "loci.fits.units.&lt;keyword&gt;" properties
+	 * contain the comment and units. 
+	 * If the compilation fails, the failure is stored in the new snapshot, together with the old snapshot's
+	 * card list (the last list that compiled), so a bad edit to the fits properties does not stop exposures.
+	 * @param snapshot The new snapshot, which has not yet been published.
+	 * @param oldSnapshot The current snapshot, whose card list is kept if the compilation fails.
+	 * @see LociConfigSnapshot#setFitsHeaderCardList
+	 * @see FitsHeaderCard
+	 */
+	private void compileFitsHeaderCardList(LociConfigSnapshot snapshot,LociConfigSnapshot oldSnapshot)
+	{
+		List<FitsHeaderCard> cardList = null;
+		String keyword = null;
+		String typeString = null;
+		String valueString = null;
+		Object value = null;
+		int index;
+		boolean done;
+
+		cardList = new Vector<FitsHeaderCard>();
+		try
+		{
+			index = 0;
+			done = false;
+			while(done == false)
+			{
+				keyword = snapshot.getProperty("loci.fits.keyword."+index);
+				if(keyword != null)
+				{
+					typeString = snapshot.getProperty("loci.fits.value.type."+keyword);
+					if(typeString == null)
+					{
+						throw new NullPointerException(this.getClass().getName()+
+							   ":compileFitsHeaderCardList:Failed to get value type for keyword:"+
+									       keyword);
+					}
+					valueString = snapshot.getProperty("loci.fits.value."+keyword);
+					if(typeString.equals("string"))
+						value = valueString;
+					else if(typeString.equals("integer"))
+						value = new Integer(Integer.parseInt(valueString));
+					else if(typeString.equals("float"))
+						value = new Float(Double.valueOf(valueString).doubleValue());
+					else if(typeString.equals("boolean"))
+						value = Boolean.valueOf(valueString);
+					else
+					{
+						throw new IllegalArgumentException(this.getClass().getName()+
+							      ":compileFitsHeaderCardList:Unknown value type "+typeString+
+										   " for keyword:"+keyword);
+					}
+					cardList.add(new FitsHeaderCard(keyword,value,
+									snapshot.getProperty("loci.fits.comment."+keyword),
+									snapshot.getProperty("loci.fits.units."+keyword)));
+					index++;
+				}
+				else
+					done = true;
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println(this.getClass().getName()+":compileFitsHeaderCardList:Failed:keyword:"+keyword+
+					   ":value:"+valueString+":"+e+":keeping FITS headers from configuration version "+
+					   oldSnapshot.getVersion()+".");
+			snapshot.setFitsHeaderCardList(oldSnapshot.getFitsHeaderCardList(),e);
+			return;
+		}
+		snapshot.setFitsHeaderCardList(Collections.unmodifiableList(cardList),null);
+	}
+
 	/**
 	 * Internal method to initialise the configId field. This is not done during construction
 	 * as the property files need to be loaded to determine the filename to use.
@@ -0,0 +1,726 @@
+// LociStatusPoller.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ngat.loci.ccd.GetCameraStatusCommand;
+import ngat.loci.ccd.GetExposureProgressCommand;
+import ngat.loci.ccd.GetTemperatureCommand;
+import ngat.loci.filterwheel.GetFilterPositionCommand;
+import ngat.loci.filterwheel.GetStatusCommand;
+import ngat.util.logging.*;
+
+/**
+ * This class is a background thread that periodically samples the status of the CCD and filter wheel
+ * Flask APIs, and keeps the latest sample of each status field in an immutable snapshot, which is
+ * atomically replaced whenever a field is re-sampled. GET_STATUS reads the snapshot, rather than
+ * querying the hardware for every request. If the sample of a field is older than it's configured maximum
+ * age (or the poller is disabled), getSample falls through to a live query, which also updates the snapshot.
+ * Each field has it's own refresh period and maximum age, retrieved from the properties:
+ * <ul>
+ * <li>loci.status.poller.enable
+ * <li>loci.status.poller.&lt;field&gt;.refresh
+ * <li>loci.status.poller.&lt;field&gt;.max_age
+ * </ul>
+ * where &lt;field&gt; is one of the FIELD_ constants.
+ * getSampleFuture allows several fields to be retrieved concurrently (i.e. the CCD and filter wheel Flask APIs
+ * to be queried in parallel), the live queries being run on a small pool of query threads. Only one live
+ * query of each field is run at a time: callers asking for a field whose live query is still running share it's
+ * future.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatusSample
+ * @see GET_STATUSImplementation
+ */
+public class LociStatusPoller extends Thread
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The field name for the camera status, retrieved using GetCameraStatusCommand.
+	 * The sample contains the "Camera Status" value.
+	 */
+	public final static String FIELD_CAMERA_STATUS = "camera_status";
+	/**
+	 * The field name for the exposure progress, retrieved using GetExposureProgressCommand.
+	 * The sample contains the "Exposure Time", "Elapsed Time" and "Remaining Time" values (in decimal seconds).
+	 * The background thread only samples this field when the camera status is "DRV_ACQUIRING".
+	 */
+	public final static String FIELD_EXPOSURE_PROGRESS = "exposure_progress";
+	/**
+	 * The field name for the filter wheel status, retrieved using GetFilterPositionCommand and
+	 * GetStatusCommand. The sample contains the "Filter Name", "Filter Position" and
+	 * "Connection Status" values.
+	 */
+	public final static String FIELD_FILTER_WHEEL = "filter_wheel";
+	/**
+	 * The field name for the detector temperature, retrieved using GetTemperatureCommand.
+	 * The sample contains the "Temperature" (in degrees centigrade), "Cooling Enabled" and
+	 * "Cooling Status" values.
+	 */
+	public final static String FIELD_TEMPERATURE = "temperature";
+	/**
+	 * The list of fields sampled.
+	 */
+	public final static String FIELD_LIST[] = {FIELD_CAMERA_STATUS,FIELD_EXPOSURE_PROGRESS,FIELD_FILTER_WHEEL,
+						   FIELD_TEMPERATURE};
+	/**
+	 * The default refresh period of each field in FIELD_LIST, in milliseconds.
+	 * @see #FIELD_LIST
+	 */
+	public final static long DEFAULT_REFRESH_PERIOD_LIST[] = {1000L,1000L,5000L,10000L};
+	/**
+	 * The default maximum age of each field in FIELD_LIST, in milliseconds.
+	 * @see #FIELD_LIST
+	 */
+	public final static long DEFAULT_MAX_AGE_LIST[] = {2000L,1000L,10000L,20000L};
+	/**
+	 * The minimum time to sleep between sampling passes, in milliseconds.
+	 */
+	public final static long MIN_SLEEP_TIME = 10L;
+	/**
+	 * The maximum time to sleep between sampling passes, in milliseconds.
+	 */
+	public final static long MAX_SLEEP_TIME = 1000L;
+	/**
+	 * The Loci object.
+	 */
+	private Loci loci = null;
+	/**
+	 * An unmodifiable map from field name to the latest sample of that field. This reference is
+	 * replaced (never modified) whenever a field is sampled.
+	 * @see #publish
+	 */
+	private volatile Map<String,LociStatusSample> snapshot = null;
+	/**
+	 * The refresh period of each field, in milliseconds, indexed as FIELD_LIST.
+	 */
+	private volatile long refreshPeriodList[] = null;
+	/**
+	 * The maximum age of each field, in milliseconds, indexed as FIELD_LIST.
+	 */
+	private volatile long maxAgeList[] = null;
+	/**
+	 * Whether the background sampling is enabled. If false, getSample always does a live query.
+	 */
+	private volatile boolean enabled = false;
+	/**
+	 * A map from field name to an object used to serialise live queries of that field, so that concurrent
+	 * GET_STATUS commands finding the same stale field only query the hardware once.
+	 */
+	private Map<String,Object> fieldLockMap = null;
+	/**
+	 * Set to true to make the thread terminate.
+	 */
+	private volatile boolean quit = false;
+	/**
+	 * A pool of threads, used to run live queries started by getSampleFuture.
+	 * The pool has up to one thread per field, and a queue bounded to one entry per field, as getSampleFuture
+	 * only submits a live query for a field when none is already in flight (queryFutureMap).
+	 * @see #getSampleFuture
+	 * @see #queryFutureMap
+	 */
+	private ThreadPoolExecutor queryExecutor = null;
+	/**
+	 * A map from field name to the future of the live query of that field started by getSampleFuture, 
+	 * that has not yet completed. Access to the map is synchronized on the map itself.
+	 * @see #getSampleFuture
+	 * @see QueryFuture
+	 */
+	private Map<String,QueryFuture> queryFutureMap = null;
+
+	/**
+	 * Constructor. Initialises the empty snapshot, the field locks, the default refresh periods and
+	 * maximum ages, and the query thread pool. The thread is made a daemon thread.
+	 * @param loci The Loci object.
+	 * @see #loci
+	 * @see #snapshot
+	 * @see #fieldLockMap
+	 * @see #DEFAULT_REFRESH_PERIOD_LIST
+	 * @see #DEFAULT_MAX_AGE_LIST
+	 * @see #queryExecutor
+	 * @see #queryFutureMap
+	 */
+	public LociStatusPoller(Loci loci)
+	{
+		super("Loci status poller");
+		this.loci = loci;
+		snapshot = Collections.unmodifiableMap(new HashMap<String,LociStatusSample>());
+		fieldLockMap = new HashMap<String,Object>();
+		for(int i = 0; i < FIELD_LIST.length; i++)
+			fieldLockMap.put(FIELD_LIST[i],new Object());
+		refreshPeriodList = (long[])(DEFAULT_REFRESH_PERIOD_LIST.clone());
+		maxAgeList = (long[])(DEFAULT_MAX_AGE_LIST.clone());
+		queryExecutor = new ThreadPoolExecutor(FIELD_LIST.length,FIELD_LIST.length,60,TimeUnit.SECONDS,
+						       new ArrayBlockingQueue<Runnable>(FIELD_LIST.length),
+						       new QueryThreadFactory());
+		queryExecutor.allowCoreThreadTimeOut(true);
+		queryFutureMap = new HashMap<String,QueryFuture>();
+		setDaemon(true);
+	}
+
+	/**
+	 * Configure the poller from the properties. If "loci.status.poller.enable" is missing the poller is
+	 * disabled. Missing or invalid refresh periods and maximum ages take their default values.
+	 * @param status The status object to retrieve the properties from.
+	 * @see #enabled
+	 * @see #refreshPeriodList
+	 * @see #maxAgeList
+	 */
+	public void configure(LociStatus status)
+	{
+		long newRefreshPeriodList[] = new long[FIELD_LIST.length];
+		long newMaxAgeList[] = new long[FIELD_LIST.length];
+
+		try
+		{
+			enabled = status.getPropertyBoolean("loci.status.poller.enable");
+		}
+		catch(NullPointerException e)
+		{
+			enabled = false;
+		}
+		for(int i = 0; i < FIELD_LIST.length; i++)
+		{
+			try
+			{
+				newRefreshPeriodList[i] = status.getPropertyLong("loci.status.poller."+FIELD_LIST[i]+
+										 ".refresh");
+			}
+			catch(NumberFormatException e)
+			{
+				newRefreshPeriodList[i] = DEFAULT_REFRESH_PERIOD_LIST[i];
+			}
+			try
+			{
+				newMaxAgeList[i] = status.getPropertyLong("loci.status.poller."+FIELD_LIST[i]+".max_age");
+			}
+			catch(NumberFormatException e)
+			{
+				newMaxAgeList[i] = DEFAULT_MAX_AGE_LIST[i];
+			}
+		}
+		refreshPeriodList = newRefreshPeriodList;
+		maxAgeList = newMaxAgeList;
+		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":configure:enabled = "+enabled+".");
+	}
+
+	/**
+	 * Run method. Whilst the poller has not been told to quit, each field whose latest sample is older
+	 * than it's refresh period is re-sampled, and the thread then sleeps until the next field is due.
+	 * The exposure progress field is only sampled when the latest camera status is "DRV_ACQUIRING".
+	 * When the poller is disabled, the thread just sleeps.
+	 * @see #quit
+	 * @see #enabled
+	 * @see #refresh
+	 * @see #isExposing
+	 */
+	public void run()
+	{
+		LociStatusSample sample = null;
+		long nowTime,sleepTime,dueTime;
+
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:Started.");
+		while(quit == false)
+		{
+			sleepTime = MAX_SLEEP_TIME;
+			if(enabled)
+			{
+				for(int i = 0; (i < FIELD_LIST.length)&&(quit == false); i++)
+				{
+					if(FIELD_LIST[i].equals(FIELD_EXPOSURE_PROGRESS)&&(isExposing() == false))
+						continue;
+					nowTime = System.currentTimeMillis();
+					sample = snapshot.get(FIELD_LIST[i]);
+					if((sample == null)||(sample.getAge(nowTime) >= refreshPeriodList[i]))
+					{
+						try
+						{
+							sample = refresh(FIELD_LIST[i]);
+						}
+						catch(Exception e)
+						{
+							loci.error(this.getClass().getName()+":run:Sampling "+
+								   FIELD_LIST[i]+" failed:",e);
+						}
+					}
+					if(sample != null)
+					{
+						dueTime = sample.getTimestamp()+refreshPeriodList[i];
+						sleepTime = Math.min(sleepTime,dueTime-System.currentTimeMillis());
+					}
+				}
+			}
+			try
+			{
+				Thread.sleep(Math.max(MIN_SLEEP_TIME,sleepTime));
+			}
+			catch(InterruptedException e)
+			{
+				// quit will be checked at the top of the loop
+			}
+		}
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:Finished.");
+	}
+
+	/**
+	 * Tell the thread to terminate, and shut down the query thread pool.
+	 * @see #quit
+	 * @see #queryExecutor
+	 */
+	public void quit()
+	{
+		quit = true;
+		interrupt();
+		queryExecutor.shutdownNow();
+	}
+
+	/**
+	 * Get the current snapshot.
+	 * @return An unmodifiable map from field name to the latest sample of that field. Fields that have
+	 *         never been sampled are not present.
+	 * @see #snapshot
+	 */
+	public Map<String,LociStatusSample> getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Get a sample of the specified field. If the poller is enabled, and the latest sample in the snapshot
+	 * is no older than the field's maximum age, it is returned. Otherwise the field is queried live
+	 * (which also updates the snapshot).
+	 * @param fieldName The name of the field, one of FIELD_LIST.
+	 * @return The sample.
+	 * @exception IllegalArgumentException Thrown if fieldName is not a known field.
+	 * @see #getFreshSample
+	 * @see #refresh
+	 */
+	public LociStatusSample getSample(String fieldName) throws IllegalArgumentException
+	{
+		LociStatusSample sample = null;
+
+		sample = getFreshSample(fieldName);
+		if(sample != null)
+			return sample;
+		return refresh(fieldName);
+	}
+
+	/**
+	 * Start getting a sample of the specified field, without waiting for it. If the poller is enabled, and the 
+	 * latest sample in the snapshot is no older than the field's maximum age, a future already completed with
+	 * that sample is returned. Otherwise, if a live query of the field is already in flight, it's future is 
+	 * returned, else a new live query of the field is started on the query thread pool.
+	 * If the caller stops waiting on the future (times out), the live query continues, and it's result is still
+	 * published into the snapshot. A hung Flask API therefore holds at most one query thread per field, rather
+	 * than queueing a new query for every GET_STATUS.
+	 * @param fieldName The name of the field, one of FIELD_LIST.
+	 * @return A future, which returns the sample when it is available.
+	 * @exception IllegalArgumentException Thrown if fieldName is not a known field.
+	 * @see #getFreshSample
+	 * @see #refresh
+	 * @see #queryExecutor
+	 * @see #queryFutureMap
+	 * @see QueryFuture
+	 * @see LociCommandFuture
+	 */
+	public Future<LociStatusSample> getSampleFuture(final String fieldName) throws IllegalArgumentException
+	{
+		LociCommandFuture<LociStatusSample> completedFuture = null;
+		LociStatusSample sample = null;
+		QueryFuture queryFuture = null;
+
+		sample = getFreshSample(fieldName);
+		if(sample != null)
+		{
+			completedFuture = new LociCommandFuture<LociStatusSample>();
+			completedFuture.complete(sample);
+			return completedFuture;
+		}
+		synchronized(queryFutureMap)
+		{
+			queryFuture = queryFutureMap.get(fieldName);
+			if((queryFuture != null)&&(queryFuture.isDone() == false))
+				return queryFuture;
+			queryFuture = new QueryFuture(fieldName);
+			queryFutureMap.put(fieldName,queryFuture);
+		}
+		try
+		{
+			queryExecutor.execute(queryFuture);
+		}
+		catch(RejectedExecutionException e)
+		{
+			// cancelling removes the future from queryFutureMap, so the field is not left with a query
+			// that will never run
+			queryFuture.cancel(false);
+			throw e;
+		}
+		return queryFuture;
+	}
+
+	/**
+	 * Get the latest sample of the specified field, if the poller is enabled and the sample is no older than 
+	 * the field's maximum age.
+	 * @param fieldName The name of the field, one of FIELD_LIST.
+	 * @return The sample, or null if there is no fresh sample.
+	 * @exception IllegalArgumentException Thrown if fieldName is not a known field.
+	 * @see #enabled
+	 * @see #snapshot
+	 * @see #maxAgeList
+	 */
+	protected LociStatusSample getFreshSample(String fieldName) throws IllegalArgumentException
+	{
+		LociStatusSample sample = null;
+		long maxAge;
+
+		maxAge = maxAgeList[getFieldIndex(fieldName)];
+		sample = snapshot.get(fieldName);
+		if(enabled&&(sample != null)&&(sample.getAge(System.currentTimeMillis()) <= maxAge))
+			return sample;
+		return null;
+	}
+
+	/**
+	 * Query the specified field live, and publish the result into the snapshot.
+	 * Live queries of the same field are serialised. If another thread has published a new sample whilst
+	 * we were waiting to query (i.e. the sample is now younger than the time we started waiting),
+	 * that sample is returned instead of querying again.
+	 * @param fieldName The name of the field, one of FIELD_LIST.
+	 * @return The new sample.
+	 * @exception IllegalArgumentException Thrown if fieldName is not a known field.
+	 * @see #fieldLockMap
+	 * @see #query
+	 * @see #publish
+	 */
+	public LociStatusSample refresh(String fieldName) throws IllegalArgumentException
+	{
+		LociStatusSample sample = null;
+		Object lock = null;
+		long startTime;
+
+		lock = fieldLockMap.get(fieldName);
+		if(lock == null)
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":refresh:Unknown field:"+
+							   fieldName);
+		}
+		startTime = System.currentTimeMillis();
+		synchronized(lock)
+		{
+			sample = snapshot.get(fieldName);
+			if((sample != null)&&(sample.getTimestamp() >= startTime))
+				return sample;
+			sample = query(fieldName);
+			publish(sample);
+		}
+		return sample;
+	}
+
+	/**
+	 * Publish a sample into the snapshot. A copy of the current snapshot is made, the sample added, and
+	 * the snapshot reference replaced with an unmodifiable version of the copy.
+	 * @param sample The sample to publish.
+	 * @see #snapshot
+	 */
+	protected synchronized void publish(LociStatusSample sample)
+	{
+		Map<String,LociStatusSample> newSnapshot = null;
+
+		newSnapshot = new HashMap<String,LociStatusSample>(snapshot);
+		newSnapshot.put(sample.getFieldName(),sample);
+		snapshot = Collections.unmodifiableMap(newSnapshot);
+	}
+
+	/**
+	 * Get whether the latest camera status sample says the camera is exposing ("DRV_ACQUIRING").
+	 * @return true if the camera is exposing, false if it is not (or we don't know).
+	 * @see #snapshot
+	 * @see #FIELD_CAMERA_STATUS
+	 */
+	protected boolean isExposing()
+	{
+		LociStatusSample sample = null;
+
+		sample = snapshot.get(FIELD_CAMERA_STATUS);
+		if((sample == null)||(sample.isSuccessful() == false))
+			return false;
+		return "DRV_ACQUIRING".equals(sample.getValue("Camera Status"));
+	}
+
+	/**
+	 * Get the index of a field in FIELD_LIST.
+	 * @param fieldName The name of the field.
+	 * @return The index.
+	 * @exception IllegalArgumentException Thrown if fieldName is not a known field.
+	 * @see #FIELD_LIST
+	 */
+	protected int getFieldIndex(String fieldName) throws IllegalArgumentException
+	{
+		for(int i = 0; i < FIELD_LIST.length; i++)
+		{
+			if(FIELD_LIST[i].equals(fieldName))
+				return i;
+		}
+		throw new IllegalArgumentException(this.getClass().getName()+":getFieldIndex:Unknown field:"+
+						   fieldName);
+	}
+
+	/**
+	 * Query the hardware for the specified field. Any exception thrown whilst querying is caught,
+	 * and a failed sample returned.
+	 * @param fieldName The name of the field, one of FIELD_LIST.
+	 * @return A new sample.
+	 * @see #queryCameraStatus
+	 * @see #queryExposureProgress
+	 * @see #queryFilterWheel
+	 * @see #queryTemperature
+	 */
+	protected LociStatusSample query(String fieldName)
+	{
+		Map<String,Object> valueMap = new HashMap<String,Object>();
+		long timestamp;
+
+		timestamp = System.currentTimeMillis();
+		try
+		{
+			if(fieldName.equals(FIELD_CAMERA_STATUS))
+				return queryCameraStatus(timestamp,valueMap);
+			else if(fieldName.equals(FIELD_EXPOSURE_PROGRESS))
+				return queryExposureProgress(timestamp,valueMap);
+			else if(fieldName.equals(FIELD_FILTER_WHEEL))
+				return queryFilterWheel(timestamp,valueMap);
+			else if(fieldName.equals(FIELD_TEMPERATURE))
+				return queryTemperature(timestamp,valueMap);
+		}
+		catch(Exception e)
+		{
+			return new LociStatusSample(fieldName,timestamp,valueMap,false,
+						    this.getClass().getName()+":query:"+fieldName+" failed:"+e,e);
+		}
+		throw new IllegalArgumentException(this.getClass().getName()+":query:Unknown field:"+fieldName);
+	}
+
+	/**
+	 * Query the camera status, using a GetCameraStatusCommand borrowed from the Flask command pool.
+	 * @param timestamp The time the query started.
+	 * @param valueMap The map to put the retrieved values in.
+	 * @return A new sample.
+	 * @exception Exception Thrown if creating or setting up the command fails.
+	 * @see ngat.loci.ccd.GetCameraStatusCommand
+	 * @see FlaskCommandPool
+	 */
+	protected LociStatusSample queryCameraStatus(long timestamp,Map<String,Object> valueMap) throws Exception
+	{
+		GetCameraStatusCommand command = null;
+		LociStatus status = loci.getStatus();
+
+		command = loci.getFlaskCommandPool().borrow(GetCameraStatusCommand.class);
+		command.setAddress(status.getProperty("loci.flask.ccd.hostname"));
+		command.setPortNumber(status.getPropertyInteger("loci.flask.ccd.port_number"));
+		command.run();
+		if(command.isReturnStatusSuccess() == false)
+		{
+			return new LociStatusSample(FIELD_CAMERA_STATUS,timestamp,valueMap,false,
+						    "exposure status command failed with return code "+
+						    command.getHttpResponseCode(),command.getRunException());
+		}
+		valueMap.put("Camera Status",command.getCameraStatus());
+		loci.getFlaskCommandPool().release(command);
+		return new LociStatusSample(FIELD_CAMERA_STATUS,timestamp,valueMap,true,null,null);
+	}
+
+	/**
+	 * Query the exposure progress, using a GetExposureProgressCommand borrowed from the Flask command pool.
+	 * @param timestamp The time the query started.
+	 * @param valueMap The map to put the retrieved values in.
+	 * @return A new sample.
+	 * @exception Exception Thrown if creating or setting up the command fails.
+	 * @see ngat.loci.ccd.GetExposureProgressCommand
+	 * @see FlaskCommandPool
+	 */
+	protected LociStatusSample queryExposureProgress(long timestamp,Map<String,Object> valueMap) throws Exception
+	{
+		GetExposureProgressCommand command = null;
+		LociStatus status = loci.getStatus();
+
+		command = loci.getFlaskCommandPool().borrow(GetExposureProgressCommand.class);
+		command.setAddress(status.getProperty("loci.flask.ccd.hostname"));
+		command.setPortNumber(status.getPropertyInteger("loci.flask.ccd.port_number"));
+		command.run();
+		if(command.isReturnStatusSuccess() == false)
+		{
+			return new LociStatusSample(FIELD_EXPOSURE_PROGRESS,timestamp,valueMap,false,
+						    "exposure progress command failed with return code "+
+						    command.getHttpResponseCode(),command.getRunException());
+		}
+		valueMap.put("Exposure Time",new Double(command.getExposureTime()));
+		valueMap.put("Elapsed Time",new Double(command.getElapsedTime()));
+		valueMap.put("Remaining Time",new Double(command.getRemainingTime()));
+		loci.getFlaskCommandPool().release(command);
+		return new LociStatusSample(FIELD_EXPOSURE_PROGRESS,timestamp,valueMap,true,null,null);
+	}
+
+	/**
+	 * Query the filter wheel status, using a GetFilterPositionCommand and a GetStatusCommand
+	 * borrowed from the Flask command pool. If the position is retrieved, but the connection status
+	 * is not, the failed sample still contains the filter name and position.
+	 * @param timestamp The time the query started.
+	 * @param valueMap The map to put the retrieved values in.
+	 * @return A new sample.
+	 * @exception Exception Thrown if creating or setting up the commands fails.
+	 * @see ngat.loci.filterwheel.GetFilterPositionCommand
+	 * @see ngat.loci.filterwheel.GetStatusCommand
+	 * @see FlaskCommandPool
+	 */
+	protected LociStatusSample queryFilterWheel(long timestamp,Map<String,Object> valueMap) throws Exception
+	{
+		GetFilterPositionCommand filterPositionCommand = null;
+		GetStatusCommand getStatusCommand = null;
+		LociStatus status = loci.getStatus();
+		String hostname = null;
+		int portNumber;
+
+		hostname = status.getProperty("loci.flask.filterwheel.hostname");
+		portNumber = status.getPropertyInteger("loci.flask.filterwheel.port_number");
+		filterPositionCommand = loci.getFlaskCommandPool().borrow(GetFilterPositionCommand.class);
+		filterPositionCommand.setAddress(hostname);
+		filterPositionCommand.setPortNumber(portNumber);
+		filterPositionCommand.run();
+		if(filterPositionCommand.isReturnStatusSuccess() == false)
+		{
+			return new LociStatusSample(FIELD_FILTER_WHEEL,timestamp,valueMap,false,
+						    "get filter position command failed with return code "+
+						    filterPositionCommand.getHttpResponseCode()+" run exception:"+
+						    filterPositionCommand.getRunException(),
+						    filterPositionCommand.getRunException());
+		}
+		valueMap.put("Filter Name",filterPositionCommand.getFilterName());
+		valueMap.put("Filter Position",new Integer(filterPositionCommand.getFilterPosition()));
+		loci.getFlaskCommandPool().release(filterPositionCommand);
+		getStatusCommand = loci.getFlaskCommandPool().borrow(GetStatusCommand.class);
+		getStatusCommand.setAddress(hostname);
+		getStatusCommand.setPortNumber(portNumber);
+		getStatusCommand.run();
+		if(getStatusCommand.isReturnStatusSuccess() == false)
+		{
+			return new LociStatusSample(FIELD_FILTER_WHEEL,timestamp,valueMap,false,
+						    "get filter wheel status command failed with return code "+
+						    getStatusCommand.getHttpResponseCode()+" run exception:"+
+						    getStatusCommand.getRunException(),getStatusCommand.getRunException());
+		}
+		valueMap.put("Connection Status",getStatusCommand.getConnectionStatus());
+		loci.getFlaskCommandPool().release(getStatusCommand);
+		return new LociStatusSample(FIELD_FILTER_WHEEL,timestamp,valueMap,true,null,null);
+	}
+
+	/**
+	 * Query the detector temperature, using a GetTemperatureCommand borrowed from the Flask command pool.
+	 * @param timestamp The time the query started.
+	 * @param valueMap The map to put the retrieved values in.
+	 * @return A new sample.
+	 * @exception Exception Thrown if creating or setting up the command fails.
+	 * @see ngat.loci.ccd.GetTemperatureCommand
+	 * @see FlaskCommandPool
+	 */
+	protected LociStatusSample queryTemperature(long timestamp,Map<String,Object> valueMap) throws Exception
+	{
+		GetTemperatureCommand command = null;
+		LociStatus status = loci.getStatus();
+
+		command = loci.getFlaskCommandPool().borrow(GetTemperatureCommand.class);
+		command.setAddress(status.getProperty("loci.flask.ccd.hostname"));
+		command.setPortNumber(status.getPropertyInteger("loci.flask.ccd.port_number"));
+		command.run();
+		if(command.isReturnStatusSuccess() == false)
+		{
+			return new LociStatusSample(FIELD_TEMPERATURE,timestamp,valueMap,false,
+						    "get temperature command failed with return code "+
+						    command.getHttpResponseCode(),command.getRunException());
+		}
+		valueMap.put("Temperature",new Double(command.getTemperature()));
+		valueMap.put("Cooling Enabled",new Boolean(command.getCoolingEnabled()));
+		valueMap.put("Cooling Status",command.getCoolingStatus());
+		loci.getFlaskCommandPool().release(command);
+		return new LociStatusSample(FIELD_TEMPERATURE,timestamp,valueMap,true,null,null);
+	}
+
+	/**
+	 * The future of a live query of a field, run on the query thread pool. When the query completes
+	 * (or is cancelled), it removes itself from queryFutureMap, so the next getSampleFuture of the field
+	 * starts a new live query.
+	 * @see #queryFutureMap
+	 * @see #getSampleFuture
+	 * @see #refresh
+	 */
+	protected class QueryFuture extends FutureTask<LociStatusSample>
+	{
+		/**
+		 * The name of the field being queried.
+		 */
+		private String fieldName = null;
+
+		/**
+		 * Constructor.
+		 * @param fieldName The name of the field to query, one of FIELD_LIST.
+		 * @see #fieldName
+		 */
+		public QueryFuture(final String fieldName)
+		{
+			super(new Callable<LociStatusSample>()
+				{
+					public LociStatusSample call()
+					{
+						return refresh(fieldName);
+					}
+				});
+			this.fieldName = fieldName;
+		}
+
+		/**
+		 * Called when the query completes or is cancelled. Removes this future from queryFutureMap,
+		 * if it is still the field's in flight query.
+		 * @see #queryFutureMap
+		 */
+		protected void done()
+		{
+			synchronized(queryFutureMap)
+			{
+				if(queryFutureMap.get(fieldName) == this)
+					queryFutureMap.remove(fieldName);
+			}
+		}
+	}
+
+	/**
+	 * Thread factory used by the query thread pool, which creates named daemon threads.
+	 * @see #queryExecutor
+	 */
+	protected static class QueryThreadFactory implements ThreadFactory
+	{
+		/**
+		 * The number of threads created, used to name the threads.
+		 */
+		private int threadCount = 0;
+
+		/**
+		 * Create a new query thread.
+		 * @param r The runnable the thread should run.
+		 * @return The new thread.
+		 */
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = null;
+
+			t = new Thread(r,"LociStatusPoller query:"+threadCount);
+			threadCount++;
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
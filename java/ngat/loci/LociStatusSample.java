@@ -0,0 +1,170 @@
+// LociStatusSample.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class holds an immutable sample of one status field (for instance the camera status, or the
+ * detector temperature), as retrieved from the CCD or filter wheel Flask APIs by the LociStatusPoller.
+ * It holds the time the sample was taken, a map of the retrieved values, and whether the retrieval
+ * succeeded (and, if not, why not).
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see LociStatusPoller
+ */
+public class LociStatusSample
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The name of the status field this is a sample of.
+	 * @see LociStatusPoller#FIELD_LIST
+	 */
+	private String fieldName = null;
+	/**
+	 * The time the sample was taken, in milliseconds since the epoch.
+	 */
+	private long timestamp = 0L;
+	/**
+	 * An unmodifiable map of the values retrieved, keyed by value name.
+	 */
+	private Map<String,Object> valueMap = null;
+	/**
+	 * Whether all the values for this field were successfully retrieved.
+	 */
+	private boolean successful = false;
+	/**
+	 * A string describing why the sample failed, or null if it succeeded.
+	 */
+	private String errorString = null;
+	/**
+	 * The exception that caused the sample to fail, if any.
+	 */
+	private Exception exception = null;
+
+	/**
+	 * Constructor.
+	 * @param fieldName The name of the status field this is a sample of.
+	 * @param timestamp The time the sample was taken, in milliseconds since the epoch.
+	 * @param valueMap A map of the values retrieved. This is copied, so it can be re-used by the caller.
+	 *        Values retrieved before a failure should still be included.
+	 * @param successful Whether all the values for this field were successfully retrieved.
+	 * @param errorString A string describing why the sample failed, or null if it succeeded.
+	 * @param exception The exception that caused the sample to fail, if any.
+	 * @see #fieldName
+	 * @see #timestamp
+	 * @see #valueMap
+	 * @see #successful
+	 * @see #errorString
+	 * @see #exception
+	 */
+	public LociStatusSample(String fieldName,long timestamp,Map<String,Object> valueMap,boolean successful,
+				String errorString,Exception exception)
+	{
+		super();
+		this.fieldName = fieldName;
+		this.timestamp = timestamp;
+		this.valueMap = Collections.unmodifiableMap(new HashMap<String,Object>(valueMap));
+		this.successful = successful;
+		this.errorString = errorString;
+		this.exception = exception;
+	}
+
+	/**
+	 * Get the name of the status field this is a sample of.
+	 * @return The field name.
+	 * @see #fieldName
+	 */
+	public String getFieldName()
+	{
+		return fieldName;
+	}
+
+	/**
+	 * Get the time the sample was taken.
+	 * @return The time the sample was taken, in milliseconds since the epoch.
+	 * @see #timestamp
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * Get the age of the sample.
+	 * @param nowTime The current time, in milliseconds since the epoch.
+	 * @return The age of the sample in milliseconds.
+	 * @see #timestamp
+	 */
+	public long getAge(long nowTime)
+	{
+		return nowTime-timestamp;
+	}
+
+	/**
+	 * Get a retrieved value.
+	 * @param valueName The name of the value.
+	 * @return The value, or null if it was not retrieved.
+	 * @see #valueMap
+	 */
+	public Object getValue(String valueName)
+	{
+		return valueMap.get(valueName);
+	}
+
+	/**
+	 * Get whether a value was retrieved.
+	 * @param valueName The name of the value.
+	 * @return true if the value was retrieved, false if it was not.
+	 * @see #valueMap
+	 */
+	public boolean hasValue(String valueName)
+	{
+		return valueMap.containsKey(valueName);
+	}
+
+	/**
+	 * Get whether all the values for this field were successfully retrieved.
+	 * @return true if the sample succeeded, false if it failed.
+	 * @see #successful
+	 */
+	public boolean isSuccessful()
+	{
+		return successful;
+	}
+
+	/**
+	 * Get a string describing why the sample failed.
+	 * @return The error string, or null if the sample succeeded.
+	 * @see #errorString
+	 */
+	public String getErrorString()
+	{
+		return errorString;
+	}
+
+	/**
+	 * Get the exception that caused the sample to fail.
+	 * @return The exception, or null.
+	 * @see #exception
+	 */
+	public Exception getException()
+	{
+		return exception;
+	}
+
+	/**
+	 * Return a string representation of this sample.
+	 * @return A string.
+	 */
+	public String toString()
+	{
+		return new String(this.getClass().getName()+":"+fieldName+":timestamp="+timestamp+
+				  ":successful="+successful+":values="+valueMap+
+				  ((errorString != null) ? ":error="+errorString : ""));
+	}
+}
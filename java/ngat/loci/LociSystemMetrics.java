@@ -0,0 +1,385 @@
+// LociSystemMetrics.java
+// $Id$
+package ngat.loci;
+
+import java.io.*;
+import java.lang.*;
+import java.lang.management.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * This class retrieves system metrics (disk usage, process list, load average and uptime, and JVM memory
+ * and thread usage) for the full level GET_STATUS, without forking external processes (df, ps, uptime).
+ * Disk usage is retrieved using java.io.File space methods for each mounted filesystem listed in /proc/mounts.
+ * The process list, load average and uptime are parsed from the Linux /proc filesystem. The JVM metrics
+ * are retrieved from the platform MXBeans. The metrics are cached, and only re-retrieved when they are
+ * older than the configured time to live.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see GET_STATUSImplementation
+ */
+public class LociSystemMetrics
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default time to live of the cached metrics, in milliseconds.
+	 */
+	public final static long DEFAULT_TIME_TO_LIVE = 5000L;
+	/**
+	 * The number of bytes in a kilobyte.
+	 */
+	public final static long BYTES_PER_KILOBYTE = 1024L;
+	/**
+	 * The number of clock ticks per second used by the /proc/&lt;pid&gt;/stat utime and stime fields.
+	 * This is the Linux USER_HZ, which is 100 on all the architectures we run on.
+	 */
+	public final static long CLOCK_TICKS_PER_SECOND = 100L;
+	/**
+	 * The root of the proc filesystem.
+	 */
+	public final static String PROC_DIRECTORY = "/proc";
+	/**
+	 * The time to live of the cached metrics, in milliseconds.
+	 */
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+	/**
+	 * The time the cached metrics were retrieved, in milliseconds since the epoch.
+	 */
+	private long metricsTimestamp = 0L;
+	/**
+	 * The cached metrics, an unmodifiable map of GET_STATUS keyword to value.
+	 */
+	private Map<String,Object> metricsMap = null;
+
+	/**
+	 * Constructor.
+	 * @param timeToLive The time to live of the cached metrics, in milliseconds.
+	 * @see #setTimeToLive
+	 */
+	public LociSystemMetrics(long timeToLive)
+	{
+		super();
+		setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * Set the time to live of the cached metrics.
+	 * @param timeToLive The time to live of the cached metrics, in milliseconds.
+	 * @see #timeToLive
+	 */
+	public synchronized void setTimeToLive(long timeToLive)
+	{
+		this.timeToLive = Math.max(0L,timeToLive);
+	}
+
+	/**
+	 * Get the system metrics. If the cached metrics are younger than the time to live they are returned,
+	 * otherwise they are re-retrieved. The following keywords are returned:
+	 * <ul>
+	 * <li><b>Disk Usage</b> A df -k style table of the disk usage of each mounted filesystem.
+	 * <li><b>Disk Total:&lt;mount point&gt;, Disk Available:&lt;mount point&gt;,
+	 *     Disk Used Percent:&lt;mount point&gt;</b> The total and available space (in kilobytes)
+	 *     and the percentage used, of each mounted filesystem.
+	 * <li><b>Process List</b> A ps style table of the processes running on this machine.
+	 * <li><b>Process Count</b> The number of processes running on this machine.
+	 * <li><b>Uptime</b> An uptime style string, with the time since last reboot and the load averages.
+	 * <li><b>System Uptime</b> The time since last reboot, in seconds.
+	 * <li><b>Load Average 1 Minute, Load Average 5 Minutes, Load Average 15 Minutes</b> The load averages.
+	 * <li><b>Available Processors</b> The number of processors available to the JVM.
+	 * <li><b>JVM Heap Used, JVM Heap Committed, JVM Heap Max, JVM Non Heap Used</b> JVM memory usage in bytes.
+	 * <li><b>JVM Thread Count, JVM Daemon Thread Count, JVM Peak Thread Count</b> JVM thread usage.
+	 * </ul>
+	 * @return An unmodifiable map of GET_STATUS keyword to value.
+	 * @see #metricsMap
+	 * @see #metricsTimestamp
+	 * @see #timeToLive
+	 * @see #getDiskMetrics
+	 * @see #getProcessMetrics
+	 * @see #getLoadMetrics
+	 * @see #getJVMMetrics
+	 */
+	public synchronized Map<String,Object> getMetrics()
+	{
+		Map<String,Object> newMetricsMap = null;
+		long nowTime;
+
+		nowTime = System.currentTimeMillis();
+		if((metricsMap != null)&&((nowTime-metricsTimestamp) < timeToLive))
+			return metricsMap;
+		newMetricsMap = new HashMap<String,Object>();
+		getDiskMetrics(newMetricsMap);
+		getProcessMetrics(newMetricsMap);
+		getLoadMetrics(newMetricsMap);
+		getJVMMetrics(newMetricsMap);
+		metricsMap = Collections.unmodifiableMap(newMetricsMap);
+		metricsTimestamp = nowTime;
+		return metricsMap;
+	}
+
+	/**
+	 * Get the disk usage of each mounted filesystem. The mount points are read from /proc/mounts
+	 * (only filesystems whose device is a file i.e. "/dev/sda1" are included), or if that cannot be read
+	 * the filesystem roots are used.
+	 * @param map The map to add the disk metrics to.
+	 * @see #readLines
+	 */
+	protected void getDiskMetrics(Map<String,Object> map)
+	{
+		List<String> mountLineList = null;
+		List<String> mountPointList = new ArrayList<String>();
+		List<String> deviceList = new ArrayList<String>();
+		StringBuffer sb = null;
+		String fieldList[] = null;
+		File mountPoint = null;
+		long totalKb,availableKb,usedKb;
+		int usedPercent;
+
+		try
+		{
+			mountLineList = readLines(new File(PROC_DIRECTORY,"mounts"));
+			for(int i = 0; i < mountLineList.size(); i++)
+			{
+				fieldList = mountLineList.get(i).split("\\s+");
+				if((fieldList.length > 1)&&fieldList[0].startsWith("/")&&
+				   (mountPointList.contains(fieldList[1]) == false))
+				{
+					deviceList.add(fieldList[0]);
+					mountPointList.add(fieldList[1]);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			File rootList[] = File.listRoots();
+
+			for(int i = 0; i < rootList.length; i++)
+			{
+				deviceList.add(rootList[i].getPath());
+				mountPointList.add(rootList[i].getPath());
+			}
+		}
+		sb = new StringBuffer();
+		sb.append("Filesystem 1K-blocks Used Available Use% Mounted on\n");
+		for(int i = 0; i < mountPointList.size(); i++)
+		{
+			mountPoint = new File(mountPointList.get(i));
+			totalKb = mountPoint.getTotalSpace()/BYTES_PER_KILOBYTE;
+			availableKb = mountPoint.getUsableSpace()/BYTES_PER_KILOBYTE;
+			usedKb = totalKb-(mountPoint.getFreeSpace()/BYTES_PER_KILOBYTE);
+			if(totalKb > 0)
+				usedPercent = (int)Math.ceil((((double)usedKb)*100.0)/((double)(usedKb+availableKb)));
+			else
+				usedPercent = 0;
+			sb.append(deviceList.get(i)+" "+totalKb+" "+usedKb+" "+availableKb+" "+usedPercent+"% "+
+				  mountPointList.get(i)+"\n");
+			map.put("Disk Total:"+mountPointList.get(i),new Long(totalKb));
+			map.put("Disk Available:"+mountPointList.get(i),new Long(availableKb));
+			map.put("Disk Used Percent:"+mountPointList.get(i),new Integer(usedPercent));
+		}
+		map.put("Disk Usage",sb.toString());
+	}
+
+	/**
+	 * Get the list of processes running on this machine, by parsing /proc/&lt;pid&gt;/stat and
+	 * /proc/&lt;pid&gt;/cmdline for each numeric directory in /proc.
+	 * @param map The map to add the process metrics to.
+	 * @see #PROC_DIRECTORY
+	 * @see #CLOCK_TICKS_PER_SECOND
+	 * @see #readLines
+	 */
+	protected void getProcessMetrics(Map<String,Object> map)
+	{
+		File processDirectoryList[] = null;
+		List<String> statLineList = null;
+		StringBuffer sb = null;
+		String statLine = null;
+		String commandName = null;
+		String args = null;
+		String fieldList[] = null;
+		long cpuTimeS,vszKb;
+		int processCount,closeIndex;
+
+		processDirectoryList = new File(PROC_DIRECTORY).listFiles();
+		if(processDirectoryList == null)
+		{
+			map.put("Process List",PROC_DIRECTORY+" is not available.");
+			return;
+		}
+		sb = new StringBuffer();
+		sb.append("PID STATE VSZ TIME ARGS\n");
+		processCount = 0;
+		for(int i = 0; i < processDirectoryList.length; i++)
+		{
+			if(processDirectoryList[i].getName().matches("[0-9]+") == false)
+				continue;
+			try
+			{
+				statLineList = readLines(new File(processDirectoryList[i],"stat"));
+				if(statLineList.size() < 1)
+					continue;
+				statLine = statLineList.get(0);
+				// the command name is in brackets, and can contain spaces
+				closeIndex = statLine.lastIndexOf(')');
+				commandName = statLine.substring(statLine.indexOf('(')+1,closeIndex);
+				// fields after the command name start at field 3 (state)
+				fieldList = statLine.substring(closeIndex+2).split(" ");
+				cpuTimeS = (Long.parseLong(fieldList[11])+Long.parseLong(fieldList[12]))/
+					CLOCK_TICKS_PER_SECOND;
+				vszKb = Long.parseLong(fieldList[20])/BYTES_PER_KILOBYTE;
+				args = readCommandLine(processDirectoryList[i]);
+				if(args.length() == 0)
+					args = "["+commandName+"]";
+				sb.append(processDirectoryList[i].getName()+" "+fieldList[0]+" "+vszKb+" "+
+					  formatTime(cpuTimeS)+" "+args+"\n");
+				processCount++;
+			}
+			catch(Exception e)
+			{
+				// the process has probably terminated whilst we were reading it, ignore it
+			}
+		}
+		map.put("Process List",sb.toString());
+		map.put("Process Count",new Integer(processCount));
+	}
+
+	/**
+	 * Get the system uptime and load averages, by parsing /proc/uptime and /proc/loadavg. If /proc/loadavg
+	 * cannot be read, the OperatingSystemMXBean's one minute load average is used instead.
+	 * @param map The map to add the load metrics to.
+	 * @see #readLines
+	 */
+	protected void getLoadMetrics(Map<String,Object> map)
+	{
+		OperatingSystemMXBean operatingSystemBean = null;
+		List<String> lineList = null;
+		StringBuffer sb = null;
+		String fieldList[] = null;
+		double loadAverageList[] = null;
+		long uptimeS;
+
+		operatingSystemBean = ManagementFactory.getOperatingSystemMXBean();
+		map.put("Available Processors",new Integer(operatingSystemBean.getAvailableProcessors()));
+		sb = new StringBuffer();
+		sb.append(new SimpleDateFormat("HH:mm:ss").format(new Date()));
+		try
+		{
+			lineList = readLines(new File(PROC_DIRECTORY,"uptime"));
+			uptimeS = (long)(Double.parseDouble(lineList.get(0).split("\\s+")[0]));
+			map.put("System Uptime",new Long(uptimeS));
+			sb.append(" up "+(uptimeS/86400)+" days, "+formatTime(uptimeS%86400));
+		}
+		catch(Exception e)
+		{
+			sb.append(" up unknown");
+		}
+		loadAverageList = new double[3];
+		try
+		{
+			lineList = readLines(new File(PROC_DIRECTORY,"loadavg"));
+			fieldList = lineList.get(0).split("\\s+");
+			for(int i = 0; i < loadAverageList.length; i++)
+				loadAverageList[i] = Double.parseDouble(fieldList[i]);
+		}
+		catch(Exception e)
+		{
+			loadAverageList[0] = operatingSystemBean.getSystemLoadAverage();
+			loadAverageList[1] = -1.0;
+			loadAverageList[2] = -1.0;
+		}
+		map.put("Load Average 1 Minute",new Double(loadAverageList[0]));
+		map.put("Load Average 5 Minutes",new Double(loadAverageList[1]));
+		map.put("Load Average 15 Minutes",new Double(loadAverageList[2]));
+		sb.append(", load average: "+loadAverageList[0]+", "+loadAverageList[1]+", "+loadAverageList[2]);
+		map.put("Uptime",sb.toString());
+	}
+
+	/**
+	 * Get the JVM memory and thread usage, from the MemoryMXBean and ThreadMXBean.
+	 * @param map The map to add the JVM metrics to.
+	 */
+	protected void getJVMMetrics(Map<String,Object> map)
+	{
+		MemoryMXBean memoryBean = null;
+		ThreadMXBean threadBean = null;
+		MemoryUsage heapUsage = null;
+
+		memoryBean = ManagementFactory.getMemoryMXBean();
+		heapUsage = memoryBean.getHeapMemoryUsage();
+		map.put("JVM Heap Used",new Long(heapUsage.getUsed()));
+		map.put("JVM Heap Committed",new Long(heapUsage.getCommitted()));
+		map.put("JVM Heap Max",new Long(heapUsage.getMax()));
+		map.put("JVM Non Heap Used",new Long(memoryBean.getNonHeapMemoryUsage().getUsed()));
+		threadBean = ManagementFactory.getThreadMXBean();
+		map.put("JVM Thread Count",new Integer(threadBean.getThreadCount()));
+		map.put("JVM Daemon Thread Count",new Integer(threadBean.getDaemonThreadCount()));
+		map.put("JVM Peak Thread Count",new Integer(threadBean.getPeakThreadCount()));
+	}
+
+	/**
+	 * Read the command line of a process from /proc/&lt;pid&gt;/cmdline. The arguments in this file are
+	 * separated by NUL characters, these are replaced by spaces.
+	 * @param processDirectory The /proc/&lt;pid&gt; directory of the process.
+	 * @return The command line, or an empty string for kernel threads.
+	 * @exception IOException Thrown if the file cannot be read.
+	 */
+	protected String readCommandLine(File processDirectory) throws IOException
+	{
+		FileInputStream inputStream = null;
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte buffer[] = new byte[1024];
+		int count;
+
+		inputStream = new FileInputStream(new File(processDirectory,"cmdline"));
+		try
+		{
+			while((count = inputStream.read(buffer)) > 0)
+				outputStream.write(buffer,0,count);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return outputStream.toString().replace('\0',' ').trim();
+	}
+
+	/**
+	 * Read all the lines of a (small) text file.
+	 * @param file The file to read.
+	 * @return A list of lines.
+	 * @exception IOException Thrown if the file cannot be read.
+	 */
+	protected List<String> readLines(File file) throws IOException
+	{
+		BufferedReader reader = null;
+		List<String> lineList = new ArrayList<String>();
+		String line = null;
+
+		reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			while((line = reader.readLine()) != null)
+				lineList.add(line);
+		}
+		finally
+		{
+			reader.close();
+		}
+		return lineList;
+	}
+
+	/**
+	 * Format a number of seconds as a hh:mm:ss string.
+	 * @param seconds The number of seconds.
+	 * @return The formatted string.
+	 */
+	protected String formatTime(long seconds)
+	{
+		DecimalFormat df = new DecimalFormat("00");
+
+		return new String((seconds/3600)+":"+df.format((seconds/60)%60)+":"+df.format(seconds%60));
+	}
+}
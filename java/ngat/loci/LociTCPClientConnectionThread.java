@@ -13,8 +13,9 @@ import ngat.message.base.*;
 /**
  * The LociTCPClientConnectionThread extends TCPClientConnectionThread. 
  * It implements the generic ISS/DP(RT) instrument command protocol with multiple acknowledgements. 
- * The instrument starts one of these threads each time
- * it wishes to send a message to the ISS/DP(RT).
+ * The instrument creates one of these each time
+ * it wishes to send a message to the ISS/DP(RT), and runs it on a pool thread of the 
+ * LociClientConnectionExecutor.
  * @author Chris Mottram
  * @version $Revision: LociTCPClientConnectionThread.java $
  */
@@ -35,6 +36,12 @@ public class LociTCPClientConnectionThread extends TCPClientConnectionThreadMA
 	 * The Loci object.
 	 */
 	private Loci loci = null;
+	/**
+	 * A future that is completed with the done message when this thread terminates, or null.
+	 * @see #setFuture
+	 * @see #run
+	 */
+	private LociCommandFuture<COMMAND_DONE> future = null;
 	
 	/**
 	 * A constructor for this class. Currently just calls the parent class's constructor.
@@ -59,6 +66,38 @@ public class LociTCPClientConnectionThread extends TCPClientConnectionThreadMA
 		this.loci = o;
 	}
 
+	/**
+	 * Routine to set a future, which is completed with the done message returned from the server 
+	 * (or null if the command failed) when this thread terminates.
+	 * @param f The future.
+	 * @see #future
+	 * @see #run
+	 */
+	public void setFuture(LociCommandFuture<COMMAND_DONE> f)
+	{
+		this.future = f;
+	}
+
+	/**
+	 * Run method, called when the thread is started. This calls the super-class's run method, to
+	 * send the command and process the replies, and then completes the future (if set) with the
+	 * done message (which may be null if the command failed).
+	 * @see #future
+	 * @see LociCommandFuture#complete
+	 */
+	public void run()
+	{
+		try
+		{
+			super.run();
+		}
+		finally
+		{
+			if(future != null)
+				future.complete(getDone());
+		}
+	}
+
 	/**
 	 * This routine processes the acknowledge object returned by the server. It
 	 * prints out a message, giving the time to completion if the acknowledge was not null.
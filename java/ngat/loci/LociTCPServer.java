@@ -49,14 +49,34 @@ public class LociTCPServer extends TCPServer
 	 * The routine also sets the new threads priority to higher than normal. This makes the thread
 	 * reading it's command a priority so we can quickly determine whether the thread should
 	 * continue to execute at a higher priority.
+	 * If Loci has a connection executor (the "pool" connection handling mode), the connection thread is not
+	 * started, but is instead run by one of the executor's pool threads (which also run at interrupt priority
+	 * whilst reading the command). If the executor's backlog is full, the connection is rejected and
+	 * it's socket closed.
+	 * @param connectionSocket The socket of the incoming connection.
 	 * @see LociTCPServerConnectionThread
+	 * @see Loci#getServerConnectionExecutor
+	 * @see LociServerConnectionExecutor#execute
 	 */
 	public void startConnectionThread(Socket connectionSocket)
 	{
+		LociServerConnectionExecutor executor = null;
 		LociTCPServerConnectionThread thread = null;
 
 		thread = new LociTCPServerConnectionThread(connectionSocket);
 		thread.setLoci(loci);
+		executor = loci.getServerConnectionExecutor();
+		if(executor != null)
+		{
+			thread.setServerConnectionExecutor(executor);
+			if(executor.execute(thread,connectionSocket) == false)
+			{
+				loci.error(this.getClass().getName()+":startConnectionThread:Connection from "+
+					   connectionSocket.getInetAddress()+" rejected:backlog full:"+
+					   executor.getRejectedCount()+" connections rejected.");
+			}
+			return;
+		}
 		thread.setPriority(loci.getStatus().getThreadPriorityInterrupt());
 		thread.start();
 	}
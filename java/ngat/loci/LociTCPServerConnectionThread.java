@@ -6,6 +6,7 @@ import java.lang.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Future;
 
 import ngat.net.*;
 import ngat.message.base.*;
@@ -62,6 +63,49 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	 * @see #commandImplementation
 	 */
 	private int acknowledgeTime = 0;
+	/**
+	 * A list of futures, being waited on by sub-commands sent to the ISS/DpRt on behalf of the command
+	 * this thread is processing. They are cancelled when the command is aborted.
+	 * @see #addCommandFuture
+	 * @see #removeCommandFuture
+	 * @see #setAbortProcessCommand
+	 */
+	private Vector<Future> commandFutureList = new Vector<Future>();
+	/**
+	 * The connection executor running this connection, or null if this connection is running as it's own
+	 * (started) thread.
+	 * @see #setServerConnectionExecutor
+	 * @see LociServerConnectionExecutor
+	 */
+	private LociServerConnectionExecutor serverConnectionExecutor = null;
+	/**
+	 * Whether this connection claimed a normal lane slot in the serverConnectionExecutor.
+	 * @see #serverConnectionExecutor
+	 * @see LociServerConnectionExecutor#beginNormalCommand
+	 */
+	private boolean normalLaneClaimed = false;
+	/**
+	 * Whether this connection has finished being handled, i.e. the run method has returned.
+	 * @see #run
+	 * @see #waitForFinish
+	 */
+	private boolean finished = false;
+	/**
+	 * Lock used to wait for this connection to finish, separate from the object lock used by the
+	 * abort methods.
+	 * @see #finished
+	 * @see #waitForFinish
+	 */
+	private Object finishLock = new Object();
+	/**
+	 * Lock held whilst an acknowledgement is written to the client. Acknowledgements can be sent by the
+	 * command thread, by threads forwarding ISS/DpRt sub-command acknowledgements, and by background
+	 * reduction threads, so writes to the client's object stream must be serialised. This is a separate
+	 * lock from the object lock used by the abort methods, and is never held whilst acquiring any other lock.
+	 * @see #sendAcknowledge
+	 * @see #getAcknowledgeLock
+	 */
+	private final Object acknowledgeLock = new Object();
 
 	/**
 	 * Constructor of the thread. This just calls the superclass constructors.
@@ -121,6 +165,71 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 		this.loci = o;
 	}
 
+	/**
+	 * Routine to set the connection executor running this connection. This should be called before
+	 * the connection is passed to the executor, and not called if the connection is started as it's own thread.
+	 * @param e The connection executor.
+	 * @see #serverConnectionExecutor
+	 */
+	public void setServerConnectionExecutor(LociServerConnectionExecutor e)
+	{
+		this.serverConnectionExecutor = e;
+	}
+
+	/**
+	 * Run method. This calls the inherited run method (which reads the command, calls init,
+	 * calculateAcknowledgeTime and processCommand, and sends the done back to the client).
+	 * This method can either be called as this thread's run method (when the thread is started), or directly
+	 * by a LociServerConnectionExecutor pool thread. Afterwards the configuration snapshot pinned by the command
+	 * is unpinned (the pool thread may run another connection), any normal lane slot claimed in the executor is
+	 * released, and any threads waiting for this connection to finish are notified.
+	 * @see LociStatus#unpinConfigSnapshot
+	 * @see #normalLaneClaimed
+	 * @see #serverConnectionExecutor
+	 * @see #finished
+	 * @see #waitForFinish
+	 * @see LociServerConnectionExecutor#endNormalCommand
+	 */
+	public void run()
+	{
+		try
+		{
+			super.run();
+		}
+		finally
+		{
+			if((loci != null)&&(loci.getStatus() != null))
+				loci.getStatus().unpinConfigSnapshot();
+			if(normalLaneClaimed)
+			{
+				normalLaneClaimed = false;
+				serverConnectionExecutor.endNormalCommand();
+			}
+			synchronized(finishLock)
+			{
+				finished = true;
+				finishLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for this connection to finish being handled. This works whether the connection was started as
+	 * it's own thread, or is being run by a LociServerConnectionExecutor pool thread (in which case
+	 * Thread.join cannot be used, as this thread object was never started).
+	 * @exception InterruptedException Thrown if the wait is interrupted.
+	 * @see #finished
+	 * @see #finishLock
+	 */
+	public void waitForFinish() throws InterruptedException
+	{
+		synchronized(finishLock)
+		{
+			while(finished == false)
+				finishLock.wait();
+		}
+	}
+
 	/**
 	 * Routine called by another thread to stop this
 	 * thread implementing a command it has been sent. This variable should cause the processCommand
@@ -129,11 +238,44 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	 * operation it has half completed - e.g. switch the autoguider off.
 	 * The rest of this thread's run method should then execute
 	 * to send the DONE message back to the client.
+	 * Any futures added using addCommandFuture are cancelled, so threads waiting for sub-commands to
+	 * complete return immediately.
 	 * @see #abortProcessCommand
+	 * @see #commandFutureList
 	 */
 	public synchronized void setAbortProcessCommand()
 	{
 		abortProcessCommand = true;
+		for(int i = 0; i < commandFutureList.size(); i++)
+		{
+			commandFutureList.get(i).cancel(false);
+		}
+		commandFutureList.clear();
+	}
+
+	/**
+	 * Add a future to be cancelled when the command this thread is processing is aborted.
+	 * If the command has already been aborted, the future is cancelled immediately.
+	 * @param f The future.
+	 * @see #commandFutureList
+	 * @see #setAbortProcessCommand
+	 */
+	public synchronized void addCommandFuture(Future f)
+	{
+		if(abortProcessCommand)
+			f.cancel(false);
+		else
+			commandFutureList.add(f);
+	}
+
+	/**
+	 * Remove a future previously added with addCommandFuture.
+	 * @param f The future.
+	 * @see #commandFutureList
+	 */
+	public synchronized void removeCommandFuture(Future f)
+	{
+		commandFutureList.remove(f);
 	}
 
 	/**
@@ -149,7 +291,11 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	/**
 	 * This method is called after the clients command is read over the socket. It allows us to
 	 * initialise this threads response to a command. This method changes the threads priority now 
-	 * that the command's class is known, if it is a sub-class of INTERRUPT the priority is higher.<br>
+	 * that the command's class is known, if it is a sub-class of INTERRUPT the priority is higher.
+	 * The priority of the thread actually running this connection is changed, which is a pool thread if the
+	 * connection is being run by a LociServerConnectionExecutor. In that case, a normal (non-INTERRUPT) command
+	 * also claims a normal lane slot in the executor, so it does not hold up the threads processing
+	 * INTERRUPT commands. A claim beyond the executor's normal lane maximum is logged as an overflow.<br>
 	 * It also finds the command implementation used to run this command, got from the mapping
 	 * stored in the Loci object. It sets up the implementation objects references to the Loci main
 	 * object and this connection thread. It then runs the command implementation's init routine, to
@@ -157,6 +303,9 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	 * @see #loci
 	 * @see INTERRUPT
 	 * @see Thread#setPriority
+	 * @see #serverConnectionExecutor
+	 * @see #normalLaneClaimed
+	 * @see LociServerConnectionExecutor#beginNormalCommand
 	 * @see Loci#getImplementation
 	 * @see CommandImplementation#setLoci
 	 * @see CommandImplementation#setServerConnectionThread
@@ -167,9 +316,23 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	{
 	// set the threads priority
 		if(command instanceof INTERRUPT)
-			this.setPriority(loci.getStatus().getThreadPriorityInterrupt());
+			Thread.currentThread().setPriority(loci.getStatus().getThreadPriorityInterrupt());
 		else
-			this.setPriority(loci.getStatus().getThreadPriorityNormal());
+		{
+			Thread.currentThread().setPriority(loci.getStatus().getThreadPriorityNormal());
+			if(serverConnectionExecutor != null)
+			{
+				normalLaneClaimed = true;
+				if(serverConnectionExecutor.beginNormalCommand() == false)
+				{
+					loci.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+":init:"+
+						 command.getClass().getName()+
+						 ":Normal lane overflow:"+serverConnectionExecutor.getNormalLaneCount()+
+						 " normal commands running, maximum "+
+						 serverConnectionExecutor.getNormalLaneMax()+".");
+				}
+			}
+		}
 	// get the implementation - this never returns null.
 		commandImplementation = loci.getImplementation(command.getClass().getName());
 	// initialises the command implementations response
@@ -212,20 +375,21 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	 * case.
 	 * <li>If suitable logging is enabled the command is logged.
 	 * <li>If the command is not an interrupt command sub-class it calls the LociStatus 
-	 *     setCurrentCommand / setCurrentThread methods to reflect
-	 *     the command/thread(this one) currently doing the processing.
+	 *     setCurrentCommand method to reflect
+	 *     the command/thread(this one) currently doing the processing, in one atomic update.
 	 * <li>This method delagates the command processing to the command implementation found for the command
 	 * message class.
-	 * <li>The LociStatus setCurrentCommand / setCurrentThread methods are again called to reflect this 
+	 * <li>The LociStatus setCurrentCommand method is again called to reflect this 
 	 *     command/thread has finished processing. (If it's not a sub-class of INTERRUPT again).
 	 * <li>If suitable logging is enabled the command is logged as completed.
+	 * <li>The command implementation is released, so it can be re-used if it's implementation is pooled.
 	 * </ul>
 	 * @see LociStatus#getLogLevel
 	 * @see Loci#log
 	 * @see LociStatus#setCurrentCommand
-	 * @see LociStatus#setCurrentThread
 	 * @see #commandImplementation
 	 * @see JMSCommandImplementation#processCommand
+	 * @see Loci#releaseImplementation
 	 */
 	protected void processCommand()
 	{
@@ -245,8 +409,7 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	// This class of commands probably want to see what the current command is anyway.
 		if(!(command instanceof INTERRUPT))
 		{
-			loci.getStatus().setCurrentCommand((ISS_TO_INST)command);
-			loci.getStatus().setCurrentThread((Thread)this);
+			loci.getStatus().setCurrentCommand((ISS_TO_INST)command,(Thread)this);
 		}
 	// setup return object.
 		try
@@ -266,8 +429,7 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	// change Loci status once command has been done
 		if(!(command instanceof INTERRUPT))
 		{
-			loci.getStatus().setCurrentCommand(null);
-			loci.getStatus().setCurrentThread(null);
+			loci.getStatus().setCurrentCommand(null,null);
 		}
 	// log command/done
 		loci.log(Logging.VERBOSITY_VERY_TERSE,"Command:"+command.getClass().getName()+
@@ -275,6 +437,25 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 		loci.log(Logging.VERBOSITY_TERSE,"Done:"+done.getClass().getName()+
 			 ":successful:"+done.getSuccessful()+
 			 ":error number:"+done.getErrorNum()+":error string:"+done.getErrorString());
+	// the implementation is no longer needed, it may be re-used by another command
+		loci.releaseImplementation(command.getClass().getName(),commandImplementation);
+	}
+
+	/**
+	 * This routine sends an acknowledge back to the client. The acknowledgeLock is held whilst the
+	 * acknowledgement is written, so acknowledgements sent from different threads do not interleave.
+	 * @param acknowledge The acknowledge object to send back to the client.
+	 * @exception NullPointerException If the acknowledge object is null this exception is thrown.
+	 * @exception IOException If the acknowledge object fails to be sent an IOException results.
+	 * @see #acknowledgeLock
+	 * @see ngat.net.TCPServerConnectionThread#sendAcknowledge
+	 */
+	public void sendAcknowledge(ACK acknowledge) throws IOException
+	{
+		synchronized(acknowledgeLock)
+		{
+			super.sendAcknowledge(acknowledge);
+		}
 	}
 
 	/**
@@ -285,13 +466,26 @@ public class LociTCPServerConnectionThread extends TCPServerConnectionThread
 	 * @exception NullPointerException If the acknowledge object is null this exception is thrown.
 	 * @exception IOException If the acknowledge object fails to be sent an IOException results.
 	 * @see #acknowledgeTime
-	 * @see ngat.net.TCPServerConnectionThread#sendAcknowledge
+	 * @see #sendAcknowledge(ACK)
 	 */
 	public void sendAcknowledge(ACK acknowledge,boolean setThreadAckTime) throws IOException
 	{
 		if(setThreadAckTime)
 			acknowledgeTime = acknowledge.getTimeToComplete();
-		super.sendAcknowledge(acknowledge);
+		sendAcknowledge(acknowledge);
+	}
+
+	/**
+	 * Return the lock held whilst acknowledgements are sent to the client. A thread can hold this lock
+	 * to stop any acknowledgements being sent whilst it changes state that decides whether to send one
+	 * (for instance, cancelling background reductions). The holder must not acquire any other lock, or
+	 * perform blocking I/O other than sending an acknowledgement.
+	 * @return The lock.
+	 * @see #acknowledgeLock
+	 */
+	public Object getAcknowledgeLock()
+	{
+		return acknowledgeLock;
 	}
 
 	/**
@@ -0,0 +1,347 @@
+// LociTwilightSkyModel.java
+// $Id$
+package ngat.loci;
+
+import java.lang.*;
+import java.util.*;
+
+/**
+ * This class is an online model of the twilight sky brightness, used by TWILIGHT_CALIBRATE to predict
+ * the exposure length that will produce the best mean counts for the next flat. During twilight the sky
+ * brightness changes (roughly) exponentially with time, so the model fits a straight line to the natural
+ * logarithm of the count rate against time:
+ * <pre>
+ * ln(counts per second / (filter sensitivity * bin * bin)) = intercept + (slope * t) + offset(filter,bin)
+ * </pre>
+ * Normalising the count rate by the relative filter sensitivity and the binning squared lets every frame
+ * taken so far (in any filter/bin) contribute to the fit, the filter_sensitivity values seeding the
+ * relationship between filters. Each filter/bin combination also has an offset, the mean residual of
+ * that combination's frames from the fit, which corrects for errors in it's configured filter sensitivity.
+ * The slope is blended with a prior slope (from the configured e-folding time of the twilight sky),
+ * weighted by priorWeight, so the first few frames (with a small time baseline) do not produce a wild slope.
+ * Only the most recent frames are used in the fit, as the twilight sky is not exactly exponential.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see TWILIGHT_CALIBRATEImplementation
+ */
+public class LociTwilightSkyModel
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * The number of iterations used when solving for the exposure length, as the mid-exposure time
+	 * depends on the exposure length.
+	 */
+	public final static int EXPOSURE_LENGTH_ITERATION_COUNT = 5;
+	/**
+	 * The slope (natural log of the count rate per second) used before enough frames have been taken.
+	 */
+	private double priorSlope = 0.0;
+	/**
+	 * The weight (in seconds squared, the same units as the time variance sum) given to the prior slope
+	 * when fitting.
+	 */
+	private double priorWeight = 0.0;
+	/**
+	 * The maximum number of (most recent) observations used in the fit.
+	 */
+	private int maxObservationCount = 10;
+	/**
+	 * The list of observations, oldest first.
+	 * @see Observation
+	 */
+	private LinkedList<Observation> observationList = null;
+	/**
+	 * The time (in milliseconds since the epoch) of the first observation, used as the zero point of
+	 * the fit's time axis to keep the fit well conditioned.
+	 */
+	private long zeroTime = 0L;
+	/**
+	 * The fitted intercept (natural log of the normalised count rate at zeroTime).
+	 */
+	private double intercept = 0.0;
+	/**
+	 * The fitted slope (change in natural log of the count rate per second).
+	 */
+	private double slope = 0.0;
+
+	/**
+	 * Constructor.
+	 * @param priorSlope The slope (change in natural log of the count rate per second) to use before any
+	 *        fitting is possible, and to blend with the fitted slope.
+	 * @param priorWeight The weight given to the prior slope (seconds squared).
+	 * @param maxObservationCount The maximum number of (most recent) observations used in the fit.
+	 * @see #priorSlope
+	 * @see #priorWeight
+	 * @see #maxObservationCount
+	 */
+	public LociTwilightSkyModel(double priorSlope,double priorWeight,int maxObservationCount)
+	{
+		super();
+		this.priorSlope = priorSlope;
+		this.priorWeight = Math.max(0.0,priorWeight);
+		this.maxObservationCount = Math.max(1,maxObservationCount);
+		observationList = new LinkedList<Observation>();
+		slope = priorSlope;
+	}
+
+	/**
+	 * Add an observation (a frame that was not saturated) to the model, and re-fit the model.
+	 * @param filter The filter the frame was taken in.
+	 * @param bin The binning of the frame.
+	 * @param filterSensitivity The relative sensitivity of the filter.
+	 * @param midTime The time of the middle of the exposure, in milliseconds since the epoch.
+	 * @param exposureLength The exposure length in milliseconds.
+	 * @param meanCounts The frame's mean counts.
+	 * @exception IllegalArgumentException Thrown if the exposure length, mean counts, filter sensitivity or bin
+	 *            are not positive.
+	 * @see #observationList
+	 * @see #fit
+	 */
+	public void addObservation(String filter,int bin,double filterSensitivity,long midTime,int exposureLength,
+				   double meanCounts) throws IllegalArgumentException
+	{
+		Observation observation = null;
+
+		if((exposureLength <= 0)||(meanCounts <= 0.0)||(filterSensitivity <= 0.0)||(bin <= 0))
+		{
+			throw new IllegalArgumentException(this.getClass().getName()+":addObservation:"+
+				   "Illegal observation:filter:"+filter+":bin:"+bin+":filter sensitivity:"+
+				   filterSensitivity+":exposure length:"+exposureLength+":mean counts:"+meanCounts);
+		}
+		if(observationList.size() == 0)
+			zeroTime = midTime;
+		observation = new Observation();
+		observation.key = getKey(filter,bin);
+		observation.time = ((double)(midTime-zeroTime))/1000.0;
+		observation.logRate = Math.log(meanCounts/(getNormalisation(bin,filterSensitivity)*
+							   (((double)exposureLength)/1000.0)));
+		observationList.add(observation);
+		while(observationList.size() > maxObservationCount)
+			observationList.removeFirst();
+		fit();
+	}
+
+	/**
+	 * Get whether the model has any observations, and can therefore make predictions.
+	 * @return true if the model has at least one observation.
+	 */
+	public boolean hasObservations()
+	{
+		return (observationList.size() > 0);
+	}
+
+	/**
+	 * Get the number of observations currently used in the fit.
+	 * @return The number of observations.
+	 */
+	public int getObservationCount()
+	{
+		return observationList.size();
+	}
+
+	/**
+	 * Get the current slope of the model.
+	 * @return The change in natural log of the count rate per second.
+	 * @see #slope
+	 */
+	public double getSlope()
+	{
+		return slope;
+	}
+
+	/**
+	 * Predict the count rate at a particular time.
+	 * @param filter The filter.
+	 * @param bin The binning.
+	 * @param filterSensitivity The relative sensitivity of the filter.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @return The predicted count rate, in counts per second.
+	 * @exception IllegalStateException Thrown if the model has no observations.
+	 * @see #getOffset
+	 */
+	public double getPredictedRate(String filter,int bin,double filterSensitivity,long time)
+		throws IllegalStateException
+	{
+		double t;
+
+		if(observationList.size() == 0)
+		{
+			throw new IllegalStateException(this.getClass().getName()+
+							":getPredictedRate:Model has no observations.");
+		}
+		t = ((double)(time-zeroTime))/1000.0;
+		return getNormalisation(bin,filterSensitivity)*
+			Math.exp(intercept+(slope*t)+getOffset(getKey(filter,bin)));
+	}
+
+	/**
+	 * Predict the mean counts of an exposure, using the count rate at mid-exposure.
+	 * @param filter The filter.
+	 * @param bin The binning.
+	 * @param filterSensitivity The relative sensitivity of the filter.
+	 * @param startTime The time the exposure starts, in milliseconds since the epoch.
+	 * @param exposureLength The exposure length, in milliseconds.
+	 * @return The predicted mean counts.
+	 * @exception IllegalStateException Thrown if the model has no observations.
+	 * @see #getPredictedRate
+	 */
+	public double getPredictedCounts(String filter,int bin,double filterSensitivity,long startTime,
+					 int exposureLength) throws IllegalStateException
+	{
+		return getPredictedRate(filter,bin,filterSensitivity,startTime+(exposureLength/2))*
+			(((double)exposureLength)/1000.0);
+	}
+
+	/**
+	 * Predict the exposure length that will produce the target mean counts, evaluating the count rate at
+	 * the predicted mid-exposure time. As the mid-exposure time depends on the exposure length, this is
+	 * solved iteratively (EXPOSURE_LENGTH_ITERATION_COUNT times). The returned length is not bracketed by
+	 * the minimum and maximum exposure lengths, the caller needs to do this.
+	 * @param filter The filter.
+	 * @param bin The binning.
+	 * @param filterSensitivity The relative sensitivity of the filter.
+	 * @param startTime The time the exposure will start, in milliseconds since the epoch.
+	 * @param targetCounts The mean counts we want the exposure to have.
+	 * @param maxExposureLength An upper bound used whilst iterating, to stop the exposure length
+	 *        running away when the sky is too dark (it is still used as the first guess at the length).
+	 * @return The exposure length, in milliseconds.
+	 * @exception IllegalStateException Thrown if the model has no observations.
+	 * @see #getPredictedRate
+	 * @see #EXPOSURE_LENGTH_ITERATION_COUNT
+	 */
+	public int getExposureLength(String filter,int bin,double filterSensitivity,long startTime,
+				     double targetCounts,int maxExposureLength) throws IllegalStateException
+	{
+		double rate,exposureLength;
+
+		exposureLength = (double)maxExposureLength;
+		for(int i = 0; i < EXPOSURE_LENGTH_ITERATION_COUNT; i++)
+		{
+			rate = getPredictedRate(filter,bin,filterSensitivity,startTime+((long)(exposureLength/2.0)));
+			exposureLength = (targetCounts/rate)*1000.0;
+			// stop the iteration running away, but keep the unbracketed result of the last iteration
+			if((i < EXPOSURE_LENGTH_ITERATION_COUNT-1)&&(exposureLength > (2.0*maxExposureLength)))
+				exposureLength = 2.0*maxExposureLength;
+		}
+		if(exposureLength > Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		return (int)exposureLength;
+	}
+
+	/**
+	 * Fit the slope and intercept to the observations, blending the fitted slope with the prior slope.
+	 * <pre>
+	 * slope = (Sty + (priorWeight * priorSlope)) / (Stt + priorWeight)
+	 * </pre>
+	 * where Sty and Stt are the sums of the products of the time and log rate deviations from their means.
+	 * @see #observationList
+	 * @see #slope
+	 * @see #intercept
+	 * @see #priorSlope
+	 * @see #priorWeight
+	 */
+	protected void fit()
+	{
+		Observation observation = null;
+		double meanTime,meanLogRate,stt,sty;
+		int count;
+
+		count = observationList.size();
+		meanTime = 0.0;
+		meanLogRate = 0.0;
+		for(int i = 0; i < count; i++)
+		{
+			observation = observationList.get(i);
+			meanTime += observation.time;
+			meanLogRate += observation.logRate;
+		}
+		meanTime /= count;
+		meanLogRate /= count;
+		stt = 0.0;
+		sty = 0.0;
+		for(int i = 0; i < count; i++)
+		{
+			observation = observationList.get(i);
+			stt += (observation.time-meanTime)*(observation.time-meanTime);
+			sty += (observation.time-meanTime)*(observation.logRate-meanLogRate);
+		}
+		if((stt+priorWeight) > 0.0)
+			slope = (sty+(priorWeight*priorSlope))/(stt+priorWeight);
+		else
+			slope = priorSlope;
+		intercept = meanLogRate-(slope*meanTime);
+	}
+
+	/**
+	 * Get the offset of a filter/bin combination from the fit, the mean residual of it's observations.
+	 * Combinations with no observations have an offset of zero (i.e. the filter sensitivity is trusted).
+	 * @param key The filter/bin key.
+	 * @return The offset, in natural log of the count rate.
+	 * @see #getKey
+	 */
+	protected double getOffset(String key)
+	{
+		Observation observation = null;
+		double residualSum;
+		int count;
+
+		residualSum = 0.0;
+		count = 0;
+		for(int i = 0; i < observationList.size(); i++)
+		{
+			observation = observationList.get(i);
+			if(observation.key.equals(key))
+			{
+				residualSum += observation.logRate-(intercept+(slope*observation.time));
+				count++;
+			}
+		}
+		if(count == 0)
+			return 0.0;
+		return residualSum/count;
+	}
+
+	/**
+	 * Get the key used to identify a filter/bin combination.
+	 * @param filter The filter.
+	 * @param bin The binning.
+	 * @return The key.
+	 */
+	protected String getKey(String filter,int bin)
+	{
+		return filter+"."+bin;
+	}
+
+	/**
+	 * Get the factor the count rate is normalised by.
+	 * @param bin The binning, binning 2 allows four times the flux to fall on a pixel as binning 1.
+	 * @param filterSensitivity The relative sensitivity of the filter.
+	 * @return The normalisation factor.
+	 */
+	protected double getNormalisation(int bin,double filterSensitivity)
+	{
+		return filterSensitivity*((double)(bin*bin));
+	}
+
+	/**
+	 * Inner class holding one observation.
+	 */
+	protected static class Observation
+	{
+		/**
+		 * The filter/bin key.
+		 */
+		protected String key = null;
+		/**
+		 * The mid-exposure time, in seconds since zeroTime.
+		 */
+		protected double time = 0.0;
+		/**
+		 * The natural log of the normalised count rate.
+		 */
+		protected double logRate = 0.0;
+	}
+}
@@ -126,6 +126,9 @@ public class MULTDARKImplementation extends CALIBRATEImplementation implements J
 	// setup exposure status.
 		status.setExposureCount(exposureCount);
 		status.setExposureNumber(0);
+	// the CCD Flask API may have been restarted, or had it's FITS headers changed, since the last command,
+	// so don't trust the FITS header mirror across top-level exposure commands
+		status.getFitsHeaderMirror().invalidate();
 		// initial FITS headers setup
 		try
 		{
@@ -28,6 +28,50 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * Revision Control System id string, showing the version of the Class.
 	 */
 	public final static String RCSID = new String("$Id$");
+	/**
+	 * The default value of the maximum age of prefetched ISS FITS headers, in milliseconds.
+	 * @see #issFitsPrefetchStalenessMax
+	 */
+	public final static long DEFAULT_ISS_FITS_PREFETCH_STALENESS_MAX = 10000;
+	/**
+	 * The default value of how long before the end of an exposure to prefetch the ISS FITS headers,
+	 * in milliseconds.
+	 * @see #issFitsPrefetchLead
+	 */
+	public final static long DEFAULT_ISS_FITS_PREFETCH_LEAD = 2000;
+	/**
+	 * Whether to prefetch the ISS FITS headers for the next frame whilst the current frame is being exposed
+	 * (pipelined MULTRUN). Loaded from the "loci.multrun.iss.fits.prefetch.enable" property.
+	 */
+	protected boolean issFitsPrefetchEnable = false;
+	/**
+	 * How long before the end of an exposure to send the GET_FITS for the next frame, in milliseconds.
+	 * Loaded from the "loci.multrun.iss.fits.prefetch.lead" property.
+	 */
+	protected long issFitsPrefetchLead = DEFAULT_ISS_FITS_PREFETCH_LEAD;
+	/**
+	 * The maximum age of prefetched ISS FITS headers, in milliseconds, when they are used for the next frame.
+	 * If they are older than this, the ISS FITS headers are re-fetched.
+	 * Loaded from the "loci.multrun.iss.fits.prefetch.staleness.max" property.
+	 */
+	protected long issFitsPrefetchStalenessMax = DEFAULT_ISS_FITS_PREFETCH_STALENESS_MAX;
+	/**
+	 * The default value of the maximum number of frames waiting to be reduced by the data pipeline.
+	 * @see #reduceQueueDepth
+	 */
+	public final static int DEFAULT_REDUCE_QUEUE_DEPTH = 2;
+	/**
+	 * Whether to reduce frames using the data pipeline asynchronously (in a LociMULTRUNReductionThread),
+	 * so the next frame can be exposed whilst the previous one is being reduced.
+	 * Loaded from the "loci.multrun.reduce.async.enable" property.
+	 */
+	protected boolean reduceAsyncEnable = false;
+	/**
+	 * The maximum number of frames waiting to be reduced by the data pipeline, before the MULTRUN waits
+	 * for a reduction to complete before starting the next exposure.
+	 * Loaded from the "loci.multrun.reduce.queue.depth" property.
+	 */
+	protected int reduceQueueDepth = DEFAULT_REDUCE_QUEUE_DEPTH;
 
 	/**
 	 * Constructor.
@@ -89,13 +133,23 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 *	<ul>
 	 *      <li>We call setPerFrameFitsHeaders to set the per-frame FITS headers.
 	 *      <li>getFitsHeadersFromISS is called to gets some FITS headers from the ISS (RCS). 
-	 *          These are sent on to the CCD Flask API.
+	 *          These are sent on to the CCD Flask API. If ISS FITS header prefetching is enabled, and 
+	 *          this is not the first frame, getPrefetchedFitsHeadersFromISS is called instead, to use the
+	 *          headers prefetched during the previous frame.
+	 *      <li>If ISS FITS header prefetching is enabled, and this is not the last frame, 
+	 *          startISSFitsHeaderPrefetch is called to start fetching the next frame's ISS FITS headers
+	 *          whilst this frame is exposing.
 	 * 	<li>It performs an exposure by calling sendTakeExposureCommand.
 	 * 	<li>We update the status object (setExposureNumber);
 	 *      <li>We send a MULTRUN_ACK to the client updating them with the returned filename, 
 	 *          and keeping the connection open.
 	 * 	<li>Keeps track of the generated filenames in the list.
+	 *      <li>If data pipelining is required, the frame is reduced (reduceExpose) and a MULTRUN_DP_ACK sent. 
+	 *          If asynchronous reduction is enabled, the frame is instead added to a 
+	 *          LociMULTRUNReductionThread's queue, which reduces the frame and sends the MULTRUN_DP_ACK whilst
+	 *          the next frame is being exposed.
 	 * 	</ul>
+	 * <li>If asynchronous reduction is enabled, we wait for the reduction queue to drain.
 	 * <li>It sets up the return values to return to the client.
 	 * </ul>
 	 * The resultant last filename or the relevant error code is put into the an object of class MULTRUN_DONE and
@@ -111,6 +165,13 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	 * @see ngat.loci.HardwareImplementation#setFilterWheelFitsHeaders
 	 * @see ngat.loci.HardwareImplementation#getFitsHeadersFromISS
 	 * @see ngat.loci.HardwareImplementation#setPerFrameFitsHeaders
+	 * @see #loadISSFitsPrefetchConfig
+	 * @see #startISSFitsHeaderPrefetch
+	 * @see #getPrefetchedFitsHeadersFromISS
+	 * @see #loadReduceQueueConfig
+	 * @see #getReductionFailed
+	 * @see #copyReductionResults
+	 * @see LociMULTRUNReductionThread
 	 */
 	public COMMAND_DONE processCommand(COMMAND command)
 	{
@@ -118,6 +179,8 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		MULTRUN_ACK multRunAck = null;
 		MULTRUN_DP_ACK multRunDpAck = null;
 		MULTRUN_DONE multRunDone = new MULTRUN_DONE(command.getId());
+		LociISSFitsHeaderPrefetchThread prefetchThread = null;
+		LociMULTRUNReductionThread reductionThread = null;
 		String obsType = null;
 		String filename = null;
 		String exposureType = null;
@@ -125,6 +188,8 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 		
 		if(testAbort(multRunCommand,multRunDone) == true)
 			return multRunDone;
+		loadISSFitsPrefetchConfig();
+		loadReduceQueueConfig();
 	// setup exposure status.
 		status.setExposureCount(multRunCommand.getNumberExposures());
 		status.setExposureNumber(0);
@@ -143,6 +208,9 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			obsType = FitsHeaderDefaults.OBSTYPE_VALUE_EXPOSURE;
 			exposureType = new String("exposure");
 		}
+	// the CCD Flask API may have been restarted, or had it's FITS headers changed, since the last command,
+	// so don't trust the FITS header mirror across top-level exposure commands
+		status.getFitsHeaderMirror().invalidate();
 		// initial FITS headers setup
 		try
 		{
@@ -161,99 +229,157 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 			return multRunDone;
 		if(setFilterWheelFitsHeaders(multRunCommand,multRunDone) == false)
 			return multRunDone;
+	// start the asynchronous data pipeline reduction thread, if required
+		if(multRunCommand.getPipelineProcess() && reduceAsyncEnable)
+		{
+			reductionThread = new LociMULTRUNReductionThread(this,multRunCommand,serverConnectionThread,
+							      status,reduceQueueDepth,multRunCommand.getExposureTime()+
+							      status.getMaxReadoutTime()+
+							      serverConnectionThread.getDefaultAcknowledgeTime());
+			reductionThread.start();
+		}
 	// do exposures
-		index = 0;
-		while(index < multRunCommand.getNumberExposures())
+		try
 		{
-			// setup per-frame FITS headers
-			if(setPerFrameFitsHeaders(multRunCommand,multRunDone,obsType,
-						  multRunCommand.getExposureTime(),
-						  multRunCommand.getNumberExposures(),index+1,
-						  status.getConfigBinningX()) == false)
-				return multRunDone;
-			// update ISS FITS headers
-			if(getFitsHeadersFromISS(multRunCommand,multRunDone) == false)
-				return multRunDone;
-			if(testAbort(multRunCommand,multRunDone) == true)
-				return multRunDone;
-			// do exposure
-			loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
-				 ":processCommand:Starting sendTakeExposureCommand.");
-			try
-			{
-				filename = sendTakeExposureCommand(multRunCommand.getExposureTime(),
-								   (index == 0),exposureType);
-			}
-			catch(Exception e )
-			{
-				loci.error(this.getClass().getName()+":processCommand:sendTakeExposureCommand failed:",
-					   e);
-				multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1000);
-				multRunDone.setErrorString(this.getClass().getName()+
-							   ":processCommand:sendTakeExposureCommand failed:"+e);
-				multRunDone.setSuccessful(false);
-				return multRunDone;
-			}
-			if(testAbort(multRunCommand,multRunDone) == true)
-				return multRunDone;
-		// update status
-			status.setExposureNumber(index+1);			
-			status.setExposureFilename(filename);
-		// send acknowledge to say frame is completed.
-			multRunAck = new MULTRUN_ACK(command.getId());
-			multRunAck.setTimeToComplete(multRunCommand.getExposureTime()+status.getMaxReadoutTime()+
-						     serverConnectionThread.getDefaultAcknowledgeTime());
-			multRunAck.setFilename(filename);
-			try
+			index = 0;
+			while(index < multRunCommand.getNumberExposures())
 			{
-				serverConnectionThread.sendAcknowledge(multRunAck);
-			}
-			catch(IOException e)
-			{
-				loci.error(this.getClass().getName()+
-					":processCommand:sendAcknowledge:"+command+":"+e.toString());
-				multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1001);
-				multRunDone.setErrorString(e.toString());
-				multRunDone.setSuccessful(false);
-				return multRunDone;
-			}
-			// if data pipelining flag has been set, call DpRt
-			if(multRunCommand.getPipelineProcess())
-			{
-				// do reduction.
-				if(reduceExpose(multRunCommand,multRunDone,filename) == false)
+				// setup per-frame FITS headers
+				if(setPerFrameFitsHeaders(multRunCommand,multRunDone,obsType,
+							  multRunCommand.getExposureTime(),
+							  multRunCommand.getNumberExposures(),index+1,
+							  status.getConfigBinningX()) == false)
+					return multRunDone;
+				// update ISS FITS headers
+				if(prefetchThread != null)
+				{
+					if(getPrefetchedFitsHeadersFromISS(multRunCommand,multRunDone,prefetchThread) == false)
+						return multRunDone;
+					prefetchThread = null;
+				}
+				else
+				{
+					if(getFitsHeadersFromISS(multRunCommand,multRunDone) == false)
+						return multRunDone;
+				}
+				if(testAbort(multRunCommand,multRunDone) == true)
 					return multRunDone;
-				// send acknowledge to say frame has been reduced.
-				multRunDpAck = new MULTRUN_DP_ACK(command.getId());
-				multRunDpAck.setTimeToComplete(multRunCommand.getExposureTime()+status.getMaxReadoutTime()+
-							       serverConnectionThread.getDefaultAcknowledgeTime());
-				// copy Data Pipeline results from DONE to ACK
-				multRunDpAck.setFilename(multRunDone.getFilename());
-				multRunDpAck.setCounts(multRunDone.getCounts());
-				multRunDpAck.setSeeing(multRunDone.getSeeing());
-				multRunDpAck.setXpix(multRunDone.getXpix());
-				multRunDpAck.setYpix(multRunDone.getYpix());
-				multRunDpAck.setPhotometricity(multRunDone.getPhotometricity());
-				multRunDpAck.setSkyBrightness(multRunDone.getSkyBrightness());
-				multRunDpAck.setSaturation(multRunDone.getSaturation());
+				// start fetching the next frame's ISS FITS headers whilst this frame is exposing
+				if(issFitsPrefetchEnable && ((index+1) < multRunCommand.getNumberExposures()))
+					prefetchThread = startISSFitsHeaderPrefetch(multRunCommand);
+				// do exposure
+				loci.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+
+					 ":processCommand:Starting sendTakeExposureCommand.");
 				try
 				{
-					serverConnectionThread.sendAcknowledge(multRunDpAck);
+					filename = sendTakeExposureCommand(multRunCommand.getExposureTime(),
+									   (index == 0),exposureType);
+				}
+				catch(Exception e )
+				{
+					loci.error(this.getClass().getName()+":processCommand:sendTakeExposureCommand failed:",
+						   e);
+					multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1000);
+					multRunDone.setErrorString(this.getClass().getName()+
+								   ":processCommand:sendTakeExposureCommand failed:"+e);
+					multRunDone.setSuccessful(false);
+					return multRunDone;
+				}
+				if(testAbort(multRunCommand,multRunDone) == true)
+					return multRunDone;
+			// update status
+				status.setExposureNumber(index+1);			
+				status.setExposureFilename(filename);
+			// send acknowledge to say frame is completed.
+				multRunAck = new MULTRUN_ACK(command.getId());
+				multRunAck.setTimeToComplete(multRunCommand.getExposureTime()+status.getMaxReadoutTime()+
+							     serverConnectionThread.getDefaultAcknowledgeTime());
+				multRunAck.setFilename(filename);
+				try
+				{
+					// sendAcknowledge serialises with the reduction thread's acknowledgements
+					serverConnectionThread.sendAcknowledge(multRunAck);
 				}
 				catch(IOException e)
 				{
 					loci.error(this.getClass().getName()+
-						   ":processCommand:sendAcknowledge(DP):"+command+":"+e.toString());
-					multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1003);
-					multRunDone.setErrorString("sendAcknowledge(DP) failed:"+e.toString());
+						":processCommand:sendAcknowledge:"+command+":"+e.toString());
+					multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1001);
+					multRunDone.setErrorString(e.toString());
 					multRunDone.setSuccessful(false);
 					return multRunDone;
 				}
-			}// end if doing data pipelining
-		// test whether an abort has occured.
-			if(testAbort(multRunCommand,multRunDone) == true)
-				return multRunDone;
-			index++;
+				// if data pipelining flag has been set, call DpRt
+				if(reductionThread != null)
+				{
+					// queue the frame for reduction, this blocks if the queue is full
+					if(reductionThread.addFilename(filename) == false)
+					{
+						if(getReductionFailed(multRunCommand,multRunDone,reductionThread))
+							return multRunDone;
+						testAbort(multRunCommand,multRunDone);
+						return multRunDone;
+					}
+				}
+				else if(multRunCommand.getPipelineProcess())
+				{
+					// do reduction.
+					if(reduceExpose(multRunCommand,multRunDone,filename) == false)
+						return multRunDone;
+					// send acknowledge to say frame has been reduced.
+					multRunDpAck = new MULTRUN_DP_ACK(command.getId());
+					multRunDpAck.setTimeToComplete(multRunCommand.getExposureTime()+status.getMaxReadoutTime()+
+								       serverConnectionThread.getDefaultAcknowledgeTime());
+					// copy Data Pipeline results from DONE to ACK
+					multRunDpAck.setFilename(multRunDone.getFilename());
+					multRunDpAck.setCounts(multRunDone.getCounts());
+					multRunDpAck.setSeeing(multRunDone.getSeeing());
+					multRunDpAck.setXpix(multRunDone.getXpix());
+					multRunDpAck.setYpix(multRunDone.getYpix());
+					multRunDpAck.setPhotometricity(multRunDone.getPhotometricity());
+					multRunDpAck.setSkyBrightness(multRunDone.getSkyBrightness());
+					multRunDpAck.setSaturation(multRunDone.getSaturation());
+					try
+					{
+						serverConnectionThread.sendAcknowledge(multRunDpAck);
+					}
+					catch(IOException e)
+					{
+						loci.error(this.getClass().getName()+
+							   ":processCommand:sendAcknowledge(DP):"+command+":"+e.toString());
+						multRunDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+1003);
+						multRunDone.setErrorString("sendAcknowledge(DP) failed:"+e.toString());
+						multRunDone.setSuccessful(false);
+						return multRunDone;
+					}
+				}// end if doing data pipelining
+			// test whether an abort has occured.
+				if(testAbort(multRunCommand,multRunDone) == true)
+					return multRunDone;
+				index++;
+			}
+			// wait for any outstanding reductions to complete
+			if(reductionThread != null)
+			{
+				reductionThread.finish();
+				if(reductionThread.waitForDrain() == false)
+				{
+					if(getReductionFailed(multRunCommand,multRunDone,reductionThread))
+						return multRunDone;
+					testAbort(multRunCommand,multRunDone);
+					return multRunDone;
+				}
+				copyReductionResults(multRunDone,reductionThread.getLastReduceDone());
+			}
+		}
+		finally
+		{
+			// stop any prefetch still in progress
+			if(prefetchThread != null)
+				prefetchThread.cancel();
+			// stop any reductions still in progress
+			if(reductionThread != null)
+				reductionThread.cancel();
 		}
 	// setup return values.
 	// setCounts,setFilename,setSeeing,setXpix,setYpix 
@@ -276,4 +402,200 @@ public class MULTRUNImplementation extends EXPOSEImplementation implements JMSCo
 	// return done object.
 		return multRunDone;
 	}
+
+	/**
+	 * Load the ISS FITS header prefetch configuration from the properties.
+	 * <ul>
+	 * <li>"loci.multrun.iss.fits.prefetch.enable" is loaded into issFitsPrefetchEnable (default false).
+	 * <li>"loci.multrun.iss.fits.prefetch.lead" is loaded into issFitsPrefetchLead.
+	 * <li>"loci.multrun.iss.fits.prefetch.staleness.max" is loaded into issFitsPrefetchStalenessMax.
+	 * </ul>
+	 * If a property is missing or invalid, the default value is used.
+	 * @see #issFitsPrefetchEnable
+	 * @see #issFitsPrefetchLead
+	 * @see #issFitsPrefetchStalenessMax
+	 * @see #DEFAULT_ISS_FITS_PREFETCH_LEAD
+	 * @see #DEFAULT_ISS_FITS_PREFETCH_STALENESS_MAX
+	 */
+	protected void loadISSFitsPrefetchConfig()
+	{
+		if(status.propertyContainsKey("loci.multrun.iss.fits.prefetch.enable"))
+			issFitsPrefetchEnable = status.getPropertyBoolean("loci.multrun.iss.fits.prefetch.enable");
+		else
+			issFitsPrefetchEnable = false;
+		try
+		{
+			issFitsPrefetchLead = status.getPropertyLong("loci.multrun.iss.fits.prefetch.lead");
+		}
+		catch(Exception e)
+		{
+			issFitsPrefetchLead = DEFAULT_ISS_FITS_PREFETCH_LEAD;
+		}
+		try
+		{
+			issFitsPrefetchStalenessMax = status.getPropertyLong("loci.multrun.iss.fits.prefetch.staleness.max");
+		}
+		catch(Exception e)
+		{
+			issFitsPrefetchStalenessMax = DEFAULT_ISS_FITS_PREFETCH_STALENESS_MAX;
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			 ":loadISSFitsPrefetchConfig:enable = "+issFitsPrefetchEnable+
+			 ",lead = "+issFitsPrefetchLead+" ms,staleness max = "+issFitsPrefetchStalenessMax+" ms.");
+	}
+
+	/**
+	 * Start prefetching the ISS FITS headers for the next frame. An instance of
+	 * LociISSFitsHeaderPrefetchThread is created and started, with a start delay so the GET_FITS is
+	 * sent issFitsPrefetchLead milliseconds before the end of the exposure about to be taken.
+	 * @param multRunCommand The MULTRUN command being implemented.
+	 * @return The started prefetch thread.
+	 * @see #issFitsPrefetchLead
+	 * @see LociISSFitsHeaderPrefetchThread
+	 */
+	protected LociISSFitsHeaderPrefetchThread startISSFitsHeaderPrefetch(MULTRUN multRunCommand)
+	{
+		LociISSFitsHeaderPrefetchThread prefetchThread = null;
+		long startDelay;
+
+		startDelay = Math.max(0,((long)multRunCommand.getExposureTime())-issFitsPrefetchLead);
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,"%s:startISSFitsHeaderPrefetch:Prefetching ISS FITS headers in %d ms.",
+				 this.getClass().getName(),startDelay);
+		}
+		prefetchThread = new LociISSFitsHeaderPrefetchThread(loci,serverConnectionThread,
+								     multRunCommand.getId(),startDelay);
+		prefetchThread.start();
+		return prefetchThread;
+	}
+
+	/**
+	 * Use the ISS FITS headers prefetched (during the previous frame) by the specified prefetch thread.
+	 * We wait for the prefetch to complete. If it failed, or the headers were requested more than
+	 * issFitsPrefetchStalenessMax milliseconds ago, we fall back to calling getFitsHeadersFromISS to
+	 * fetch the headers again. Otherwise we call setISSFitsHeaders to send the prefetched headers on
+	 * to the CCD Flask API.
+	 * @param multRunCommand The MULTRUN command being implemented.
+	 * @param multRunDone The MULTRUN_DONE to fill in with error details if an error occurs.
+	 * @param prefetchThread The prefetch thread started by startISSFitsHeaderPrefetch.
+	 * @return The routine returns a boolean to indicate whether the operation was completed
+	 *  	successfully.
+	 * @see #issFitsPrefetchStalenessMax
+	 * @see #startISSFitsHeaderPrefetch
+	 * @see HardwareImplementation#getFitsHeadersFromISS
+	 * @see HardwareImplementation#setISSFitsHeaders
+	 * @see LociISSFitsHeaderPrefetchThread
+	 */
+	protected boolean getPrefetchedFitsHeadersFromISS(MULTRUN multRunCommand,MULTRUN_DONE multRunDone,
+							  LociISSFitsHeaderPrefetchThread prefetchThread)
+	{
+		INST_TO_ISS_DONE instToISSDone = null;
+		long age;
+
+		try
+		{
+			prefetchThread.waitForDone();
+		}
+		catch(InterruptedException e)
+		{
+			loci.error(this.getClass().getName()+
+				   ":getPrefetchedFitsHeadersFromISS:Waiting for prefetch interrupted:",e);
+		}
+		instToISSDone = prefetchThread.getDone();
+		if((instToISSDone == null)||(instToISSDone.getSuccessful() == false))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":getPrefetchedFitsHeadersFromISS:Prefetch failed, re-fetching ISS FITS headers.");
+			return getFitsHeadersFromISS(multRunCommand,multRunDone);
+		}
+		age = System.currentTimeMillis()-prefetchThread.getRequestTime();
+		if(age > issFitsPrefetchStalenessMax)
+		{
+			if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			{
+				loci.log(Logging.VERBOSITY_VERBOSE,"%s:getPrefetchedFitsHeadersFromISS:Prefetched ISS FITS headers are "+
+					 "%d ms old (more than %d ms), re-fetching.",this.getClass().getName(),age,
+					 issFitsPrefetchStalenessMax);
+			}
+			return getFitsHeadersFromISS(multRunCommand,multRunDone);
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,"%s:getPrefetchedFitsHeadersFromISS:Using ISS FITS headers prefetched %d ms ago.",
+				 this.getClass().getName(),age);
+		}
+		return setISSFitsHeaders(multRunCommand,multRunDone,instToISSDone);
+	}
+
+	/**
+	 * Load the asynchronous data pipeline reduction configuration from the properties.
+	 * <ul>
+	 * <li>"loci.multrun.reduce.async.enable" is loaded into reduceAsyncEnable (default false).
+	 * <li>"loci.multrun.reduce.queue.depth" is loaded into reduceQueueDepth.
+	 * </ul>
+	 * If a property is missing or invalid, the default value is used.
+	 * @see #reduceAsyncEnable
+	 * @see #reduceQueueDepth
+	 * @see #DEFAULT_REDUCE_QUEUE_DEPTH
+	 */
+	protected void loadReduceQueueConfig()
+	{
+		if(status.propertyContainsKey("loci.multrun.reduce.async.enable"))
+			reduceAsyncEnable = status.getPropertyBoolean("loci.multrun.reduce.async.enable");
+		else
+			reduceAsyncEnable = false;
+		try
+		{
+			reduceQueueDepth = status.getPropertyInteger("loci.multrun.reduce.queue.depth");
+		}
+		catch(Exception e)
+		{
+			reduceQueueDepth = DEFAULT_REDUCE_QUEUE_DEPTH;
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+			 ":loadReduceQueueConfig:enable = "+reduceAsyncEnable+",queue depth = "+reduceQueueDepth+".");
+	}
+
+	/**
+	 * If the reduction thread has failed, copy the failure into the MULTRUN_DONE.
+	 * @param multRunCommand The MULTRUN command being implemented.
+	 * @param multRunDone The MULTRUN_DONE to fill in with error details.
+	 * @param reductionThread The reduction thread.
+	 * @return true if the reduction thread has failed (and multRunDone has been filled in), false otherwise.
+	 * @see LociMULTRUNReductionThread#getFailed
+	 */
+	protected boolean getReductionFailed(MULTRUN multRunCommand,MULTRUN_DONE multRunDone,
+					     LociMULTRUNReductionThread reductionThread)
+	{
+		if(reductionThread.getFailed() == false)
+			return false;
+		loci.error(this.getClass().getName()+":processCommand:"+multRunCommand+":Reduction failed:"+
+			   reductionThread.getErrorNum()+":"+reductionThread.getErrorString());
+		multRunDone.setErrorNum(reductionThread.getErrorNum());
+		multRunDone.setErrorString(reductionThread.getErrorString());
+		multRunDone.setSuccessful(false);
+		return true;
+	}
+
+	/**
+	 * Copy the data pipeline results of the last reduced frame into the MULTRUN_DONE.
+	 * @param multRunDone The MULTRUN_DONE to copy the results into.
+	 * @param reduceDone A MULTRUN_DONE containing the results of the last reduced frame. If this is null,
+	 *        nothing is copied.
+	 * @see LociMULTRUNReductionThread#getLastReduceDone
+	 */
+	protected void copyReductionResults(MULTRUN_DONE multRunDone,MULTRUN_DONE reduceDone)
+	{
+		if(reduceDone == null)
+			return;
+		multRunDone.setFilename(reduceDone.getFilename());
+		multRunDone.setCounts(reduceDone.getCounts());
+		multRunDone.setSeeing(reduceDone.getSeeing());
+		multRunDone.setXpix(reduceDone.getXpix());
+		multRunDone.setYpix(reduceDone.getYpix());
+		multRunDone.setPhotometricity(reduceDone.getPhotometricity());
+		multRunDone.setSkyBrightness(reduceDone.getSkyBrightness());
+		multRunDone.setSaturation(reduceDone.getSaturation());
+	}
 }
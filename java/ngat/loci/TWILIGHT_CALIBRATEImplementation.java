@@ -6,6 +6,7 @@ import java.io.*;
 import java.lang.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import ngat.fits.*;
 import ngat.loci.ccd.*;
@@ -152,6 +153,32 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #FRAME_STATE_COUNT
 	 */
 	protected final static String FRAME_STATE_NAME_LIST[] = {"underexposed","ok","overexposed"};
+	/**
+	 * Window prediction source. No prediction could be made (no site coordinates or sky model).
+	 * @see #planCalibrationWindow
+	 */
+	protected final static int WINDOW_PREDICTION_NONE = 0;
+	/**
+	 * Window prediction source. The prediction was made from the sun's altitude, using the configured
+	 * reference sky brightness.
+	 * @see #planCalibrationWindow
+	 */
+	protected final static int WINDOW_PREDICTION_EPHEMERIS = 1;
+	/**
+	 * Window prediction source. The prediction was made using the sky model fitted to tonight's frames.
+	 * @see #planCalibrationWindow
+	 */
+	protected final static int WINDOW_PREDICTION_SKY_MODEL = 2;
+	/**
+	 * A list of strings describing the window prediction sources, for logging.
+	 */
+	protected final static String WINDOW_PREDICTION_NAME_LIST[] = {"none","ephemeris","sky model"};
+	/**
+	 * The time step, in milliseconds, used when searching for the times a calibration will be inside it's
+	 * count window.
+	 * @see #planCalibrationWindow
+	 */
+	protected final static long WINDOW_PLAN_STEP_TIME = 30000L;
 	/**
 	 * The time, in milliseconds since the epoch, that the implementation of this command was started.
 	 */
@@ -261,6 +288,19 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * equal to the offsetList size at the end of the offset list loop.
 	 */
 	private int calibrationFrameCount = 0;
+	/**
+	 * The number of frames exposed (good or not) for the currently executing calibration.
+	 * Used to log the wasted frames and hit rate for the calibration.
+	 */
+	private int calibrationAttemptCount = 0;
+	/**
+	 * The number of frames exposed (good or not) by this command.
+	 */
+	private int totalAttemptCount = 0;
+	/**
+	 * The number of good frames exposed by this command.
+	 */
+	private int totalFrameCount = 0;
 	/**
 	 * A counter keeping track of the number of exposures taken.
 	 * Not all of these might have been "good" (FRAME_STATE_OK).
@@ -273,6 +313,147 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * produced by the twilight calibration process this should be FitsFilenameServer.MULTRUN_FLAG_NEXT
 	 */
 	protected String multrunStateFlag = FitsFilenameServer.MULTRUN_FLAG_START;
+	/**
+	 * Whether each frame's mean and peak counts are measured in-process by the image statistics engine (true),
+	 * or by waiting for the DpRt to reduce the frame (false).
+	 * @see #loadStatisticsProperties
+	 * @see #computeStatistics
+	 */
+	private boolean statisticsEnable = false;
+	/**
+	 * The image statistics engine only measures every statisticsSampleStride'th pixel of every 
+	 * statisticsSampleStride'th row.
+	 */
+	private int statisticsSampleStride = 1;
+	/**
+	 * The number of standard deviations from the mean, outside which pixels are rejected from the clipped mean.
+	 */
+	private double statisticsClipSigma = 3.0;
+	/**
+	 * The number of clipping iterations used to compute the clipped mean.
+	 */
+	private int statisticsClipIterations = 0;
+	/**
+	 * The bias level (in counts) subtracted from the in-process mean and peak counts. The frames are measured raw,
+	 * whereas the min/best/max mean counts were chosen for the DpRt's bias subtracted counts, so this should be
+	 * set to the detector's bias pedestal.
+	 * @see #computeStatistics
+	 */
+	private double statisticsBiasLevel = 0.0;
+	/**
+	 * Pixels at or above this number of counts are saturated.
+	 */
+	private double saturationLevel = 65535.0;
+	/**
+	 * If the fraction of measured pixels that are saturated is greater than this, the frame is treated
+	 * as saturated.
+	 */
+	private double maxSaturationFraction = 1.0;
+	/**
+	 * The executor the archival DpRt reductions of good frames are run on, when statisticsEnable is true.
+	 * @see #queueArchiveReduction
+	 * @see #waitForArchiveReductions
+	 */
+	private ThreadPoolExecutor archiveReductionExecutor = null;
+	/**
+	 * The list of archival DpRt reductions queued for this command.
+	 * @see #queueArchiveReduction
+	 * @see #waitForArchiveReductions
+	 */
+	private List<Future<Boolean>> archiveReductionList = null;
+	/**
+	 * Whether the next exposure length is predicted using the twilight sky brightness model (true),
+	 * or by scaling the last exposure length by the ratio of best to measured mean counts (false).
+	 * @see #loadSkyModelProperties
+	 * @see #skyModel
+	 */
+	private boolean skyModelEnable = false;
+	/**
+	 * The e-folding time of the twilight sky brightness, in milliseconds, used to seed the sky model's slope.
+	 */
+	private long skyModelEFoldingTime = 500000L;
+	/**
+	 * The weight (in seconds squared) the sky model gives to the seeded slope.
+	 */
+	private double skyModelPriorWeight = 0.0;
+	/**
+	 * The maximum number of (most recent) frames the sky model is fitted to.
+	 */
+	private int skyModelMaxObservationCount = 10;
+	/**
+	 * The twilight sky brightness model, fitted to the frames taken so far by this command.
+	 * @see LociTwilightSkyModel
+	 */
+	private LociTwilightSkyModel skyModel = null;
+	/**
+	 * The mean counts the sky model predicted for the next frame, or -1 if the model was not used to
+	 * predict it's exposure length. Used to log the accuracy of the model.
+	 */
+	private float skyModelPredictedMeanCounts = -1.0f;
+	/**
+	 * The solar ephemeris for the site, or null if the site coordinates are not configured.
+	 * @see #loadSolarEphemeris
+	 */
+	private LociSolarEphemeris solarEphemeris = null;
+	/**
+	 * The sun altitude (in degrees) at which the sky count rate is skyBrightnessReferenceRate.
+	 */
+	private double skyBrightnessReferenceAltitude = -4.0;
+	/**
+	 * The sky count rate (counts per second, for binning 1 and a filter sensitivity of 1.0) when the
+	 * sun is at skyBrightnessReferenceAltitude.
+	 */
+	private double skyBrightnessReferenceRate = 0.0;
+	/**
+	 * How much the (base 10) logarithm of the sky count rate changes per degree of sun altitude.
+	 */
+	private double skyBrightnessDexPerDegree = 0.4;
+	/**
+	 * Whether the calibrations are ordered and selected by the planner (true), or attempted in the
+	 * order of the calibration list (false).
+	 * @see #loadPlanProperties
+	 * @see #planCalibrations
+	 */
+	private boolean planEnable = false;
+	/**
+	 * The time taken to read out a frame (and start the next one), in milliseconds, used by the planner.
+	 * This is the actual overhead, unlike frameOverhead which is a safe upper limit used for ACKs.
+	 */
+	private int planReadoutOverhead = 10000;
+	/**
+	 * The time taken to re-configure the filter wheel and binning for a new calibration, in milliseconds,
+	 * used by the planner. No overhead is planned for a calibration using the same filter and binning
+	 * as the one before it.
+	 */
+	private int planConfigOverhead = 20000;
+	/**
+	 * The maximum priority given to an overdue calibration (priority is how many times it's frequency has
+	 * elapsed since it was last done).
+	 */
+	private double planMaxPriority = 10.0;
+	/**
+	 * The list of calibrations already attempted by this command, which are not planned again.
+	 * @see #planCalibrations
+	 */
+	private List<TWILIGHT_CALIBRATECalibration> attemptedCalibrationList = null;
+	/**
+	 * The number of flats the first plan made by this command expected to produce.
+	 */
+	private int initialPlannedFlatCount = 0;
+	/**
+	 * The binning the detector was last successfully configured to (full frame, with no sub-window)
+	 * by this command, or -1 if it is not known. This is used by doConfig to avoid re-configuring the
+	 * detector when consecutive calibrations use the same binning.
+	 * @see #doConfig
+	 */
+	private int configuredBin = -1;
+	/**
+	 * The filter the filter wheel was last successfully moved to (and the telescope focus offset set for)
+	 * by this command, or null if it is not known. This is used by doConfig to avoid moving the filter wheel
+	 * when consecutive calibrations use the same filter.
+	 * @see #doConfig
+	 */
+	private String configuredFilter = null;
 	
 	/**
 	 * Constructor.
@@ -322,52 +503,105 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	}
 
 	/**
-	 * This method implements the TWILIGHT_CALIBRATE command.
+	 * This method implements the TWILIGHT_CALIBRATE command. processCalibrations is called to do the
+	 * calibrations, and whichever way it returns (success, failure or abort) finishArchiveReductions is then
+	 * called, so no background DpRt reductions (or their acknowledgements) are still running once the
+	 * DONE is returned to the client.
+	 * @param command The command to be implemented.
+	 * @return An instance of TWILIGHT_CALIBRATE_DONE is returned, with it's fields indicating
+	 * 	the result of the command implementation.
+	 * @see #processCalibrations
+	 * @see #finishArchiveReductions
+	 */
+	public COMMAND_DONE processCommand(COMMAND command)
+	{
+		TWILIGHT_CALIBRATE twilightCalibrateCommand = (TWILIGHT_CALIBRATE)command;
+
+		archiveReductionList = new Vector<Future<Boolean>>();
+	// the CCD Flask API may have been restarted, or had it's FITS headers changed, since the last command,
+	// so don't trust the FITS header mirror across top-level exposure commands
+		status.getFitsHeaderMirror().invalidate();
+		try
+		{
+			return processCalibrations(twilightCalibrateCommand);
+		}
+		finally
+		{
+			finishArchiveReductions(twilightCalibrateCommand);
+		}
+	}
+
+	/**
+	 * This method does the work of the TWILIGHT_CALIBRATE command.
 	 * <ul>
 	 * <li>The implementation start time is saved.
+	 * <li><b>loadSolarEphemeris</b> is called to create the solar ephemeris for the site.
 	 * <li><b>setTimeOfNight</b> is called to set the time of night flag.
 	 * <li><b>loadProperties</b> is called to get configuration data from the properties.
+	 * <li>A new twilight sky brightness model is created, seeded with a slope from the sun's rate of change of
+	 *     altitude (if the site is configured), or the configured e-folding time
+	 *     (the sky gets darker at sunset and lighter at sunrise).
 	 * <li><b>addSavedStateToCalibration</b> is called, which finds the correct last time for each
 	 * 	calibration in the list and sets the relevant field.
+	 * <li><b>planCalibrations</b> is called to make the initial plan of which calibrations to do, in what order.
 	 * <li>The fold mirror is moved to the correct location using <b>moveFold</b>.
-	 * <li>For each calibration, we do the following:
+	 * <li>Whilst the plan is not empty, we do the following with the first calibration in the plan:
 	 *      <ul>
+	 *      <li>The calibration is added to the attempted calibration list, so it is not planned again.
+	 *      <li>If the planner is enabled, <b>waitForCalibrationWindow</b> is called to wait for the calibration's
+	 *          predicted count window to open.
 	 *      <li><b>doCalibration</b> is called.
+	 *      <li><b>planCalibrations</b> is called to re-plan the remaining calibrations.
 	 *      </ul>
+	 * <li>The flats expected by the initial plan, and those achieved, are logged.
+	 * <li>The total number of frames, wasted frames and hit rate for the command are logged.
+	 * <li>waitForArchiveReductions is called, to wait for any background DpRt reductions of good frames.
 	 * <li>sendBasicAck is called, to stop the client timing out whilst creating the master flat.
 	 * <li>The makeMasterFlat method is called, to create master flat fields from the data just taken.
 	 * </ul>
 	 * Note this method assumes the loading and initialisation before the main loop takes less than the
 	 * default acknowledge time, as no ACK's are sent to the client until we are ready to do the first
 	 * sequence of calibration frames.
-	 * @param command The command to be implemented.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE to be implemented.
 	 * @return An instance of TWILIGHT_CALIBRATE_DONE is returned, with it's fields indicating
 	 * 	the result of the command implementation.
 	 * @see #implementationStartTime
 	 * @see #exposureLength
 	 * @see #lastFilterSensitivity
+	 * @see #loadSolarEphemeris
 	 * @see #setTimeOfNight
 	 * @see #addSavedStateToCalibration
+	 * @see #planCalibrations
+	 * @see #waitForCalibrationWindow
+	 * @see #attemptedCalibrationList
+	 * @see #initialPlannedFlatCount
 	 * @see #doCalibration
 	 * @see #frameOverhead
 	 * @see #exposureIndex
 	 * @see #multrunStateFlag
+	 * @see #archiveReductionList
+	 * @see #waitForArchiveReductions
+	 * @see #skyModel
+	 * @see #skyModelEFoldingTime
+	 * @see #totalAttemptCount
+	 * @see #totalFrameCount
 	 * @see ngat.loci.HardwareImplementation#moveFold
 	 * @see ngat.loci.HardwareImplementation#clearFitsHeaders
 	 * @see ngat.loci.CALIBRATEImplementation#makeMasterFlat
 	 */
-	public COMMAND_DONE processCommand(COMMAND command)
+	protected COMMAND_DONE processCalibrations(TWILIGHT_CALIBRATE twilightCalibrateCommand)
 	{
-		TWILIGHT_CALIBRATE twilightCalibrateCommand = (TWILIGHT_CALIBRATE)command;
-		TWILIGHT_CALIBRATE_DONE twilightCalibrateDone = new TWILIGHT_CALIBRATE_DONE(command.getId());
+		TWILIGHT_CALIBRATE_DONE twilightCalibrateDone = new TWILIGHT_CALIBRATE_DONE(twilightCalibrateCommand.getId());
 		TWILIGHT_CALIBRATECalibration calibration = null;
-		int calibrationListIndex = 0;
+		List<TWILIGHT_CALIBRATECalibration> plan = null;
+		double priorSlope;
 		int makeFlatAckTime;
 
 		twilightCalibrateDone.setMeanCounts(0.0f);
 		twilightCalibrateDone.setPeakCounts(0.0f);
 	// initialise
 		implementationStartTime = System.currentTimeMillis();
+		loadSolarEphemeris();
 		setTimeOfNight();
 		if(loadProperties(twilightCalibrateCommand,twilightCalibrateDone) == false)
 			return twilightCalibrateDone;
@@ -376,9 +610,32 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		status.setExposureNumber(0);
 		exposureIndex = 0;
 		multrunStateFlag = FitsFilenameServer.MULTRUN_FLAG_START;
+		totalAttemptCount = 0;
+		totalFrameCount = 0;
+	// create the sky brightness model, seeded with the expected rate of change of the twilight sky
+		if(solarEphemeris != null)
+		{
+			priorSlope = Math.log(10.0)*skyBrightnessDexPerDegree*
+				solarEphemeris.getSunAltitudeRate(implementationStartTime);
+		}
+		else
+		{
+			priorSlope = 1000.0/((double)skyModelEFoldingTime);
+			if(timeOfNight == TIME_OF_NIGHT_SUNSET)
+				priorSlope = -priorSlope;
+		}
+		skyModel = new LociTwilightSkyModel(priorSlope,skyModelPriorWeight,skyModelMaxObservationCount);
+		skyModelPredictedMeanCounts = -1.0f;
 	// match saved state to calibration list (put last time into calibration list)
 		if(addSavedStateToCalibration(twilightCalibrateCommand,twilightCalibrateDone) == false)
 			return twilightCalibrateDone;
+	// plan which calibrations to do, and in what order
+	// the detector/filter wheel configuration is not known until this command configures them
+		configuredBin = -1;
+		configuredFilter = null;
+		attemptedCalibrationList = new Vector<TWILIGHT_CALIBRATECalibration>();
+		plan = planCalibrations(twilightCalibrateCommand,System.currentTimeMillis());
+		initialPlannedFlatCount = plan.size()*offsetList.size();
 	// move the fold mirror to the correct location
 		if(moveFold(twilightCalibrateCommand,twilightCalibrateDone) == false)
 			return twilightCalibrateDone;
@@ -396,27 +653,44 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		lastExposureLength = exposureLength;
 		lastFilterSensitivity = 1.0;
 		lastBin = 1;
-		if(calibrationList.size() > 0)
+		if(plan.size() > 0)
 		{
-			calibration = (TWILIGHT_CALIBRATECalibration)(calibrationList.get(0));
+			calibration = plan.get(0);
 			lastFilterSensitivity = calibration.getFilterSensitivity();
 			lastBin = calibration.getBin();
 		}
 		// initialise meanCounts
 		meanCounts = bestMeanCounts[lastBin];
 		// initialise loop variables
-		calibrationListIndex = 0;
 		doneCalibration = false;
-	// main loop, do calibrations until we run out of time.
-		while((doneCalibration == false) && (calibrationListIndex < calibrationList.size()))
+	// main loop, do calibrations in plan order until we run out of time.
+		while((doneCalibration == false) && (plan.size() > 0))
 		{
 		// get calibration
-			calibration = (TWILIGHT_CALIBRATECalibration)(calibrationList.get(calibrationListIndex));
+			calibration = plan.get(0);
+			attemptedCalibrationList.add(calibration);
+		// wait for it's predicted count window to open (only set from sky model predictions)
+			if(planEnable && (waitForCalibrationWindow(twilightCalibrateCommand,twilightCalibrateDone,
+								   calibration.getWindowStart()) == false))
+				return twilightCalibrateDone;
 		// do calibration
 			if(doCalibration(twilightCalibrateCommand,twilightCalibrateDone,calibration) == false)
 				return twilightCalibrateDone;
-			calibrationListIndex++;
-		}// end for on calibration list
+		// re-plan the remaining calibrations
+			plan = planCalibrations(twilightCalibrateCommand,System.currentTimeMillis());
+		}// end while on plan
+		if(planEnable)
+		{
+			loci.log(Logging.VERBOSITY_TERSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":processCommand:Initial plan expected "+initialPlannedFlatCount+" flats:achieved "+
+				 totalFrameCount+" flats.");
+		}
+		loci.log(Logging.VERBOSITY_TERSE,"Command:"+twilightCalibrateCommand.getId()+
+			 ":processCommand:Frames taken:"+totalAttemptCount+":good frames:"+totalFrameCount+
+			 ":wasted frames:"+(totalAttemptCount-totalFrameCount)+":hit rate:"+
+			 getHitRate(totalFrameCount,totalAttemptCount)+"%.");
+	// wait for the archival reductions of the good frames, before the DpRt makes the master flat from them.
+		waitForArchiveReductions(twilightCalibrateCommand);
 	// send an ack before make master processing, so the client doesn't time out.
 		makeFlatAckTime = status.getPropertyInteger("loci.twilight_calibrate.acknowledge_time.make_flat");
 		if(sendBasicAck(twilightCalibrateCommand,twilightCalibrateDone,makeFlatAckTime) == false)
@@ -432,18 +706,102 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	}
 
 	/**
-	 * Method to set time of night flag.
+	 * Method to create the solar ephemeris for the site, and load the reference sky brightness used to
+	 * predict the sky count rate from the sun's altitude. 
+	 * <ul>
+	 * <li>The site latitude and longitude are retrieved from the "loci.site.latitude" and "loci.site.longitude"
+	 *     properties (in degrees, north and east positive). If these are missing or invalid, solarEphemeris
+	 *     is set to null, and the ephemeris is not used.
+	 * <li>skyBrightnessReferenceAltitude is loaded from 
+	 *     "loci.twilight_calibrate.sky_brightness.reference_altitude".
+	 * <li>skyBrightnessReferenceRate is loaded from "loci.twilight_calibrate.sky_brightness.reference_rate".
+	 *     If this is missing, invalid or not positive, windows are not predicted from the ephemeris.
+	 * <li>skyBrightnessDexPerDegree is loaded from "loci.twilight_calibrate.sky_brightness.dex_per_degree".
+	 * </ul>
+	 * @see #solarEphemeris
+	 * @see #skyBrightnessReferenceAltitude
+	 * @see #skyBrightnessReferenceRate
+	 * @see #skyBrightnessDexPerDegree
+	 * @see LociSolarEphemeris
+	 */
+	protected void loadSolarEphemeris()
+	{
+		double latitude,longitude;
+
+		try
+		{
+			latitude = status.getPropertyDouble("loci.site.latitude");
+			longitude = status.getPropertyDouble("loci.site.longitude");
+			solarEphemeris = new LociSolarEphemeris(latitude,longitude);
+		}
+		catch(NullPointerException e)
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadSolarEphemeris:Site coordinates not configured, not using solar ephemeris.");
+			solarEphemeris = null;
+		}
+		catch(Exception e)
+		{
+			loci.error(this.getClass().getName()+
+				   ":loadSolarEphemeris:Illegal site coordinates, not using solar ephemeris:",e);
+			solarEphemeris = null;
+		}
+		try
+		{
+			skyBrightnessReferenceAltitude = status.getPropertyDouble(LIST_KEY_STRING+
+									"sky_brightness.reference_altitude");
+			skyBrightnessReferenceRate = status.getPropertyDouble(LIST_KEY_STRING+
+									     "sky_brightness.reference_rate");
+			skyBrightnessDexPerDegree = status.getPropertyDouble(LIST_KEY_STRING+
+									    "sky_brightness.dex_per_degree");
+		}
+		catch(Exception e)
+		{
+			skyBrightnessReferenceAltitude = -4.0;
+			skyBrightnessReferenceRate = 0.0;
+			skyBrightnessDexPerDegree = 0.4;
+		}
+		if((solarEphemeris != null)&&loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadSolarEphemeris:latitude:"+solarEphemeris.getLatitude()+
+				 ":longitude:"+solarEphemeris.getLongitude()+
+				 ":sun altitude now:"+solarEphemeris.getSunAltitude(System.currentTimeMillis())+
+				 ":reference rate:"+skyBrightnessReferenceRate+" at altitude:"+
+				 skyBrightnessReferenceAltitude+":dex per degree:"+skyBrightnessDexPerDegree+".");
+		}
+	}
+
+	/**
+	 * Method to set time of night flag. If the solar ephemeris is available, the time of night is
+	 * sunrise if the sun is rising, and sunset if it is setting. Otherwise the time of night is sunrise
+	 * in the morning (before 12 o'clock) and sunset in the afternoon.
 	 * @see #TIME_OF_NIGHT_UNKNOWN
 	 * @see #TIME_OF_NIGHT_SUNRISE
 	 * @see #TIME_OF_NIGHT_SUNSET
 	 * @see #timeOfNight
+	 * @see #solarEphemeris
+	 * @see LociSolarEphemeris#isSunRising
 	 */
 	protected void setTimeOfNight()
 	{
 		Calendar calendar = null;
+		long now;
 		int hour;
 
 		timeOfNight = TIME_OF_NIGHT_UNKNOWN;
+		if(solarEphemeris != null)
+		{
+			now = System.currentTimeMillis();
+			if(solarEphemeris.isSunRising(now))
+				timeOfNight = TIME_OF_NIGHT_SUNRISE;
+			else
+				timeOfNight = TIME_OF_NIGHT_SUNSET;
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":setTimeOfNight:sun altitude:"+
+				 solarEphemeris.getSunAltitude(now)+":altitude rate:"+
+				 solarEphemeris.getSunAltitudeRate(now)+" degrees/s:time of night:"+timeOfNight+".");
+			return;
+		}
 	// get Instance initialises the calendar to the current time.
 		calendar = Calendar.getInstance();
 	// the hour returned using HOUR of DAY is between 0 and 23
@@ -494,6 +852,9 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #LIST_KEY_SUNSET_STRING
 	 * @see #LIST_KEY_SUNRISE_STRING
 	 * @see #LIST_KEY_STRING
+	 * @see #loadStatisticsProperties
+	 * @see #loadSkyModelProperties
+	 * @see #loadPlanProperties
 	 */
 	protected boolean loadProperties(TWILIGHT_CALIBRATE twilightCalibrateCommand,
 		TWILIGHT_CALIBRATE_DONE twilightCalibrateDone)
@@ -552,6 +913,9 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			twilightCalibrateDone.setSuccessful(false);
 			return false;
 		}
+		loadStatisticsProperties();
+		loadSkyModelProperties();
+		loadPlanProperties();
 		if(loadCalibrationList(twilightCalibrateCommand,twilightCalibrateDone) == false)
 			return false;
 		if(loadOffsetList(twilightCalibrateCommand,twilightCalibrateDone) == false)
@@ -561,6 +925,212 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		return true;
 	}
 
+	/**
+	 * Method to load the in-process image statistics configuration. These properties are optional, 
+	 * if they are missing or invalid the frames are measured by the DpRt as before, and defaults are used.
+	 * <ul>
+	 * <li>statisticsEnable is loaded from "loci.twilight_calibrate.statistics.enable".
+	 * <li>statisticsSampleStride is loaded from "loci.twilight_calibrate.statistics.sample_stride".
+	 * <li>statisticsClipSigma is loaded from "loci.twilight_calibrate.statistics.clip_sigma".
+	 * <li>statisticsClipIterations is loaded from "loci.twilight_calibrate.statistics.clip_iterations".
+	 * <li>statisticsBiasLevel is loaded from "loci.twilight_calibrate.statistics.bias_level".
+	 * <li>saturationLevel is loaded from "loci.twilight_calibrate.statistics.saturation_level".
+	 * <li>maxSaturationFraction is loaded from "loci.twilight_calibrate.statistics.saturation_fraction.max".
+	 * </ul>
+	 * @see #statisticsEnable
+	 * @see #statisticsSampleStride
+	 * @see #statisticsClipSigma
+	 * @see #statisticsClipIterations
+	 * @see #statisticsBiasLevel
+	 * @see #saturationLevel
+	 * @see #maxSaturationFraction
+	 * @see #LIST_KEY_STRING
+	 */
+	protected void loadStatisticsProperties()
+	{
+		try
+		{
+			statisticsEnable = status.getPropertyBoolean(LIST_KEY_STRING+"statistics.enable");
+		}
+		catch(NullPointerException e)
+		{
+			statisticsEnable = false;
+		}
+		try
+		{
+			statisticsSampleStride = status.getPropertyInteger(LIST_KEY_STRING+"statistics.sample_stride");
+		}
+		catch(NumberFormatException e)
+		{
+			statisticsSampleStride = 1;
+		}
+		try
+		{
+			statisticsClipSigma = status.getPropertyDouble(LIST_KEY_STRING+"statistics.clip_sigma");
+		}
+		catch(NumberFormatException e)
+		{
+			statisticsClipSigma = 3.0;
+		}
+		try
+		{
+			statisticsClipIterations = status.getPropertyInteger(LIST_KEY_STRING+
+									     "statistics.clip_iterations");
+		}
+		catch(NumberFormatException e)
+		{
+			statisticsClipIterations = 0;
+		}
+		try
+		{
+			statisticsBiasLevel = status.getPropertyDouble(LIST_KEY_STRING+"statistics.bias_level");
+		}
+		catch(Exception e)
+		{
+			statisticsBiasLevel = 0.0;
+		}
+		try
+		{
+			saturationLevel = status.getPropertyDouble(LIST_KEY_STRING+"statistics.saturation_level");
+		}
+		catch(NumberFormatException e)
+		{
+			saturationLevel = 65535.0;
+		}
+		try
+		{
+			maxSaturationFraction = status.getPropertyDouble(LIST_KEY_STRING+
+									 "statistics.saturation_fraction.max");
+		}
+		catch(NumberFormatException e)
+		{
+			maxSaturationFraction = 1.0;
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadStatisticsProperties:enable:"+statisticsEnable+
+				 ":sample stride:"+statisticsSampleStride+":clip sigma:"+statisticsClipSigma+
+				 ":clip iterations:"+statisticsClipIterations+":bias level:"+statisticsBiasLevel+
+				 ":saturation level:"+saturationLevel+
+				 ":max saturation fraction:"+maxSaturationFraction+".");
+	}
+
+	/**
+	 * Method to load the twilight sky brightness model configuration. These properties are optional, 
+	 * if they are missing or invalid the exposure length is calculated as before, and defaults are used.
+	 * <ul>
+	 * <li>skyModelEnable is loaded from "loci.twilight_calibrate.sky_model.enable".
+	 * <li>skyModelEFoldingTime is loaded from "loci.twilight_calibrate.sky_model.e_folding_time".
+	 * <li>skyModelPriorWeight is loaded from "loci.twilight_calibrate.sky_model.prior_weight".
+	 * <li>skyModelMaxObservationCount is loaded from "loci.twilight_calibrate.sky_model.observation_count.max".
+	 * </ul>
+	 * @see #skyModelEnable
+	 * @see #skyModelEFoldingTime
+	 * @see #skyModelPriorWeight
+	 * @see #skyModelMaxObservationCount
+	 * @see #LIST_KEY_STRING
+	 */
+	protected void loadSkyModelProperties()
+	{
+		try
+		{
+			skyModelEnable = status.getPropertyBoolean(LIST_KEY_STRING+"sky_model.enable");
+		}
+		catch(NullPointerException e)
+		{
+			skyModelEnable = false;
+		}
+		try
+		{
+			skyModelEFoldingTime = status.getPropertyLong(LIST_KEY_STRING+"sky_model.e_folding_time");
+		}
+		catch(NumberFormatException e)
+		{
+			skyModelEFoldingTime = 500000L;
+		}
+		if(skyModelEFoldingTime <= 0)
+			skyModelEFoldingTime = 500000L;
+		try
+		{
+			skyModelPriorWeight = status.getPropertyDouble(LIST_KEY_STRING+"sky_model.prior_weight");
+		}
+		catch(NumberFormatException e)
+		{
+			skyModelPriorWeight = 0.0;
+		}
+		try
+		{
+			skyModelMaxObservationCount = status.getPropertyInteger(LIST_KEY_STRING+
+										"sky_model.observation_count.max");
+		}
+		catch(NumberFormatException e)
+		{
+			skyModelMaxObservationCount = 10;
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadSkyModelProperties:enable:"+skyModelEnable+
+				 ":e-folding time:"+skyModelEFoldingTime+":prior weight:"+skyModelPriorWeight+
+				 ":max observation count:"+skyModelMaxObservationCount+".");
+	}
+
+	/**
+	 * Method to load the calibration planner configuration. These properties are optional, 
+	 * if they are missing or invalid the calibrations are attempted in calibration list order, and defaults
+	 * are used.
+	 * <ul>
+	 * <li>planEnable is loaded from "loci.twilight_calibrate.plan.enable".
+	 * <li>planReadoutOverhead is loaded from "loci.twilight_calibrate.plan.readout_overhead".
+	 * <li>planConfigOverhead is loaded from "loci.twilight_calibrate.plan.config_overhead".
+	 * <li>planMaxPriority is loaded from "loci.twilight_calibrate.plan.priority.max".
+	 * </ul>
+	 * @see #planEnable
+	 * @see #planReadoutOverhead
+	 * @see #planConfigOverhead
+	 * @see #planMaxPriority
+	 * @see #LIST_KEY_STRING
+	 */
+	protected void loadPlanProperties()
+	{
+		try
+		{
+			planEnable = status.getPropertyBoolean(LIST_KEY_STRING+"plan.enable");
+		}
+		catch(NullPointerException e)
+		{
+			planEnable = false;
+		}
+		try
+		{
+			planReadoutOverhead = status.getPropertyInteger(LIST_KEY_STRING+"plan.readout_overhead");
+		}
+		catch(NumberFormatException e)
+		{
+			planReadoutOverhead = 10000;
+		}
+		try
+		{
+			planConfigOverhead = status.getPropertyInteger(LIST_KEY_STRING+"plan.config_overhead");
+		}
+		catch(NumberFormatException e)
+		{
+			planConfigOverhead = 20000;
+		}
+		try
+		{
+			planMaxPriority = status.getPropertyDouble(LIST_KEY_STRING+"plan.priority.max");
+		}
+		catch(Exception e)
+		{
+			planMaxPriority = 10.0;
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
+				 ":loadPlanProperties:enable:"+planEnable+
+				 ":readout overhead:"+planReadoutOverhead+":config overhead:"+planConfigOverhead+
+				 ":max priority:"+planMaxPriority+".");
+	}
+
 	/**
 	 * Method to load a list of calibrations to do. The list used depends on whether timeOfNight is set to
 	 * sunrise or sunset.
@@ -854,14 +1424,22 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * <ul>
 	 * <li>The relevant data is retrieved from the calibration parameter.
 	 * <li>If we did this calibration more recently than frequency, log and return.
-	 * <li>An optimal exposure length is calculated, by dividing by the last relative sensitivity used
+	 * <li><b>planCalibrationWindow</b> is called to re-predict when this calibration will be inside
+	 *     it's count window. If the prediction was made by the sky model (fitted to tonight's frames), and the
+	 *     calibration will not be inside it's count window before the command must finish, log and return.
+	 * <li>If the sky model is enabled, and has been fitted to at least one frame, the optimal exposure length
+	 *     is predicted by the sky model for this filter/bin, starting now. Otherwise:
+	 *     <ul>
+	 *     <li>An optimal exposure length is calculated, by dividing by the last relative sensitivity used
 	 * 	(to get the exposure length as if though a clear filter), and then dividing by the 
 	 * 	new relative filter sensitivity (to increase the exposure length).
-	 * <li>The optimal exposure length is recalculated to take account of differences from the last binning
+	 *     <li>The optimal exposure length is recalculated to take account of differences from the last binning
 	 *     to the new binning.
+	 *     </ul>
 	 * <li>We set the exposure length to be a range bound version of optimal exposure length, between
 	 *     the minimum and maximum exposure length.
-	 * <li>We calculate the predicted mean counts, by taking the last mean counts and adjusting by the ratios
+	 * <li>We calculate the predicted mean counts, using the sky model if it was used for the exposure length,
+	 *     otherwise by taking the last mean counts and adjusting by the ratios
 	 *     between the old and new filter sensitivity, the old and new binning squared (as binning 2 allows
 	 *     four times the flux to fall on a pixel as binning 1), and the old and new exposure length.
 	 * <li>Check whether we expect the predicted mean counts to be too small at sunset
@@ -874,6 +1452,7 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * <li><b>sendBasicAck</b> is called to stop the client timing out before the first frame is completed.
 	 * <li><b>doOffsetList</b> is called to go through the telescope RA/DEC offsets and take frames at
 	 * 	each offset.
+	 * <li>The number of frames taken, wasted frames and hit rate for the calibration are logged.
 	 * <li>If the calibration suceeded, the saved state's last time is updated to now, and the state saved.
 	 * </ul>
 	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
@@ -887,7 +1466,12 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #lastFilterSensitivity
 	 * @see #lastBin
 	 * @see #calibrationFrameCount
+	 * @see #calibrationAttemptCount
 	 * @see #meanCounts
+	 * @see #skyModel
+	 * @see #skyModelPredictedMeanCounts
+	 * @see #getHitRate
+	 * @see #planCalibrationWindow
 	 */
 	protected boolean doCalibration(TWILIGHT_CALIBRATE twilightCalibrateCommand,
 			TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,TWILIGHT_CALIBRATECalibration calibration)
@@ -898,6 +1482,7 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		long now;
 		float predictedMeanCounts;
 		double filterSensitivity;
+		int windowPrediction;
 
 		loci.log(Logging.VERBOSITY_VERBOSE,
 			 "Command:"+twilightCalibrateCommand.getClass().getName()+
@@ -926,30 +1511,63 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 				 "NOT DONE: too soon since last completed:"+now+" - "+lastTime+" < "+frequency+".");
 			return true;
 		}
+	// if the sky brightness measured tonight predicts this calibration's count window has passed, don't try it
+		windowPrediction = planCalibrationWindow(twilightCalibrateCommand,calibration,now);
+		if((windowPrediction == WINDOW_PREDICTION_SKY_MODEL)&&(calibration.getWindowStart() < 0))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+twilightCalibrateCommand.getClass().getName()+
+				 ":doCalibrate:"+"bin:"+bin+":filter:"+filter+
+				 ":NOT DONE: sky model predicts it is outside it's count window until the command ends.");
+			return true;
+		}
 	// recalculate the exposure length
 		loci.log(Logging.VERBOSITY_VERBOSE,
 			 "Command:"+twilightCalibrateCommand.getClass().getName()+
 			 ":doCalibrate:lastExposureLength:"+lastExposureLength);
-		optimalExposureLength = (int)((((double)lastExposureLength)*lastFilterSensitivity)/filterSensitivity);
-		loci.log(Logging.VERBOSITY_VERBOSE,
-			 "Command:"+twilightCalibrateCommand.getClass().getName()+
-			 ":doCalibrate:optimalExposureLength after multiplication through by last filter sensitivity:"+
-			 lastFilterSensitivity+"/ filter senisitivity:"+filterSensitivity+" =:"+optimalExposureLength);
-		optimalExposureLength = (optimalExposureLength*(lastBin*lastBin))/(bin*bin);
-		loci.log(Logging.VERBOSITY_VERBOSE,
-			 "Command:"+twilightCalibrateCommand.getClass().getName()+
-			 ":doCalibrate:optimalExposureLength after multiplication through by last bin:"+
-			 lastBin+" (squared) / bin:"+bin+" (squared) =:"+optimalExposureLength);
-		exposureLength = optimalExposureLength;
-		if(optimalExposureLength < minExposureLength)
-			exposureLength = minExposureLength;
-		if(optimalExposureLength > maxExposureLength)
-			exposureLength = maxExposureLength;
-		predictedMeanCounts = meanCounts * (float)((filterSensitivity/lastFilterSensitivity) * 
-				     ((bin*bin)/(lastBin*lastBin))*(exposureLength/lastExposureLength));
-		loci.log(Logging.VERBOSITY_VERBOSE,
-			 "Command:"+twilightCalibrateCommand.getClass().getName()+
-			 ":doCalibrate:predictedMeanCounts are "+
+		if(skyModelEnable && skyModel.hasObservations())
+		{
+			optimalExposureLength = skyModel.getExposureLength(filter,bin,filterSensitivity,now,
+									   bestMeanCounts[bin],maxExposureLength);
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+twilightCalibrateCommand.getClass().getName()+
+				 ":doCalibrate:optimalExposureLength predicted by sky model (slope "+skyModel.getSlope()+
+				 ") for best mean counts "+bestMeanCounts[bin]+" =:"+optimalExposureLength);
+		}
+		else
+		{
+			optimalExposureLength = (int)((((double)lastExposureLength)*lastFilterSensitivity)/
+						      filterSensitivity);
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+twilightCalibrateCommand.getClass().getName()+
+				 ":doCalibrate:optimalExposureLength after multiplication through by last filter sensitivity:"+
+				 lastFilterSensitivity+"/ filter senisitivity:"+filterSensitivity+" =:"+optimalExposureLength);
+			optimalExposureLength = (optimalExposureLength*(lastBin*lastBin))/(bin*bin);
+			loci.log(Logging.VERBOSITY_VERBOSE,
+				 "Command:"+twilightCalibrateCommand.getClass().getName()+
+				 ":doCalibrate:optimalExposureLength after multiplication through by last bin:"+
+				 lastBin+" (squared) / bin:"+bin+" (squared) =:"+optimalExposureLength);
+		}
+		exposureLength = optimalExposureLength;
+		if(optimalExposureLength < minExposureLength)
+			exposureLength = minExposureLength;
+		if(optimalExposureLength > maxExposureLength)
+			exposureLength = maxExposureLength;
+		if(skyModelEnable && skyModel.hasObservations())
+		{
+			predictedMeanCounts = (float)(skyModel.getPredictedCounts(filter,bin,filterSensitivity,now,
+										  exposureLength));
+			skyModelPredictedMeanCounts = predictedMeanCounts;
+		}
+		else
+		{
+			predictedMeanCounts = meanCounts * (float)((filterSensitivity/lastFilterSensitivity) * 
+					     ((bin*bin)/(lastBin*lastBin))*(exposureLength/lastExposureLength));
+			skyModelPredictedMeanCounts = -1.0f;
+		}
+		loci.log(Logging.VERBOSITY_VERBOSE,
+			 "Command:"+twilightCalibrateCommand.getClass().getName()+
+			 ":doCalibrate:predictedMeanCounts are "+
 			 predictedMeanCounts+" using exposure legnth "+exposureLength);
 		// check whether we expect the predicted mean counts to be too small at sunset
 		// (it is too dark for this filter/bin combo). If so, try the next calibration.
@@ -1001,8 +1619,16 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			return false;
 	// do the frames with this configuration
 		calibrationFrameCount = 0;
+		calibrationAttemptCount = 0;
 		if(doOffsetList(twilightCalibrateCommand,twilightCalibrateDone,bin,filter) == false)
 			return false;
+	// log how many frames were wasted getting the good frames for this calibration
+		loci.log(Logging.VERBOSITY_TERSE,
+			 "Command:"+twilightCalibrateCommand.getClass().getName()+
+			 ":doCalibrate:bin:"+bin+":filter:"+filter+":frames taken:"+calibrationAttemptCount+
+			 ":good frames:"+calibrationFrameCount+
+			 ":wasted frames:"+(calibrationAttemptCount-calibrationFrameCount)+
+			 ":hit rate:"+getHitRate(calibrationFrameCount,calibrationAttemptCount)+"%.");
 	// update state, if we completed the whole calibration.
 		if(calibrationFrameCount == offsetList.size())
 		{
@@ -1043,12 +1669,13 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	/**
 	 * Method to setup the CCD configuration with the specified binning factor, and specified filter.
 	 * <ul>
-	 * <li>We call <b>sendSetImageDimensionsCommand</b> to set the CCD binning.
-	 * <li>We call <b>sendSetFilterPositionByNameCommand</b> to move the filter wheel to the desired filter.
-	 * <li>We get the overall instrument focus offset from the "loci.focus.offset" status property.
-	 * <li>We get the filter Id from it's name using he status method <b>getFilterIdName</b>.
-	 * <li>We get the filter's optical depth using the status method <b>getFilterIdOpticalThickness</b>.
-	 * <li>We add the filter offsets together and offset the telescope focus using the <b>setFocusOffset</b> method.
+	 * <li>If this command has already configured the binning and filter (configuredBin and configuredFilter),
+	 *     nothing needs to change and we return true (without incrementing the configuration ID).
+	 * <li>We call <b>sendSetImageDimensionsCommand</b> to set the CCD binning, unless it is already configuredBin.
+	 * <li>We call <b>sendSetFilterPositionByNameCommand</b> to move the filter wheel to the desired filter,
+	 *     unless it is already configuredFilter, in which case the focus offset is not changed either.
+	 * <li>If the filter was moved, we call <b>setFilterFocusOffset</b> to offset the telescope focus for the
+	 *     new filter.
 	 * <li>We increment the unique config id by calling status's <b>incConfigId</b> method.
 	 * <li>We set the configuration name in the status object by calling the <b>setConfigName</b> method.
 	 *     This is used when constructing the FITS headers.
@@ -1061,34 +1688,53 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #loci
 	 * @see #status
 	 * @see #sendSetImageDimensionsCommand
+	 * @see #configuredBin
+	 * @see #configuredFilter
+	 * @see #setFilterFocusOffset
 	 * @see ngat.loci.Loci#getStatus
 	 * @see ngat.loci.Loci#error
 	 * @see ngat.loci.Loci#log
-	 * @see ngat.loci.LociStatus#getPropertyFloat
-	 * @see ngat.loci.LociStatus#getFilterIdName
-	 * @see ngat.loci.LociStatus#getFilterIdOpticalThickness
 	 * @see ngat.loci.LociStatus#incConfigId
 	 * @see ngat.loci.LociStatus#setConfigName
 	 * @see ngat.loci.LociConstants#LOCI_ERROR_CODE_BASE
 	 * @see ngat.loci.LociConstants#LOCI_ERROR_CODE_NO_ERROR
 	 * @see ngat.loci.CommandImplementation#testAbort
 	 * @see ngat.loci.HardwareImplementation#sendSetFilterPositionByNameCommand
-	 * @see ngat.loci.HardwareImplementation#setFocusOffset
 	 */
 	protected boolean doConfig(TWILIGHT_CALIBRATE twilightCalibrateCommand,
 				   TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,int bin,String filter)
 	{
-		String filterIdName = null;
-		float focusOffset,filterFocusOffset;
+		boolean filterChanged;
 
+		filterChanged = (filter.equals(configuredFilter) == false);
+		if((bin == configuredBin)&&(filterChanged == false))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getClass().getName()+
+				 ":doConfig:Already configured to bin "+bin+" and filter "+filter+":Not re-configuring.");
+			return true;
+		}
 		try
 		{
 			// send configuration to the camera
-			sendSetImageDimensionsCommand(bin,bin);
+			if(bin != configuredBin)
+			{
+				configuredBin = -1;
+				sendSetImageDimensionsCommand(bin,bin);
+				configuredBin = bin;
+			}
+			else
+			{
+				loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getClass().getName()+
+					 ":doConfig:Detector already configured to bin "+bin+":Not re-configuring.");
+			}
 			if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 				return false;
 			// move filter wheel to specified filter
-			sendSetFilterPositionByNameCommand(filter);
+			if(filterChanged)
+			{
+				configuredFilter = null;
+				sendSetFilterPositionByNameCommand(filter);
+			}
 		}
 		catch(Exception e)
 		{
@@ -1103,6 +1749,59 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	// test abort
 		if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 			return false;
+	// the focus offset only depends on the filter
+		if(filterChanged)
+		{
+			if(setFilterFocusOffset(twilightCalibrateCommand,twilightCalibrateDone,filter) == false)
+				return false;
+			configuredFilter = filter;
+		}
+	// Increment unique config ID.
+	// This is queried when saving FITS headers to get the CONFIGID value.
+		try
+		{
+			status.incConfigId();
+		}
+		catch(Exception e)
+		{
+			String errorString = new String(twilightCalibrateCommand.getId()+
+				":doConfig:Incrementing configuration ID failed:");
+			loci.error(this.getClass().getName()+":"+errorString,e);
+			twilightCalibrateDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+2310);
+			twilightCalibrateDone.setErrorString(errorString+e);
+			twilightCalibrateDone.setSuccessful(false);
+			return false;
+		}
+	// Store name of configuration used in status object.
+	// This is queried when saving FITS headers to get the CONFNAME value.
+		status.setConfigName("TWILIGHT_CALIBRATION:"+twilightCalibrateCommand.getId()+":"+bin+":"+filter);
+		return true;
+	}
+
+	/**
+	 * Set the telescope focus offset for the specified filter.
+	 * <ul>
+	 * <li>We get the overall instrument focus offset from the "loci.focus.offset" status property.
+	 * <li>We get the filter Id from it's name using he status method <b>getFilterIdName</b>.
+	 * <li>We get the filter's optical depth using the status method <b>getFilterIdOpticalThickness</b>.
+	 * <li>We add the filter offsets together and offset the telescope focus using the <b>setFocusOffset</b> method.
+	 * </ul>
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param twilightCalibrateDone The instance of TWILIGHT_CALIBRATE_DONE to fill in with errors we receive.
+	 * @param filter The type of filter in the beam.
+	 * @return The method returns true if the focus offset was set successfully, false if an error occured.
+	 * @see #doConfig
+	 * @see ngat.loci.LociStatus#getPropertyFloat
+	 * @see ngat.loci.LociStatus#getFilterIdName
+	 * @see ngat.loci.LociStatus#getFilterIdOpticalThickness
+	 * @see ngat.loci.HardwareImplementation#setFocusOffset
+	 */
+	protected boolean setFilterFocusOffset(TWILIGHT_CALIBRATE twilightCalibrateCommand,
+					       TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,String filter)
+	{
+		String filterIdName = null;
+		float focusOffset,filterFocusOffset;
+
 	// Get overall instrument focus offset
 		try
 		{
@@ -1152,25 +1851,6 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			twilightCalibrateDone.setSuccessful(false);
 			return false;
 		}
-	// Increment unique config ID.
-	// This is queried when saving FITS headers to get the CONFIGID value.
-		try
-		{
-			status.incConfigId();
-		}
-		catch(Exception e)
-		{
-			String errorString = new String(twilightCalibrateCommand.getId()+
-				":doConfig:Incrementing configuration ID failed:");
-			loci.error(this.getClass().getName()+":"+errorString,e);
-			twilightCalibrateDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+2310);
-			twilightCalibrateDone.setErrorString(errorString+e);
-			twilightCalibrateDone.setSuccessful(false);
-			return false;
-		}
-	// Store name of configuration used in status object.
-	// This is queried when saving FITS headers to get the CONFNAME value.
-		status.setConfigName("TWILIGHT_CALIBRATION:"+twilightCalibrateCommand.getId()+":"+bin+":"+filter);
 		return true;
 	}
 
@@ -1305,12 +1985,20 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * <li>The last exposure length variable is updated.
 	 * <li>An instance of TWILIGHT_CALIBRATE_ACK is sent back to the client using <b>sendTwilightCalibrateAck</b>.
 	 * <li><b>testAbort</b> is called to see if this command implementation has been aborted.
-	 * <li><b>reduceCalibrate</b> is called to pass the frame to the Real Time Data Pipeline for processing.
-	 * <li>The frame state is derived from the returned mean counts.
+	 * <li>If statisticsEnable is true, <b>computeStatistics</b> is called to measure the frame in-process,
+	 *     otherwise <b>reduceCalibrate</b> is called to pass the frame to the Real Time Data Pipeline for processing.
+	 * <li>The frame state is derived from the returned mean counts. If the frame was measured in-process,
+	 *     and the fraction of saturated pixels is greater than maxSaturationFraction, the frame is overexposed.
 	 * <li>If the frame state was good, the raw frame and DpRt reduced (if different) are renamed into
 	 * 	the standard FITS filename using <b>getFitsFilename</b> and <b>getReducedFitsFilename</b>.
+	 *      If the frame was measured in-process, <b>queueArchiveReduction</b> is called to reduce the renamed
+	 *      raw frame with the DpRt in the background.
 	 * <li><b>testAbort</b> is called to see if this command implementation has been aborted.
-	 * <li>The optimal exposure Length is calculated by multiplying by the 
+	 * <li>If the sky model is enabled, and the frame was not saturated, the frame's count rate at mid-exposure
+	 *     is added to the sky model (and the model's predicted mean counts for the frame logged).
+	 * <li>If the sky model is enabled, the optimal exposure length is the one the sky model predicts will
+	 *     produce the best mean counts at the predicted mid-exposure time of the next frame.
+	 *     Otherwise the optimal exposure Length is calculated by multiplying by the 
 	 *     ratio of best mean counts over mean counts.
 	 * <li>We change the exposure length to be the optimal exposure length, bracketed by the
 	 *     minimum and maximum exposure lengths.
@@ -1327,6 +2015,7 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * 	<li>If the next exposure will take longer than the time remaining, we stop the frame loop,
 	 * 		offset loop and calibration loop (i.e. the TWILIGHT_CALIBRATE command is terminated).
 	 * 	</ul>
+	 * <li>If the planner is enabled, <b>logReplan</b> is called to re-plan the remaining calibrations.
 	 * </ul>
 	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
 	 * @param twilightCalibrateDone The instance of TWILIGHT_CALIBRATE_DONE to fill in with errors we receive.
@@ -1340,6 +2029,10 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #sendTwilightCalibrateAck
 	 * @see #sendTwilightCalibrateDpAck
 	 * @see CALIBRATEImplementation#reduceCalibrate
+	 * @see #computeStatistics
+	 * @see #queueArchiveReduction
+	 * @see #statisticsEnable
+	 * @see #maxSaturationFraction
 	 * @see #getFitsFilename
 	 * @see #getReducedFitsFilename
 	 * @see #exposureLength
@@ -1353,22 +2046,31 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * @see #FRAME_STATE_UNDEREXPOSED
 	 * @see #FRAME_STATE_OK
 	 * @see #FRAME_STATE_NAME_LIST
+	 * @see #skyModel
+	 * @see #skyModelPredictedMeanCounts
+	 * @see #calibrationAttemptCount
+	 * @see #totalAttemptCount
+	 * @see #totalFrameCount
+	 * @see #logReplan
 	 */
 	protected boolean doFrame(TWILIGHT_CALIBRATE twilightCalibrateCommand,
 				  TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,int bin,String filter)
 	{
+		LociImageStatistics.Statistics statistics = null;
 		File temporaryFile = null;
 		File newFile = null;
 		String filename = null;
 		String reducedFilename = null;
-		long now;
+		long now,exposureStartTime;
 		int frameState,optimalExposureLength;
-		boolean doneFrame;
+		boolean doneFrame,saturated;
 		float predictedMeanCounts;
 
 		doneFrame = false;
+		exposureStartTime = 0L;
 		while(doneFrame == false)
 		{
+			saturated = false;
 			try
 			{
 				// setup fits headers
@@ -1382,18 +2084,22 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 				if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 					return false;
 				// log exposure attempt
-				loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
-					 ":doFrame:"+"bin:"+bin+
-					 ":filter:"+filter+
-					 ":Attempting exposure: length:"+exposureLength+".");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+						 ":doFrame:"+"bin:"+bin+
+						 ":filter:"+filter+
+						 ":Attempting exposure: length:"+exposureLength+".");
 				// setup per-frame FITS headers
 				if(setPerFrameFitsHeaders(twilightCalibrateCommand,twilightCalibrateDone,
 							  FitsHeaderDefaults.OBSTYPE_VALUE_SKY_FLAT,
 							  exposureLength,-1,exposureIndex,bin) == false)
 					return false;
 				// do exposure
+				exposureStartTime = System.currentTimeMillis();
 				filename = sendTakeExposureCommand(exposureLength);
 				exposureIndex++;
+				calibrationAttemptCount++;
+				totalAttemptCount++;
 			}
 			catch(Exception e)
 			{
@@ -1416,22 +2122,32 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		// Test abort status.
 			if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 				return false;
-		// Call pipeline to reduce data.
-			if(reduceCalibrate(twilightCalibrateCommand,twilightCalibrateDone,
-					   filename) == false)
-				return false;
+		// Measure the frame in-process, or call pipeline to reduce data.
+			if(statisticsEnable)
+			{
+				statistics = computeStatistics(twilightCalibrateCommand,twilightCalibrateDone,filename);
+				if(statistics == null)
+					return false;
+			}
+			else
+			{
+				if(reduceCalibrate(twilightCalibrateCommand,twilightCalibrateDone,
+						   filename) == false)
+					return false;
+			}
 		// Test abort status.
 			if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 				return false;
 		// log reduction
-			loci.log(Logging.VERBOSITY_VERBOSE,
-				 "Command:"+twilightCalibrateCommand.getId()+
-				 ":doFrame:"+"bin:"+bin+
-				 ":filter:"+filter+
-				 ":Exposure reduction:length "+exposureLength+
-				 ":filename:"+twilightCalibrateDone.getFilename()+
-				 ":mean counts:"+twilightCalibrateDone.getMeanCounts()+
-				 ":peak counts:"+twilightCalibrateDone.getPeakCounts()+".");
+			if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				loci.log(Logging.VERBOSITY_VERBOSE,
+					 "Command:"+twilightCalibrateCommand.getId()+
+					 ":doFrame:"+"bin:"+bin+
+					 ":filter:"+filter+
+					 ":Exposure reduction:length "+exposureLength+
+					 ":filename:"+twilightCalibrateDone.getFilename()+
+					 ":mean counts:"+twilightCalibrateDone.getMeanCounts()+
+					 ":peak counts:"+twilightCalibrateDone.getPeakCounts()+".");
 		// get reduced filename from done
 			reducedFilename = twilightCalibrateDone.getFilename();
 		// get mean counts and set frame state.
@@ -1440,16 +2156,33 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			// the CCD deals with saturation.
 			if(meanCounts < 0)
 			{
-				loci.log(Logging.VERBOSITY_VERBOSE,
-					 "Command:"+twilightCalibrateCommand.getId()+
-					 ":doFrame:"+"bin:"+bin+
-					 ":filter:"+filter+
-					 ":Exposure reduction:length "+exposureLength+
-					 ":filename:"+twilightCalibrateDone.getFilename()+
-					 ":mean counts:"+twilightCalibrateDone.getMeanCounts()+
-					 ":Mean counts are negative, exposure is probably saturated, "+
-					 "faking mean counts to 65000.");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+						 "Command:"+twilightCalibrateCommand.getId()+
+						 ":doFrame:"+"bin:"+bin+
+						 ":filter:"+filter+
+						 ":Exposure reduction:length "+exposureLength+
+						 ":filename:"+twilightCalibrateDone.getFilename()+
+						 ":mean counts:"+twilightCalibrateDone.getMeanCounts()+
+						 ":Mean counts are negative, exposure is probably saturated, "+
+						 "faking mean counts to 65000.");
+				meanCounts = 65000;
+				saturated = true;
+			}
+			// too many saturated pixels, treat as saturated even if the mean counts look acceptable
+			if((statistics != null)&&(statistics.getSaturationFraction() > maxSaturationFraction))
+			{
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+						 "Command:"+twilightCalibrateCommand.getId()+
+						 ":doFrame:"+"bin:"+bin+
+						 ":filter:"+filter+
+						 ":Exposure statistics:length "+exposureLength+
+						 ":saturation fraction:"+statistics.getSaturationFraction()+
+						 " greater than "+maxSaturationFraction+
+						 ":exposure is saturated, faking mean counts to 65000.");
 				meanCounts = 65000;
+				saturated = true;
 			}
 			if(meanCounts > maxMeanCounts[bin])
 				frameState = FRAME_STATE_OVEREXPOSED;
@@ -1458,14 +2191,40 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			else
 				frameState = FRAME_STATE_OK;
 		// log frame state
-			loci.log(Logging.VERBOSITY_VERBOSE,
-				 "Command:"+twilightCalibrateCommand.getId()+
-				 ":doFrame:"+"bin:"+bin+
-				 ":filter:"+filter+
-				 ":Exposure frame state:length:"+exposureLength+
-				 ":mean counts:"+meanCounts+
-				 ":peak counts:"+twilightCalibrateDone.getPeakCounts()+
-				 ":frame state:"+FRAME_STATE_NAME_LIST[frameState]+".");
+			if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				loci.log(Logging.VERBOSITY_VERBOSE,
+					 "Command:"+twilightCalibrateCommand.getId()+
+					 ":doFrame:"+"bin:"+bin+
+					 ":filter:"+filter+
+					 ":Exposure frame state:length:"+exposureLength+
+					 ":mean counts:"+meanCounts+
+					 ":peak counts:"+twilightCalibrateDone.getPeakCounts()+
+					 ":frame state:"+FRAME_STATE_NAME_LIST[frameState]+".");
+		// add the frame to the sky model. Saturated frames only give a lower limit on the sky brightness,
+		// so are not used.
+			if(skyModelEnable && (saturated == false) && (meanCounts > 0))
+			{
+				if((skyModelPredictedMeanCounts > 0)&&loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				{
+					loci.log(Logging.VERBOSITY_VERBOSE,
+						 "Command:"+twilightCalibrateCommand.getId()+
+						 ":doFrame:"+"bin:"+bin+
+						 ":filter:"+filter+
+						 ":Sky model predicted mean counts:"+skyModelPredictedMeanCounts+
+						 ":measured mean counts:"+meanCounts+".");
+				}
+				try
+				{
+					skyModel.addObservation(filter,bin,lastFilterSensitivity,
+								exposureStartTime+(lastExposureLength/2),
+								lastExposureLength,meanCounts);
+				}
+				catch(IllegalArgumentException e)
+				{
+					loci.error(this.getClass().getName()+":doFrame:"+twilightCalibrateCommand.getId()+
+						   ":Adding frame to sky model failed:",e);
+				}
+			}
 		// if the frame was good, rename it
 			if(frameState == FRAME_STATE_OK)
 			{
@@ -1502,11 +2261,12 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 				}
 				newFile = new File(filename);
 			// log rename
-				loci.log(Logging.VERBOSITY_VERBOSE,
-				      "Command:"+twilightCalibrateCommand.getId()+
-				      ":doFrame:"+"bin:"+bin+
-				      ":filter:"+filter+
-				      ":Exposure raw frame rename:renaming "+temporaryFile+" to "+newFile+".");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+					      "Command:"+twilightCalibrateCommand.getId()+
+					      ":doFrame:"+"bin:"+bin+
+					      ":filter:"+filter+
+					      ":Exposure raw frame rename:renaming "+temporaryFile+" to "+newFile+".");
 			// rename temporary filename to filename
 				if(temporaryFile.renameTo(newFile) == false)
 				{
@@ -1523,6 +2283,9 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			// reset twilight calibrate done's filename to renamed file
 			// in case pipelined reduced filename does not exist/cannot be renamed
 				twilightCalibrateDone.setFilename(filename);
+			// if the frame was measured in-process, reduce the renamed raw frame in the background for archiving
+				if(statisticsEnable)
+					queueArchiveReduction(twilightCalibrateCommand,filename);
 			// real time pipelined processed file
 				temporaryFile = new File(reducedFilename);
 			// does the temprary file exist? If it doesn't this is not an error,
@@ -1549,11 +2312,12 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 					}
 					newFile = new File(filename);
 				// log rename
-					loci.log(Logging.VERBOSITY_VERBOSE,
-					      "Command:"+twilightCalibrateCommand.getId()+
-					      ":doFrame:"+"bin:"+bin+
-					      ":filter:"+filter+
-					      ":Exposure DpRt frame rename:renaming "+temporaryFile+" to "+newFile+".");
+					if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+						loci.log(Logging.VERBOSITY_VERBOSE,
+						      "Command:"+twilightCalibrateCommand.getId()+
+						      ":doFrame:"+"bin:"+bin+
+						      ":filter:"+filter+
+						      ":Exposure DpRt frame rename:renaming "+temporaryFile+" to "+newFile+".");
 				// rename temporary filename to filename
 					if(temporaryFile.renameTo(newFile) == false)
 					{
@@ -1575,8 +2339,17 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
 				return false;
 		// Find optimal exposure length to get the best number of mean counts
-			optimalExposureLength = (int)(((float) exposureLength) * 
-						      (((float)(bestMeanCounts[bin]))/meanCounts));
+			now = System.currentTimeMillis();
+			if(skyModelEnable && skyModel.hasObservations())
+			{
+				optimalExposureLength = skyModel.getExposureLength(filter,bin,lastFilterSensitivity,now,
+										   bestMeanCounts[bin],maxExposureLength);
+			}
+			else
+			{
+				optimalExposureLength = (int)(((float) exposureLength) * 
+							      (((float)(bestMeanCounts[bin]))/meanCounts));
+			}
 		// Bracket the optimal exposure length to an allowed exposure length
 			exposureLength = optimalExposureLength;
 			if(optimalExposureLength < minExposureLength)
@@ -1584,26 +2357,38 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			else if(optimalExposureLength > maxExposureLength)
 				exposureLength = maxExposureLength;
 		// calculate the predicted mean counts for the bracketed exposure length
-			predictedMeanCounts = meanCounts * (exposureLength/lastExposureLength);
-			loci.log(Logging.VERBOSITY_VERBOSE,
-			      "Command:"+twilightCalibrateCommand.getId()+
-			      ":doFrame:"+"bin:"+bin+
-			      ":filter:"+filter+
-			      ":New Optimal exposure length:"+optimalExposureLength+
-			      ":New limited exposure length:"+exposureLength+
-			      ":Predicted mean counts:"+predictedMeanCounts+".");
+			if(skyModelEnable && skyModel.hasObservations())
+			{
+				predictedMeanCounts = (float)(skyModel.getPredictedCounts(filter,bin,lastFilterSensitivity,
+											  now,exposureLength));
+				skyModelPredictedMeanCounts = predictedMeanCounts;
+			}
+			else
+			{
+				predictedMeanCounts = meanCounts * (exposureLength/lastExposureLength);
+				skyModelPredictedMeanCounts = -1.0f;
+			}
+			if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				loci.log(Logging.VERBOSITY_VERBOSE,
+				      "Command:"+twilightCalibrateCommand.getId()+
+				      ":doFrame:"+"bin:"+bin+
+				      ":filter:"+filter+
+				      ":New Optimal exposure length:"+optimalExposureLength+
+				      ":New limited exposure length:"+exposureLength+
+				      ":Predicted mean counts:"+predictedMeanCounts+".");
 		 // check the predicted mean counts for the bracketed exposure length
 		 // are within the mean counts limits, otherwise assume the next exposure
 		 // will return out of range mean counts and move onto the next calibration.
 			if((timeOfNight == TIME_OF_NIGHT_SUNSET)&&(optimalExposureLength > maxExposureLength)&&
 			   (predictedMeanCounts < minMeanCounts[bin]))
 			{
-				loci.log(Logging.VERBOSITY_VERBOSE,
-					 "Command:"+twilightCalibrateCommand.getId()+
-					 ":doFrame:"+"bin:"+bin+
-					 ":filter:"+filter+
-					 ":Predicted mean counts "+predictedMeanCounts+
-					 " out of range(too low):moving to next calibration.");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+						 "Command:"+twilightCalibrateCommand.getId()+
+						 ":doFrame:"+"bin:"+bin+
+						 ":filter:"+filter+
+						 ":Predicted mean counts "+predictedMeanCounts+
+						 " out of range(too low):moving to next calibration.");
 				// try next calibration
 				doneFrame = true;
 				doneOffset = true;
@@ -1612,19 +2397,20 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			if((timeOfNight == TIME_OF_NIGHT_SUNRISE)&&(optimalExposureLength < minExposureLength)&&
 			   (predictedMeanCounts > maxMeanCounts[bin]))
 			{
-				loci.log(Logging.VERBOSITY_VERBOSE,
-				      "Command:"+twilightCalibrateCommand.getId()+
-				      ":doFrame:"+"bin:"+bin+
-				      ":filter:"+filter+
-				      ":Predicted mean counts "+predictedMeanCounts+
-				      " out of range(too high):moving to next calibration.");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+					      "Command:"+twilightCalibrateCommand.getId()+
+					      ":doFrame:"+"bin:"+bin+
+					      ":filter:"+filter+
+					      ":Predicted mean counts "+predictedMeanCounts+
+					      " out of range(too high):moving to next calibration.");
 				// try next calibration
 				doneFrame = true;
 				doneOffset = true;
 				return true; 
 			}
 		// send dp_ack, filename/mean counts/peak counts are all retrieved from twilightCalibrateDone,
-		// which had these parameters filled in by reduceCalibrate
+		// which had these parameters filled in by reduceCalibrate or computeStatistics
 		// time to complete is readout overhead + exposure Time for next frame
 			if(sendTwilightCalibrateDpAck(twilightCalibrateCommand,twilightCalibrateDone,
 				exposureLength+frameOverhead) == false)
@@ -1638,11 +2424,13 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			{
 				doneFrame = true;
 				calibrationFrameCount++;
+				totalFrameCount++;
 			// log
-				loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
-				      ":doFrame:"+"bin:"+bin+
-				      ":filter:"+filter+
-				      ":Frame completed.");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+					      ":doFrame:"+"bin:"+bin+
+					      ":filter:"+filter+
+					      ":Frame completed.");
 			}
 			// have we run out of twilight calibrate time?
 			// NB test at end to use recalculated exposure length
@@ -1653,23 +2441,646 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 				doneFrame = true;
 				doneOffset = true;
 			// log
-				loci.log(Logging.VERBOSITY_VERBOSE,
-				      "Command:"+twilightCalibrateCommand.getId()+
-				      ":doFrame:"+"bin:"+bin+
-				      ":filter:"+filter+
-				      ":Ran out of time to complete:((now:"+now+
-				      ")+(exposureLength:"+exposureLength+
-				      ")+(frameOverhead:"+frameOverhead+")) > "+
-				      "((implementationStartTime:"+implementationStartTime+
-				      ")+(timeToComplete:"+twilightCalibrateCommand.getTimeToComplete()+")).");
+				if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+					loci.log(Logging.VERBOSITY_VERBOSE,
+					      "Command:"+twilightCalibrateCommand.getId()+
+					      ":doFrame:"+"bin:"+bin+
+					      ":filter:"+filter+
+					      ":Ran out of time to complete:((now:"+now+
+					      ")+(exposureLength:"+exposureLength+
+					      ")+(frameOverhead:"+frameOverhead+")) > "+
+					      "((implementationStartTime:"+implementationStartTime+
+					      ")+(timeToComplete:"+twilightCalibrateCommand.getTimeToComplete()+")).");
 			}
+		// re-plan the remaining calibrations with the latest sky model, and log the expected flats
+			if(planEnable)
+				logReplan(twilightCalibrateCommand);
 		}// end while !doneFrame
 		return true;
 	}
 
+	/**
+	 * Plan which of the calibrations not yet attempted by this command to do, and in what order.
+	 * <ul>
+	 * <li>The candidates are the calibrations in the calibration list not in attemptedCalibrationList.
+	 * <li>If the planner is not enabled, the candidates are returned in calibration list order.
+	 * <li>Calibrations done more recently than their frequency are removed.
+	 * <li><b>planCalibrationWindow</b> is called to predict each candidate's count window. The predicted window
+	 *     is only used if it came from the sky model (fitted to frames measured by this command). If the sky model
+	 *     predicts the window will not open before the command finishes, the candidate is removed. If the
+	 *     prediction came from the solar ephemeris, or no prediction could be made, the candidate's window is
+	 *     reset to -1 (so waitForCalibrationWindow does not wait for it), and the window is assumed to
+	 *     last from startTime until the command finishes.
+	 * <li>Each candidate's priority is how many times it's frequency has elapsed since it was last done,
+	 *     limited to planMaxPriority.
+	 * <li>Starting at startTime, the plan is built by repeatedly choosing, from the candidates whose windows
+	 *     are open, the one whose window closes first (earliest deadline first, which maximises the number
+	 *     of calibrations that fit in their windows), using the higher priority (and then calibration list
+	 *     order) to break ties. If no windows are open, the plan time is moved to the next window opening.
+	 *     A candidate is only added to the plan if all it's frames can be started before it's window closes, and
+	 *     completed before the command finishes, using <b>getCalibrationFrameTime</b> and planConfigOverhead to
+	 *     estimate how long it takes. The plan time is then advanced by that time.
+	 * <li>planConfigOverhead is only added when the calibration's binning or filter differs from the one
+	 *     before it (starting from the detector's current configuration). If another open candidate needs fewer
+	 *     re-configurations (<b>getConfigChangeCount</b>) than the earliest deadline candidate, and the earliest
+	 *     deadline candidate can still be done in it's window afterwards, the other candidate is chosen
+	 *     instead, so calibrations sharing a binning or filter are grouped together.
+	 * </ul>
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param startTime The time the plan starts, in milliseconds since the epoch.
+	 * @return The list of calibrations to do, in order.
+	 * @see #planEnable
+	 * @see #attemptedCalibrationList
+	 * @see #planCalibrationWindow
+	 * @see #waitForCalibrationWindow
+	 * @see #WINDOW_PREDICTION_SKY_MODEL
+	 * @see #getCalibrationFrameTime
+	 * @see #getConfigChangeCount
+	 * @see #configuredBin
+	 * @see #configuredFilter
+	 * @see #planConfigOverhead
+	 * @see #planMaxPriority
+	 */
+	protected List<TWILIGHT_CALIBRATECalibration> planCalibrations(TWILIGHT_CALIBRATE twilightCalibrateCommand,
+								      long startTime)
+	{
+		List<TWILIGHT_CALIBRATECalibration> candidateList = null;
+		List<TWILIGHT_CALIBRATECalibration> plan = null;
+		TWILIGHT_CALIBRATECalibration calibration = null;
+		TWILIGHT_CALIBRATECalibration bestCalibration = null;
+		StringBuffer planString = null;
+		String planFilter = null;
+		long windowStartList[] = null;
+		long windowEndList[] = null;
+		double priorityList[] = null;
+		boolean plannedList[] = null;
+		long endTime,planTime,nextWindowStart,frameTime,calibrationTime,bestFrameTime,bestCalibrationTime;
+		int windowPrediction,bestIndex,groupIndex,changeCount,bestChangeCount,groupChangeCount,planBin;
+
+		candidateList = new Vector<TWILIGHT_CALIBRATECalibration>();
+		for(int i = 0; i < calibrationList.size(); i++)
+		{
+			calibration = (TWILIGHT_CALIBRATECalibration)(calibrationList.get(i));
+			if(attemptedCalibrationList.contains(calibration))
+				continue;
+			if(planEnable && ((startTime-calibration.getLastTime()) < calibration.getFrequency()))
+				continue;
+			candidateList.add(calibration);
+		}
+		if(planEnable == false)
+			return candidateList;
+		endTime = implementationStartTime+twilightCalibrateCommand.getTimeToComplete();
+		windowStartList = new long[candidateList.size()];
+		windowEndList = new long[candidateList.size()];
+		priorityList = new double[candidateList.size()];
+		plannedList = new boolean[candidateList.size()];
+		for(int i = 0; i < candidateList.size(); i++)
+		{
+			calibration = candidateList.get(i);
+			windowPrediction = planCalibrationWindow(twilightCalibrateCommand,calibration,startTime);
+			if(windowPrediction != WINDOW_PREDICTION_SKY_MODEL)
+			{
+				// ephemeris predictions are not accurate enough to wait for, or drop, a calibration
+				calibration.setWindow(-1L,-1L);
+				windowStartList[i] = startTime;
+				windowEndList[i] = endTime;
+			}
+			else if(calibration.getWindowStart() >= 0)
+			{
+				windowStartList[i] = calibration.getWindowStart();
+				windowEndList[i] = calibration.getWindowEnd();
+			}
+			else
+			{
+				// the measured sky says this calibration can't be done before the command ends
+				plannedList[i] = true;
+			}
+			if(calibration.getFrequency() > 0)
+			{
+				priorityList[i] = Math.min(planMaxPriority,((double)(startTime-calibration.getLastTime()))/
+							   ((double)calibration.getFrequency()));
+			}
+			else
+				priorityList[i] = planMaxPriority;
+		}
+		plan = new Vector<TWILIGHT_CALIBRATECalibration>();
+		planTime = startTime;
+		planBin = configuredBin;
+		planFilter = configuredFilter;
+		while(true)
+		{
+			// find the open window that closes first
+			bestIndex = -1;
+			nextWindowStart = Long.MAX_VALUE;
+			for(int i = 0; i < candidateList.size(); i++)
+			{
+				if(plannedList[i])
+					continue;
+				if(windowEndList[i] < planTime)
+				{
+					plannedList[i] = true;
+					continue;
+				}
+				if(windowStartList[i] > planTime)
+				{
+					nextWindowStart = Math.min(nextWindowStart,windowStartList[i]);
+					continue;
+				}
+				if((bestIndex < 0)||(windowEndList[i] < windowEndList[bestIndex])||
+				   ((windowEndList[i] == windowEndList[bestIndex])&&(priorityList[i] > priorityList[bestIndex])))
+				{
+					bestIndex = i;
+				}
+			}
+			if(bestIndex < 0)
+			{
+				// no windows open, wait for the next one to open
+				if(nextWindowStart == Long.MAX_VALUE)
+					break;
+				planTime = nextWindowStart;
+				continue;
+			}
+			// prefer an open candidate needing fewer re-configurations, if the earliest deadline candidate
+			// can still be done in it's window after it
+			bestCalibration = candidateList.get(bestIndex);
+			bestChangeCount = getConfigChangeCount(planBin,planFilter,bestCalibration);
+			groupIndex = -1;
+			groupChangeCount = bestChangeCount;
+			for(int i = 0; i < candidateList.size(); i++)
+			{
+				if(plannedList[i]||(i == bestIndex)||(windowStartList[i] > planTime))
+					continue;
+				calibration = candidateList.get(i);
+				changeCount = getConfigChangeCount(planBin,planFilter,calibration);
+				if((changeCount > groupChangeCount)||((changeCount == groupChangeCount)&&
+				   ((groupIndex < 0)||(windowEndList[i] >= windowEndList[groupIndex]))))
+					continue;
+				frameTime = getCalibrationFrameTime(calibration,planTime);
+				calibrationTime = getConfigOverhead(changeCount)+(offsetList.size()*frameTime);
+				if(((planTime+calibrationTime-frameTime) > windowEndList[i])||((planTime+calibrationTime) > endTime))
+					continue;
+				bestFrameTime = getCalibrationFrameTime(bestCalibration,planTime+calibrationTime);
+				bestCalibrationTime = getConfigOverhead(getConfigChangeCount(calibration.getBin(),
+								calibration.getFilter(),bestCalibration))+(offsetList.size()*bestFrameTime);
+				if(((planTime+calibrationTime+bestCalibrationTime-bestFrameTime) > windowEndList[bestIndex])||
+				   ((planTime+calibrationTime+bestCalibrationTime) > endTime))
+					continue;
+				groupIndex = i;
+				groupChangeCount = changeCount;
+			}
+			if(groupIndex >= 0)
+				bestIndex = groupIndex;
+			plannedList[bestIndex] = true;
+			calibration = candidateList.get(bestIndex);
+			frameTime = getCalibrationFrameTime(calibration,planTime);
+			calibrationTime = getConfigOverhead(getConfigChangeCount(planBin,planFilter,calibration))+
+				(offsetList.size()*frameTime);
+			// the last frame must start whilst the window is open, and all frames finish before the command ends
+			if(((planTime+calibrationTime-frameTime) > windowEndList[bestIndex])||
+			   ((planTime+calibrationTime) > endTime))
+				continue;
+			plan.add(calibration);
+			planTime += calibrationTime;
+			planBin = calibration.getBin();
+			planFilter = calibration.getFilter();
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			planString = new StringBuffer();
+			for(int i = 0; i < plan.size(); i++)
+			{
+				calibration = plan.get(i);
+				if(i > 0)
+					planString.append(",");
+				planString.append(calibration.getFilter()+"/bin "+calibration.getBin());
+			}
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":planCalibrations:Plan of "+plan.size()+" calibrations ("+(plan.size()*offsetList.size())+
+				 " flats) from "+candidateList.size()+" candidates:"+planString+".");
+		}
+		return plan;
+	}
+
+	/**
+	 * Count how many parts of the instrument configuration (the detector binning, and the filter wheel)
+	 * have to change to do a calibration, from the specified configuration.
+	 * @param bin The binning configured before the calibration, or -1 if it is not known.
+	 * @param filter The filter configured before the calibration, or null if it is not known.
+	 * @param calibration The calibration.
+	 * @return The number of configuration changes, from 0 to 2.
+	 */
+	protected int getConfigChangeCount(int bin,String filter,TWILIGHT_CALIBRATECalibration calibration)
+	{
+		int changeCount;
+
+		changeCount = 0;
+		if(bin != calibration.getBin())
+			changeCount++;
+		if((filter == null)||(filter.equals(calibration.getFilter()) == false))
+			changeCount++;
+		return changeCount;
+	}
+
+	/**
+	 * Get the time the planner allows to re-configure the instrument for a calibration.
+	 * @param changeCount The number of configuration changes needed, as returned by getConfigChangeCount.
+	 * @return The overhead in milliseconds, planConfigOverhead if anything needs re-configuring,
+	 *         otherwise zero.
+	 * @see #getConfigChangeCount
+	 * @see #planConfigOverhead
+	 */
+	protected long getConfigOverhead(int changeCount)
+	{
+		if(changeCount > 0)
+			return planConfigOverhead;
+		return 0L;
+	}
+
+	/**
+	 * Estimate how long a frame of a calibration takes, if taken at the specified time.
+	 * The exposure length that produces the best mean counts is predicted (from the sky model if it has been
+	 * fitted, or the sun's altitude), bracketed by the minimum and maximum exposure lengths, 
+	 * and planReadoutOverhead added. If no prediction can be made, the current exposure length is used.
+	 * @param calibration The calibration.
+	 * @param time The time the frame starts, in milliseconds since the epoch.
+	 * @return The time the frame takes, in milliseconds.
+	 * @see #getWindowPrediction
+	 * @see #getPredictedSkyRate
+	 * @see #planReadoutOverhead
+	 */
+	protected long getCalibrationFrameTime(TWILIGHT_CALIBRATECalibration calibration,long time)
+	{
+		double rate;
+		long frameExposureLength;
+
+		rate = getPredictedSkyRate(getWindowPrediction(),calibration,time);
+		if(rate > 0.0)
+			frameExposureLength = (long)((((double)bestMeanCounts[calibration.getBin()])/rate)*1000.0);
+		else
+			frameExposureLength = exposureLength;
+		frameExposureLength = Math.max(minExposureLength,Math.min(maxExposureLength,frameExposureLength));
+		return frameExposureLength+planReadoutOverhead;
+	}
+
+	/**
+	 * Re-plan the calibrations not yet attempted, and log how many flats we now expect to produce,
+	 * compared with the initial plan. The flats expected are those achieved so far, plus the remaining
+	 * frames in the current calibration's offset list, plus those of the new plan.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @see #planCalibrations
+	 * @see #initialPlannedFlatCount
+	 * @see #totalFrameCount
+	 */
+	protected void logReplan(TWILIGHT_CALIBRATE twilightCalibrateCommand)
+	{
+		List<TWILIGHT_CALIBRATECalibration> plan = null;
+		int remainingFrameCount,expectedFlatCount;
+
+		plan = planCalibrations(twilightCalibrateCommand,System.currentTimeMillis());
+		if(doneOffset)
+			remainingFrameCount = 0;
+		else
+			remainingFrameCount = Math.max(0,offsetList.size()-calibrationFrameCount);
+		expectedFlatCount = totalFrameCount+remainingFrameCount+(plan.size()*offsetList.size());
+		loci.log(Logging.VERBOSITY_INTERMEDIATE,"Command:"+twilightCalibrateCommand.getId()+
+			 ":logReplan:achieved flats:"+totalFrameCount+":expected flats:"+expectedFlatCount+
+			 ":initial plan expected flats:"+initialPlannedFlatCount+":remaining calibrations planned:"+
+			 plan.size()+".");
+	}
+
+	/**
+	 * Wait for a calibration's predicted count window to open. An ACK is sent to the client to cover
+	 * the wait, and the command is tested for aborts every second.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param twilightCalibrateDone The instance of TWILIGHT_CALIBRATE_DONE to fill in with errors we receive.
+	 * @param windowStart The time the window opens, in milliseconds since the epoch. If this is negative, or
+	 *        in the past, we return immediately.
+	 * @return The method returns true if the window has opened, false if an error occured or the command
+	 *         was aborted.
+	 * @see #sendBasicAck
+	 * @see CommandImplementation#testAbort
+	 */
+	protected boolean waitForCalibrationWindow(TWILIGHT_CALIBRATE twilightCalibrateCommand,
+						   TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,long windowStart)
+	{
+		long now;
+
+		now = System.currentTimeMillis();
+		if(windowStart <= now)
+			return true;
+		loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+			 ":waitForCalibrationWindow:Waiting "+(windowStart-now)+" ms for calibration window to open.");
+		if(sendBasicAck(twilightCalibrateCommand,twilightCalibrateDone,
+				(int)(windowStart-now)+frameOverhead) == false)
+			return false;
+		while(now < windowStart)
+		{
+			try
+			{
+				Thread.sleep(Math.min(1000L,windowStart-now));
+			}
+			catch(InterruptedException e)
+			{
+			}
+			if(testAbort(twilightCalibrateCommand,twilightCalibrateDone) == true)
+				return false;
+			now = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/**
+	 * Get what count rate predictions are currently based on.
+	 * @return WINDOW_PREDICTION_SKY_MODEL if the sky model is enabled and has been fitted to at least one frame,
+	 *         WINDOW_PREDICTION_EPHEMERIS if the site and reference sky brightness are configured,
+	 *         otherwise WINDOW_PREDICTION_NONE.
+	 * @see #skyModel
+	 * @see #solarEphemeris
+	 */
+	protected int getWindowPrediction()
+	{
+		if(skyModelEnable && skyModel.hasObservations())
+			return WINDOW_PREDICTION_SKY_MODEL;
+		else if((solarEphemeris != null)&&(skyBrightnessReferenceRate > 0.0))
+			return WINDOW_PREDICTION_EPHEMERIS;
+		return WINDOW_PREDICTION_NONE;
+	}
+
+	/**
+	 * Predict when a calibration will be inside it's count window, i.e. when the predicted sky count rate
+	 * lets an exposure between the minimum and maximum exposure length produce mean counts between the
+	 * minimum and maximum mean counts for the calibration's binning. The times from startTime until the command
+	 * must finish are searched (every WINDOW_PLAN_STEP_TIME), and the first period inside the window is
+	 * set as the calibration's window start and end time. If there is no such period, or no prediction
+	 * can be made, the window start and end times are set to -1.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param calibration The calibration.
+	 * @param startTime The time to start searching from, in milliseconds since the epoch.
+	 * @return What the prediction was based on, one of WINDOW_PREDICTION_NONE, WINDOW_PREDICTION_EPHEMERIS,
+	 *         WINDOW_PREDICTION_SKY_MODEL.
+	 * @see #getWindowPrediction
+	 * @see #getPredictedSkyRate
+	 * @see #WINDOW_PLAN_STEP_TIME
+	 * @see #implementationStartTime
+	 */
+	protected int planCalibrationWindow(TWILIGHT_CALIBRATE twilightCalibrateCommand,
+					    TWILIGHT_CALIBRATECalibration calibration,long startTime)
+	{
+		double minRate,maxRate,rate;
+		long endTime,windowStart,windowEnd;
+		int bin,windowPrediction;
+
+		bin = calibration.getBin();
+		calibration.setWindow(-1L,-1L);
+		windowPrediction = getWindowPrediction();
+		if(windowPrediction == WINDOW_PREDICTION_NONE)
+			return WINDOW_PREDICTION_NONE;
+		minRate = ((double)minMeanCounts[bin])/(((double)maxExposureLength)/1000.0);
+		maxRate = ((double)maxMeanCounts[bin])/(((double)minExposureLength)/1000.0);
+		endTime = implementationStartTime+twilightCalibrateCommand.getTimeToComplete();
+		windowStart = -1L;
+		windowEnd = -1L;
+		for(long time = startTime; time <= endTime; time += WINDOW_PLAN_STEP_TIME)
+		{
+			rate = getPredictedSkyRate(windowPrediction,calibration,time);
+			if((rate >= minRate)&&(rate <= maxRate))
+			{
+				if(windowStart < 0)
+					windowStart = time;
+				windowEnd = time;
+			}
+			else if(windowStart >= 0)
+				break;
+		}
+		calibration.setWindow(windowStart,windowEnd);
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":planCalibrationWindow:bin:"+bin+":filter:"+calibration.getFilter()+
+				 ":predicted from:"+WINDOW_PREDICTION_NAME_LIST[windowPrediction]+
+				 ":window start:"+windowStart+":window end:"+windowEnd+
+				 ":(count rate "+minRate+" to "+maxRate+").");
+		}
+		return windowPrediction;
+	}
+
+	/**
+	 * Predict the sky count rate for a calibration at a particular time.
+	 * <ul>
+	 * <li>If windowPrediction is WINDOW_PREDICTION_SKY_MODEL, the sky model's predicted rate is returned.
+	 * <li>If windowPrediction is WINDOW_PREDICTION_EPHEMERIS, the rate is predicted from the sun's altitude: 
+	 *     skyBrightnessReferenceRate * 10^(skyBrightnessDexPerDegree*(altitude-skyBrightnessReferenceAltitude)),
+	 *     multiplied by the filter sensitivity and the binning squared.
+	 * </ul>
+	 * @param windowPrediction What to base the prediction on.
+	 * @param calibration The calibration.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @return The predicted count rate, in counts per second, or -1 if no prediction can be made.
+	 * @see #skyModel
+	 * @see #solarEphemeris
+	 */
+	protected double getPredictedSkyRate(int windowPrediction,TWILIGHT_CALIBRATECalibration calibration,long time)
+	{
+		double altitude;
+		int bin;
+
+		bin = calibration.getBin();
+		if(windowPrediction == WINDOW_PREDICTION_SKY_MODEL)
+		{
+			return skyModel.getPredictedRate(calibration.getFilter(),bin,calibration.getFilterSensitivity(),
+							 time);
+		}
+		if(windowPrediction == WINDOW_PREDICTION_EPHEMERIS)
+		{
+			altitude = solarEphemeris.getSunAltitude(time);
+			return skyBrightnessReferenceRate*Math.pow(10.0,skyBrightnessDexPerDegree*
+						  (altitude-skyBrightnessReferenceAltitude))*
+				calibration.getFilterSensitivity()*((double)(bin*bin));
+		}
+		return -1.0;
+	}
+
+	/**
+	 * Return the percentage of frames taken that were good.
+	 * @param goodFrameCount The number of good frames.
+	 * @param frameCount The number of frames taken.
+	 * @return The hit rate, as a percentage. If no frames were taken, 0 is returned.
+	 */
+	protected int getHitRate(int goodFrameCount,int frameCount)
+	{
+		if(frameCount == 0)
+			return 0;
+		return (goodFrameCount*100)/frameCount;
+	}
+
+	/**
+	 * Measure a frame in-process, using the Loci image statistics engine. The mean counts (the clipped mean),
+	 * peak counts and filename in twilightCalibrateDone are set from the computed statistics, as reduceCalibrate
+	 * would have done from the DpRt's reply. The raw frame is measured, so statisticsBiasLevel is subtracted
+	 * from the mean and peak counts, to make them comparable with the DpRt's bias subtracted counts the
+	 * min/best/max mean counts are configured for. The saturation fraction is measured against the raw counts.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param twilightCalibrateDone The instance of TWILIGHT_CALIBRATE_DONE to fill in with the statistics,
+	 *        or errors we receive.
+	 * @param filename The FITS filename of the frame to measure.
+	 * @return The computed statistics, or null if an error occured (in which case the error
+	 * 	data in twilightCalibrateDone is filled in).
+	 * @see #statisticsSampleStride
+	 * @see #statisticsClipSigma
+	 * @see #statisticsClipIterations
+	 * @see #statisticsBiasLevel
+	 * @see #saturationLevel
+	 * @see Loci#getImageStatistics
+	 * @see LociImageStatistics#compute
+	 */
+	protected LociImageStatistics.Statistics computeStatistics(TWILIGHT_CALIBRATE twilightCalibrateCommand,
+						  TWILIGHT_CALIBRATE_DONE twilightCalibrateDone,String filename)
+	{
+		LociImageStatistics.Statistics statistics = null;
+
+		try
+		{
+			statistics = loci.getImageStatistics().compute(filename,statisticsSampleStride,statisticsClipSigma,
+								      statisticsClipIterations,saturationLevel);
+		}
+		catch(Exception e)
+		{
+			String errorString = new String(twilightCalibrateCommand.getId()+
+					      ":computeStatistics:Computing statistics of "+filename+" failed:");
+			loci.error(this.getClass().getName()+":"+errorString,e);
+			twilightCalibrateDone.setFilename(filename);
+			twilightCalibrateDone.setErrorNum(LociConstants.LOCI_ERROR_CODE_BASE+2325);
+			twilightCalibrateDone.setErrorString(errorString+e);
+			twilightCalibrateDone.setSuccessful(false);
+			return null;
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":computeStatistics:"+filename+":"+statistics+".");
+		twilightCalibrateDone.setFilename(filename);
+		twilightCalibrateDone.setMeanCounts((float)(statistics.getClippedMean()-statisticsBiasLevel));
+		twilightCalibrateDone.setPeakCounts((float)(statistics.getPeak()-statisticsBiasLevel));
+		return statistics;
+	}
+
+	/**
+	 * Queue an archival DpRt reduction of a good (renamed) raw frame, to run in the background whilst
+	 * the next frame is taken. The executor is created the first time a reduction is queued, it has a single
+	 * thread (so the DpRt only reduces one frame at a time), which times out when idle.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @param filename The renamed raw FITS filename to reduce.
+	 * @see #archiveReductionExecutor
+	 * @see #archiveReductionList
+	 * @see ArchiveReductionTask
+	 */
+	protected void queueArchiveReduction(TWILIGHT_CALIBRATE twilightCalibrateCommand,String filename)
+	{
+		if(archiveReductionExecutor == null)
+		{
+			archiveReductionExecutor = new ThreadPoolExecutor(1,1,60,TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new LociClientConnectionExecutor.PoolThreadFactory(status.getThreadPriorityNormal()));
+			archiveReductionExecutor.allowCoreThreadTimeOut(true);
+		}
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":queueArchiveReduction:Queueing archival reduction of "+filename+".");
+		archiveReductionList.add(archiveReductionExecutor.submit(new ArchiveReductionTask(twilightCalibrateCommand,
+													 filename)));
+	}
+
+	/**
+	 * Wait for all the archival DpRt reductions queued by this command to complete. Failed reductions
+	 * are logged, but do not cause the command to fail, as the frame's counts have already been measured.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @see #archiveReductionList
+	 */
+	protected void waitForArchiveReductions(TWILIGHT_CALIBRATE twilightCalibrateCommand)
+	{
+		int failedCount;
+
+		if(archiveReductionList.size() == 0)
+			return;
+		if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+			loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+				 ":waitForArchiveReductions:Waiting for "+archiveReductionList.size()+
+				 " archival reductions.");
+		failedCount = 0;
+		for(int i = 0; i < archiveReductionList.size(); i++)
+		{
+			try
+			{
+				if(archiveReductionList.get(i).get().booleanValue() == false)
+					failedCount++;
+			}
+			catch(ExecutionException e)
+			{
+				loci.error(this.getClass().getName()+":waitForArchiveReductions:"+
+					   twilightCalibrateCommand.getId()+":Archival reduction failed:",e);
+				failedCount++;
+			}
+			catch(InterruptedException e)
+			{
+				loci.error(this.getClass().getName()+":waitForArchiveReductions:"+
+					   twilightCalibrateCommand.getId()+":Interrupted:",e);
+				return;
+			}
+		}
+		loci.log(Logging.VERBOSITY_TERSE,"Command:"+twilightCalibrateCommand.getId()+
+			 ":waitForArchiveReductions:"+archiveReductionList.size()+" archival reductions completed, "+
+			 failedCount+" failed.");
+		archiveReductionList.clear();
+	}
+
+	/**
+	 * Make sure none of the archival DpRt reductions queued by this command are still running. 
+	 * This is called when the command finishes, however it finishes. Reductions that have not started yet
+	 * are cancelled, and we wait for any reduction in progress to complete (it's DpRt sub-command is
+	 * cancelled if the command has been aborted), so it's acknowledgements are not sent to the client
+	 * after the DONE. On the success path waitForArchiveReductions has already emptied the list,
+	 * and this method does nothing.
+	 * @param twilightCalibrateCommand The instance of TWILIGHT_CALIBRATE we are currently running.
+	 * @see #archiveReductionList
+	 * @see #waitForArchiveReductions
+	 */
+	protected void finishArchiveReductions(TWILIGHT_CALIBRATE twilightCalibrateCommand)
+	{
+		Future<Boolean> future = null;
+		int cancelledCount;
+
+		if((archiveReductionList == null)||(archiveReductionList.size() == 0))
+			return;
+		cancelledCount = 0;
+		for(int i = 0; i < archiveReductionList.size(); i++)
+		{
+			if(archiveReductionList.get(i).cancel(false))
+				cancelledCount++;
+		}
+		for(int i = 0; i < archiveReductionList.size(); i++)
+		{
+			future = archiveReductionList.get(i);
+			if(future.isCancelled())
+				continue;
+			try
+			{
+				future.get();
+			}
+			catch(Exception e)
+			{
+				loci.error(this.getClass().getName()+":finishArchiveReductions:"+
+					   twilightCalibrateCommand.getId()+":Archival reduction failed:",e);
+			}
+		}
+		loci.log(Logging.VERBOSITY_TERSE,"Command:"+twilightCalibrateCommand.getId()+
+			 ":finishArchiveReductions:"+cancelledCount+" of "+archiveReductionList.size()+
+			 " archival reductions cancelled.");
+		archiveReductionList.clear();
+	}
+
 	/**
 	 * Send a 'takeExposure' command to the loci-ctrl CCD Flask API.
 	 * <ul>
+	 * <li>We call flushFitsHeaders to ensure the CCD Flask API holds the current set of FITS headers.
 	 * <li>We call getCCDFlaskConnectionData to setup ccdFlaskHostname and ccdFlaskPortNumber.
 	 * <li>We setup and configure an instance of TakeExposureCommand, 
 	 *     with connection details, exposure length, a temporary FITS filename and "sky-flat" exposure type.
@@ -1682,6 +3093,7 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	 * </ul>
 	 * @param exposureLength The dark exposure length in milliseconds.
 	 * @return The generated FITS filename is returned (including the FITS data pathname (directory)).
+	 * @see #flushFitsHeaders
 	 * @see #getCCDFlaskConnectionData
 	 * @see #status
 	 * @see #ccdFlaskHostname
@@ -1701,6 +3113,8 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		
 		loci.log(Logging.VERBOSITY_INTERMEDIATE,"sendTakeExposureCommand:started with exposure length "+
 			 exposureLength+" ms.");
+		// ensure the CCD Flask API holds exactly the current set of FITS headers
+		flushFitsHeaders();
 		// get CCD Flask API connection data
 		getCCDFlaskConnectionData();
 		// convert exposure length from milliseconds to decimal seconds
@@ -1719,6 +3133,8 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		// check reply
 		if(takeExposureCommand.getRunException() != null)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeExposureCommand:Failed to take exposure:",
 					    takeExposureCommand.getRunException());
@@ -1730,6 +3146,8 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 			 " and message:"+takeExposureCommand.getMessage()+".");
 		if(takeExposureCommand.isReturnStatusSuccess() == false)
 		{
+			// the CCD Flask API's FITS headers are unknown after a failed exposure
+			status.getFitsHeaderMirror().invalidate();
 			throw new Exception(this.getClass().getName()+
 					    ":sendTakeExposureCommand:Take Exposure Command failed with status: "+
 					    takeExposureCommand.getReturnStatus()+
@@ -1742,50 +3160,34 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 	}
 
 	/**
-	 * Get a LT FITS image filename from the FitsFilenameServer instance.
-	 * @return A FITS filename, including the path from the fitsDirectoryString, and the leaf filename from a 
-	 *         call to the FITS filename-server.
+	 * Get a LT FITS image filename from Loci's filename lease cache, which leases filenames from the 
+	 * filename-server in the background. The multrun is only started (MULTRUN_FLAG_START) when the first good
+	 * frame is renamed, the lease cache then prefetching the following filenames, so a twilight run that
+	 * produces no good frames does not use up a multrun number.
+	 * @return A FITS filename, including the path from the fitsDirectoryString, and the leaf filename leased from 
+	 *         the FITS filename-server.
 	 * @exception Exception Thrown if the call to the filename-server fails.
 	 * @see #fitsDirectoryString
 	 * @see #multrunStateFlag
-	 * @see Loci#getFitsFilenameServer
-	 * @see ngat.fits.FitsFilenameServer#setExposureCode
+	 * @see Loci#getFitsFilenameLeaseCache
+	 * @see LociFitsFilenameLeaseCache#getFilename
 	 * @see ngat.fits.FitsFilename#EXPOSURE_CODE_SKY_FLAT
 	 * @see ngat.fits.FitsFilenameServer#MULTRUN_FLAG_NEXT
 	 */
 	protected String getFitsFilename() throws Exception
 	{
-		FitsFilenameServer fitsFilenameServer = null;
 		String filename = null;
 		String filenameLeaf = null;
+		String multrunFlag = null;
 
 		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":getFitsFilename:Started.");
-		// get FITS filename server instance
-		fitsFilenameServer = loci.getFitsFilenameServer();
-		// fitsFilenameServer connection details and instrument code have already been setup.
-		fitsFilenameServer.setExposureCode(FitsFilename.EXPOSURE_CODE_SKY_FLAT);
 		// multrunStateFlag should be MULTRUN_FLAG_START the first time we try to generate a filename
 		// for this twilight calibration, and MULTRUN_FLAG_NEXT for all subsequent filenames.
-		fitsFilenameServer.setMultrunFlag(multrunStateFlag);
+		multrunFlag = multrunStateFlag;
 		multrunStateFlag = FitsFilenameServer.MULTRUN_FLAG_NEXT;
 		// The filename extension is always fits
-		fitsFilenameServer.setFileExtension("fits");
-		fitsFilenameServer.run();
-		if(fitsFilenameServer.getRunException() != null)
-		{
-			throw new Exception(this.getClass().getName()+
-					    ":getFitsFilename:Failed to get a filename:",
-					    fitsFilenameServer.getRunException());
-
-		}
-		if(fitsFilenameServer.isReturnStatusOK() == false)
-		{
-			throw new Exception(this.getClass().getName()+
-					    ":getFitsFilename:Failed to get a filename:"+
-					    fitsFilenameServer.getReturnMessage());
-		}
-		// get the generated filename	
-		filenameLeaf = fitsFilenameServer.getReturnFilename();
+		filenameLeaf = loci.getFitsFilenameLeaseCache().getFilename(FitsFilename.EXPOSURE_CODE_SKY_FLAT,
+									    multrunFlag,"fits");
 		loci.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+":getFitsFilename:filename leaf is:"+filenameLeaf);
 		// the FITS filename directory has been retrieved from the "loci.file.fits.path" and stored
 		// in fitsDirectoryString. It has had a directory terminator added if necessary ('/')
@@ -1953,6 +3355,105 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		return true;
 	}
 
+	/**
+	 * Private inner class that reduces a good raw frame with the DpRt, for archiving. The DpRt reduced
+	 * frame (if different from the raw frame) is renamed to the reduced FITS filename.
+	 * @see #queueArchiveReduction
+	 */
+	private class ArchiveReductionTask implements Callable<Boolean>
+	{
+		/**
+		 * The instance of TWILIGHT_CALIBRATE we are currently running.
+		 */
+		private TWILIGHT_CALIBRATE twilightCalibrateCommand = null;
+		/**
+		 * The raw FITS filename to reduce.
+		 */
+		private String rawFilename = null;
+		/**
+		 * The configuration snapshot pinned by the TWILIGHT_CALIBRATE command, pinned to the pool thread
+		 * whilst the task runs.
+		 */
+		private LociConfigSnapshot configSnapshot = null;
+
+		/**
+		 * Constructor. This is called on the command's thread, and retrieves the configuration snapshot
+		 * pinned by the command.
+		 * @param command The instance of TWILIGHT_CALIBRATE we are currently running.
+		 * @param filename The raw FITS filename to reduce.
+		 * @see LociStatus#getActiveConfigSnapshot
+		 */
+		public ArchiveReductionTask(TWILIGHT_CALIBRATE command,String filename)
+		{
+			super();
+			twilightCalibrateCommand = command;
+			rawFilename = filename;
+			configSnapshot = status.getActiveConfigSnapshot();
+		}
+
+		/**
+		 * Pin the command's configuration snapshot to the pool thread, and call reduce.
+		 * @return Boolean.TRUE if the reduction succeeded, Boolean.FALSE if it failed.
+		 * @exception Exception Thrown if getting the reduced FITS filename fails.
+		 * @see #reduce
+		 * @see LociStatus#pinConfigSnapshot(LociConfigSnapshot)
+		 */
+		public Boolean call() throws Exception
+		{
+			status.pinConfigSnapshot(configSnapshot);
+			try
+			{
+				return reduce();
+			}
+			finally
+			{
+				status.unpinConfigSnapshot();
+			}
+		}
+
+		/**
+		 * Reduce the raw frame using reduceCalibrate, with it's own done object so the command's done
+		 * is not changed. If the DpRt returns a different filename, it is renamed using getReducedFitsFilename.
+		 * @return Boolean.TRUE if the reduction succeeded, Boolean.FALSE if it failed.
+		 * @exception Exception Thrown if getting the reduced FITS filename fails.
+		 * @see CALIBRATEImplementation#reduceCalibrate
+		 * @see #getReducedFitsFilename
+		 */
+		protected Boolean reduce() throws Exception
+		{
+			TWILIGHT_CALIBRATE_DONE reduceDone = null;
+			File reducedFile = null;
+			File newFile = null;
+			String reducedFilename = null;
+
+			reduceDone = new TWILIGHT_CALIBRATE_DONE(twilightCalibrateCommand.getId());
+			if(reduceCalibrate(twilightCalibrateCommand,reduceDone,rawFilename) == false)
+			{
+				loci.error(this.getClass().getName()+":call:"+twilightCalibrateCommand.getId()+
+					   ":Archival reduction of "+rawFilename+" failed:"+reduceDone.getErrorNum()+":"+
+					   reduceDone.getErrorString());
+				return Boolean.FALSE;
+			}
+			reducedFilename = reduceDone.getFilename();
+			if((reducedFilename == null)||reducedFilename.equals(rawFilename))
+				return Boolean.TRUE;
+			reducedFile = new File(reducedFilename);
+			if(reducedFile.exists() == false)
+				return Boolean.TRUE;
+			newFile = new File(getReducedFitsFilename(rawFilename));
+			if(loci.isLoggable(Logging.VERBOSITY_VERBOSE))
+				loci.log(Logging.VERBOSITY_VERBOSE,"Command:"+twilightCalibrateCommand.getId()+
+					 ":call:Archival DpRt frame rename:renaming "+reducedFile+" to "+newFile+".");
+			if(reducedFile.renameTo(newFile) == false)
+			{
+				loci.error(this.getClass().getName()+":call:"+twilightCalibrateCommand.getId()+
+					   ":Failed to rename '"+reducedFile+"' to '"+newFile+"'.");
+				return Boolean.FALSE;
+			}
+			return Boolean.TRUE;
+		}
+	}// end ArchiveReductionTask
+
 	/**
 	 * Private inner class that deals with loading and interpreting the saved state of calibrations
 	 * (the TWILIGHT_CALIBRATE calibration database).
@@ -2070,6 +3571,16 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		 * not from the calibration list.
 		 */
 		protected long lastTime;
+		/**
+		 * The predicted time (in milliseconds since the epoch) this calibration's count window starts,
+		 * or -1 if it is not predicted to start before the command finishes (or no prediction was made).
+		 */
+		protected long windowStart = -1L;
+		/**
+		 * The predicted time (in milliseconds since the epoch) this calibration's count window ends,
+		 * or -1 if no window was predicted.
+		 */
+		protected long windowEnd = -1L;
 		
 		/**
 		 * Constructor.
@@ -2209,6 +3720,39 @@ public class TWILIGHT_CALIBRATEImplementation extends CALIBRATEImplementation im
 		{
 			return lastTime;
 		}
+
+		/**
+		 * Method to set the predicted count window of this calibration.
+		 * @param start The predicted start time of the window, in milliseconds since the epoch, or -1.
+		 * @param end The predicted end time of the window, in milliseconds since the epoch, or -1.
+		 * @see #windowStart
+		 * @see #windowEnd
+		 */
+		public void setWindow(long start,long end)
+		{
+			windowStart = start;
+			windowEnd = end;
+		}
+
+		/**
+		 * Method to get the predicted start time of this calibration's count window.
+		 * @return The number of milliseconds since the epoch, or -1 if no window was predicted.
+		 * @see #windowStart
+		 */
+		public long getWindowStart()
+		{
+			return windowStart;
+		}
+
+		/**
+		 * Method to get the predicted end time of this calibration's count window.
+		 * @return The number of milliseconds since the epoch, or -1 if no window was predicted.
+		 * @see #windowEnd
+		 */
+		public long getWindowEnd()
+		{
+			return windowEnd;
+		}
 	}// end class TWILIGHT_CALIBRATECalibration
 
 	/**
@@ -7,6 +7,8 @@ import ngat.message.base.*;
 /**
  * This class provides the implementation of a command sent to a server using the
  * Java Message System. The command sent is unknown to the server in this case.
+ * Loci shares a single instance of this class between all unknown commands, so it must not hold any
+ * per-command state.
  * @author Chris Mottram
  * @version $Revision: UnknownCommandImplementation.java $
  */
@@ -30,7 +32,7 @@ public class UnknownCommandImplementation extends CommandImplementation implemen
 		ACK acknowledge = null;
 
 		acknowledge = new ACK(command.getId());
-		acknowledge.setTimeToComplete(serverConnectionThread.getMinAcknowledgeTime());
+		acknowledge.setTimeToComplete(LociTCPServerConnectionThread.getMinAcknowledgeTime());
 		return acknowledge;
 	}
 
@@ -52,8 +52,11 @@ public class SetCoolingCommand extends Command implements Runnable
 	 */
 	public void setCooling(boolean cooling)
 	{
-		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-			   ":setCooling:Set cooling to:"+cooling);
+		if(isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERBOSE,"%s:setCooling:Set cooling to:%s",this.getClass().getName(),
+				   cooling);
+		}
 		endPoint.addParameter("cooling",cooling);
 	}
 	
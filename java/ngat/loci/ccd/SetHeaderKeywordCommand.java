@@ -54,8 +54,8 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setKeyword(String keyword)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setKeyword:Set keyword to:"+keyword);
+		log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setKeyword:Set keyword to:%s",this.getClass().getName(),
+			   keyword);
 		endPoint.addParameter("keyword",keyword);
 	}
 	
@@ -69,8 +69,8 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setValue(String value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setValue:Set value to:"+value);
+		log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setValue:Set value to:%s",this.getClass().getName(),
+			   value);
 		endPoint.addParameter("value",value);
 	}
 	
@@ -83,8 +83,11 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setValue(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setValue:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setValue:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("value",value);
 	}
 	
@@ -97,8 +100,11 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setValue(double value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setValue:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setValue:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("value",value);
 	}
 	
@@ -111,8 +117,11 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setValue(boolean value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setValue:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setValue:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("value",value);
 	}
 	
@@ -125,8 +134,8 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setUnits(String unitsString)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setUnits:Set value to:"+unitsString);
+		log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setUnits:Set value to:%s",this.getClass().getName(),
+			   unitsString);
 		endPoint.addParameter("units",unitsString);
 	}
 	
@@ -139,8 +148,8 @@ public class SetHeaderKeywordCommand extends Command implements Runnable
 	 */
 	public void setComment(String commentString)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setComment:Set value to:"+commentString);
+		log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setComment:Set value to:%s",this.getClass().getName(),
+			   commentString);
 		endPoint.addParameter("comment",commentString);
 	}
 	
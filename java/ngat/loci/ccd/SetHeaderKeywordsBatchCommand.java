@@ -0,0 +1,551 @@
+// SetHeaderKeywordsBatchCommand.java
+// $Id$
+package ngat.loci.ccd;
+
+import java.io.*;
+import java.lang.*;
+import java.net.*;
+
+import org.json.*;
+
+import ngat.flask.EndPoint;
+import ngat.util.logging.*;
+import ngat.loci.ccd.Command;
+import ngat.loci.ccd.SetHeaderKeywordCommand;
+
+/**
+ * Invoke the Loci CCD Flask end-point 'setHeaderKeywords', which sets a list of FITS header cards
+ * in one request. FITS header cards are added to the command with the addKeyword methods, and are all sent
+ * to the server when the command is run. If the server does not support the 'setHeaderKeywords' end-point
+ * (it returns HTTP_NOT_FOUND), the command falls back to sending each card in turn using
+ * a SetHeaderKeywordCommand, and does not try the batch end-point again until setBatchEndPointAvailable is called
+ * (Loci does this on a REDATUM level reboot).
+ * The batch payload is a JSON array of cards, which cannot be expressed as EndPoint parameters, so the request
+ * is made directly using a HttpURLConnection (with connect and read timeouts), rather than through the
+ * Command super-class's Flask end-point.
+ * @author Chris Mottram
+ * @version $Revision$
+ * @see ngat.loci.ccd.SetHeaderKeywordCommand
+ */
+public class SetHeaderKeywordsBatchCommand extends Command implements Runnable
+{
+	/**
+	 * Revision Control System id string, showing the version of the Class.
+	 */
+	public final static String RCSID = new String("$Id$");
+	/**
+	 * Constant defining the log level to send for error messages generated by instances of this class.
+	 */
+	public final static int LOG_LEVEL_ERROR = 1;
+	/**
+	 * The name of the Flask end-point used to set a list of keywords.
+	 */
+	public final static String BATCH_END_POINT_NAME = new String("setHeaderKeywords");
+	/**
+	 * The length of time to wait for a connection to the CCD Flask API to be made, in milliseconds.
+	 */
+	public final static int CONNECT_TIMEOUT = 5000;
+	/**
+	 * The length of time to wait for the CCD Flask API to reply to the batch request, in milliseconds.
+	 */
+	public final static int READ_TIMEOUT = 10000;
+	/**
+	 * Class-wide flag, set to false when a server has been found not to support the 'setHeaderKeywords'
+	 * end-point. Subsequent commands then go straight to sending one card per request. This is reset to true
+	 * by a REDATUM level reboot (Loci.reInit), so the batch end-point is re-tried after the CCD Flask API is
+	 * upgraded.
+	 * @see #setBatchEndPointAvailable
+	 * @see #getBatchEndPointAvailable
+	 */
+	private static boolean batchEndPointAvailable = true;
+	/**
+	 * The port number of the CCD Flask API.
+	 */
+	protected int portNumber = 5100;
+	/**
+	 * The list of FITS header cards to send. Each card is a JSONObject with a 'keyword' and 'value', and
+	 * optionally 'comment' and 'units' keys, as expected by the 'setHeaderKeywords' end-point.
+	 */
+	protected JSONArray keywordList = null;
+	/**
+	 * The Http Response Code returned by the last request made by this command.
+	 */
+	protected int httpResponseCode = -1;
+	/**
+	 * The return status string of the command ('Success' on success).
+	 */
+	protected String returnStatus = null;
+	/**
+	 * The message string returned by the server.
+	 */
+	protected String message = null;
+	/**
+	 * Whether the cards were sent one per request (the batch end-point was not available).
+	 */
+	protected boolean usedFallback = false;
+
+	/**
+	 * Default constructor. Call's the Command super-class constructor, and creates an empty keyword list.
+	 * @see #logger
+	 * @see #keywordList
+	 */
+	public SetHeaderKeywordsBatchCommand()
+	{
+		super();
+		logger = LogManager.getLogger(this);
+		keywordList = new JSONArray();
+	}
+
+	/**
+	 * Class method to set whether the CCD Flask API supports the 'setHeaderKeywords' end-point.
+	 * @param b A boolean, true if the batch end-point should be tried, false to send one card per request.
+	 * @see #batchEndPointAvailable
+	 */
+	public static synchronized void setBatchEndPointAvailable(boolean b)
+	{
+		batchEndPointAvailable = b;
+	}
+
+	/**
+	 * Class method to get whether the CCD Flask API is thought to support the 'setHeaderKeywords' end-point.
+	 * @return A boolean, true if the batch end-point will be tried.
+	 * @see #batchEndPointAvailable
+	 */
+	public static synchronized boolean getBatchEndPointAvailable()
+	{
+		return batchEndPointAvailable;
+	}
+
+	/**
+	 * Set the port number.
+	 * @param portNumber An integer representing the port number the end-point is listening on.
+	 * @see #portNumber
+	 * @see ngat.loci.ccd.Command#setPortNumber
+	 */
+	public void setPortNumber(int portNumber)
+	{
+		super.setPortNumber(portNumber);
+		this.portNumber = portNumber;
+	}
+
+	/**
+	 * Add a FITS header card with a string value to the list of cards to send.
+	 * @param keyword A string with the name of the keyword.
+	 * @param value A string which is the value string associated with the keyword.
+	 * @param commentString A comment string, or null if no comment is required.
+	 * @param unitsString A units string, or null if no units are required.
+	 * @exception JSONException Thrown if the card cannot be created.
+	 * @see #addCard
+	 */
+	public void addKeyword(String keyword,String value,String commentString,String unitsString)
+		throws JSONException
+	{
+		JSONObject card = createCard(keyword,commentString,unitsString);
+
+		card.put("value",value);
+		addCard(card);
+	}
+
+	/**
+	 * Add a FITS header card with an integer value to the list of cards to send.
+	 * @param keyword A string with the name of the keyword.
+	 * @param value An integer which is the value associated with the keyword.
+	 * @param commentString A comment string, or null if no comment is required.
+	 * @param unitsString A units string, or null if no units are required.
+	 * @exception JSONException Thrown if the card cannot be created.
+	 * @see #addCard
+	 */
+	public void addKeyword(String keyword,int value,String commentString,String unitsString)
+		throws JSONException
+	{
+		JSONObject card = createCard(keyword,commentString,unitsString);
+
+		card.put("value",value);
+		addCard(card);
+	}
+
+	/**
+	 * Add a FITS header card with a double value to the list of cards to send.
+	 * @param keyword A string with the name of the keyword.
+	 * @param value A double which is the value associated with the keyword.
+	 * @param commentString A comment string, or null if no comment is required.
+	 * @param unitsString A units string, or null if no units are required.
+	 * @exception JSONException Thrown if the card cannot be created.
+	 * @see #addCard
+	 */
+	public void addKeyword(String keyword,double value,String commentString,String unitsString)
+		throws JSONException
+	{
+		JSONObject card = createCard(keyword,commentString,unitsString);
+
+		card.put("value",value);
+		addCard(card);
+	}
+
+	/**
+	 * Add a FITS header card with a boolean value to the list of cards to send.
+	 * @param keyword A string with the name of the keyword.
+	 * @param value A boolean which is the value associated with the keyword.
+	 * @param commentString A comment string, or null if no comment is required.
+	 * @param unitsString A units string, or null if no units are required.
+	 * @exception JSONException Thrown if the card cannot be created.
+	 * @see #addCard
+	 */
+	public void addKeyword(String keyword,boolean value,String commentString,String unitsString)
+		throws JSONException
+	{
+		JSONObject card = createCard(keyword,commentString,unitsString);
+
+		card.put("value",value);
+		addCard(card);
+	}
+
+	/**
+	 * Return the number of FITS header cards currently in the list of cards to send.
+	 * @return The number of cards.
+	 * @see #keywordList
+	 */
+	public int getKeywordCount()
+	{
+		return keywordList.length();
+	}
+
+	/**
+	 * Run the command. If the batch end-point is thought to be available, all the cards are sent in one
+	 * request to the 'setHeaderKeywords' end-point. If the server replies with HTTP_NOT_FOUND, the
+	 * batch end-point is marked as unavailable, and the cards are sent one per request using
+	 * SetHeaderKeywordCommand.
+	 * @see #batchEndPointAvailable
+	 * @see #sendBatch
+	 * @see #sendPerKeyword
+	 * @see #commandFinished
+	 */
+	public void run()
+	{
+		if(isLoggable(Logging.VERBOSITY_INTERMEDIATE))
+		{
+			log(Logging.VERBOSITY_INTERMEDIATE,"%s:run:started with %d keywords.",this.getClass().getName(),
+			    keywordList.length());
+		}
+		runException = null;
+		commandFinished = false;
+		usedFallback = false;
+		if(getBatchEndPointAvailable())
+		{
+			sendBatch();
+			if((runException == null)&&(httpResponseCode == HttpURLConnection.HTTP_NOT_FOUND))
+			{
+				logger.log(Logging.VERBOSITY_TERSE,this.getClass().getName()+
+					   ":run:Server does not support end-point "+BATCH_END_POINT_NAME+
+					   ":falling back to one keyword per request.");
+				setBatchEndPointAvailable(false);
+				sendPerKeyword();
+			}
+		}
+		else
+			sendPerKeyword();
+		commandFinished = true;
+		log(Logging.VERBOSITY_INTERMEDIATE,"%s:run:finished.",this.getClass().getName());
+	}
+
+	/**
+	 * Return the Http Response Code generated by the server when responding to the last request.
+	 * @return The Http Response Code.
+	 * @see #httpResponseCode
+	 */
+	public int getHttpResponseCode()
+	{
+		return httpResponseCode;
+	}
+
+	/**
+	 * Return an exception generated when the command was run.
+	 * @return An exception if one was generated, or null otherwise.
+	 * @see #runException
+	 */
+	public Exception getRunException()
+	{
+		return runException;
+	}
+
+	/**
+	 * Return the command return status returned by the Flask end-point.
+	 * @return A string, the reply status returned by the Flask end-point
+	 *         (with the JSON key 'status').
+	 * @exception JSONException Thrown if no status was returned.
+	 * @see #returnStatus
+	 */
+	public String getReturnStatus() throws org.json.JSONException
+	{
+		if(returnStatus == null)
+			throw new JSONException(this.getClass().getName()+":getReturnStatus:No status returned.");
+		return returnStatus;
+	}
+
+	/**
+	 * Return the message string returned by the Flask end-point.
+	 * @return The message as a string returned by the Flask end-point
+	 *         (with the JSON key 'message').
+	 * @exception JSONException Thrown if no message was returned.
+	 * @see #message
+	 */
+	public String getMessage() throws org.json.JSONException
+	{
+		if(message == null)
+			throw new JSONException(this.getClass().getName()+":getMessage:No message returned.");
+		return message;
+	}
+
+	/**
+	 * Return whether the last run sent the cards one per request, rather than using the batch end-point.
+	 * @return A boolean, true if the per-keyword fallback was used.
+	 * @see #usedFallback
+	 */
+	public boolean getUsedFallback()
+	{
+		return usedFallback;
+	}
+
+	/**
+	 * Create a JSONObject representing a FITS header card, with the keyword, and optionally comment and units,
+	 * filled in.
+	 * @param keyword A string with the name of the keyword.
+	 * @param commentString A comment string, or null/zero length if no comment is required.
+	 * @param unitsString A units string, or null/zero length if no units are required.
+	 * @return A new JSONObject.
+	 * @exception JSONException Thrown if the keyword is null.
+	 */
+	protected JSONObject createCard(String keyword,String commentString,String unitsString)
+		throws JSONException
+	{
+		JSONObject card = new JSONObject();
+
+		card.put("keyword",keyword);
+		if((commentString != null)&&(commentString.length() > 0))
+			card.put("comment",commentString);
+		if((unitsString != null)&&(unitsString.length() > 0))
+			card.put("units",unitsString);
+		return card;
+	}
+
+	/**
+	 * Add a card to the list of cards to send.
+	 * @param card The card to add.
+	 * @see #keywordList
+	 */
+	protected void addCard(JSONObject card)
+	{
+		// only serialise the card to a string if it will be logged
+		log(Logging.VERBOSITY_VERY_VERBOSE,"%s:addCard:Adding card:%s",this.getClass().getName(),card);
+		keywordList.put(card);
+	}
+
+	/**
+	 * Send all the cards to the 'setHeaderKeywords' end-point in one POST request, with a JSON payload of the
+	 * form {"keywords": [ {"keyword": ..., "value": ...}, ... ]}. The reply's Http response code,
+	 * 'status' and 'message' are stored. Any exception is stored in runException.
+	 * The connection times out after CONNECT_TIMEOUT / READ_TIMEOUT milliseconds, so a hung server
+	 * cannot block the exposure command indefinitely.
+	 * @see #keywordList
+	 * @see #address
+	 * @see #CONNECT_TIMEOUT
+	 * @see #READ_TIMEOUT
+	 * @see #httpResponseCode
+	 * @see #returnStatus
+	 * @see #message
+	 * @see #runException
+	 */
+	protected void sendBatch()
+	{
+		HttpURLConnection connection = null;
+		OutputStream outputStream = null;
+		InputStream inputStream = null;
+		JSONObject payload = null;
+		JSONObject reply = null;
+		String replyString = null;
+		byte payloadBytes[] = null;
+
+		httpResponseCode = -1;
+		returnStatus = null;
+		message = null;
+		try
+		{
+			payload = new JSONObject();
+			payload.put("keywords",keywordList);
+			payloadBytes = payload.toString().getBytes("UTF-8");
+			connection = (HttpURLConnection)(new URL("http",address,portNumber,"/"+BATCH_END_POINT_NAME).
+							 openConnection());
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type","application/json");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(payloadBytes.length);
+			outputStream = connection.getOutputStream();
+			outputStream.write(payloadBytes);
+			outputStream.close();
+			httpResponseCode = connection.getResponseCode();
+			if(httpResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+				inputStream = connection.getErrorStream();
+			else
+				inputStream = connection.getInputStream();
+			replyString = readReply(inputStream);
+			if(isLoggable(Logging.VERBOSITY_VERBOSE))
+			{
+				log(Logging.VERBOSITY_VERBOSE,"%s:sendBatch:Http response code %d with reply:%s",
+				    this.getClass().getName(),httpResponseCode,replyString);
+			}
+			if(httpResponseCode == HttpURLConnection.HTTP_NOT_FOUND)
+				return;
+			reply = new JSONObject(replyString);
+			returnStatus = reply.getString("status");
+			message = reply.optString("message",null);
+		}
+		catch(Exception e)
+		{
+			logger.log(LOG_LEVEL_ERROR,this.getClass().getName()+":sendBatch:failed:"+e);
+			runException = e;
+		}
+	}
+
+	/**
+	 * Send the cards to the 'setHeaderKeyword' end-point, one card per request, using an instance
+	 * of SetHeaderKeywordCommand per card. We stop at the first card that fails, and copy it's
+	 * run exception / status / message into this command.
+	 * @see #keywordList
+	 * @see #usedFallback
+	 * @see ngat.loci.ccd.SetHeaderKeywordCommand
+	 */
+	protected void sendPerKeyword()
+	{
+		SetHeaderKeywordCommand command = null;
+		JSONObject card = null;
+		Object value = null;
+
+		usedFallback = true;
+		httpResponseCode = -1;
+		returnStatus = null;
+		message = null;
+		try
+		{
+			for(int index = 0; index < keywordList.length(); index++)
+			{
+				card = keywordList.getJSONObject(index);
+				command = new SetHeaderKeywordCommand();
+				command.setAddress(address);
+				command.setPortNumber(portNumber);
+				command.setKeyword(card.getString("keyword"));
+				value = card.get("value");
+				if(value instanceof Integer)
+					command.setValue(((Integer)value).intValue());
+				else if(value instanceof Number)
+					command.setValue(((Number)value).doubleValue());
+				else if(value instanceof Boolean)
+					command.setValue(((Boolean)value).booleanValue());
+				else
+					command.setValue(value.toString());
+				if(card.has("comment"))
+					command.setComment(card.getString("comment"));
+				if(card.has("units"))
+					command.setUnits(card.getString("units"));
+				command.run();
+				httpResponseCode = command.getHttpResponseCode();
+				if(command.getRunException() != null)
+				{
+					runException = command.getRunException();
+					return;
+				}
+				if(command.isReturnStatusSuccess() == false)
+				{
+					returnStatus = command.getReturnStatus();
+					message = command.getMessage();
+					return;
+				}
+			}
+			returnStatus = "Success";
+			message = "Set "+keywordList.length()+" header keywords one per request.";
+		}
+		catch(Exception e)
+		{
+			logger.log(LOG_LEVEL_ERROR,this.getClass().getName()+":sendPerKeyword:failed:"+e);
+			runException = e;
+		}
+	}
+
+	/**
+	 * Read the reply body from the specified input stream into a string.
+	 * @param inputStream The stream to read from. This can be null, in which case a zero length string is
+	 *        returned.
+	 * @return A string containing the reply.
+	 * @exception IOException Thrown if reading the stream fails.
+	 */
+	protected String readReply(InputStream inputStream) throws IOException
+	{
+		BufferedReader reader = null;
+		StringBuffer buffer = new StringBuffer();
+		String line = null;
+
+		if(inputStream == null)
+			return "";
+		reader = new BufferedReader(new InputStreamReader(inputStream,"UTF-8"));
+		try
+		{
+			while((line = reader.readLine()) != null)
+				buffer.append(line);
+		}
+		finally
+		{
+			reader.close();
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Main test program.
+	 * @param args The argument list.
+	 */
+	public static void main(String args[])
+	{
+		SetHeaderKeywordsBatchCommand command = null;
+		String hostname = null;
+		int portNumber = 5100;
+
+		if((args.length < 4)||(((args.length-2) % 2) != 0))
+		{
+			System.out.println("java ngat.loci.ccd.SetHeaderKeywordsBatchCommand <hostname> <port number> <keyword> <string value> [<keyword> <string value>...]");
+			System.exit(1);
+		}
+		try
+		{
+			hostname = args[0];
+			portNumber = Integer.parseInt(args[1]);
+			command = new SetHeaderKeywordsBatchCommand();
+			command.initialiseLogging();
+			command.setAddress(hostname);
+			command.setPortNumber(portNumber);
+			for(int index = 2; index < args.length; index += 2)
+			{
+				command.addKeyword(args[index],args[index+1],null,null);
+			}
+			command.run();
+			if(command.getRunException() != null)
+			{
+				System.err.println("SetHeaderKeywordsBatchCommand: Command failed.");
+				command.getRunException().printStackTrace(System.err);
+				System.exit(1);
+			}
+			System.out.println("Finished:"+command.getCommandFinished());
+			System.out.println("Used per-keyword fallback:"+command.getUsedFallback());
+			System.out.println("Http Response Code (200 on success):"+command.getHttpResponseCode());
+			System.out.println("Return Status:"+command.getReturnStatus());
+			System.out.println("Is Return Status Success:"+command.isReturnStatusSuccess());
+			System.out.println("Message:"+command.getMessage());
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
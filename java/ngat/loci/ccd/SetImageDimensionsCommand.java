@@ -48,8 +48,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setHorizontalBinning(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setHorizontalBinning:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setHorizontalBinning:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("horizontal_binning",value);
 	}
 	
@@ -61,8 +64,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setVerticalBinning(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setVerticalBinning:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setVerticalBinning:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("vertical_binning",value);
 	}
 	
@@ -76,8 +82,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setHorizontalStart(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setHorizontalStart:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setHorizontalStart:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("horizontal_start",value);
 	}
 	
@@ -92,8 +101,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setVerticalStart(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setVerticalStart:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setVerticalStart:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("vertical_start",value);
 	}
 	
@@ -108,8 +120,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setHorizontalEnd(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setHorizontalEnd:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setHorizontalEnd:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("horizontal_end",value);
 	}
 	
@@ -124,8 +139,11 @@ public class SetImageDimensionsCommand extends Command implements Runnable
 	 */
 	public void setVerticalEnd(int value)
 	{
-		logger.log(Logging.VERBOSITY_VERY_VERBOSE,this.getClass().getName()+
-			   ":setVerticalEnd:Set value to:"+value);
+		if(isLoggable(Logging.VERBOSITY_VERY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERY_VERBOSE,"%s:setVerticalEnd:Set value to:%s",this.getClass().getName(),
+				   value);
+		}
 		endPoint.addParameter("vertical_end",value);
 	}
 	
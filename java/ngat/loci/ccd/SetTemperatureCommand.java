@@ -52,8 +52,11 @@ public class SetTemperatureCommand extends Command implements Runnable
 	 */
 	public void setTemperature(int targetTemperature)
 	{
-		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-			   ":setTemperature:Set target temperature to:"+targetTemperature);
+		if(isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERBOSE,"%s:setTemperature:Set target temperature to:%s",this.getClass().getName(),
+				   targetTemperature);
+		}
 		endPoint.addParameter("temperature",targetTemperature);
 	}
 	
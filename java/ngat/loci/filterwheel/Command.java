@@ -14,6 +14,9 @@ import ngat.util.logging.*;
 /**
  * The Command class is the base class for sending a command and getting a reply from the
  * Loci filter wheel API. This is a Flask end-point.
+ * An instance can be reused: the address and port number can be set once, and run called repeatedly. 
+ * The end-point (and it's underlying HTTP connection, which the JVM keeps alive between requests)
+ * is retained between calls, and the address is only re-resolved when it changes.
  * @author Chris Mottram
  * @version $Revision$
  */
@@ -31,6 +34,11 @@ public class Command implements Runnable
 	 * The Loco end-point name.
 	 */
 	protected String endPointName = null;
+	/**
+	 * The address last passed to setAddress, so reused instances only re-resolve the address when it changes.
+	 * @see #setAddress
+	 */
+	protected String address = null;
 	/**
 	 * Exception generated by the Flask end-point if called via the run method.
 	 * @see #run
@@ -74,18 +82,25 @@ public class Command implements Runnable
 		endPoint = new EndPoint();
 		endPoint.setIPAddress(address);
 		endPoint.setPortNumber(portNumber);
+		this.address = address;
 	}
 
 	/**
 	 * Set the address.
 	 * @param address A string representing the address of the end-point, i.e. "loci", "localhost".
+	 * If the address is the same as the one previously set (i.e. this instance is being reused), 
+	 * the end-point's address is left alone.
 	 * @exception UnknownHostException Thrown if the address in unknown.
+	 * @see #address
 	 * @see #endPoint
 	 * @see ngat.flask.EndPoint#setIPAddress
 	 */
 	public void setAddress(String address) throws UnknownHostException
 	{
+		if((this.address != null)&&(this.address.equals(address)))
+			return;
 		endPoint.setIPAddress(address);
+		this.address = address;
 	}
 
 	/**
@@ -99,17 +114,97 @@ public class Command implements Runnable
 		endPoint.setPortNumber(portNumber);
 	}
 
+	/**
+	 * Return whether a log message of the specified level would be written by this command's logger.
+	 * This can be used to avoid building log messages that would be thrown away. The loggers use an
+	 * absolute filter, so a message is written if it's level is less than or equal to the logger's log level.
+	 * @param level The level of logging of the message.
+	 * @return true if a message of this level would be logged, false if it would be discarded.
+	 * @see #logger
+	 */
+	protected boolean isLoggable(int level)
+	{
+		return (level <= logger.getLogLevel());
+	}
+
+	/**
+	 * Write a formatted message to this command's logger. The message is only formatted
+	 * (using String.format) if a message of this level would be logged. Calls with one to three
+	 * arguments use the fixed-arity overloads instead, which do not create an argument array.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param args The arguments referenced by the format specifiers in the format string.
+	 * @see #isLoggable
+	 * @see #logger
+	 */
+	protected void log(int level,String format,Object... args)
+	{
+		if(isLoggable(level))
+			logger.log(level,String.format(format,args));
+	}
+
+	/**
+	 * Write a formatted message with one argument. This fixed-arity overload of log(int,String,Object...) is
+	 * chosen by the compiler for calls with one argument, so no argument array is created when the message would
+	 * be discarded. Primitive arguments are still boxed by the caller, so hot path calls passing them should
+	 * be guarded by isLoggable.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #logger
+	 */
+	protected void log(int level,String format,Object arg0)
+	{
+		if(isLoggable(level))
+			logger.log(level,String.format(format,arg0));
+	}
+
+	/**
+	 * Write a formatted message with two arguments, without creating an argument array.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @param arg1 The second argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String,Object)
+	 */
+	protected void log(int level,String format,Object arg0,Object arg1)
+	{
+		if(isLoggable(level))
+			logger.log(level,String.format(format,arg0,arg1));
+	}
+
+	/**
+	 * Write a formatted message with three arguments, without creating an argument array.
+	 * @param level The level of logging this message belongs to.
+	 * @param format A java.util.Formatter format string.
+	 * @param arg0 The first argument referenced by the format string.
+	 * @param arg1 The second argument referenced by the format string.
+	 * @param arg2 The third argument referenced by the format string.
+	 * @see #isLoggable
+	 * @see #log(int,String,Object)
+	 */
+	protected void log(int level,String format,Object arg0,Object arg1,Object arg2)
+	{
+		if(isLoggable(level))
+			logger.log(level,String.format(format,arg0,arg1,arg2));
+	}
+
 	/**
 	 * Run thread. Just invokes the end-point's run method.
+	 * commandFinished is reset at the start, so the instance can be reused.
+	 * @see #commandFinished
 	 * @see #endPoint
 	 * @see ngat.flask.EndPoint#run
 	 */
 	public void run()
 	{
-		logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:started.");
+		log(Logging.VERBOSITY_INTERMEDIATE,"%s:run:started.",this.getClass().getName());
+		commandFinished = false;
 		endPoint.run();
 		commandFinished = true;
-		logger.log(Logging.VERBOSITY_INTERMEDIATE,this.getClass().getName()+":run:finished.");
+		log(Logging.VERBOSITY_INTERMEDIATE,"%s:run:finished.",this.getClass().getName());
 	}
 
 	/**
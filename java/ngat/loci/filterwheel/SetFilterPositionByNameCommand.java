@@ -48,8 +48,8 @@ public class SetFilterPositionByNameCommand extends Command implements Runnable
 	 */
 	public void setFilterName(String name)
 	{
-		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-			   ":setFilterName:Set filter name to:"+name);
+		log(Logging.VERBOSITY_VERBOSE,"%s:setFilterName:Set filter name to:%s",this.getClass().getName(),
+			   name);
 		endPoint.addParameter("filter_name",name);
 	}
 	
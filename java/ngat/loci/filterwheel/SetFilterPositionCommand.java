@@ -48,8 +48,11 @@ public class SetFilterPositionCommand extends Command implements Runnable
 	 */
 	public void setFilterPosition(int p)
 	{
-		logger.log(Logging.VERBOSITY_VERBOSE,this.getClass().getName()+
-			   ":setFilterPosition:Set filter position to:"+p);
+		if(isLoggable(Logging.VERBOSITY_VERBOSE))
+		{
+			log(Logging.VERBOSITY_VERBOSE,"%s:setFilterPosition:Set filter position to:%s",this.getClass().getName(),
+				   p);
+		}
 		endPoint.addParameter("filter_position",p);
 	}
 	